@@ -0,0 +1,127 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.sshd.common.session.SessionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Role checks of file system factory and shell factory with subjects of different size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationBenchmark
+{
+	@Param({"10", "100", "1000"})
+	public int roleCount;
+	
+	private Path homeRoot;
+	private RolePolicy rolePolicy;
+	private SFTPHomeFileSystemFactory fileSystemFactory;
+	private Subject subject;
+	private SessionContext session;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		this.homeRoot = Files.createTempDirectory("sftphome-benchmark");
+		System.setProperty("karaf.base", this.homeRoot.toString());
+		
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("homeroot", this.homeRoot.toString());
+		properties.put("rolehomedir", "sftp");
+		properties.put("rolekarafbasedir", "admin");
+		properties.put("rolesecureshell", "sshconsole");
+		
+		this.rolePolicy = RolePolicy.fromProperties(properties, new Class<?>[] {RolePrincipal.class});
+		this.fileSystemFactory = new SFTPHomeFileSystemFactory(properties, this.rolePolicy, null);
+		this.subject = BenchmarkFixtures.createSubject(this.roleCount, "sftp", "sshconsole");
+		this.session = BenchmarkFixtures.createSession(this.subject);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		this.fileSystemFactory.dispose();
+		Files.deleteIfExists(this.homeRoot.resolve(BenchmarkFixtures.USER_NAME));
+		Files.deleteIfExists(this.homeRoot);
+	}
+	
+	/**
+	 * Home directory lookup of session with resolved access.
+	 */
+	@Benchmark
+	public Path userHomeDir() throws IOException
+	{
+		return this.fileSystemFactory.getUserHomeDir(this.session);
+	}
+	
+	/**
+	 * Home directory lookup of new session, includes resolution of access.
+	 */
+	@Benchmark
+	public Path userHomeDirNewSession() throws IOException
+	{
+		return this.fileSystemFactory.getUserHomeDir(BenchmarkFixtures.createSession(this.subject));
+	}
+	
+	/**
+	 * Secure shell check of shell factory for new session.
+	 */
+	@Benchmark
+	public boolean shellAccess()
+	{
+		return this.rolePolicy.resolve(this.subject).hasSecureShellAccess();
+	}
+	
+	@Benchmark
+	public boolean currentUserHasRole()
+	{
+		return JaasHelper.currentUserHasRole(this.subject.getPrincipals(), "sshconsole");
+	}
+	
+	@Benchmark
+	public boolean currentUserHasRoleByClass()
+	{
+		return JaasHelper.currentUserHasRole(this.subject.getPrincipals(), RolePrincipal.class.getName() + ":sshconsole");
+	}
+}
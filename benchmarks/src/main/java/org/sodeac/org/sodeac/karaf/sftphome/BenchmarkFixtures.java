@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.session.SessionContext;
+
+/**
+ * Subjects and sessions used by benchmarks.
+ */
+public class BenchmarkFixtures
+{
+	public static final String USER_NAME = "benchmark";
+	
+	/**
+	 * Creates subject with user principal and given number of role principals. Configured roles are the last ones, 
+	 * so role checks have to inspect all principals.
+	 * 
+	 * @param roleCount number of role principals
+	 * @param configuredRoles roles matching the configuration
+	 * @return subject
+	 */
+	public static Subject createSubject(int roleCount, String... configuredRoles)
+	{
+		Subject subject = new Subject();
+		subject.getPrincipals().add(new UserPrincipal(USER_NAME));
+		for(int i = 0; i < roleCount - configuredRoles.length; i++)
+		{
+			subject.getPrincipals().add(new RolePrincipal("group" + i));
+		}
+		for(String role : configuredRoles)
+		{
+			subject.getPrincipals().add(new RolePrincipal(role));
+		}
+		return subject;
+	}
+	
+	/**
+	 * Creates session supporting attributes only, authenticated with subject.
+	 * 
+	 * @param subject authenticated subject
+	 * @return session
+	 */
+	public static SessionContext createSession(Subject subject)
+	{
+		final Map<AttributeKey<?>, Object> attributes = new HashMap<AttributeKey<?>, Object>();
+		attributes.put(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+		
+		return (SessionContext)Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class<?>[] {SessionContext.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName())
+			{
+				case "getAttribute": return attributes.get(args[0]);
+				case "setAttribute": return attributes.put((AttributeKey<?>)args[0], args[1]);
+				case "removeAttribute": return attributes.remove(args[0]);
+				case "getUsername": return USER_NAME;
+				case "hashCode": return System.identityHashCode(proxy);
+				case "equals": return proxy == args[0];
+				case "toString": return "benchmark session";
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of configuration properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark
+{
+	@Param({"1", "10", "100"})
+	public int valueCount;
+	
+	private Map<String, Object> properties;
+	
+	@Setup
+	public void setup()
+	{
+		StringBuilder roles = new StringBuilder();
+		String[] roleArray = new String[this.valueCount];
+		for(int i = 0; i < this.valueCount; i++)
+		{
+			roles.append(i == 0 ? "" : ", ").append("role").append(i);
+			roleArray[i] = "role" + i;
+		}
+		
+		this.properties = new HashMap<String, Object>();
+		this.properties.put("rolehomedir", roles.toString());
+		this.properties.put("rolekarafbasedir", roleArray);
+		this.properties.put("rolesecureshell", "sshconsole");
+	}
+	
+	@Benchmark
+	public String[] stringArrayFromString()
+	{
+		return SFTPHomeSetup.getPropertyStringArray(this.properties, "rolehomedir");
+	}
+	
+	@Benchmark
+	public String[] stringArrayFromArray()
+	{
+		return SFTPHomeSetup.getPropertyStringArray(this.properties, "rolekarafbasedir");
+	}
+	
+	/**
+	 * Compilation of role policy as done by each configuration update.
+	 */
+	@Benchmark
+	public RolePolicy rolePolicy()
+	{
+		return RolePolicy.fromProperties(this.properties, new Class<?>[] {RolePrincipal.class});
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Domain combination of {@link JaasHelper.OsgiSubjectDomainCombiner} as done by each access control check within {@link JaasHelper#doAs}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomainCombinerBenchmark
+{
+	@Param({"10", "100", "1000"})
+	public int roleCount;
+	
+	@Param({"4", "16"})
+	public int domainCount;
+	
+	private Subject subject;
+	private JaasHelper.OsgiSubjectDomainCombiner combiner;
+	private ProtectionDomain[] currentDomains;
+	
+	@Setup
+	public void setup() throws MalformedURLException
+	{
+		this.subject = BenchmarkFixtures.createSubject(this.roleCount, "sshconsole");
+		this.subject.setReadOnly();
+		this.combiner = new JaasHelper.OsgiSubjectDomainCombiner(this.subject);
+		
+		this.currentDomains = new ProtectionDomain[this.domainCount];
+		for(int i = 0; i < this.domainCount; i++)
+		{
+			this.currentDomains[i] = new ProtectionDomain(new CodeSource(new URL("file:/bundle" + i + ".jar"), (Certificate[])null), null);
+		}
+	}
+	
+	/**
+	 * Repeated combination of same stack.
+	 */
+	@Benchmark
+	public ProtectionDomain[] combine()
+	{
+		return this.combiner.combine(this.currentDomains, null);
+	}
+	
+	/**
+	 * Combination by new combiner of same subject, as created for each doAs.
+	 */
+	@Benchmark
+	public ProtectionDomain[] combineNewCombiner()
+	{
+		return new JaasHelper.OsgiSubjectDomainCombiner(this.subject).combine(this.currentDomains, null);
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.scp.ScpClient;
+import org.apache.sshd.client.scp.ScpClientCreator;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClientFactory;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+/**
+ * Load test with embedded ssh server on loopback interface. The server is setup like {@link SFTPHomeSetup} does, 
+ * authentication is replaced by a stub, that authenticates each user with role rolehomedir.
+ * 
+ * Arguments are key=value pairs:
+ * <ul>
+ * <li>clients: number of concurrent clients (default: 16)</li>
+ * <li>users: number of distinct users, clients share users round robin (default: clients)</li>
+ * <li>duration: seconds to measure (default: 30)</li>
+ * <li>warmup: seconds to run before measurement (default: 5)</li>
+ * <li>filesize: bytes per upload and download (default: 1048576)</li>
+ * <li>mix: weights of operations sftp-upload, sftp-download, sftp-list, scp-upload, scp-download 
+ * (default: sftp-upload:30;sftp-download:30;sftp-list:20;scp-upload:10;scp-download:10)</li>
+ * </ul>
+ * All other arguments are passed as configuration to the setup, e.g. sftpexecutor=shared.
+ */
+public class LoadTestHarness
+{
+	public enum LoadOperation {SFTP_UPLOAD, SFTP_DOWNLOAD, SFTP_LIST, SCP_UPLOAD, SCP_DOWNLOAD}
+	
+	private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+	private static final String PASSWORD = "loadtest";
+	
+	private final Map<String, Object> properties = new HashMap<String, Object>();
+	private final int clients;
+	private final int users;
+	private final long duration;
+	private final long warmup;
+	private final int fileSize;
+	private final LoadOperation[] operationTable;
+	
+	private final OperationMetrics[] metrics = new OperationMetrics[LoadOperation.values().length];
+	private final AtomicLong errors = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile boolean measuring = false;
+	
+	public LoadTestHarness(Map<String, String> arguments)
+	{
+		super();
+		this.clients = Integer.parseInt(arguments.getOrDefault("clients", "16"));
+		this.users = Integer.parseInt(arguments.getOrDefault("users", Integer.toString(this.clients)));
+		this.duration = Long.parseLong(arguments.getOrDefault("duration", "30"));
+		this.warmup = Long.parseLong(arguments.getOrDefault("warmup", "5"));
+		this.fileSize = Integer.parseInt(arguments.getOrDefault("filesize", "1048576"));
+		this.operationTable = parseMix(arguments.getOrDefault("mix", "sftp-upload:30;sftp-download:30;sftp-list:20;scp-upload:10;scp-download:10"));
+		
+		for(Map.Entry<String, String> argument : arguments.entrySet())
+		{
+			this.properties.put(argument.getKey(), argument.getValue());
+		}
+		this.properties.putIfAbsent("rolehomedir", "sftp");
+		
+		for(int i = 0; i < this.metrics.length; i++)
+		{
+			this.metrics[i] = new OperationMetrics();
+		}
+	}
+	
+	private static LoadOperation[] parseMix(String mix)
+	{
+		List<LoadOperation> table = new ArrayList<LoadOperation>();
+		for(String entry : mix.split(";"))
+		{
+			String[] weight = entry.split(":");
+			LoadOperation operation = LoadOperation.valueOf(weight[0].trim().toUpperCase().replace('-', '_'));
+			for(int i = 0; i < Integer.parseInt(weight[1].trim()); i++)
+			{
+				table.add(operation);
+			}
+		}
+		if(table.isEmpty())
+		{
+			throw new IllegalArgumentException("empty mix");
+		}
+		return table.toArray(new LoadOperation[table.size()]);
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> arguments = new LinkedHashMap<String, String>();
+		for(String arg : args)
+		{
+			int assign = arg.indexOf('=');
+			if(assign < 1)
+			{
+				throw new IllegalArgumentException("argument has to be key=value: " + arg);
+			}
+			arguments.put(arg.substring(0, assign), arg.substring(assign + 1));
+		}
+		new LoadTestHarness(arguments).run();
+	}
+	
+	public void run() throws Exception
+	{
+		Path baseDirectory = Files.createTempDirectory("sftphome-loadtest");
+		System.setProperty("karaf.base", baseDirectory.toString());
+		this.properties.putIfAbsent("homeroot", baseDirectory.resolve("home").toString());
+		
+		SshServer sshServer = createServer(baseDirectory);
+		RolePolicy rolePolicy = RolePolicy.fromProperties(this.properties, SFTPHomeSetup.ROLE_CLASSES);
+		SFTPHomeMetrics serverMetrics = new SFTPHomeMetrics();
+		UploadEventPublisher uploadEventPublisher = new UploadEventPublisher();
+		uploadEventPublisher.refresh(this.properties);
+		SFTPHomeSetup.ManagedSSHServer managedSSHServer = SFTPHomeSetup.ManagedSSHServer.install
+		(
+			sshServer, null, this.properties, rolePolicy, serverMetrics, uploadEventPublisher
+		);
+		sshServer.start();
+		
+		SshClient sshClient = SshClient.setUpDefaultClient();
+		// the scp client keeps its stdin open while waiting for the exit status, so the remote scp
+		// never terminates by itself - the transfer is acknowledged at that point, don't wait for it
+		PropertyResolverUtils.updateProperty(sshClient, ScpClient.SCP_EXEC_CHANNEL_EXIT_STATUS_TIMEOUT, 1L);
+		sshClient.start();
+		
+		try
+		{
+			CountDownLatch ready = new CountDownLatch(this.clients);
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < this.clients; i++)
+			{
+				final String userName = "user" + (i % this.users);
+				final int clientIndex = i;
+				Thread thread = new Thread(() -> runClient(sshClient, sshServer.getPort(), userName, clientIndex, ready), "load test client " + i);
+				threads.add(thread);
+				thread.start();
+			}
+			
+			ready.await();
+			TimeUnit.SECONDS.sleep(this.warmup);
+			
+			Map<Long, Long> allocationBefore = allocatedBytes();
+			long gcBefore = collectionMillis();
+			this.measuring = true;
+			long start = System.nanoTime();
+			
+			TimeUnit.SECONDS.sleep(this.duration);
+			
+			this.measuring = false;
+			long elapsed = System.nanoTime() - start;
+			long allocated = allocatedSince(allocationBefore);
+			long collection = collectionMillis() - gcBefore;
+			
+			this.running = false;
+			for(Thread thread : threads)
+			{
+				thread.join();
+			}
+			
+			report(elapsed, allocated, collection, serverMetrics);
+		}
+		finally 
+		{
+			sshClient.stop();
+			sshServer.stop(true);
+			managedSSHServer.restore(sshServer);
+			uploadEventPublisher.dispose();
+		}
+	}
+	
+	private SshServer createServer(Path baseDirectory)
+	{
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		sshServer.setHost("127.0.0.1");
+		sshServer.setPort(0);
+		sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(baseDirectory.resolve("host.key")));
+		
+		// stub of karaf jaas authenticator
+		
+		String homeRole = SFTPHomeSetup.getPropertyStringArray(this.properties, "rolehomedir")[0];
+		sshServer.setPasswordAuthenticator((userName, password, session) -> 
+		{
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new UserPrincipal(userName));
+			subject.getPrincipals().add(new RolePrincipal(homeRole));
+			subject.getPrincipals().add(new RolePrincipal("ssh"));
+			session.setAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+			return true;
+		});
+		return sshServer;
+	}
+	
+	private void runClient(SshClient sshClient, int port, String userName, int clientIndex, CountDownLatch ready)
+	{
+		boolean signaled = false;
+		try(ClientSession session = sshClient.connect(userName, "127.0.0.1", port).verify(TIMEOUT).getSession())
+		{
+			session.addPasswordIdentity(PASSWORD);
+			session.auth().verify(TIMEOUT);
+			
+			try(SftpClient sftpClient = SftpClientFactory.instance().createSftpClient(session))
+			{
+				ScpClient scpClient = ScpClientCreator.instance().createScpClient(session);
+				Random random = new Random(clientIndex);
+				byte[] data = new byte[this.fileSize];
+				random.nextBytes(data);
+				String fileName = "file" + clientIndex + ".bin";
+				
+				try(OutputStream outputStream = sftpClient.write(fileName))
+				{
+					outputStream.write(data);
+				}
+				
+				ready.countDown();
+				signaled = true;
+				
+				byte[] buffer = new byte[32768];
+				while(this.running)
+				{
+					LoadOperation operation = this.operationTable[random.nextInt(this.operationTable.length)];
+					long start = System.nanoTime();
+					long bytes = 0L;
+					boolean failed = false;
+					try
+					{
+						bytes = execute(operation, sftpClient, scpClient, fileName, data, buffer);
+					}
+					catch (IOException | RuntimeException e) 
+					{
+						failed = true;
+						this.errors.incrementAndGet();
+					}
+					if(this.measuring)
+					{
+						this.metrics[operation.ordinal()].record(System.nanoTime() - start, bytes, failed);
+					}
+				}
+			}
+		}
+		catch (IOException e) 
+		{
+			System.err.println(Thread.currentThread().getName() + " failed: " + e);
+		}
+		finally 
+		{
+			if(! signaled)
+			{
+				ready.countDown();
+			}
+		}
+	}
+	
+	private long execute(LoadOperation operation, SftpClient sftpClient, ScpClient scpClient, String fileName, byte[] data, byte[] buffer) throws IOException
+	{
+		switch (operation)
+		{
+			case SFTP_UPLOAD:
+				try(OutputStream outputStream = sftpClient.write(fileName))
+				{
+					outputStream.write(data);
+				}
+				return data.length;
+			case SFTP_DOWNLOAD:
+				long read = 0L;
+				try(InputStream inputStream = sftpClient.read(fileName))
+				{
+					int count;
+					while((count = inputStream.read(buffer)) > 0)
+					{
+						read += count;
+					}
+				}
+				return read;
+			case SFTP_LIST:
+				long entries = 0L;
+				for(@SuppressWarnings("unused") SftpClient.DirEntry entry : sftpClient.readDir("."))
+				{
+					entries++;
+				}
+				return entries;
+			case SCP_UPLOAD:
+				scpClient.upload(data, fileName, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE), null);
+				return data.length;
+			case SCP_DOWNLOAD:
+				return scpClient.downloadBytes(fileName).length;
+			default:
+				throw new IllegalStateException(operation.name());
+		}
+	}
+	
+	/**
+	 * Snapshot of allocated bytes per thread id.
+	 * 
+	 * @return allocated bytes by thread id or null, if jvm does not support allocation accounting
+	 */
+	private static Map<Long, Long> allocatedBytes()
+	{
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if(! (threadMXBean instanceof com.sun.management.ThreadMXBean))
+		{
+			return null;
+		}
+		
+		long[] threadIds = threadMXBean.getAllThreadIds();
+		long[] allocated = ((com.sun.management.ThreadMXBean)threadMXBean).getThreadAllocatedBytes(threadIds);
+		Map<Long, Long> snapshot = new HashMap<Long, Long>();
+		for(int i = 0; i < threadIds.length; i++)
+		{
+			if(allocated[i] >= 0L)
+			{
+				snapshot.put(threadIds[i], allocated[i]);
+			}
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Sums the allocation of all live threads since snapshot. Threads terminated in between are not taken into account,
+	 * threads started in between count from zero.
+	 * 
+	 * @param before snapshot taken before
+	 * @return allocated bytes or -1, if jvm does not support allocation accounting
+	 */
+	private static long allocatedSince(Map<Long, Long> before)
+	{
+		Map<Long, Long> after = allocatedBytes();
+		if((before == null) || (after == null))
+		{
+			return -1L;
+		}
+		
+		long sum = 0L;
+		for(Map.Entry<Long, Long> entry : after.entrySet())
+		{
+			Long allocatedBefore = before.get(entry.getKey());
+			sum += Math.max(0L, entry.getValue() - (allocatedBefore == null ? 0L : allocatedBefore));
+		}
+		return sum;
+	}
+	
+	private static long collectionMillis()
+	{
+		long sum = 0L;
+		for(GarbageCollectorMXBean garbageCollector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			sum += Math.max(0L, garbageCollector.getCollectionTime());
+		}
+		return sum;
+	}
+	
+	private void report(long elapsedNanos, long allocated, long collectionMillis, SFTPHomeMetrics serverMetrics)
+	{
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("clients=" + this.clients + " users=" + this.users + " filesize=" + this.fileSize + " duration=" + String.format("%.1f", seconds) + "s errors=" + this.errors.get());
+		System.out.println(String.format("%-14s %10s %10s %12s %10s %12s %12s", "operation", "count", "ops/s", "MB/s", "failed", "p50", "p99"));
+		for(LoadOperation operation : LoadOperation.values())
+		{
+			OperationMetrics operationMetrics = this.metrics[operation.ordinal()];
+			if(operationMetrics.isEmpty())
+			{
+				continue;
+			}
+			System.out.println(String.format
+			(
+				"%-14s %10d %10.1f %12.2f %10d %12s %12s", operation.name().toLowerCase().replace('_', '-'), operationMetrics.getCount(), 
+				operationMetrics.getCount() / seconds, 
+				operation == LoadOperation.SFTP_LIST ? 0.0 : operationMetrics.getBytes() / seconds / (1024 * 1024), operationMetrics.getFailed(), 
+				OperationMetrics.formatBound(operationMetrics.getPercentileMicros(50.0)), OperationMetrics.formatBound(operationMetrics.getPercentileMicros(99.0))
+			));
+		}
+		if(allocated >= 0L)
+		{
+			System.out.println(String.format("allocation rate: %.1f MB/s (live threads), gc time: %d ms", allocated / seconds / (1024 * 1024), collectionMillis));
+		}
+		System.out.println("server statistics:");
+		for(String line : serverMetrics.getStatistics())
+		{
+			System.out.println("  " + line);
+		}
+	}
+}
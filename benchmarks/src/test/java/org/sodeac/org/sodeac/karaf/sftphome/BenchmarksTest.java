@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.common.session.SessionContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs each benchmark once, so broken benchmarks are detected without a jmh run.
+ */
+public class BenchmarksTest extends TestCase
+{
+	public void testFixtures() throws Exception
+	{
+		Subject subject = BenchmarkFixtures.createSubject(100, "sftp", "sshconsole");
+		assertEquals(101, subject.getPrincipals().size());
+		
+		// configured roles are the last ones
+		
+		List<Object> principals = new ArrayList<Object>(subject.getPrincipals());
+		assertEquals(new RolePrincipal("sftp"), principals.get(99));
+		assertEquals(new RolePrincipal("sshconsole"), principals.get(100));
+		
+		SessionContext session = BenchmarkFixtures.createSession(subject);
+		assertSame(subject, session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY));
+		assertEquals(BenchmarkFixtures.USER_NAME, session.getUsername());
+	}
+	
+	public void testAuthorizationBenchmark() throws Exception
+	{
+		String karafBase = System.getProperty("karaf.base");
+		AuthorizationBenchmark benchmark = new AuthorizationBenchmark();
+		benchmark.roleCount = 100;
+		benchmark.setup();
+		try
+		{
+			assertNotNull(benchmark.userHomeDir());
+			assertEquals(benchmark.userHomeDir(), benchmark.userHomeDirNewSession());
+			assertTrue(benchmark.shellAccess());
+			assertTrue(benchmark.currentUserHasRole());
+			assertTrue(benchmark.currentUserHasRoleByClass());
+		}
+		finally 
+		{
+			benchmark.tearDown();
+			if(karafBase == null)
+			{
+				System.clearProperty("karaf.base");
+			}
+			else
+			{
+				System.setProperty("karaf.base", karafBase);
+			}
+		}
+	}
+	
+	public void testConfigurationBenchmark() throws Exception
+	{
+		ConfigurationBenchmark benchmark = new ConfigurationBenchmark();
+		benchmark.valueCount = 10;
+		benchmark.setup();
+		assertEquals(10, benchmark.stringArrayFromString().length);
+		assertEquals(10, benchmark.stringArrayFromArray().length);
+		assertNotNull(benchmark.rolePolicy());
+	}
+	
+	public void testDomainCombinerBenchmark() throws Exception
+	{
+		DomainCombinerBenchmark benchmark = new DomainCombinerBenchmark();
+		benchmark.roleCount = 10;
+		benchmark.domainCount = 4;
+		benchmark.setup();
+		ProtectionDomain[] combined = benchmark.combine();
+		assertEquals(4, combined.length);
+		assertEquals(4, benchmark.combineNewCombiner().length);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class LoadTestHarnessTest extends TestCase
+{
+	public void testShortRunReportsAllOperations() throws Exception
+	{
+		Map<String, String> arguments = new HashMap<String, String>();
+		arguments.put("clients", "2");
+		arguments.put("users", "1");
+		arguments.put("duration", "1");
+		arguments.put("warmup", "0");
+		arguments.put("filesize", "4096");
+		arguments.put("mix", "sftp-upload:1;sftp-download:1;sftp-list:1;scp-upload:1;scp-download:1");
+		
+		String karafBase = System.getProperty("karaf.base");
+		PrintStream out = System.out;
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(report, true, "UTF-8"));
+		try
+		{
+			new LoadTestHarness(arguments).run();
+		}
+		finally 
+		{
+			System.setOut(out);
+			if(karafBase == null)
+			{
+				System.clearProperty("karaf.base");
+			}
+			else
+			{
+				System.setProperty("karaf.base", karafBase);
+			}
+		}
+		
+		String output = report.toString("UTF-8");
+		assertTrue(output, output.contains("clients=2 users=1 filesize=4096"));
+		assertTrue(output, output.contains("errors=0"));
+		for(String operation : new String[] {"sftp-upload", "sftp-download", "sftp-list", "scp-upload", "scp-download"})
+		{
+			assertTrue(output, output.contains("\n" + operation + " "));
+		}
+	}
+	
+	public void testInvalidMixIsRejected() throws Exception
+	{
+		Map<String, String> arguments = new HashMap<String, String>();
+		arguments.put("mix", "sftp-upload:0");
+		try
+		{
+			new LoadTestHarness(arguments);
+			fail("empty mix");
+		}
+		catch (IllegalArgumentException e) 
+		{
+			// expected
+		}
+		
+		arguments.put("mix", "ftp-upload:1");
+		try
+		{
+			new LoadTestHarness(arguments);
+			fail("unknown operation");
+		}
+		catch (IllegalArgumentException e) 
+		{
+			// expected
+		}
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.AdmissionPolicy.Limits;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.SessionAccess;
+
+/**
+ * Counts sessions, open sftp handles and shells per user and admits them within limits of {@link AdmissionPolicy}. 
+ * 
+ * Sessions exceeding limit are disconnected with reason too many connections right after authentication. 
+ * The disconnect is not sent while authenticated event is notified, because the pending authentication success message is 
+ * written after listeners are notified, so it is sent by scheduler of ssh server. Channels opened meanwhile are refused as well. 
+ * Sftp handles exceeding limit wait in a fair queue up to admissionqueuetimeout milliseconds, before open is rejected. 
+ * Shells exceeding limit are rejected. 
+ * 
+ * Limits of a user are resolved again on each admitted session and on configuration updates. 
+ * Admission of a user is dropped, if the last session of user is closed. 
+ */
+public class AdmissionControl implements SessionListener, ChannelListener
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+	private static final AttributeKey<UserAdmission> USER_ADMISSION_ATTRIBUTE_KEY = new AttributeKey<UserAdmission>();
+	private static final AttributeKey<String> REJECTED_ATTRIBUTE_KEY = new AttributeKey<String>();
+	private static final AttributeKey<Boolean> SESSION_ADMITTED_ATTRIBUTE_KEY = new AttributeKey<Boolean>();
+	
+	private final Map<String,UserAdmission> users = new ConcurrentHashMap<String,UserAdmission>();
+	private final AtomicLong rejected = new AtomicLong();
+	
+	private volatile AdmissionPolicy admissionPolicy;
+	private volatile RolePolicy rolePolicy;
+	private volatile long queueTimeout;
+	
+	public AdmissionControl(Map<String, ?> properties, RolePolicy rolePolicy)
+	{
+		super();
+		this.refresh(properties, rolePolicy);
+	}
+	
+	public void refresh(Map<String, ?> properties, RolePolicy rolePolicy)
+	{
+		this.admissionPolicy = AdmissionPolicy.fromProperties(properties);
+		this.rolePolicy = rolePolicy;
+		this.queueTimeout = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "admissionqueuetimeout", 2000L));
+		
+		for(String userName : this.users.keySet())
+		{
+			this.users.computeIfPresent(userName, (k, userAdmission) -> 
+			{
+				userAdmission.setLimits(this.admissionPolicy.resolve(userAdmission.userName, userAdmission.roles));
+				return userAdmission;
+			});
+		}
+	}
+
+	@Override
+	public void sessionEvent(Session session, Event event)
+	{
+		if(event != Event.Authenticated)
+		{
+			return;
+		}
+		
+		SessionAccess sessionAccess = this.rolePolicy.resolve(session);
+		if((sessionAccess == null) || (sessionAccess.getUserName() == null))
+		{
+			return;
+		}
+		
+		// roles of latest session apply to all sessions of user
+		
+		UserAdmission userAdmission = this.users.compute
+		(
+			sessionAccess.getUserName(), 
+			(userName, current) -> 
+			{
+				UserAdmission attached = current == null ? new UserAdmission(userName) : current;
+				attached.roles = sessionAccess.getRoles();
+				attached.setLimits(this.admissionPolicy.resolve(userName, attached.roles));
+				attached.attachedSessions++;
+				return attached;
+			}
+		);
+		
+		if(userAdmission.sessions.tryAcquire())
+		{
+			session.setAttribute(USER_ADMISSION_ATTRIBUTE_KEY, userAdmission);
+			session.setAttribute(SESSION_ADMITTED_ATTRIBUTE_KEY, Boolean.TRUE);
+			return;
+		}
+		
+		detach(userAdmission);
+		this.rejected.incrementAndGet();
+		LOGGER.debug("reject session of " + userAdmission.userName + ", limit of sessions reached");
+		String reason = "too many sessions of user " + userAdmission.userName;
+		session.setAttribute(REJECTED_ATTRIBUTE_KEY, reason);
+		
+		FactoryManager factoryManager = session.getFactoryManager();
+		ScheduledExecutorService scheduler = factoryManager == null ? null : factoryManager.getScheduledExecutorService();
+		if(scheduler == null)
+		{
+			return;
+		}
+		try
+		{
+			scheduler.execute(() -> disconnect(session, reason));
+		}
+		catch (RejectedExecutionException e) 
+		{
+			session.close(true);
+		}
+	}
+	
+	@Override
+	public void channelInitialized(Channel channel)
+	{
+		Session session = channel.getSession();
+		String reason = session.getAttribute(REJECTED_ATTRIBUTE_KEY);
+		if(reason != null)
+		{
+			disconnect(session, reason);
+		}
+	}
+	
+	private static void disconnect(Session session, String reason)
+	{
+		try
+		{
+			session.disconnect(SshConstants.SSH2_DISCONNECT_TOO_MANY_CONNECTIONS, reason);
+		}
+		catch (IOException e) 
+		{
+			LOGGER.debug("failed to disconnect session: " + reason, e);
+			session.close(true);
+		}
+	}
+
+	@Override
+	public void sessionClosed(Session session)
+	{
+		// admission remains attribute of session, handles and shells closed after session release to same gates
+		
+		if(session.removeAttribute(SESSION_ADMITTED_ATTRIBUTE_KEY) == null)
+		{
+			return;
+		}
+		UserAdmission userAdmission = session.getAttribute(USER_ADMISSION_ATTRIBUTE_KEY);
+		if(userAdmission != null)
+		{
+			userAdmission.sessions.release();
+			detach(userAdmission);
+		}
+	}
+	
+	private void detach(UserAdmission userAdmission)
+	{
+		this.users.computeIfPresent(userAdmission.userName, (userName, current) -> 
+		{
+			if(current != userAdmission)
+			{
+				return current;
+			}
+			return --current.attachedSessions > 0 ? current : null;
+		});
+	}
+	
+	/**
+	 * 
+	 * @return count of users with at least one authenticated session
+	 */
+	public int getUserCount()
+	{
+		return this.users.size();
+	}
+	
+	/**
+	 * 
+	 * @param session ssh session
+	 * @return admission of session user or null, if session is not admitted by admission control
+	 */
+	public UserAdmission getUserAdmission(Session session)
+	{
+		return session == null ? null : session.getAttribute(USER_ADMISSION_ATTRIBUTE_KEY);
+	}
+	
+	public long getQueueTimeout()
+	{
+		return queueTimeout;
+	}
+	
+	/**
+	 * 
+	 * @param gate gate of user admission
+	 * @param timeout max milliseconds to wait in queue
+	 * @return true, if admitted, otherwise false
+	 * @throws IOException if interrupted while waiting
+	 */
+	public boolean admit(Gate gate, long timeout) throws IOException
+	{
+		try
+		{
+			if(gate.acquire(timeout))
+			{
+				return true;
+			}
+		}
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException("interrupted while waiting for admission");
+		}
+		this.rejected.incrementAndGet();
+		return false;
+	}
+	
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+	
+	public static class UserAdmission
+	{
+		private final String userName;
+		private final Gate sessions = new Gate();
+		private final Gate handles = new Gate();
+		private final Gate shells = new Gate();
+		
+		// guarded by entry of user map
+		
+		private Set<String> roles;
+		private int attachedSessions = 0;
+		
+		private UserAdmission(String userName)
+		{
+			super();
+			this.userName = userName;
+		}
+		
+		private void setLimits(Limits limits)
+		{
+			this.sessions.setLimit(limits.getSessions());
+			this.handles.setLimit(limits.getHandles());
+			this.shells.setLimit(limits.getShells());
+		}
+		
+		public String getUserName()
+		{
+			return userName;
+		}
+
+		public Gate getSessions()
+		{
+			return sessions;
+		}
+
+		public Gate getHandles()
+		{
+			return handles;
+		}
+
+		public Gate getShells()
+		{
+			return shells;
+		}
+	}
+	
+	/**
+	 * Counter admitting up to limit holders. Counting is lock-free, waiting threads are admitted in order of arrival.
+	 */
+	public static class Gate
+	{
+		private final AtomicInteger used = new AtomicInteger();
+		private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+		private volatile int limit = 0;
+		
+		private void setLimit(int limit)
+		{
+			this.limit = limit;
+			LockSupport.unpark(this.waiters.peek());
+		}
+		
+		public int getLimit()
+		{
+			return limit;
+		}
+		
+		public int getUsed()
+		{
+			return used.get();
+		}
+		
+		/**
+		 * 
+		 * @return true, if admitted without waiting, otherwise false
+		 */
+		public boolean tryAcquire()
+		{
+			return this.waiters.isEmpty() && increment();
+		}
+		
+		/**
+		 * 
+		 * @param timeout max milliseconds to wait
+		 * @return true, if admitted, otherwise false
+		 * @throws InterruptedException
+		 */
+		public boolean acquire(long timeout) throws InterruptedException
+		{
+			if(tryAcquire())
+			{
+				return true;
+			}
+			if(timeout <= 0L)
+			{
+				return false;
+			}
+			
+			Thread current = Thread.currentThread();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			this.waiters.add(current);
+			try
+			{
+				while(true)
+				{
+					if((this.waiters.peek() == current) && increment())
+					{
+						return true;
+					}
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0L)
+					{
+						return false;
+					}
+					LockSupport.parkNanos(this, remaining);
+					if(Thread.interrupted())
+					{
+						throw new InterruptedException();
+					}
+				}
+			}
+			finally 
+			{
+				this.waiters.remove(current);
+				LockSupport.unpark(this.waiters.peek());
+			}
+		}
+		
+		public void release()
+		{
+			this.used.decrementAndGet();
+			LockSupport.unpark(this.waiters.peek());
+		}
+		
+		private boolean increment()
+		{
+			while(true)
+			{
+				int used = this.used.get();
+				int limit = this.limit;
+				if((limit > 0) && (used >= limit))
+				{
+					return false;
+				}
+				if(this.used.compareAndSet(used, used + 1))
+				{
+					return true;
+				}
+			}
+		}
+	}
+}
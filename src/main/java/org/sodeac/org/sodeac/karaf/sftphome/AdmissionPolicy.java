@@ -0,0 +1,213 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable admission configuration. Limits are defined per user with property admissionuser, per role with property admissionrole 
+ * and for all other users with property admissiondefault.
+ * 
+ * Each entry has format {@code name:sessions=N;handles=N;shells=N} (admissiondefault without name), 
+ * 0 or missing value means unlimited. 
+ * 
+ * Limits of user entry win over role entries. Without user entry the most generous value of all limited roles of user is used 
+ * for each dimension. Without user and role entry default limits apply.
+ */
+public class AdmissionPolicy
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionPolicy.class);
+	
+	private static final Limits UNLIMITED = new Limits(0, 0, 0);
+	
+	private final Map<String,Limits> userLimits;
+	private final Map<String,Limits> roleLimits;
+	private final Limits defaultLimits;
+	
+	private AdmissionPolicy(Map<String,Limits> userLimits, Map<String,Limits> roleLimits, Limits defaultLimits)
+	{
+		super();
+		this.userLimits = userLimits;
+		this.roleLimits = roleLimits;
+		this.defaultLimits = defaultLimits;
+	}
+	
+	public static AdmissionPolicy fromProperties(Map<String, ?> properties)
+	{
+		Limits defaultLimits = UNLIMITED;
+		if((properties.get("admissiondefault") instanceof String) && (! ((String)properties.get("admissiondefault")).trim().isEmpty()))
+		{
+			defaultLimits = parseLimits("default", (String)properties.get("admissiondefault"));
+		}
+		
+		return new AdmissionPolicy
+		(
+			parseEntries(SFTPHomeSetup.getPropertyStringArray(properties, "admissionuser")),
+			parseEntries(SFTPHomeSetup.getPropertyStringArray(properties, "admissionrole")),
+			defaultLimits
+		);
+	}
+	
+	private static Map<String,Limits> parseEntries(String[] entries)
+	{
+		if((entries == null) || (entries.length == 0))
+		{
+			return Collections.emptyMap();
+		}
+		
+		Map<String,Limits> limitsIndex = new HashMap<String,Limits>();
+		for(String entry : entries)
+		{
+			int separator = entry.indexOf(':');
+			if(separator < 1)
+			{
+				LOGGER.warn("ignore invalid admission entry " + entry);
+				continue;
+			}
+			
+			String name = entry.substring(0, separator).trim();
+			limitsIndex.put(name, parseLimits(name, entry.substring(separator + 1)));
+		}
+		return Collections.unmodifiableMap(limitsIndex);
+	}
+	
+	private static Limits parseLimits(String name, String settings)
+	{
+		int sessions = 0;
+		int handles = 0;
+		int shells = 0;
+		
+		for(String setting : settings.split(";"))
+		{
+			int assign = setting.indexOf('=');
+			if(assign < 1)
+			{
+				continue;
+			}
+			String key = setting.substring(0, assign).trim();
+			int value;
+			try
+			{
+				value = Integer.parseInt(setting.substring(assign + 1).trim());
+			}
+			catch (NumberFormatException e) 
+			{
+				LOGGER.warn("ignore invalid admission setting " + setting + " of " + name);
+				continue;
+			}
+			
+			switch (key)
+			{
+				case "sessions": sessions = value; break;
+				case "handles": handles = value; break;
+				case "shells": shells = value; break;
+				default: LOGGER.warn("ignore unknown admission setting " + key + " of " + name);
+			}
+		}
+		return new Limits(sessions, handles, shells);
+	}
+	
+	/**
+	 * Returns limits of user.
+	 * 
+	 * @param userName name of user
+	 * @param roles roles of user
+	 * @return limits of user
+	 */
+	public Limits resolve(String userName, Set<String> roles)
+	{
+		if(userName != null)
+		{
+			Limits limits = this.userLimits.get(userName);
+			if(limits != null)
+			{
+				return limits;
+			}
+		}
+		
+		Limits merged = null;
+		if((roles != null) && (! this.roleLimits.isEmpty()))
+		{
+			for(String role : roles)
+			{
+				Limits limits = this.roleLimits.get(role);
+				if(limits == null)
+				{
+					continue;
+				}
+				merged = merged == null ? limits : merged.mostGenerous(limits);
+			}
+		}
+		return merged == null ? this.defaultLimits : merged;
+	}
+	
+	public static class Limits
+	{
+		private final int sessions;
+		private final int handles;
+		private final int shells;
+		
+		private Limits(int sessions, int handles, int shells)
+		{
+			super();
+			this.sessions = Math.max(0, sessions);
+			this.handles = Math.max(0, handles);
+			this.shells = Math.max(0, shells);
+		}
+		
+		private Limits mostGenerous(Limits other)
+		{
+			return new Limits
+			(
+				mostGenerous(this.sessions, other.sessions), 
+				mostGenerous(this.handles, other.handles), 
+				mostGenerous(this.shells, other.shells)
+			);
+		}
+		
+		private static int mostGenerous(int limit1, int limit2)
+		{
+			return (limit1 == 0) || (limit2 == 0) ? 0 : Math.max(limit1, limit2);
+		}
+		
+		public boolean isUnlimited()
+		{
+			return (sessions == 0) && (handles == 0) && (shells == 0);
+		}
+
+		public int getSessions()
+		{
+			return sessions;
+		}
+
+		public int getHandles()
+		{
+			return handles;
+		}
+
+		public int getShells()
+		{
+			return shells;
+		}
+	}
+}
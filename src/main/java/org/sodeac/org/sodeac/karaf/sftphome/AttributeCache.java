@@ -0,0 +1,554 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of file attributes and directory listings of karaf base directory. 
+ * 
+ * Entries are cached per directory. Lookups are lock-free, changes lock the affected directory only. Each cached directory is registered 
+ * with a {@link WatchService}, any event of directory invalidates the listing and attributes of changed entry, overflow invalidates 
+ * the whole directory. Attributes and listings are stored only, if their directory did not change since generation requested before read 
+ * (see {@link #getGeneration(Path)}), so values read concurrently to a change are not cached. 
+ * 
+ * If karafbasecachedirectories directories or karafbasecacheentries entries are exceeded, least recently used directories are dropped. 
+ * Entries expire after karafbasecachettl milliseconds, because changes of link targets and own attributes of directories are not reported 
+ * by parent directory. 
+ * 
+ * Listings of directories with more than karafbasecachelisting entries are not cached. Files opened for write are not cached, 
+ * operations of file system invalidate affected paths immediately.
+ */
+public class AttributeCache
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(AttributeCache.class);
+	
+	private final WatchService watchService;
+	private final Thread watchThread;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	
+	private final Map<Path,Directory> directories = new ConcurrentHashMap<Path,Directory>();
+	private final Map<Path,Set<Path>> descendants = new ConcurrentHashMap<Path,Set<Path>>();
+	private final Map<Path,Integer> writers = new ConcurrentHashMap<Path,Integer>();
+	private final AtomicInteger entryCount = new AtomicInteger();
+	private final Object evictionLock = new Object();
+	private volatile boolean disposed = false;
+	
+	private volatile int maxEntries = 100000;
+	private volatile int maxDirectories = 2000;
+	private volatile int maxListing = 5000;
+	private volatile long ttl = 30000L;
+	
+	public AttributeCache() throws IOException
+	{
+		super();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.watchThread = new Thread(this::watch, "SFTP home karaf base watch");
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+	
+	public void refresh(Map<String, ?> properties)
+	{
+		this.maxEntries = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "karafbasecacheentries", 100000L)));
+		this.maxDirectories = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "karafbasecachedirectories", 2000L)));
+		this.maxListing = (int)Math.max(0L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "karafbasecachelisting", 5000L)));
+		this.ttl = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "karafbasecachettl", 30000L));
+		this.evict();
+	}
+	
+	public int getMaxListing()
+	{
+		return maxListing;
+	}
+	
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+	
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+	
+	/**
+	 * 
+	 * @return count of cached attributes and listing entries
+	 */
+	public int getEntryCount()
+	{
+		return entryCount.get();
+	}
+	
+	/**
+	 * 
+	 * @return count of cached and watched directories
+	 */
+	public int getDirectoryCount()
+	{
+		return directories.size();
+	}
+	
+	/**
+	 * 
+	 * @param file file in default file system
+	 * @param key requested attributes
+	 * @return cached attributes or null
+	 */
+	public Object getAttributes(Path file, String key)
+	{
+		Path parent = file.getParent();
+		Directory directory = parent == null ? null : this.directories.get(parent);
+		Entry entry = directory == null ? null : directory.get(file.getFileName().toString(), key);
+		if((entry == null) || expired(entry.created))
+		{
+			this.misses.increment();
+			return null;
+		}
+		this.hits.increment();
+		return entry.value;
+	}
+	
+	/**
+	 * 
+	 * @param file file in default file system
+	 * @param key requested attributes
+	 * @param value immutable attributes
+	 * @param generation generation of parent directory before attributes were read, see {@link #getGeneration(Path)}
+	 */
+	public void putAttributes(Path file, String key, Object value, long generation)
+	{
+		Path parent = file.getParent();
+		if((parent == null) || (generation < 0L) || this.writers.containsKey(file))
+		{
+			return;
+		}
+		Directory directory = this.directories.get(parent);
+		if((directory != null) && directory.put(file.getFileName().toString(), key, new Entry(value), generation))
+		{
+			this.evict();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param dir directory in default file system
+	 * @return names of entries of directory or null
+	 */
+	public List<String> getListing(Path dir)
+	{
+		Directory directory = this.directories.get(dir);
+		List<String> listing = directory == null ? null : directory.listing;
+		if((listing == null) || expired(directory.listingCreated))
+		{
+			this.misses.increment();
+			return null;
+		}
+		directory.lastAccess = System.nanoTime();
+		this.hits.increment();
+		return listing;
+	}
+	
+	/**
+	 * 
+	 * @param dir directory in default file system
+	 * @param listing names of all entries of directory
+	 * @param generation generation of directory when listing was requested, see {@link #getGeneration(Path)}
+	 */
+	public void putListing(Path dir, List<String> listing, long generation)
+	{
+		Directory directory = this.directories.get(dir);
+		if((directory == null) || (listing.size() > this.maxListing))
+		{
+			return;
+		}
+		if(directory.putListing(Collections.unmodifiableList(listing), generation))
+		{
+			this.evict();
+		}
+	}
+	
+	/**
+	 * Registers directory to watch before attributes or listing are read, so changes while reading are detected.
+	 * 
+	 * @param dir directory in default file system
+	 * @return generation of directory or -1, if directory can not be cached
+	 */
+	public long getGeneration(Path dir)
+	{
+		Directory directory = directory(dir);
+		return directory == null ? -1L : directory.getGeneration();
+	}
+	
+	public void writerOpened(Path file)
+	{
+		this.writers.merge(file, 1, Integer::sum);
+		this.invalidate(file);
+	}
+	
+	public void writerClosed(Path file)
+	{
+		this.writers.computeIfPresent(file, (k, count) -> count <= 1 ? null : count - 1);
+		this.invalidate(file);
+	}
+	
+	/**
+	 * Removes attributes of file, listing of its parent and, if file is a cached directory or contains cached directories, 
+	 * these directories.
+	 * 
+	 * @param file file in default file system
+	 */
+	public void invalidate(Path file)
+	{
+		Path parent = file.getParent();
+		Directory directory = parent == null ? null : this.directories.get(parent);
+		if(directory != null)
+		{
+			directory.invalidate(file.getFileName().toString());
+		}
+		
+		directory = this.directories.get(file);
+		if(directory != null)
+		{
+			remove(directory);
+		}
+		Set<Path> below = this.descendants.get(file);
+		if(below != null)
+		{
+			for(Path dir : below.toArray(new Path[0]))
+			{
+				directory = this.directories.get(dir);
+				if(directory != null)
+				{
+					remove(directory);
+				}
+			}
+		}
+	}
+	
+	private Directory directory(Path dir)
+	{
+		Directory directory = this.directories.get(dir);
+		if((directory != null) || this.disposed)
+		{
+			return directory;
+		}
+		directory = this.directories.computeIfAbsent(dir, this::newDirectory);
+		if(directory != null)
+		{
+			this.evict();
+		}
+		return directory;
+	}
+	
+	private Directory newDirectory(Path dir)
+	{
+		WatchKey watchKey;
+		try
+		{
+			watchKey = dir.register
+			(
+				this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY
+			);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			LOGGER.debug("unable to watch " + dir, e);
+			return null;
+		}
+		
+		// cached directories are indexed by all ancestors, so moved or deleted trees are dropped without scan of all directories
+		
+		for(Path ancestor = dir.getParent(); ancestor != null; ancestor = ancestor.getParent())
+		{
+			this.descendants.compute(ancestor, (k, set) -> 
+			{
+				set = set == null ? ConcurrentHashMap.newKeySet() : set;
+				set.add(dir);
+				return set;
+			});
+		}
+		return new Directory(dir, watchKey);
+	}
+	
+	private void remove(Directory directory)
+	{
+		if(! this.directories.remove(directory.path, directory))
+		{
+			return;
+		}
+		directory.dispose();
+		for(Path ancestor = directory.path.getParent(); ancestor != null; ancestor = ancestor.getParent())
+		{
+			this.descendants.computeIfPresent(ancestor, (k, set) -> 
+			{
+				set.remove(directory.path);
+				return set.isEmpty() ? null : set;
+			});
+		}
+	}
+	
+	/**
+	 * Drops least recently used directories, if limits are exceeded. Directories are dropped below 7/8 of limits, 
+	 * so eviction is not repeated for each new entry.
+	 */
+	private void evict()
+	{
+		if((this.directories.size() <= this.maxDirectories) && (this.entryCount.get() <= this.maxEntries))
+		{
+			return;
+		}
+		
+		synchronized (this.evictionLock)
+		{
+			int targetDirectories = this.maxDirectories - (this.maxDirectories / 8);
+			int targetEntries = this.maxEntries - (this.maxEntries / 8);
+			
+			// access time is copied, it changes while sorting
+			
+			List<SimpleImmutableEntry<Long,Directory>> candidates = new ArrayList<SimpleImmutableEntry<Long,Directory>>(this.directories.size());
+			for(Directory directory : this.directories.values())
+			{
+				candidates.add(new SimpleImmutableEntry<Long,Directory>(directory.lastAccess, directory));
+			}
+			candidates.sort((a, b) -> Long.compare(a.getKey(), b.getKey()));
+			
+			for(SimpleImmutableEntry<Long,Directory> candidate : candidates)
+			{
+				if((this.directories.size() <= targetDirectories) && (this.entryCount.get() <= targetEntries))
+				{
+					return;
+				}
+				remove(candidate.getValue());
+			}
+		}
+	}
+	
+	private boolean expired(long created)
+	{
+		return (System.currentTimeMillis() - created) > this.ttl;
+	}
+	
+	private void watch()
+	{
+		while(true)
+		{
+			WatchKey key;
+			try
+			{
+				key = this.watchService.take();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) 
+			{
+				return;
+			}
+			
+			Path dir = (Path)key.watchable();
+			Directory directory = this.directories.get(dir);
+			for(WatchEvent<?> event : key.pollEvents())
+			{
+				if(directory == null)
+				{
+					continue;
+				}
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+				{
+					directory.clear();
+				}
+				else
+				{
+					invalidate(dir.resolve((Path)event.context()));
+				}
+			}
+			
+			// own attributes of changed directory are cached by parent
+			
+			Path parent = dir.getParent();
+			Directory parentDirectory = parent == null ? null : this.directories.get(parent);
+			if(parentDirectory != null)
+			{
+				parentDirectory.invalidate(dir.getFileName().toString());
+			}
+			
+			if((! key.reset()) && (directory != null))
+			{
+				remove(directory);
+			}
+		}
+	}
+	
+	public void dispose()
+	{
+		this.disposed = true;
+		for(Directory directory : this.directories.values())
+		{
+			remove(directory);
+		}
+		try
+		{
+			this.watchService.close();
+		}
+		catch (IOException e) 
+		{
+			LOGGER.debug("unable to close watch service", e);
+		}
+	}
+	
+	private static class Entry
+	{
+		private final Object value;
+		private final long created = System.currentTimeMillis();
+		
+		private Entry(Object value)
+		{
+			super();
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Cached entries of one directory. Entries of a file are replaced as a whole, so readers need no lock. 
+	 * Changes are guarded by directory.
+	 */
+	private class Directory
+	{
+		private final Path path;
+		private final WatchKey watchKey;
+		private final Map<String,Map<String,Entry>> files = new ConcurrentHashMap<String,Map<String,Entry>>();
+		private volatile List<String> listing = null;
+		private volatile long listingCreated = 0L;
+		private volatile long lastAccess = System.nanoTime();
+		
+		// guarded by this
+		
+		private long generation = 0L;
+		private boolean disposed = false;
+		
+		private Directory(Path path, WatchKey watchKey)
+		{
+			super();
+			this.path = path;
+			this.watchKey = watchKey;
+		}
+		
+		private Entry get(String name, String key)
+		{
+			Map<String,Entry> entries = this.files.get(name);
+			Entry entry = entries == null ? null : entries.get(key);
+			if(entry != null)
+			{
+				this.lastAccess = System.nanoTime();
+			}
+			return entry;
+		}
+		
+		private synchronized long getGeneration()
+		{
+			return this.generation;
+		}
+		
+		private synchronized boolean put(String name, String key, Entry entry, long generation)
+		{
+			if(this.disposed || (this.generation != generation))
+			{
+				return false;
+			}
+			Map<String,Entry> current = this.files.get(name);
+			Map<String,Entry> entries = current == null ? new HashMap<String,Entry>(4) : new HashMap<String,Entry>(current);
+			if(entries.put(key, entry) == null)
+			{
+				entryCount.incrementAndGet();
+			}
+			this.files.put(name, entries);
+			this.lastAccess = System.nanoTime();
+			return true;
+		}
+		
+		private synchronized boolean putListing(List<String> listing, long generation)
+		{
+			if(this.disposed || (this.generation != generation))
+			{
+				return false;
+			}
+			int previous = this.listing == null ? 0 : this.listing.size();
+			this.listing = listing;
+			this.listingCreated = System.currentTimeMillis();
+			entryCount.addAndGet(listing.size() - previous);
+			return true;
+		}
+		
+		private synchronized void invalidate(String name)
+		{
+			this.generation++;
+			Map<String,Entry> entries = this.files.remove(name);
+			if(entries != null)
+			{
+				entryCount.addAndGet(- entries.size());
+			}
+			clearListing();
+		}
+		
+		private void clearListing()
+		{
+			if(this.listing != null)
+			{
+				entryCount.addAndGet(- this.listing.size());
+				this.listing = null;
+			}
+		}
+		
+		private synchronized void clear()
+		{
+			this.generation++;
+			for(Map<String,Entry> entries : this.files.values())
+			{
+				entryCount.addAndGet(- entries.size());
+			}
+			this.files.clear();
+			clearListing();
+		}
+		
+		private synchronized void dispose()
+		{
+			clear();
+			this.disposed = true;
+			this.watchKey.cancel();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * File channel opened for write, cached attributes of file are invalidated while channel is open and after channel is closed.
+ */
+public class AttributeCacheFileChannel extends DelegatingFileChannel
+{
+	private final AttributeCache attributeCache;
+	private final Path file;
+	
+	public AttributeCacheFileChannel(FileChannel delegate, AttributeCache attributeCache, Path file)
+	{
+		super(delegate);
+		this.attributeCache = attributeCache;
+		this.file = file;
+	}
+	
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		try
+		{
+			super.implCloseChannel();
+		}
+		finally
+		{
+			attributeCache.writerClosed(file);
+		}
+	}
+}
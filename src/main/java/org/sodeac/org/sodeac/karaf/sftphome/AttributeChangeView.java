@@ -0,0 +1,345 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * File attribute views notifying {@link Listener} around changing methods only, so reading attributes by view 
+ * (e.g. scp download) neither unshares deduplicated files nor invalidates cached attributes.
+ */
+public class AttributeChangeView
+{
+	/**
+	 * Callback around attribute changes by view.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Invoked before an attribute is changed.
+		 * 
+		 * @throws IOException if file can not be prepared for change
+		 */
+		public void beforeChange() throws IOException;
+		
+		/**
+		 * Invoked after an attribute is changed or change failed.
+		 */
+		public void afterChange();
+	}
+	
+	private AttributeChangeView()
+	{
+		super();
+	}
+	
+	/**
+	 * Wraps view of known type. Views of unknown type may change attributes by any method, {@link Listener#beforeChange()} 
+	 * and {@link Listener#afterChange()} are invoked immediately for them and the view is returned unwrapped.
+	 * 
+	 * @param view view to wrap
+	 * @param type requested type of view
+	 * @param listener callback around changes
+	 * @return wrapped view
+	 * @throws IOException if view of unknown type can not be prepared for change
+	 */
+	public static <V extends FileAttributeView> V wrap(V view, Class<V> type, Listener listener) throws IOException
+	{
+		if(view == null)
+		{
+			return null;
+		}
+		if(type == PosixFileAttributeView.class)
+		{
+			return type.cast(new PosixView((PosixFileAttributeView)view, listener));
+		}
+		if(type == DosFileAttributeView.class)
+		{
+			return type.cast(new DosView((DosFileAttributeView)view, listener));
+		}
+		if(type == BasicFileAttributeView.class)
+		{
+			return type.cast(new BasicView((BasicFileAttributeView)view, listener));
+		}
+		if(type == AclFileAttributeView.class)
+		{
+			return type.cast(new AclView((AclFileAttributeView)view, listener));
+		}
+		if(type == FileOwnerAttributeView.class)
+		{
+			return type.cast(new OwnerView((FileOwnerAttributeView)view, listener));
+		}
+		
+		listener.beforeChange();
+		listener.afterChange();
+		return view;
+	}
+	
+	private static class BasicView implements BasicFileAttributeView
+	{
+		protected final BasicFileAttributeView delegate;
+		protected final Listener listener;
+		
+		private BasicView(BasicFileAttributeView delegate, Listener listener)
+		{
+			super();
+			this.delegate = delegate;
+			this.listener = listener;
+		}
+
+		@Override
+		public String name()
+		{
+			return delegate.name();
+		}
+
+		@Override
+		public BasicFileAttributes readAttributes() throws IOException
+		{
+			return delegate.readAttributes();
+		}
+
+		@Override
+		public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				delegate.setTimes(lastModifiedTime, lastAccessTime, createTime);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+	}
+	
+	private static class PosixView extends BasicView implements PosixFileAttributeView
+	{
+		private PosixView(PosixFileAttributeView delegate, Listener listener)
+		{
+			super(delegate, listener);
+		}
+
+		@Override
+		public PosixFileAttributes readAttributes() throws IOException
+		{
+			return ((PosixFileAttributeView)delegate).readAttributes();
+		}
+
+		@Override
+		public UserPrincipal getOwner() throws IOException
+		{
+			return ((PosixFileAttributeView)delegate).getOwner();
+		}
+
+		@Override
+		public void setOwner(UserPrincipal owner) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((PosixFileAttributeView)delegate).setOwner(owner);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+
+		@Override
+		public void setPermissions(Set<PosixFilePermission> perms) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((PosixFileAttributeView)delegate).setPermissions(perms);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+
+		@Override
+		public void setGroup(GroupPrincipal group) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((PosixFileAttributeView)delegate).setGroup(group);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+	}
+	
+	private static class DosView extends BasicView implements DosFileAttributeView
+	{
+		private DosView(DosFileAttributeView delegate, Listener listener)
+		{
+			super(delegate, listener);
+		}
+
+		@Override
+		public DosFileAttributes readAttributes() throws IOException
+		{
+			return ((DosFileAttributeView)delegate).readAttributes();
+		}
+
+		@Override
+		public void setReadOnly(boolean value) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((DosFileAttributeView)delegate).setReadOnly(value);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+
+		@Override
+		public void setHidden(boolean value) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((DosFileAttributeView)delegate).setHidden(value);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+
+		@Override
+		public void setSystem(boolean value) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((DosFileAttributeView)delegate).setSystem(value);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+
+		@Override
+		public void setArchive(boolean value) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((DosFileAttributeView)delegate).setArchive(value);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+	}
+	
+	private static class OwnerView implements FileOwnerAttributeView
+	{
+		protected final FileOwnerAttributeView delegate;
+		protected final Listener listener;
+		
+		private OwnerView(FileOwnerAttributeView delegate, Listener listener)
+		{
+			super();
+			this.delegate = delegate;
+			this.listener = listener;
+		}
+
+		@Override
+		public String name()
+		{
+			return delegate.name();
+		}
+
+		@Override
+		public UserPrincipal getOwner() throws IOException
+		{
+			return delegate.getOwner();
+		}
+
+		@Override
+		public void setOwner(UserPrincipal owner) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				delegate.setOwner(owner);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+	}
+	
+	private static class AclView extends OwnerView implements AclFileAttributeView
+	{
+		private AclView(AclFileAttributeView delegate, Listener listener)
+		{
+			super(delegate, listener);
+		}
+
+		@Override
+		public List<AclEntry> getAcl() throws IOException
+		{
+			return ((AclFileAttributeView)delegate).getAcl();
+		}
+
+		@Override
+		public void setAcl(List<AclEntry> acl) throws IOException
+		{
+			listener.beforeChange();
+			try
+			{
+				((AclFileAttributeView)delegate).setAcl(acl);
+			}
+			finally
+			{
+				listener.afterChange();
+			}
+		}
+	}
+}
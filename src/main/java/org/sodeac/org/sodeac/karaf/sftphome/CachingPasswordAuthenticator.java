@@ -0,0 +1,206 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.ClientPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.server.auth.AsyncAuthException;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.auth.password.PasswordChangeRequiredException;
+import org.apache.sshd.server.session.ServerSession;
+
+/**
+ * Password authenticator caching successful logins of delegate, e.g. JAAS login of karaf, for authcachettl milliseconds.
+ * 
+ * Only a salted PBKDF2 hash of password and the principals of authenticated subject are kept. Further logins of same user 
+ * with same password get a copy of cached subject without login of delegate. Failed logins are never cached, 
+ * a login with different password is passed to delegate and replaces or removes cached entry. 
+ * 
+ * Max authcachesize users are cached, least recently used entries are evicted. Configuration updates clear cache, 
+ * authcachettl 0 disables cache.
+ */
+public class CachingPasswordAuthenticator implements PasswordAuthenticator
+{
+	private static final SecureRandom SALT_GENERATOR = new SecureRandom();
+	private static final int HASH_ITERATIONS = 10000;
+	
+	private final PasswordAuthenticator delegate;
+	
+	// guarded by this
+	private final LinkedHashMap<String,Entry> cache = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	
+	private volatile long ttl = 0L;
+	private volatile int maxSize = 1000;
+	
+	public CachingPasswordAuthenticator(PasswordAuthenticator delegate, Map<String, ?> properties)
+	{
+		super();
+		this.delegate = delegate;
+		this.refresh(properties);
+	}
+	
+	public PasswordAuthenticator getDelegate()
+	{
+		return delegate;
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		this.ttl = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "authcachettl", 0L));
+		this.maxSize = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "authcachesize", 1000L)));
+		
+		// realms or roles may be changed with configuration
+		
+		this.cache.clear();
+	}
+
+	@Override
+	public boolean authenticate(String username, String password, ServerSession session) throws PasswordChangeRequiredException, AsyncAuthException
+	{
+		long ttl = this.ttl;
+		if((ttl <= 0L) || (username == null) || (password == null))
+		{
+			return delegate.authenticate(username, password, session);
+		}
+		
+		Entry entry;
+		synchronized (this)
+		{
+			entry = this.cache.get(username);
+			if((entry != null) && (System.currentTimeMillis() >= entry.expires))
+			{
+				this.cache.remove(username);
+				entry = null;
+			}
+		}
+		
+		if((entry != null) && MessageDigest.isEqual(entry.hash, hash(entry.salt, password)))
+		{
+			session.setAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, entry.subject(session));
+			return true;
+		}
+		
+		boolean authenticated;
+		try
+		{
+			authenticated = delegate.authenticate(username, password, session);
+		}
+		catch (RuntimeException e) 
+		{
+			invalidate(username);
+			throw e;
+		}
+		
+		Subject subject = session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY);
+		if((! authenticated) || (subject == null))
+		{
+			invalidate(username);
+			return authenticated;
+		}
+		
+		byte[] salt = new byte[16];
+		SALT_GENERATOR.nextBytes(salt);
+		entry = new Entry(salt, hash(salt, password), subject, System.currentTimeMillis() + ttl);
+		synchronized (this)
+		{
+			this.cache.put(username, entry);
+			while(this.cache.size() > this.maxSize)
+			{
+				this.cache.remove(this.cache.keySet().iterator().next());
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean handleClientPasswordChangeRequest(ServerSession session, String username, String oldPassword, String newPassword)
+	{
+		invalidate(username);
+		return delegate.handleClientPasswordChangeRequest(session, username, oldPassword, newPassword);
+	}
+	
+	public synchronized void invalidate(String username)
+	{
+		this.cache.remove(username);
+	}
+	
+	public synchronized void clear()
+	{
+		this.cache.clear();
+	}
+	
+	private static byte[] hash(byte[] salt, String password)
+	{
+		// slow key derivation, cached hashes can not be brute forced cheaply from heap dump
+		
+		PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, HASH_ITERATIONS, 256);
+		try
+		{
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+		}
+		catch (GeneralSecurityException e) 
+		{
+			throw new IllegalStateException(e);
+		}
+		finally 
+		{
+			keySpec.clearPassword();
+		}
+	}
+	
+	private static class Entry
+	{
+		private final byte[] salt;
+		private final byte[] hash;
+		private final Principal[] principals;
+		private final long expires;
+		
+		private Entry(byte[] salt, byte[] hash, Subject subject, long expires)
+		{
+			super();
+			this.salt = salt;
+			this.hash = hash;
+			this.expires = expires;
+			
+			// client principal belongs to authenticated session
+			
+			this.principals = subject.getPrincipals().stream().filter(principal -> ! (principal instanceof ClientPrincipal)).toArray(Principal[]::new);
+		}
+		
+		private Subject subject(ServerSession session)
+		{
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new ClientPrincipal("ssh", String.valueOf(session.getClientAddress())));
+			for(Principal principal : this.principals)
+			{
+				subject.getPrincipals().add(principal);
+			}
+			return subject;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * File channel hashing content written sequentially from offset 0 and handing closed file to {@link DedupStore}. 
+ * Any other write invalidates the hash, so file is hashed by store after close. The store drops the hash as well, 
+ * if other writers opened the file since this channel was opened.
+ * 
+ * Hashing starts, if sequential content reaches min size of store. Content written before is read back once, 
+ * so smaller files are never hashed. Channels of file systems without deduplication (e.g. karaf base directory) 
+ * only register the writer, so shared files are copied before modification and open files are not linked.
+ */
+public class DedupFileChannel extends DelegatingFileChannel
+{
+	private final DedupStore dedupStore;
+	private final Path file;
+	private final long generation;
+	private final boolean deduplicate;
+	
+	// guarded by this
+	private boolean sequential;
+	private long sequentialSize = 0L;
+	private MessageDigest digest = null;
+	
+	/**
+	 * 
+	 * @param delegate underlying file channel
+	 * @param dedupStore store the writer is registered at
+	 * @param file file in default file system
+	 * @param generation generation of writer returned by {@link DedupStore#beforeWrite(Path, boolean)}
+	 * @param deduplicate true, if closed file is handed to store
+	 * @throws IOException
+	 */
+	public DedupFileChannel(FileChannel delegate, DedupStore dedupStore, Path file, long generation, boolean deduplicate) throws IOException
+	{
+		super(delegate);
+		this.dedupStore = dedupStore;
+		this.file = file;
+		this.generation = generation;
+		this.deduplicate = deduplicate;
+		this.sequential = deduplicate && (generation >= 0L) && (delegate.size() == 0L);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		int start = src.position();
+		long position = delegate.position();
+		int written = delegate.write(src);
+		hash(src, start, written, position);
+		return written;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		int start = src.position();
+		int written = delegate.write(src, position);
+		hash(src, start, written, position);
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		invalidate();
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		invalidate();
+		return delegate.transferFrom(src, position, count);
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		synchronized (this)
+		{
+			if(size < this.sequentialSize)
+			{
+				invalidate();
+			}
+		}
+		delegate.truncate(size);
+		return this;
+	}
+	
+	private synchronized void hash(ByteBuffer src, int start, int written, long position)
+	{
+		if((! this.sequential) || (written <= 0))
+		{
+			return;
+		}
+		if(position != this.sequentialSize)
+		{
+			invalidate();
+			return;
+		}
+		if(this.digest == null)
+		{
+			if(this.sequentialSize + written < this.dedupStore.getMinSize())
+			{
+				this.sequentialSize += written;
+				return;
+			}
+			if(! hashWritten())
+			{
+				return;
+			}
+		}
+		ByteBuffer content = src.duplicate();
+		content.limit(start + written);
+		content.position(start);
+		this.digest.update(content);
+		this.sequentialSize += written;
+	}
+	
+	private boolean hashWritten()
+	{
+		MessageDigest digest = this.dedupStore.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(65536L, Math.max(1L, this.sequentialSize)));
+		long position = 0L;
+		
+		// channel may be write only
+		
+		try(FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ))
+		{
+			while(position < this.sequentialSize)
+			{
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), this.sequentialSize - position));
+				int read = channel.read(buffer, position);
+				if(read < 0)
+				{
+					invalidate();
+					return false;
+				}
+				buffer.flip();
+				digest.update(buffer);
+				position += read;
+			}
+		}
+		catch (IOException e) 
+		{
+			// file is hashed by store after close
+			
+			invalidate();
+			return false;
+		}
+		this.digest = digest;
+		return true;
+	}
+	
+	private synchronized void invalidate()
+	{
+		this.sequential = false;
+		this.digest = null;
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		long size = -1L;
+		boolean exclusive;
+		try
+		{
+			try
+			{
+				size = delegate.size();
+			}
+			catch (IOException e) 
+			{
+				// size is checked by store
+			}
+			delegate.close();
+		}
+		finally 
+		{
+			exclusive = this.dedupStore.writerClosed(this.file, this.generation);
+		}
+		
+		if(! this.deduplicate)
+		{
+			return;
+		}
+		
+		byte[] hash = null;
+		synchronized (this)
+		{
+			if(exclusive && this.sequential && (this.digest != null) && (this.sequentialSize == size))
+			{
+				hash = this.digest.digest();
+			}
+		}
+		if(size >= 0L)
+		{
+			this.dedupStore.committed(this.file, size, hash, this.generation);
+		}
+	}
+}
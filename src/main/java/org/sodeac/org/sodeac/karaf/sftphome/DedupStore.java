@@ -0,0 +1,512 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed store sharing identical files of home directories by hardlinks. 
+ * 
+ * Files of at least dedupminsize bytes are hashed with SHA-256 while written sequentially, other files are hashed after close. 
+ * The hash of a writer is used only, if no other writer opened the file since it was opened. After a file is closed, a background job 
+ * links it as store entry {@code <dedupstore>/ab/<sha256>.<permissions>} or, if the entry exists, replaces the file by a hardlink to the entry. 
+ * Files opened for write or changing attributes with more than one link are copied before (copy on write), so modifications never reach 
+ * other homes. This applies to all file systems reaching home roots, including karaf base directory. Entries not linked by any home 
+ * are removed in dedupsweepinterval.
+ * 
+ * Store directory must be on the same file system as home roots. Entries are kept per permissions, so linking never changes permissions 
+ * of a file. The modification time of a file is restored after it is linked, all files sharing the entry get this modification time.
+ */
+public class DedupStore
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DedupStore.class);
+	private static final String ALGORITHM = "SHA-256";
+	private static final String TEMP_DIRECTORY = "tmp";
+	private static final int LOCK_STRIPES = 64;
+	
+	private final Path directory;
+	private final Path tempDirectory;
+	private final ScheduledThreadPoolExecutor executor;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final long[] generations = new long[LOCK_STRIPES];
+	private final Map<Path,AtomicInteger> writers = new ConcurrentHashMap<Path,AtomicInteger>();
+	private final AtomicLong linkedCount = new AtomicLong();
+	private final AtomicLong savedBytes = new AtomicLong();
+	
+	private volatile long minSize = 1048576L;
+	private ScheduledFuture<?> sweepFuture = null;
+	private long sweepInterval = -1L;
+	
+	public DedupStore(Path directory) throws IOException
+	{
+		super();
+		this.directory = directory.toAbsolutePath().normalize();
+		this.tempDirectory = this.directory.resolve(TEMP_DIRECTORY);
+		Files.createDirectories(this.tempDirectory);
+		
+		for(int i = 0; i < LOCK_STRIPES; i++)
+		{
+			this.locks[i] = new Object();
+		}
+		
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> 
+		{
+			Thread thread = new Thread(r, "SFTP home dedup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+	
+	/**
+	 * 
+	 * @return true, if default file system supports link counts required to detect shared files
+	 */
+	public static boolean isSupported()
+	{
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	}
+	
+	public Path getDirectory()
+	{
+		return directory;
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		this.minSize = Math.max(1L, SFTPHomeSetup.getPropertyLong(properties, "dedupminsize", 1048576L));
+		
+		long sweepInterval = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "dedupsweepinterval", 3600L));
+		if(sweepInterval == this.sweepInterval)
+		{
+			return;
+		}
+		this.sweepInterval = sweepInterval;
+		if(this.sweepFuture != null)
+		{
+			this.sweepFuture.cancel(false);
+			this.sweepFuture = null;
+		}
+		if(sweepInterval > 0L)
+		{
+			this.sweepFuture = this.executor.scheduleWithFixedDelay(this::sweepQuietly, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return min size of files shared by store
+	 */
+	public long getMinSize()
+	{
+		return minSize;
+	}
+	
+	public long getLinkedCount()
+	{
+		return linkedCount.get();
+	}
+	
+	public long getSavedBytes()
+	{
+		return savedBytes.get();
+	}
+	
+	/**
+	 * 
+	 * @return digest to hash content while writing
+	 */
+	public MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) 
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static int stripe(Path file)
+	{
+		return (file.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+	}
+	
+	private Object lock(Path file)
+	{
+		return this.locks[stripe(file)];
+	}
+	
+	/**
+	 * Registers writer of file and copies file, if it is shared with other paths. Must be followed by {@link #writerClosed(Path, long)}.
+	 * 
+	 * Every writer starts a new generation of files sharing a lock stripe, so a writer can detect other writers opened since.
+	 * 
+	 * @param file file in default file system
+	 * @param truncate true, if file is truncated by open, so content is not copied
+	 * @return generation of writer or -1, if file is opened by other writers
+	 * @throws IOException
+	 */
+	public long beforeWrite(Path file, boolean truncate) throws IOException
+	{
+		int stripe = stripe(file);
+		synchronized (this.locks[stripe])
+		{
+			int open = this.writers.computeIfAbsent(file, k -> new AtomicInteger()).incrementAndGet();
+			long generation = ++this.generations[stripe];
+			if(open > 1)
+			{
+				generation = -1L;
+			}
+			try
+			{
+				unshare(file, truncate);
+			}
+			catch (IOException | RuntimeException e) 
+			{
+				writerClosed(file, generation);
+				throw e;
+			}
+			return generation;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param file file in default file system
+	 * @param generation generation of writer returned by {@link #beforeWrite(Path, boolean)}
+	 * @return true, if no other writer opened the file since this writer was opened
+	 */
+	public boolean writerClosed(Path file, long generation)
+	{
+		synchronized (lock(file))
+		{
+			this.writers.computeIfPresent(file, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+			return isCurrent(file, generation);
+		}
+	}
+	
+	// guarded by lock of file
+	
+	private boolean isCurrent(Path file, long generation)
+	{
+		return (generation >= 0L) && (this.generations[stripe(file)] == generation);
+	}
+	
+	/**
+	 * Copies file before its attributes are changed, if it is shared with other paths.
+	 * 
+	 * @param file file in default file system
+	 * @throws IOException
+	 */
+	public void beforeAttributeChange(Path file) throws IOException
+	{
+		synchronized (lock(file))
+		{
+			unshare(file, false);
+		}
+	}
+	
+	private void unshare(Path file, boolean truncate) throws IOException
+	{
+		PosixFileAttributes attributes;
+		int links;
+		try
+		{
+			attributes = Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			links = ((Number)Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+		}
+		catch (NoSuchFileException e) 
+		{
+			return;
+		}
+		if((! attributes.isRegularFile()) || (links < 2))
+		{
+			return;
+		}
+		
+		Path tempFile = this.tempDirectory.resolve(UUID.randomUUID().toString());
+		try
+		{
+			if(truncate)
+			{
+				Files.createFile(tempFile);
+			}
+			else
+			{
+				Files.copy(file, tempFile, LinkOption.NOFOLLOW_LINKS);
+			}
+			PosixFileAttributeView view = Files.getFileAttributeView(tempFile, PosixFileAttributeView.class);
+			view.setPermissions(attributes.permissions());
+			view.setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+			Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally 
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+	
+	/**
+	 * Schedules deduplication of closed file.
+	 * 
+	 * @param file file in default file system
+	 * @param size size of file at close
+	 * @param digest SHA-256 of content or null, if content was not written sequentially
+	 * @param generation generation of writer, digest is dropped if other writers opened the file since
+	 */
+	public void committed(Path file, long size, byte[] digest, long generation)
+	{
+		if(size < this.minSize)
+		{
+			return;
+		}
+		try
+		{
+			this.executor.execute(() -> 
+			{
+				try
+				{
+					deduplicate(file, size, digest, generation);
+				}
+				catch (IOException | RuntimeException e) 
+				{
+					LOGGER.debug("unable to deduplicate " + file, e);
+				}
+			});
+		}
+		catch (RuntimeException e) 
+		{
+			LOGGER.debug("dedup store is disposed, skip " + file);
+		}
+	}
+	
+	private void deduplicate(Path file, long size, byte[] digest, long generation) throws IOException
+	{
+		PosixFileAttributes attributes = readRegularFile(file);
+		if((attributes == null) || (attributes.size() != size) || this.writers.containsKey(file))
+		{
+			return;
+		}
+		
+		// digest of writer describes content only, if no other writer opened the file since
+		
+		synchronized (lock(file))
+		{
+			if(! isCurrent(file, generation))
+			{
+				digest = null;
+			}
+		}
+		
+		boolean hashed = digest == null;
+		if(hashed)
+		{
+			digest = hash(file);
+			if(! sameFile(attributes, readRegularFile(file)))
+			{
+				return;
+			}
+		}
+		
+		// linked files share permissions, files with different permissions are linked to different entries
+		
+		String hex = toHex(digest);
+		Path entry = this.directory.resolve(hex.substring(0, 2)).resolve(hex + "." + PosixFilePermissions.toString(attributes.permissions()));
+		Files.createDirectories(entry.getParent());
+		
+		synchronized (lock(file))
+		{
+			// file must be unchanged and not opened for write since close
+			
+			if(this.writers.containsKey(file) || ((! hashed) && (! isCurrent(file, generation))) || (! sameFile(attributes, readRegularFile(file))))
+			{
+				return;
+			}
+			
+			PosixFileAttributes entryAttributes = readRegularFile(entry);
+			if(entryAttributes == null)
+			{
+				try
+				{
+					Files.createLink(entry, file);
+				}
+				catch (FileAlreadyExistsException e) 
+				{
+					// linked by concurrent sweep or other store
+				}
+				return;
+			}
+			
+			if((entryAttributes.size() != size) || (! entryAttributes.permissions().equals(attributes.permissions())) || 
+				((entryAttributes.fileKey() != null) && entryAttributes.fileKey().equals(attributes.fileKey())))
+			{
+				return;
+			}
+			
+			Path tempFile = this.tempDirectory.resolve(UUID.randomUUID().toString());
+			try
+			{
+				Files.createLink(tempFile, entry);
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally 
+			{
+				Files.deleteIfExists(tempFile);
+			}
+			
+			// file keeps its modification time
+			
+			Files.setLastModifiedTime(file, attributes.lastModifiedTime());
+		}
+		
+		this.linkedCount.incrementAndGet();
+		this.savedBytes.addAndGet(size);
+		LOGGER.debug("linked " + file + " to " + entry);
+	}
+	
+	private static PosixFileAttributes readRegularFile(Path file) throws IOException
+	{
+		try
+		{
+			PosixFileAttributes attributes = Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return attributes.isRegularFile() ? attributes : null;
+		}
+		catch (NoSuchFileException e) 
+		{
+			return null;
+		}
+	}
+	
+	private static boolean sameFile(BasicFileAttributes attributes1, BasicFileAttributes attributes2)
+	{
+		return (attributes2 != null) && (attributes1.size() == attributes2.size()) && 
+			attributes1.lastModifiedTime().equals(attributes2.lastModifiedTime()) && 
+			((attributes1.fileKey() == null) || attributes1.fileKey().equals(attributes2.fileKey()));
+	}
+	
+	private byte[] hash(Path file) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			while(channel.read(buffer) >= 0)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes)
+		{
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Removes entries not linked by any home directory.
+	 * 
+	 * @throws IOException
+	 */
+	public void sweep() throws IOException
+	{
+		int removed = 0;
+		try(DirectoryStream<Path> prefixes = Files.newDirectoryStream(this.directory))
+		{
+			for(Path prefix : prefixes)
+			{
+				if((! Files.isDirectory(prefix, LinkOption.NOFOLLOW_LINKS)) || (prefix.getFileName().toString().length() != 2))
+				{
+					continue;
+				}
+				try(DirectoryStream<Path> entries = Files.newDirectoryStream(prefix))
+				{
+					for(Path entry : entries)
+					{
+						try
+						{
+							if(((Number)Files.getAttribute(entry, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() < 2)
+							{
+								Files.delete(entry);
+								removed++;
+							}
+						}
+						catch (NoSuchFileException e) {}
+					}
+				}
+			}
+		}
+		LOGGER.debug("removed " + removed + " unreferenced dedup entries");
+	}
+	
+	private void sweepQuietly()
+	{
+		try
+		{
+			sweep();
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			LOGGER.warn("unable to sweep dedup store " + this.directory, e);
+		}
+	}
+	
+	/**
+	 * Stops background jobs. Pending deduplications are discarded.
+	 */
+	public void dispose()
+	{
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File channel forwarding all operations to delegate. Base for channels that decorate single operations.
+ */
+public class DelegatingFileChannel extends FileChannel
+{
+	protected final FileChannel delegate;
+	
+	public DelegatingFileChannel(FileChannel delegate)
+	{
+		super();
+		this.delegate = delegate;
+	}
+	
+	public FileChannel getDelegate()
+	{
+		return delegate;
+	}
+	
+	/**
+	 * Searches chain of delegating channels for channel of given type.
+	 * 
+	 * @param channel outermost channel
+	 * @param type type of channel to search
+	 * @return channel of given type or null
+	 */
+	public static <T extends FileChannel> T unwrap(FileChannel channel, Class<T> type)
+	{
+		while(channel != null)
+		{
+			if(type.isInstance(channel))
+			{
+				return type.cast(channel);
+			}
+			channel = channel instanceof DelegatingFileChannel ? ((DelegatingFileChannel)channel).delegate : null;
+		}
+		return null;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException
+	{
+		return delegate.read(dst);
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		return delegate.read(dsts, offset, length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public long position() throws IOException
+	{
+		return delegate.position();
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException
+	{
+		delegate.position(newPosition);
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException
+	{
+		return delegate.size();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		delegate.truncate(size);
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException
+	{
+		delegate.force(metaData);
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		return delegate.transferTo(position, count, target);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		return delegate.transferFrom(src, position, count);
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException
+	{
+		return delegate.read(dst, position);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+	{
+		return delegate.map(mode, position, size);
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException
+	{
+		return delegate.lock(position, size, shared);
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException
+	{
+		return delegate.tryLock(position, size, shared);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		delegate.close();
+	}
+}
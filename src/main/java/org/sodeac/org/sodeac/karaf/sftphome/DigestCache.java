@@ -0,0 +1,297 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of file digests calculated by sftp check-file extensions. Entries are valid as long as size and last modified time 
+ * of file are unchanged.
+ * 
+ * <ul>
+ * <li>xattr: digests are stored in user defined attributes of file, files without support of user defined attributes are cached in memory. 
+ * Support is checked once per file system, as home file systems are rooted on a single file store.</li>
+ * <li>memory: digests are cached in memory by file key, up to configured number of entries</li>
+ * <li>none: digests are calculated for each request</li>
+ * </ul>
+ * 
+ * Files modified within last two seconds are not cached, as a further modification in same timestamp granularity would not be recognized.
+ */
+public class DigestCache
+{
+	public static final String MODE_XATTR = "xattr";
+	public static final String MODE_MEMORY = "memory";
+	public static final String MODE_NONE = "none";
+	
+	private static final String ATTRIBUTE_PREFIX = "sftphome.digest.";
+	private static final long MIN_AGE = TimeUnit.SECONDS.toNanos(2);
+	
+	private volatile String mode = MODE_XATTR;
+	private volatile int maxEntries = 10000;
+	private final Map<Key,byte[]> memory = new LinkedHashMap<Key,byte[]>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key,byte[]> eldest)
+		{
+			return size() > maxEntries;
+		}
+	};
+	private final Map<FileSystem,Boolean> xattrSupport = new WeakHashMap<FileSystem,Boolean>();
+	
+	public DigestCache(Map<String, ?> properties)
+	{
+		super();
+		this.refresh(properties);
+	}
+	
+	public void refresh(Map<String, ?> properties)
+	{
+		String mode = properties.get("sftpdigestcache") instanceof String ? ((String)properties.get("sftpdigestcache")).trim().toLowerCase() : MODE_XATTR;
+		if(! (MODE_MEMORY.equals(mode) || MODE_NONE.equals(mode)))
+		{
+			mode = MODE_XATTR;
+		}
+		this.maxEntries = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "sftpdigestcacheentries", 10000L));
+		this.mode = mode;
+		
+		synchronized (this.memory)
+		{
+			if(MODE_NONE.equals(mode))
+			{
+				this.memory.clear();
+			}
+			while(this.memory.size() > this.maxEntries)
+			{
+				this.memory.remove(this.memory.keySet().iterator().next());
+			}
+		}
+	}
+	
+	public boolean isEnabled()
+	{
+		return ! MODE_NONE.equals(this.mode);
+	}
+	
+	/**
+	 * 
+	 * @param file hashed file
+	 * @param attributes current attributes of file
+	 * @param request algorithm, offset, length and block size of request
+	 * @return cached response or null
+	 */
+	public byte[] get(Path file, BasicFileAttributes attributes, String request)
+	{
+		String mode = this.mode;
+		if(MODE_NONE.equals(mode))
+		{
+			return null;
+		}
+		
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		
+		if(MODE_XATTR.equals(mode) && isXattrSupported(file))
+		{
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+			if(view != null)
+			{
+				try
+				{
+					// list attributes, a missing attribute would cost an exception
+					
+					String name = ATTRIBUTE_PREFIX + request;
+					if(view.list().contains(name))
+					{
+						ByteBuffer value = ByteBuffer.allocate(view.size(name));
+						view.read(name, value);
+						value.flip();
+						if((value.remaining() > 16) && (value.getLong() == size) && (value.getLong() == modified))
+						{
+							byte[] response = new byte[value.remaining()];
+							value.get(response);
+							return response;
+						}
+					}
+				}
+				catch (IOException | RuntimeException e) {}
+			}
+		}
+		
+		if(attributes.fileKey() == null)
+		{
+			return null;
+		}
+		
+		byte[] entry;
+		synchronized (this.memory)
+		{
+			entry = this.memory.get(new Key(attributes.fileKey(), request));
+		}
+		if(entry == null)
+		{
+			return null;
+		}
+		
+		ByteBuffer value = ByteBuffer.wrap(entry);
+		if((value.getLong() != size) || (value.getLong() != modified))
+		{
+			return null;
+		}
+		return Arrays.copyOfRange(entry, 16, entry.length);
+	}
+	
+	/**
+	 * 
+	 * @param file hashed file
+	 * @param attributes attributes of file read before hash calculation
+	 * @param request algorithm, offset, length and block size of request
+	 * @param response response to cache
+	 */
+	public void put(Path file, BasicFileAttributes attributes, String request, byte[] response)
+	{
+		String mode = this.mode;
+		if(MODE_NONE.equals(mode))
+		{
+			return;
+		}
+		
+		long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		if((System.currentTimeMillis() * 1000000L) - modified < MIN_AGE)
+		{
+			return;
+		}
+		
+		ByteBuffer value = ByteBuffer.allocate(16 + response.length);
+		value.putLong(attributes.size());
+		value.putLong(modified);
+		value.put(response);
+		
+		if(MODE_XATTR.equals(mode) && isXattrSupported(file))
+		{
+			UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+			if(view != null)
+			{
+				try
+				{
+					value.flip();
+					view.write(ATTRIBUTE_PREFIX + request, value);
+					return;
+				}
+				catch (IOException | RuntimeException e) {}
+			}
+		}
+		
+		if(attributes.fileKey() == null)
+		{
+			return;
+		}
+		
+		synchronized (this.memory)
+		{
+			this.memory.put(new Key(attributes.fileKey(), request), value.array());
+		}
+	}
+	
+	private boolean isXattrSupported(Path file)
+	{
+		FileSystem fileSystem = file.getFileSystem();
+		synchronized (this.xattrSupport)
+		{
+			Boolean supported = this.xattrSupport.get(fileSystem);
+			if(supported != null)
+			{
+				return supported;
+			}
+		}
+		
+		boolean supported;
+		try
+		{
+			supported = supportsUserDefinedAttributes(file);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			supported = false;
+		}
+		synchronized (this.xattrSupport)
+		{
+			this.xattrSupport.put(fileSystem, supported);
+		}
+		return supported;
+	}
+	
+	/**
+	 * 
+	 * @param file file of file system to check
+	 * @return true, if file store of file supports user defined attributes
+	 * @throws IOException
+	 */
+	protected boolean supportsUserDefinedAttributes(Path file) throws IOException
+	{
+		return Files.getFileStore(file).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+	}
+	
+	private static class Key
+	{
+		private final Object fileKey;
+		private final String request;
+		private final int hashCode;
+		
+		private Key(Object fileKey, String request)
+		{
+			super();
+			this.fileKey = fileKey;
+			this.request = request;
+			this.hashCode = Objects.hash(fileKey, request);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+			{
+				return true;
+			}
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.fileKey.equals(other.fileKey) && this.request.equals(other.request);
+		}
+	}
+}
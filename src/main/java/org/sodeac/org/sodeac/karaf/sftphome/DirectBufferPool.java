@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of direct buffers with same capacity. At most maxBuffers direct buffers are allocated, released buffers are kept 
+ * for reuse. If all buffers are in use, {@link #tryAcquire()} returns null and callers transfer without pooled buffer, 
+ * so concurrent transfers can not exhaust direct memory.
+ */
+public class DirectBufferPool
+{
+	public static final int MIN_BUFFER_SIZE = 4096;
+	public static final int MAX_BUFFER_SIZE = 67108864;
+	
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger allocated = new AtomicInteger();
+	
+	/**
+	 * 
+	 * @param bufferSize capacity of buffers
+	 * @param maxBuffers maximum number of allocated direct buffers
+	 */
+	public DirectBufferPool(int bufferSize, int maxBuffers)
+	{
+		super();
+		if(bufferSize <= 0)
+		{
+			throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+		this.maxBuffers = Math.max(0, maxBuffers);
+	}
+	
+	/**
+	 * 
+	 * @param bufferSize configured buffer size
+	 * @return buffer size limited to {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}
+	 */
+	public static int bufferSize(long bufferSize)
+	{
+		return (int)Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bufferSize));
+	}
+	
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	public int getMaxBuffers()
+	{
+		return maxBuffers;
+	}
+	
+	/**
+	 * 
+	 * @return cleared direct buffer or null, if all direct buffers are in use
+	 */
+	public ByteBuffer tryAcquire()
+	{
+		ByteBuffer buffer = this.pool.poll();
+		if(buffer != null)
+		{
+			buffer.clear();
+			return buffer;
+		}
+		if(this.allocated.incrementAndGet() > this.maxBuffers)
+		{
+			this.allocated.decrementAndGet();
+			return null;
+		}
+		try
+		{
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		catch (OutOfMemoryError e) 
+		{
+			this.allocated.decrementAndGet();
+			return null;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param buffer buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if(buffer != null)
+		{
+			this.pool.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of disk usage of home directories. 
+ * 
+ * Usage is maintained incrementally by file systems and persisted periodically, so a restart does not require to measure all home directories. 
+ * Home directories without persisted usage are measured once on first access. A background job measures all home directories 
+ * in configured interval to correct drift.
+ */
+public class DiskQuotaIndex
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiskQuotaIndex.class);
+	private static final long STORE_INTERVAL = 30L;
+	
+	private final HomeDirectoryIndex homeDirectoryIndex;
+	private final Path indexFile;
+	private final Map<String,HomeUsage> usages = new ConcurrentHashMap<String,HomeUsage>();
+	private final Map<String,Long> persisted = new HashMap<String,Long>();
+	private final ScheduledThreadPoolExecutor executor;
+	
+	private ScheduledFuture<?> reconcileFuture = null;
+	private long reconcileInterval = -1L;
+	
+	public DiskQuotaIndex(HomeDirectoryIndex homeDirectoryIndex, Path indexFile)
+	{
+		super();
+		this.homeDirectoryIndex = homeDirectoryIndex;
+		this.indexFile = indexFile;
+		
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> 
+		{
+			Thread thread = new Thread(r, "SFTP home disk quota");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+		this.executor.scheduleWithFixedDelay(this::storeQuietly, STORE_INTERVAL, STORE_INTERVAL, TimeUnit.SECONDS);
+	}
+	
+	public HomeDirectoryIndex getHomeDirectoryIndex()
+	{
+		return homeDirectoryIndex;
+	}
+	
+	public Path getIndexFile()
+	{
+		return indexFile;
+	}
+	
+	/**
+	 * Reads persisted usage of home directories.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void load() throws IOException
+	{
+		Properties properties = new Properties();
+		try(InputStream inputStream = Files.newInputStream(this.indexFile))
+		{
+			properties.load(inputStream);
+		}
+		catch (NoSuchFileException e) 
+		{
+			return;
+		}
+		
+		for(String userName : properties.stringPropertyNames())
+		{
+			try
+			{
+				this.persisted.put(userName, Long.parseLong(properties.getProperty(userName)));
+			}
+			catch (NumberFormatException e) {}
+		}
+	}
+	
+	/**
+	 * Writes usage of all home directories, if it has changed since last call.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void store() throws IOException
+	{
+		boolean modified = false;
+		for(HomeUsage usage : this.usages.values())
+		{
+			long used = usage.getUsed();
+			if(usage.storedUsed != used)
+			{
+				this.persisted.put(usage.getUserName(), used);
+				usage.storedUsed = used;
+				modified = true;
+			}
+		}
+		
+		if(! modified)
+		{
+			return;
+		}
+		
+		Properties properties = new Properties();
+		for(Map.Entry<String,Long> entry : this.persisted.entrySet())
+		{
+			properties.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+		}
+		
+		Files.createDirectories(this.indexFile.toAbsolutePath().getParent());
+		Path tempFile = this.indexFile.resolveSibling(this.indexFile.getFileName().toString() + ".tmp");
+		try(OutputStream outputStream = Files.newOutputStream(tempFile))
+		{
+			properties.store(outputStream, "disk usage of sftp home directories");
+		}
+		try
+		{
+			Files.move(tempFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) 
+		{
+			Files.move(tempFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private void storeQuietly()
+	{
+		try
+		{
+			store();
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			LOGGER.warn("unable to store disk quota index " + this.indexFile, e);
+		}
+	}
+	
+	/**
+	 * Returns usage of home directory. Home directories without persisted usage are measured.
+	 * 
+	 * @param userName name of user
+	 * @return usage of home directory
+	 * @throws IOException
+	 */
+	public HomeUsage getUsage(String userName) throws IOException
+	{
+		HomeUsage usage = this.usages.get(userName);
+		if(usage != null)
+		{
+			return usage;
+		}
+		
+		Long used;
+		synchronized (this)
+		{
+			used = this.persisted.get(userName);
+		}
+		
+		if(used == null)
+		{
+			Path home = this.homeDirectoryIndex.getHome(userName);
+			used = home == null ? 0L : measure(home);
+		}
+		
+		usage = new HomeUsage(userName, used);
+		HomeUsage existing = this.usages.putIfAbsent(userName, usage);
+		return existing == null ? usage : existing;
+	}
+	
+	/**
+	 * Schedules reconciliation of all home directories.
+	 * 
+	 * @param interval interval in seconds, 0 disables reconciliation
+	 */
+	public synchronized void setReconcileInterval(long interval)
+	{
+		if(interval == this.reconcileInterval)
+		{
+			return;
+		}
+		
+		this.reconcileInterval = interval;
+		if(this.reconcileFuture != null)
+		{
+			this.reconcileFuture.cancel(false);
+			this.reconcileFuture = null;
+		}
+		if((interval > 0L) && (! this.executor.isShutdown()))
+		{
+			this.reconcileFuture = this.executor.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+	
+	/**
+	 * Measures all known home directories and corrects usage. Entries of removed home directories are dropped.
+	 */
+	public void reconcile()
+	{
+		Set<String> userNames;
+		synchronized (this)
+		{
+			userNames = new HashSet<String>(this.persisted.keySet());
+		}
+		userNames.addAll(this.usages.keySet());
+		
+		for(String userName : userNames)
+		{
+			Path home = this.homeDirectoryIndex.getHome(userName);
+			try
+			{
+				if((home == null) || (! Files.isDirectory(home)))
+				{
+					synchronized (this)
+					{
+						if(! this.usages.containsKey(userName))
+						{
+							this.persisted.remove(userName);
+						}
+					}
+					continue;
+				}
+				
+				HomeUsage usage = this.usages.get(userName);
+				if(usage == null)
+				{
+					long measured = measure(home);
+					synchronized (this)
+					{
+						if(! this.usages.containsKey(userName))
+						{
+							this.persisted.put(userName, measured);
+						}
+					}
+					continue;
+				}
+				
+				long journal = usage.getJournal();
+				long drift = usage.reconcile(measure(home), journal);
+				if(drift != 0L)
+				{
+					LOGGER.debug("corrected disk usage of " + userName + " by " + drift + " bytes");
+				}
+			}
+			catch (IOException | RuntimeException e) 
+			{
+				LOGGER.warn("unable to reconcile disk usage of " + userName, e);
+			}
+		}
+		
+		storeQuietly();
+	}
+	
+	/**
+	 * Stops background jobs and stores index.
+	 */
+	public void dispose()
+	{
+		this.executor.shutdownNow();
+		storeQuietly();
+	}
+	
+	/**
+	 * 
+	 * @param home home directory
+	 * @return sum of size of all regular files in home directory
+	 * @throws IOException
+	 */
+	public static long measure(Path home) throws IOException
+	{
+		if(! Files.isDirectory(home))
+		{
+			return 0L;
+		}
+		
+		final long[] size = new long[] {0L};
+		Files.walkFileTree(home, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				if(attrs.isRegularFile())
+				{
+					size[0] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException
+			{
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size[0];
+	}
+}
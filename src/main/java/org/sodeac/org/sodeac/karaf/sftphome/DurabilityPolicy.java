@@ -0,0 +1,122 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable durability configuration. Modes are defined per role with property durabilityrole, format {@code role:mode}, 
+ * and for all other users with property durabilitydefault.
+ * 
+ * <ul>
+ * <li>sync: written files are forced to disk before close returns</li>
+ * <li>group: written files are forced to disk by next run of {@link GroupCommitter} before close returns, close waits up to group commit interval</li>
+ * <li>none: written files are not forced to disk, neither on close of sftp handles</li>
+ * </ul>
+ * 
+ * If a user has multiple roles with durability mode, the safest mode applies. Users without configured mode keep the 
+ * default of sshd (sftp handles are forced on close, scp transfers are not).
+ */
+public class DurabilityPolicy
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DurabilityPolicy.class);
+	
+	public enum Mode {NONE, GROUP, SYNC}
+	
+	private final Map<String,Mode> roleModes;
+	private final Mode defaultMode;
+	
+	private DurabilityPolicy(Map<String,Mode> roleModes, Mode defaultMode)
+	{
+		super();
+		this.roleModes = roleModes;
+		this.defaultMode = defaultMode;
+	}
+	
+	public static DurabilityPolicy fromProperties(Map<String, ?> properties)
+	{
+		Map<String,Mode> roleModes = new HashMap<String,Mode>();
+		String[] entries = SFTPHomeSetup.getPropertyStringArray(properties, "durabilityrole");
+		if(entries != null)
+		{
+			for(String entry : entries)
+			{
+				int separator = entry.indexOf(':');
+				Mode mode = separator < 1 ? null : parseMode(entry.substring(separator + 1));
+				if(mode == null)
+				{
+					LOGGER.warn("ignore invalid durability entry " + entry);
+					continue;
+				}
+				roleModes.put(entry.substring(0, separator).trim(), mode);
+			}
+		}
+		
+		Mode defaultMode = null;
+		if((properties.get("durabilitydefault") instanceof String) && (! ((String)properties.get("durabilitydefault")).trim().isEmpty()))
+		{
+			defaultMode = parseMode((String)properties.get("durabilitydefault"));
+			if(defaultMode == null)
+			{
+				LOGGER.warn("ignore invalid durability mode " + properties.get("durabilitydefault"));
+			}
+		}
+		
+		return new DurabilityPolicy(Collections.unmodifiableMap(roleModes), defaultMode);
+	}
+	
+	private static Mode parseMode(String mode)
+	{
+		try
+		{
+			return Mode.valueOf(mode.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) 
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns durability mode of user.
+	 * 
+	 * @param roles roles of user
+	 * @return safest mode of all roles, default mode or null, if durability is not configured for user
+	 */
+	public Mode resolve(Set<String> roles)
+	{
+		Mode resolved = null;
+		if(roles != null)
+		{
+			for(String role : roles)
+			{
+				Mode mode = this.roleModes.get(role);
+				if((mode != null) && ((resolved == null) || (mode.compareTo(resolved) > 0)))
+				{
+					resolved = mode;
+				}
+			}
+		}
+		return resolved == null ? this.defaultMode : resolved;
+	}
+}
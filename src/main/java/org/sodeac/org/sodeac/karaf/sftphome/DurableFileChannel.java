@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.sodeac.org.sodeac.karaf.sftphome.DurabilityPolicy.Mode;
+
+/**
+ * File channel applying durability mode on close. Channels without modification are closed without force.
+ */
+public class DurableFileChannel extends DelegatingFileChannel
+{
+	private final Mode mode;
+	private final GroupCommitter groupCommitter;
+	private volatile boolean modified = false;
+	
+	public DurableFileChannel(FileChannel delegate, Mode mode, GroupCommitter groupCommitter)
+	{
+		super(delegate);
+		this.mode = mode;
+		this.groupCommitter = groupCommitter;
+	}
+	
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		this.modified = true;
+		return delegate.transferFrom(src, position, count);
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		this.modified = true;
+		delegate.truncate(size);
+		return this;
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		if((! this.modified) || (this.mode == Mode.NONE))
+		{
+			delegate.close();
+			return;
+		}
+		
+		if((this.mode == Mode.GROUP) && (this.groupCommitter != null))
+		{
+			try
+			{
+				this.groupCommitter.commit(delegate);
+			}
+			finally 
+			{
+				delegate.close();
+			}
+			return;
+		}
+		
+		try
+		{
+			delegate.force(true);
+		}
+		finally 
+		{
+			delegate.close();
+		}
+	}
+}
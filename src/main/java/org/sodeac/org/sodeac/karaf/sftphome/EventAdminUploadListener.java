@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * Posts batches of committed files as asynchronous events to EventAdmin, so other bundles can subscribe with an EventHandler 
+ * for topic {@link #TOPIC}. The component is active only, if EventAdmin is available.
+ * 
+ * Event properties: owner, home, count and arrays paths, files, sizes, kinds and timestamps with one entry per committed file.
+ */
+@Component(service=UploadListener.class, immediate=true)
+public class EventAdminUploadListener implements UploadListener
+{
+	public static final String TOPIC = "org/sodeac/karaf/sftphome/upload/COMMITTED";
+	
+	private volatile EventAdmin eventAdmin = null;
+	
+	@Reference
+	public void bindEventAdmin(EventAdmin eventAdmin)
+	{
+		this.eventAdmin = eventAdmin;
+	}
+	
+	public void unbindEventAdmin(EventAdmin eventAdmin)
+	{
+		if(this.eventAdmin == eventAdmin)
+		{
+			this.eventAdmin = null;
+		}
+	}
+
+	@Override
+	public void uploadsCommitted(List<UploadEvent> events)
+	{
+		EventAdmin eventAdmin = this.eventAdmin;
+		if((eventAdmin == null) || events.isEmpty())
+		{
+			return;
+		}
+		
+		String[] paths = new String[events.size()];
+		String[] files = new String[events.size()];
+		long[] sizes = new long[events.size()];
+		String[] kinds = new String[events.size()];
+		long[] timestamps = new long[events.size()];
+		for(int i = 0; i < events.size(); i++)
+		{
+			UploadEvent event = events.get(i);
+			paths[i] = event.getPath();
+			files[i] = event.getFile().toString();
+			sizes[i] = event.getSize();
+			kinds[i] = event.getKind().name();
+			timestamps[i] = event.getTimestamp();
+		}
+		
+		Map<String,Object> properties = new HashMap<String,Object>();
+		if(events.get(0).getOwner() != null)
+		{
+			properties.put("owner", events.get(0).getOwner());
+		}
+		properties.put("home", events.get(0).getHome().toString());
+		properties.put("count", events.size());
+		properties.put("paths", paths);
+		properties.put("files", files);
+		properties.put("sizes", sizes);
+		properties.put("kinds", kinds);
+		properties.put("timestamps", timestamps);
+		
+		eventAdmin.postEvent(new Event(TOPIC, properties));
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forces written files of all sessions to disk in batches. Closing thread waits until next run of group commit has forced 
+ * the batch containing its channel, so close returns after file is on disk as in mode sync. Channels stay owned by closing thread, 
+ * group commit only forces them.
+ */
+public class GroupCommitter
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+	
+	private final ScheduledThreadPoolExecutor executor;
+	private Batch batch = new Batch();
+	private ScheduledFuture<?> future = null;
+	private long interval = -1L;
+	private boolean disposed = false;
+	
+	public GroupCommitter(long interval)
+	{
+		super();
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> 
+		{
+			Thread thread = new Thread(r, "SFTP home group commit");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+		this.setInterval(interval);
+	}
+	
+	/**
+	 * 
+	 * @param interval milliseconds between two group commits
+	 */
+	public synchronized void setInterval(long interval)
+	{
+		interval = Math.max(1L, interval);
+		if((interval == this.interval) || this.disposed)
+		{
+			return;
+		}
+		
+		this.interval = interval;
+		if(this.future != null)
+		{
+			this.future.cancel(false);
+		}
+		this.future = this.executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Adds channel to current batch and waits until batch is forced. Interrupts do not abort waiting, 
+	 * interrupt status is restored on return. Channel is not closed.
+	 * 
+	 * @param channel written channel to force
+	 * @throws IOException if force of channel failed
+	 */
+	public void commit(FileChannel channel) throws IOException
+	{
+		Batch batch = null;
+		synchronized (this)
+		{
+			if(! this.disposed)
+			{
+				batch = this.batch;
+				batch.channels.add(channel);
+			}
+		}
+		
+		if(batch == null)
+		{
+			channel.force(true);
+			return;
+		}
+		batch.await(channel);
+	}
+	
+	/**
+	 * Forces all channels of current batch and releases their waiting threads.
+	 */
+	public void flush()
+	{
+		Batch batch;
+		synchronized (this)
+		{
+			if(this.batch.channels.isEmpty())
+			{
+				return;
+			}
+			batch = this.batch;
+			this.batch = new Batch();
+		}
+		
+		try
+		{
+			for(FileChannel channel : batch.channels)
+			{
+				try
+				{
+					channel.force(true);
+				}
+				catch (IOException | RuntimeException e) 
+				{
+					LOGGER.warn("unable to force file to disk", e);
+					batch.failures.put(channel, e);
+				}
+			}
+		}
+		finally 
+		{
+			batch.done.countDown();
+		}
+	}
+	
+	/**
+	 * Stops timer and commits current batch. Later commits force channel in calling thread.
+	 */
+	public void dispose()
+	{
+		synchronized (this)
+		{
+			this.disposed = true;
+		}
+		
+		// no interrupt, force of an interrupted thread closes channel
+		
+		this.executor.shutdown();
+		flush();
+	}
+	
+	/**
+	 * Channels forced by one run of group commit. Failures are written before and read after latch is released.
+	 */
+	private static class Batch
+	{
+		private final List<FileChannel> channels = new ArrayList<FileChannel>();
+		private final Map<FileChannel, Exception> failures = new IdentityHashMap<FileChannel, Exception>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		
+		private void await(FileChannel channel) throws IOException
+		{
+			boolean interrupted = false;
+			while(true)
+			{
+				try
+				{
+					this.done.await();
+					break;
+				}
+				catch (InterruptedException e) 
+				{
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			Exception failure = this.failures.get(channel);
+			if(failure instanceof IOException)
+			{
+				throw (IOException)failure;
+			}
+			if(failure instanceof RuntimeException)
+			{
+				throw (RuntimeException)failure;
+			}
+		}
+	}
+}
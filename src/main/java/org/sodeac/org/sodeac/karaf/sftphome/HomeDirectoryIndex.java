@@ -0,0 +1,566 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of provisioned home directories. The home roots are scanned once, 
+ * afterwards only home directories created by this bundle are added. Known home directories are not probed again.
+ * 
+ * Home directories can be spread across multiple home roots (e.g. mount points of different volumes). New users are placed 
+ * on a home root by stable hash of user name or on the home root with most usable space. Hash placement selects the home root 
+ * by its position in configured order, adding home roots at the end changes placement of new users only. The placement of all users is 
+ * persisted in placement file, so existing home directories never move if home roots are added or reordered. Users placed 
+ * on a home root that is not configured anymore are denied instead of getting a new, empty home directory. New placements are 
+ * appended to a journal next to placement file, the journal is merged into placement file on scan and if it exceeds the size of index.
+ * 
+ * With hashed layout new home directories are created two levels below home root (e.g. 3f/a2/username), named by md5 of user name. 
+ * Existing flat home directories are still found and can be moved by {@link HomeDirectoryMigration}. With hashed layout, directories 
+ * named by two hexadecimal digits in home root are fan-out directories, user names of that form are rejected. Directories in fan-out 
+ * directories are home directories only, if they are at the location of the hashed user name.
+ */
+public class HomeDirectoryIndex
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(HomeDirectoryIndex.class);
+	
+	public enum Placement {HASH, LEASTUSED}
+	public enum Layout {FLAT, HASHED}
+	
+	private final List<Path> homeRoots;
+	private final Placement placement;
+	private final Path placementFile;
+	private final Layout layout;
+	private final Map<String,Path> provisioned = new ConcurrentHashMap<String,Path>();
+	private final Map<String,String> unavailable = new ConcurrentHashMap<String,String>();
+	private final ReadWriteLock relocationLock = new ReentrantReadWriteLock();
+	
+	// guarded by this
+	private int journalEntries = 0;
+	
+	public HomeDirectoryIndex(Path homeRoot)
+	{
+		this(Collections.singletonList(homeRoot), Placement.HASH, null, Layout.FLAT);
+	}
+	
+	/**
+	 * 
+	 * @param homeRoots home roots, first one is used for users without placement, if placement file is not set 
+	 * @param placement placement of new users
+	 * @param placementFile file to persist placement of users or null
+	 * @param layout layout of new home directories
+	 */
+	public HomeDirectoryIndex(List<Path> homeRoots, Placement placement, Path placementFile, Layout layout)
+	{
+		super();
+		List<Path> normalized = new ArrayList<Path>();
+		for(Path homeRoot : homeRoots)
+		{
+			homeRoot = homeRoot.toAbsolutePath().normalize();
+			if(! normalized.contains(homeRoot))
+			{
+				normalized.add(homeRoot);
+			}
+		}
+		this.homeRoots = Collections.unmodifiableList(normalized);
+		this.placement = placement;
+		this.placementFile = placementFile;
+		this.layout = layout;
+	}
+	
+	public Path getHomeRoot()
+	{
+		return homeRoots.get(0);
+	}
+	
+	public List<Path> getHomeRoots()
+	{
+		return homeRoots;
+	}
+	
+	public Placement getPlacement()
+	{
+		return placement;
+	}
+	
+	public Path getPlacementFile()
+	{
+		return placementFile;
+	}
+	
+	public Layout getLayout()
+	{
+		return layout;
+	}
+	
+	/**
+	 * Lock to resolve home directories and open file systems (read lock) without interference with relocation of home directories (write lock).
+	 * 
+	 * @return relocation lock
+	 */
+	public ReadWriteLock getRelocationLock()
+	{
+		return relocationLock;
+	}
+	
+	/**
+	 * Reads placement file and adds all existing directories in home roots to index. Home directories found on a home root 
+	 * different from persisted placement are ignored.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void scan() throws IOException
+	{
+		Map<String,Path> found = new HashMap<String,Path>();
+		for(Path homeRoot : this.homeRoots)
+		{
+			if(! Files.isDirectory(homeRoot))
+			{
+				continue;
+			}
+			
+			for(Path path : listDirectories(homeRoot))
+			{
+				if((this.layout == Layout.HASHED) && isFanOutName(path.getFileName().toString()))
+				{
+					for(Path fanOut : listDirectories(path))
+					{
+						if(isFanOutName(fanOut.getFileName().toString()))
+						{
+							for(Path home : listDirectories(fanOut))
+							{
+								// directories created inside home directory of another user (e.g. ab/cd/bob by user ab) are no home directories
+								
+								if(home.equals(resolve(homeRoot, home.getFileName().toString())))
+								{
+									addFound(found, home);
+								}
+								else
+								{
+									LOGGER.warn("directory " + home + " is not at hashed location of user " + home.getFileName() + " and is ignored");
+								}
+							}
+						}
+					}
+					continue;
+				}
+				addFound(found, path);
+			}
+		}
+		
+		boolean modified = false;
+		for(Map.Entry<String,String> entry : loadPlacement().entrySet())
+		{
+			String userName = entry.getKey();
+			if(! isSupportedUserName(userName))
+			{
+				LOGGER.error("user name " + userName + " is reserved for fan-out directories of hashed layout, access is denied");
+				continue;
+			}
+			Path homeRoot = Paths.get(entry.getValue()).toAbsolutePath().normalize();
+			if(! this.homeRoots.contains(homeRoot))
+			{
+				LOGGER.error("home root " + entry.getValue() + " of user " + userName + " is not configured, access is denied");
+				this.unavailable.put(userName, entry.getValue());
+				continue;
+			}
+			
+			Path home = found.get(userName);
+			if((home == null) || (! homeRoot.equals(getHomeRoot(home))))
+			{
+				if(home != null)
+				{
+					LOGGER.warn("home directory of user " + userName + " exists on multiple home roots, " + home + " is ignored");
+				}
+				home = resolve(homeRoot, userName);
+			}
+			this.provisioned.put(userName, home);
+		}
+		
+		for(Map.Entry<String,Path> entry : found.entrySet())
+		{
+			if(this.unavailable.containsKey(entry.getKey()))
+			{
+				continue;
+			}
+			
+			Path home = this.provisioned.putIfAbsent(entry.getKey(), entry.getValue());
+			if(home == null)
+			{
+				modified = true;
+			}
+			else if(! home.equals(entry.getValue()))
+			{
+				LOGGER.warn("home directory of user " + entry.getKey() + " exists on multiple home roots, " + entry.getValue() + " is ignored");
+			}
+		}
+		
+		if(modified || (this.journalEntries > 0))
+		{
+			storePlacement();
+		}
+	}
+	
+	private void addFound(Map<String,Path> found, Path home)
+	{
+		Path existing = found.putIfAbsent(home.getFileName().toString(), home);
+		if(existing != null)
+		{
+			LOGGER.warn("home directory of user " + home.getFileName() + " exists multiple times, " + home + " is ignored");
+		}
+	}
+	
+	private static List<Path> listDirectories(Path directory) throws IOException
+	{
+		List<Path> directories = new ArrayList<Path>();
+		try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory))
+		{
+			for(Path path : directoryStream)
+			{
+				if(Files.readAttributes(path, BasicFileAttributes.class).isDirectory())
+				{
+					directories.add(path);
+				}
+			}
+		}
+		return directories;
+	}
+	
+	private static boolean isFanOutName(String name)
+	{
+		return (name.length() == 2) && (Character.digit(name.charAt(0), 16) >= 0) && (Character.digit(name.charAt(1), 16) >= 0) && name.equals(name.toLowerCase());
+	}
+	
+	/**
+	 * 
+	 * @param userName name of user
+	 * @return false, if user name is reserved for fan-out directories of hashed layout
+	 */
+	public boolean isSupportedUserName(String userName)
+	{
+		return (this.layout != Layout.HASHED) || (! isFanOutName(userName));
+	}
+	
+	/**
+	 * 
+	 * @param homeRoot home root
+	 * @param userName name of user
+	 * @return home directory of user in home root according to configured layout
+	 */
+	public Path resolve(Path homeRoot, String userName)
+	{
+		if(this.layout == Layout.FLAT)
+		{
+			return homeRoot.resolve(userName);
+		}
+		
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(userName.getBytes(StandardCharsets.UTF_8));
+			return homeRoot.resolve(String.format("%02x", digest[0] & 0xff)).resolve(String.format("%02x", digest[1] & 0xff)).resolve(userName);
+		}
+		catch (NoSuchAlgorithmException e) 
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param home home directory in index
+	 * @return home root containing home directory or null
+	 */
+	public Path getHomeRoot(Path home)
+	{
+		for(Path homeRoot : this.homeRoots)
+		{
+			if(home.startsWith(homeRoot))
+			{
+				return homeRoot;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns home directory of user and creates it, if it is not in index.
+	 * 
+	 * @param userName name of user
+	 * @return home directory
+	 * @throws IOException
+	 */
+	public Path provision(String userName) throws IOException
+	{
+		Path home = this.provisioned.get(userName);
+		
+		if(home != null)
+		{
+			return home;
+		}
+		
+		synchronized (this)
+		{
+			home = this.provisioned.get(userName);
+			if(home != null)
+			{
+				return home;
+			}
+			
+			String homeRoot = this.unavailable.get(userName);
+			if(homeRoot != null)
+			{
+				throw new AccessDeniedException(userName, null, "home root " + homeRoot + " is not configured");
+			}
+			if(! isSupportedUserName(userName))
+			{
+				throw new AccessDeniedException(userName, null, "user name is reserved for fan-out directories of hashed layout");
+			}
+			
+			home = resolve(selectHomeRoot(userName), userName);
+			Files.createDirectories(home);
+			this.provisioned.put(userName, home);
+			appendPlacement(userName, home);
+		}
+		
+		return home;
+	}
+	
+	/**
+	 * 
+	 * @param userName name of user
+	 * @return home directory of user or null, if user is not in index
+	 */
+	public Path getHome(String userName)
+	{
+		return this.provisioned.get(userName);
+	}
+	
+	/**
+	 * Updates home directory of user after relocation. Requires write lock of {@link #getRelocationLock()}.
+	 * 
+	 * @param userName name of user
+	 * @param home new home directory
+	 * @throws IOException
+	 */
+	synchronized void relocated(String userName, Path home) throws IOException
+	{
+		this.provisioned.put(userName, home);
+		appendPlacement(userName, home);
+	}
+	
+	public boolean isProvisioned(String userName)
+	{
+		return this.provisioned.containsKey(userName);
+	}
+	
+	/**
+	 * 
+	 * @return names of all users in index
+	 */
+	public Set<String> getUserNames()
+	{
+		return Collections.unmodifiableSet(this.provisioned.keySet());
+	}
+	
+	/**
+	 * 
+	 * @param userName name of new user
+	 * @return home root of new user, selected by position in configured order for hash placement
+	 */
+	private Path selectHomeRoot(String userName)
+	{
+		if(this.homeRoots.size() == 1)
+		{
+			return this.homeRoots.get(0);
+		}
+		
+		if(this.placement == Placement.HASH)
+		{
+			return this.homeRoots.get(Math.floorMod(userName.hashCode(), this.homeRoots.size()));
+		}
+		
+		Path selected = this.homeRoots.get(0);
+		long maxUsable = -1L;
+		for(Path homeRoot : this.homeRoots)
+		{
+			try
+			{
+				Files.createDirectories(homeRoot);
+				long usable = Files.getFileStore(homeRoot).getUsableSpace();
+				if(usable > maxUsable)
+				{
+					maxUsable = usable;
+					selected = homeRoot;
+				}
+			}
+			catch (IOException e) 
+			{
+				LOGGER.warn("unable to determine usable space of home root " + homeRoot, e);
+			}
+		}
+		return selected;
+	}
+	
+	private Map<String,String> loadPlacement() throws IOException
+	{
+		Map<String,String> placed = new HashMap<String,String>();
+		if(this.placementFile == null)
+		{
+			return placed;
+		}
+		
+		Properties properties = new Properties();
+		try(InputStream inputStream = Files.newInputStream(this.placementFile))
+		{
+			properties.load(inputStream);
+		}
+		catch (NoSuchFileException e) 
+		{
+			// journal is written before placement file is stored first
+		}
+		
+		// later journal entries replace placement of snapshot
+		
+		this.journalEntries = 0;
+		try(InputStream inputStream = Files.newInputStream(journalFile()))
+		{
+			Properties journal = new Properties();
+			journal.load(inputStream);
+			this.journalEntries = journal.size();
+			properties.putAll(journal);
+		}
+		catch (NoSuchFileException e) {}
+		
+		for(String userName : properties.stringPropertyNames())
+		{
+			placed.put(userName, properties.getProperty(userName));
+		}
+		return placed;
+	}
+	
+	private Path journalFile()
+	{
+		return this.placementFile.resolveSibling(this.placementFile.getFileName().toString() + ".journal");
+	}
+	
+	/**
+	 * Appends placement of single user to journal. The journal is merged into placement file, if it has more entries than index.
+	 * 
+	 * @param userName name of user
+	 * @param home home directory of user
+	 * @throws IOException
+	 */
+	private void appendPlacement(String userName, Path home) throws IOException
+	{
+		if(this.placementFile == null)
+		{
+			return;
+		}
+		
+		if(this.journalEntries >= Math.max(1024, this.provisioned.size() + this.unavailable.size()))
+		{
+			storePlacement();
+			return;
+		}
+		
+		// properties escape keys and values, comment lines of properties are skipped
+		
+		Properties entry = new Properties();
+		entry.setProperty(userName, getHomeRoot(home).toString());
+		StringWriter writer = new StringWriter();
+		entry.store(writer, null);
+		StringBuilder lines = new StringBuilder();
+		for(String line : writer.toString().split("\\r?\\n"))
+		{
+			if((! line.isEmpty()) && (line.charAt(0) != '#'))
+			{
+				lines.append(line).append('\n');
+			}
+		}
+		
+		Files.createDirectories(this.placementFile.toAbsolutePath().getParent());
+		Files.write(journalFile(), lines.toString().getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.journalEntries++;
+	}
+	
+	private void storePlacement() throws IOException
+	{
+		if(this.placementFile == null)
+		{
+			return;
+		}
+		
+		Properties properties = new Properties();
+		for(Map.Entry<String,Path> entry : this.provisioned.entrySet())
+		{
+			properties.setProperty(entry.getKey(), getHomeRoot(entry.getValue()).toString());
+		}
+		for(Map.Entry<String,String> entry : this.unavailable.entrySet())
+		{
+			properties.setProperty(entry.getKey(), entry.getValue());
+		}
+		
+		Files.createDirectories(this.placementFile.toAbsolutePath().getParent());
+		Path tempFile = this.placementFile.resolveSibling(this.placementFile.getFileName().toString() + ".tmp");
+		try(OutputStream outputStream = Files.newOutputStream(tempFile))
+		{
+			properties.store(outputStream, "home root of sftp home directories");
+		}
+		try
+		{
+			Files.move(tempFile, this.placementFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) 
+		{
+			Files.move(tempFile, this.placementFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		// placement file contains all entries of journal, replaying journal after crash before delete is harmless
+		
+		Files.deleteIfExists(journalFile());
+		this.journalEntries = 0;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves home directories into configured layout of home directory index, while server is running. 
+ * 
+ * Home directories are moved by rename within their home root in batches, with a pause between two batches. 
+ * Each home directory is moved under write lock of relocation lock, so new sessions either resolve old or new location. 
+ * Home directories with file systems in use by sessions are skipped and can be moved by a later run.
+ */
+public class HomeDirectoryMigration
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(HomeDirectoryMigration.class);
+	
+	private final HomeDirectoryIndex homeDirectoryIndex;
+	private final SFTPHomeFileSystemPool fileSystemPool;
+	
+	private int moved = 0;
+	private int skipped = 0;
+	private int failed = 0;
+	
+	public HomeDirectoryMigration(HomeDirectoryIndex homeDirectoryIndex, SFTPHomeFileSystemPool fileSystemPool)
+	{
+		super();
+		this.homeDirectoryIndex = homeDirectoryIndex;
+		this.fileSystemPool = fileSystemPool;
+	}
+	
+	/**
+	 * 
+	 * @return names of users with home directory not in configured layout
+	 */
+	public List<String> getPending()
+	{
+		List<String> pending = new ArrayList<String>();
+		for(String userName : this.homeDirectoryIndex.getUserNames())
+		{
+			Path home = this.homeDirectoryIndex.getHome(userName);
+			if((home != null) && (! home.equals(this.homeDirectoryIndex.resolve(this.homeDirectoryIndex.getHomeRoot(home), userName))))
+			{
+				pending.add(userName);
+			}
+		}
+		return pending;
+	}
+	
+	/**
+	 * Moves all pending home directories.
+	 * 
+	 * @param batchSize number of home directories moved without pause
+	 * @param pause pause between two batches in milliseconds
+	 * @throws InterruptedException
+	 */
+	public void migrate(int batchSize, long pause) throws InterruptedException
+	{
+		int inBatch = 0;
+		for(String userName : getPending())
+		{
+			if(inBatch >= Math.max(1, batchSize))
+			{
+				inBatch = 0;
+				if(pause > 0L)
+				{
+					TimeUnit.MILLISECONDS.sleep(pause);
+				}
+			}
+			if(Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+			
+			inBatch++;
+			try
+			{
+				if(move(userName))
+				{
+					moved++;
+				}
+				else
+				{
+					skipped++;
+				}
+			}
+			catch (IOException | RuntimeException e) 
+			{
+				failed++;
+				LOGGER.warn("unable to move home directory of user " + userName, e);
+			}
+		}
+	}
+	
+	private boolean move(String userName) throws IOException
+	{
+		Lock lock = this.homeDirectoryIndex.getRelocationLock().writeLock();
+		lock.lock();
+		try
+		{
+			Path home = this.homeDirectoryIndex.getHome(userName);
+			Path target = this.homeDirectoryIndex.resolve(this.homeDirectoryIndex.getHomeRoot(home), userName);
+			if(home.equals(target))
+			{
+				return true;
+			}
+			
+			if(! this.fileSystemPool.evict(home))
+			{
+				return false;
+			}
+			
+			if(Files.exists(target))
+			{
+				throw new IOException("target " + target + " already exists");
+			}
+			
+			Files.createDirectories(target.getParent());
+			Files.move(home, target, StandardCopyOption.ATOMIC_MOVE);
+			this.homeDirectoryIndex.relocated(userName, target);
+			return true;
+		}
+		finally 
+		{
+			lock.unlock();
+		}
+	}
+	
+	public int getMoved()
+	{
+		return moved;
+	}
+	
+	public int getSkipped()
+	{
+		return skipped;
+	}
+	
+	public int getFailed()
+	{
+		return failed;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.jaas.config.JaasRealm;
+import org.apache.karaf.jaas.modules.BackingEngine;
+import org.apache.karaf.jaas.modules.BackingEngineService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.FileSystemAccess;
+
+/**
+ * Creates home directories for all users of jaas realms with home directory role. 
+ * Realms without backing engine (e.g. ldap) can not list users and are skipped. An interrupted run stops at next user.
+ */
+public class HomeDirectoryProvisioner implements Runnable
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(HomeDirectoryProvisioner.class);
+	
+	private final List<JaasRealm> jaasRealms;
+	private final BackingEngineService backingEngineService;
+	private final RolePolicy rolePolicy;
+	private final List<HomeDirectoryIndex> homeDirectoryIndexList;
+	
+	public HomeDirectoryProvisioner(List<JaasRealm> jaasRealms, BackingEngineService backingEngineService, RolePolicy rolePolicy, List<HomeDirectoryIndex> homeDirectoryIndexList)
+	{
+		super();
+		this.jaasRealms = jaasRealms;
+		this.backingEngineService = backingEngineService;
+		this.rolePolicy = rolePolicy;
+		this.homeDirectoryIndexList = homeDirectoryIndexList;
+	}
+
+	@Override
+	public void run()
+	{
+		Set<String> userNames = new HashSet<String>();
+		
+		for(JaasRealm jaasRealm : this.jaasRealms)
+		{
+			for(AppConfigurationEntry entry : jaasRealm.getEntries())
+			{
+				BackingEngine backingEngine = this.backingEngineService.get(entry);
+				if(backingEngine == null)
+				{
+					continue;
+				}
+				
+				try
+				{
+					for(UserPrincipal userPrincipal : backingEngine.listUsers())
+					{
+						if(Thread.currentThread().isInterrupted())
+						{
+							return;
+						}
+						if(userNames.contains(userPrincipal.getName()))
+						{
+							continue;
+						}
+						
+						Set<Principal> principals = new HashSet<Principal>(backingEngine.listRoles(userPrincipal));
+						principals.add(userPrincipal);
+						
+						Subject subject = new Subject(true, principals, Collections.emptySet(), Collections.emptySet());
+						if(this.rolePolicy.resolve(subject).getFileSystemAccess() == FileSystemAccess.HOME)
+						{
+							userNames.add(userPrincipal.getName());
+						}
+					}
+				}
+				catch (RuntimeException e) 
+				{
+					LOGGER.warn("unable to list users of realm " + jaasRealm.getName(), e);
+				}
+			}
+		}
+		
+		for(HomeDirectoryIndex homeDirectoryIndex : this.homeDirectoryIndexList)
+		{
+			for(String userName : userNames)
+			{
+				if(Thread.currentThread().isInterrupted())
+				{
+					return;
+				}
+				if(! homeDirectoryIndex.isSupportedUserName(userName))
+				{
+					LOGGER.warn("user name " + userName + " is reserved for fan-out directories of hashed layout, home directory is not created");
+					continue;
+				}
+				try
+				{
+					homeDirectoryIndex.provision(userName);
+				}
+				catch (IOException e) 
+				{
+					LOGGER.warn("unable to create home directory for user " + userName, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk usage of one home directory, maintained incrementally by bytes written, truncated and deleted.
+ */
+public class HomeUsage
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(HomeUsage.class);
+	
+	private final String userName;
+	private final AtomicLong used;
+	private final AtomicLong journal = new AtomicLong();
+	
+	private volatile long softLimit = 0L;
+	private volatile long hardLimit = 0L;
+	private volatile boolean softLimitExceeded = false;
+	
+	// guarded by index
+	long storedUsed = -1L;
+	
+	public HomeUsage(String userName, long used)
+	{
+		super();
+		this.userName = userName;
+		this.used = new AtomicLong(used);
+	}
+	
+	public String getUserName()
+	{
+		return userName;
+	}
+	
+	public long getUsed()
+	{
+		return used.get();
+	}
+	
+	public long getSoftLimit()
+	{
+		return softLimit;
+	}
+	
+	public long getHardLimit()
+	{
+		return hardLimit;
+	}
+	
+	public void setLimits(long softLimit, long hardLimit)
+	{
+		this.softLimit = Math.max(0L, softLimit);
+		this.hardLimit = Math.max(0L, hardLimit);
+		checkSoftLimit(this.used.get());
+	}
+	
+	public boolean isHardLimitReached()
+	{
+		long hardLimit = this.hardLimit;
+		return (hardLimit > 0L) && (this.used.get() >= hardLimit);
+	}
+	
+	/**
+	 * Adds bytes to usage.
+	 * 
+	 * @param bytes growth of home directory
+	 * @throws QuotaExceededException if hard limit would be exceeded, usage is not changed in this case
+	 */
+	public void reserve(long bytes) throws QuotaExceededException
+	{
+		if(bytes <= 0L)
+		{
+			return;
+		}
+		
+		long next;
+		while(true)
+		{
+			long hardLimit = this.hardLimit;
+			long current = this.used.get();
+			next = current + bytes;
+			if((hardLimit > 0L) && (next > hardLimit))
+			{
+				throw new QuotaExceededException("disk quota exceeded");
+			}
+			if(this.used.compareAndSet(current, next))
+			{
+				break;
+			}
+		}
+		this.journal.addAndGet(bytes);
+		checkSoftLimit(next);
+	}
+	
+	/**
+	 * Removes bytes from usage.
+	 * 
+	 * @param bytes shrinkage of home directory
+	 */
+	public void release(long bytes)
+	{
+		if(bytes <= 0L)
+		{
+			return;
+		}
+		
+		long next = this.used.addAndGet(- bytes);
+		this.journal.addAndGet(- bytes);
+		checkSoftLimit(next);
+	}
+	
+	/**
+	 * 
+	 * @return sum of all changes, used to detect changes while home directory is measured
+	 */
+	long getJournal()
+	{
+		return this.journal.get();
+	}
+	
+	/**
+	 * Replaces usage by measured size. Changes recorded after measurement started are preserved.
+	 * 
+	 * @param measured measured size of home directory
+	 * @param journalBefore journal before measurement started
+	 * @return drift corrected
+	 */
+	long reconcile(long measured, long journalBefore)
+	{
+		long current;
+		long next;
+		do
+		{
+			current = this.used.get();
+			next = Math.max(0L, measured + (this.journal.get() - journalBefore));
+		}
+		while(! this.used.compareAndSet(current, next));
+		
+		checkSoftLimit(next);
+		return next - current;
+	}
+	
+	private void checkSoftLimit(long used)
+	{
+		long softLimit = this.softLimit;
+		boolean exceeded = (softLimit > 0L) && (used > softLimit);
+		if(exceeded == this.softLimitExceeded)
+		{
+			return;
+		}
+		this.softLimitExceeded = exceeded;
+		if(exceeded)
+		{
+			LOGGER.warn("home directory of " + userName + " exceeds soft quota: " + used + " of " + softLimit + " bytes");
+		}
+	}
+	
+	public boolean isSoftLimitExceeded()
+	{
+		return softLimitExceeded;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.io.BuiltinIoServiceFactoryFactories;
+import org.apache.sshd.common.io.IoServiceFactoryFactory;
+import org.apache.sshd.server.SshServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable transport tuning of ssh server. 
+ * 
+ * Acceptor settings (property iobackend selects nio2, mina or netty, ioworkers and iobacklog) are used when ssh server starts, 
+ * they are applied to ssh servers of karaf before karaf starts them. A running ssh server has to be restarted to apply changed 
+ * acceptor settings, restarts are opt-in by property iorestart. 
+ * 
+ * Socket settings (socketrcvbuf, socketsndbuf, tcpnodelay) apply to accepted connections, channel settings (windowsize, packetsize) 
+ * apply to opened channels without restart. 
+ * 
+ * Empty or 0 values keep the setting of karaf.
+ */
+public class IoTuning
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(IoTuning.class);
+	
+	private static final String[] PROPERTY_KEYS = new String[]
+	{
+		FactoryManager.SOCKET_RCVBUF, FactoryManager.SOCKET_SNDBUF, FactoryManager.TCP_NODELAY, 
+		FactoryManager.WINDOW_SIZE, FactoryManager.MAX_PACKET_SIZE
+	};
+	
+	private final BuiltinIoServiceFactoryFactories backend;
+	private final int workers;
+	private final int backlog;
+	private final Map<String,Object> serverProperties;
+	
+	private IoTuning(BuiltinIoServiceFactoryFactories backend, int workers, int backlog, Map<String,Object> serverProperties)
+	{
+		super();
+		this.backend = backend;
+		this.workers = workers;
+		this.backlog = backlog;
+		this.serverProperties = serverProperties;
+	}
+	
+	public static IoTuning fromProperties(Map<String, ?> properties)
+	{
+		BuiltinIoServiceFactoryFactories backend = null;
+		if((properties.get("iobackend") instanceof String) && (! ((String)properties.get("iobackend")).trim().isEmpty()))
+		{
+			backend = BuiltinIoServiceFactoryFactories.fromFactoryName(((String)properties.get("iobackend")).trim());
+			if(backend == null)
+			{
+				LOGGER.warn("unknown io backend " + properties.get("iobackend") + ", keep backend of karaf");
+			}
+			else if(! backend.isSupported())
+			{
+				LOGGER.warn("io backend " + backend.getName() + " is not installed, keep backend of karaf");
+				backend = null;
+			}
+		}
+		
+		Map<String,Object> serverProperties = new HashMap<String,Object>();
+		long socketReceiveBuffer = SFTPHomeSetup.getPropertyLong(properties, "socketrcvbuf", 0L);
+		if(socketReceiveBuffer > 0L)
+		{
+			serverProperties.put(FactoryManager.SOCKET_RCVBUF, (int)Math.min(Integer.MAX_VALUE, socketReceiveBuffer));
+		}
+		long socketSendBuffer = SFTPHomeSetup.getPropertyLong(properties, "socketsndbuf", 0L);
+		if(socketSendBuffer > 0L)
+		{
+			serverProperties.put(FactoryManager.SOCKET_SNDBUF, (int)Math.min(Integer.MAX_VALUE, socketSendBuffer));
+		}
+		if(Boolean.parseBoolean(String.valueOf(properties.get("tcpnodelay"))))
+		{
+			serverProperties.put(FactoryManager.TCP_NODELAY, Boolean.TRUE);
+		}
+		long windowSize = SFTPHomeSetup.getPropertyLong(properties, "windowsize", 0L);
+		if(windowSize > 0L)
+		{
+			serverProperties.put(FactoryManager.WINDOW_SIZE, windowSize);
+		}
+		long packetSize = SFTPHomeSetup.getPropertyLong(properties, "packetsize", 0L);
+		if(packetSize > 0L)
+		{
+			serverProperties.put(FactoryManager.MAX_PACKET_SIZE, packetSize);
+		}
+		
+		return new IoTuning
+		(
+			backend, 
+			(int)Math.max(0L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "ioworkers", 0L))), 
+			(int)Math.max(0L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "iobacklog", 0L))), 
+			serverProperties
+		);
+	}
+	
+	/**
+	 * Compares defined acceptor settings with settings of ssh server. Undefined settings keep any value of ssh server.
+	 * 
+	 * @param sshServer ssh server to check
+	 * @return true, if ssh server uses all defined acceptor settings
+	 */
+	public boolean isAcceptorApplied(SshServer sshServer)
+	{
+		if((backend != null) && (backend != backend(sshServer)))
+		{
+			return false;
+		}
+		if((workers > 0) && (workers != SFTPHomeSetup.getPropertyLong(sshServer.getProperties(), FactoryManager.NIO_WORKERS, 0L)))
+		{
+			return false;
+		}
+		if((backlog > 0) && (backlog != SFTPHomeSetup.getPropertyLong(sshServer.getProperties(), FactoryManager.SOCKET_BACKLOG, 0L)))
+		{
+			return false;
+		}
+		return true;
+	}
+	
+	private static BuiltinIoServiceFactoryFactories backend(SshServer sshServer)
+	{
+		IoServiceFactoryFactory ioServiceFactoryFactory = sshServer.getIoServiceFactoryFactory();
+		BuiltinIoServiceFactoryFactories backend = ioServiceFactoryFactory == null ? null : BuiltinIoServiceFactoryFactories.fromFactoryClass(ioServiceFactoryFactory.getClass());
+		if((backend != null) || (! sshServer.isStarted()))
+		{
+			return backend;
+		}
+		
+		// default factory factory of karaf delegates to backend found at start, e.g. Nio2ServiceFactoryFactory creates Nio2ServiceFactory
+		
+		String ioServiceFactoryClassName = sshServer.getIoServiceFactory().getClass().getName() + "Factory";
+		for(BuiltinIoServiceFactoryFactories builtin : BuiltinIoServiceFactoryFactories.VALUES)
+		{
+			if(builtin.getFactoryClassName().equals(ioServiceFactoryClassName))
+			{
+				return builtin;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Applies acceptor settings to ssh server not started yet.
+	 * 
+	 * @param sshServer ssh server to tune
+	 */
+	public void applyAcceptor(SshServer sshServer)
+	{
+		if(sshServer.isStarted())
+		{
+			throw new IllegalStateException("ssh server already started");
+		}
+		if(backend != null)
+		{
+			sshServer.setIoServiceFactoryFactory(backend.create());
+		}
+		if(workers > 0)
+		{
+			sshServer.getProperties().put(FactoryManager.NIO_WORKERS, workers);
+		}
+		if(backlog > 0)
+		{
+			sshServer.getProperties().put(FactoryManager.SOCKET_BACKLOG, backlog);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param sshServer ssh server to tune
+	 * @return socket and channel settings of ssh server before tuning, to restore by {@link #restoreProperties(SshServer, Map)}
+	 */
+	public static Map<String,Object> captureProperties(SshServer sshServer)
+	{
+		Map<String,Object> originalProperties = new HashMap<String,Object>();
+		for(String key : PROPERTY_KEYS)
+		{
+			originalProperties.put(key, sshServer.getProperties().get(key));
+		}
+		return originalProperties;
+	}
+	
+	/**
+	 * Applies socket and channel settings, undefined settings are restored to original values.
+	 * 
+	 * @param sshServer ssh server to tune
+	 * @param originalProperties settings of ssh server before tuning
+	 */
+	public void applyProperties(SshServer sshServer, Map<String,Object> originalProperties)
+	{
+		for(String key : PROPERTY_KEYS)
+		{
+			Object value = serverProperties.containsKey(key) ? serverProperties.get(key) : originalProperties.get(key);
+			if(Objects.equals(value, sshServer.getProperties().get(key)))
+			{
+				continue;
+			}
+			if(value == null)
+			{
+				sshServer.getProperties().remove(key);
+			}
+			else
+			{
+				sshServer.getProperties().put(key, value);
+			}
+		}
+	}
+	
+	public static void restoreProperties(SshServer sshServer, Map<String,Object> originalProperties)
+	{
+		fromProperties(new HashMap<String,Object>()).applyProperties(sshServer, originalProperties);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "backend=" + (backend == null ? "default" : backend.getName()) + ", workers=" + workers + ", backlog=" + backlog + ", " + serverProperties;
+	}
+}
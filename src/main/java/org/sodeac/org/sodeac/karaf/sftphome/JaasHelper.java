@@ -14,6 +14,9 @@
  */
 package org.sodeac.org.sodeac.karaf.sftphome;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.security.Permission;
@@ -22,7 +25,12 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.security.auth.Subject;
 import javax.security.auth.SubjectDomainCombiner;
@@ -120,29 +128,53 @@ public class JaasHelper {
 
     public static class OsgiSubjectDomainCombiner extends SubjectDomainCombiner {
 
+        private static final ReferenceQueue<Subject> STALE_SUBJECTS = new ReferenceQueue<>();
+        private static final Map<SubjectKey, SubjectDomains> SUBJECT_DOMAINS = new ConcurrentHashMap<>();
+
         private final Subject subject;
+        private final SubjectDomains subjectDomains;
 
         public OsgiSubjectDomainCombiner(Subject subject) {
             super(subject);
             this.subject = subject;
+            this.subjectDomains = subjectDomains(subject);
         }
 
         public ProtectionDomain[] combine(ProtectionDomain[] currentDomains,
                                           ProtectionDomain[] assignedDomains) {
             int cLen = (currentDomains == null ? 0 : currentDomains.length);
             int aLen = (assignedDomains == null ? 0 : assignedDomains.length);
+            if (cLen + aLen == 0) {
+                return null;
+            }
+            Principal[] principals = subjectDomains.principals(subject);
+            int hash = Combination.hash(currentDomains, cLen, assignedDomains, aLen);
+            ProtectionDomain[] cached = subjectDomains.combined(hash, principals, currentDomains, cLen, assignedDomains, aLen);
+            if (cached != null) {
+                return cached;
+            }
             ProtectionDomain[] newDomains = new ProtectionDomain[cLen + aLen];
-            Principal[] principals = subject.getPrincipals().toArray(new Principal[0]);
             for (int i = 0; i < cLen; i++) {
-                newDomains[i] = new DelegatingProtectionDomain(currentDomains[i], principals);
+                newDomains[i] = subjectDomains.delegate(currentDomains[i], principals);
             }
             for (int i = 0; i < aLen; i++) {
                 newDomains[cLen + i] = assignedDomains[i];
             }
             newDomains = optimize(newDomains);
+            if (newDomains != null) {
+                subjectDomains.combined(new Combination(hash, principals, currentDomains, cLen, assignedDomains, aLen, newDomains));
+            }
             return newDomains;
         }
 
+        private static SubjectDomains subjectDomains(Subject subject) {
+            Reference<? extends Subject> stale;
+            while ((stale = STALE_SUBJECTS.poll()) != null) {
+                SUBJECT_DOMAINS.remove(stale);
+            }
+            return SUBJECT_DOMAINS.computeIfAbsent(new SubjectKey(subject, STALE_SUBJECTS), k -> new SubjectDomains());
+        }
+
         private ProtectionDomain[] optimize(ProtectionDomain[] domains) {
             if (domains == null || domains.length == 0) {
                 return null;
@@ -170,13 +202,176 @@ public class JaasHelper {
         }
     }
 
+    /**
+     * Domains combined for one subject. Principals are snapshotted, 
+     * the snapshot is renewed if principals of a writable subject change.
+     * Combinations are cached in a direct mapped table, each entry is bound to the snapshot it was combined with.
+     */
+    private static class SubjectDomains {
+
+        private static final int MAX_CACHED_COMBINATIONS = 256;
+
+        private volatile Principal[] principals;
+        private final Map<ProtectionDomain, DelegatingProtectionDomain> delegates = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final AtomicReferenceArray<Combination> combined = new AtomicReferenceArray<>(MAX_CACHED_COMBINATIONS);
+
+        private Principal[] principals(Subject subject) {
+            Principal[] snapshot = this.principals;
+            if (snapshot != null && (subject.isReadOnly() || matches(snapshot, subject.getPrincipals()))) {
+                return snapshot;
+            }
+            synchronized (this) {
+                snapshot = subject.getPrincipals().toArray(new Principal[0]);
+                // cached combinations of previous snapshot no longer match
+                delegates.clear();
+                this.principals = snapshot;
+                return snapshot;
+            }
+        }
+
+        private static boolean matches(Principal[] snapshot, Set<Principal> principals) {
+            if (snapshot.length != principals.size()) {
+                return false;
+            }
+            int i = 0;
+            for (Principal principal : principals) {
+                if (i >= snapshot.length || snapshot[i++] != principal) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private ProtectionDomain[] combined(int hash, Principal[] principals, ProtectionDomain[] currentDomains, int cLen,
+                                           ProtectionDomain[] assignedDomains, int aLen) {
+            Combination combination = combined.get(hash & (MAX_CACHED_COMBINATIONS - 1));
+            if (combination == null || combination.hash != hash || combination.principals != principals
+                    || !combination.matches(currentDomains, cLen, assignedDomains, aLen)) {
+                return null;
+            }
+            return combination.result;
+        }
+
+        private void combined(Combination combination) {
+            // combination of an outdated snapshot would never match again
+            if (combination.principals == this.principals) {
+                combined.set(combination.hash & (MAX_CACHED_COMBINATIONS - 1), combination);
+            }
+        }
+
+        private ProtectionDomain delegate(ProtectionDomain domain, Principal[] principals) {
+            if (domain == null) {
+                return null;
+            }
+            if (domain instanceof DelegatingProtectionDomain && ((DelegatingProtectionDomain) domain).principals == principals) {
+                // already combined for this subject
+                return domain;
+            }
+            DelegatingProtectionDomain delegating = delegates.get(domain);
+            if (delegating == null || delegating.principals != principals) {
+                delegating = new DelegatingProtectionDomain(domain, principals);
+                delegates.put(domain, delegating);
+            }
+            return delegating;
+        }
+    }
+
+    private static class SubjectKey extends WeakReference<Subject> {
+
+        private final int hashCode;
+
+        SubjectKey(Subject subject, ReferenceQueue<Subject> queue) {
+            super(subject, queue);
+            this.hashCode = System.identityHashCode(subject);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SubjectKey)) {
+                return false;
+            }
+            Subject subject = get();
+            return subject != null && subject == ((SubjectKey) obj).get();
+        }
+    }
+
+    /**
+     * Identity based combination of domains for one principals snapshot.
+     */
+    private static class Combination {
+
+        private final int hash;
+        private final Principal[] principals;
+        private final ProtectionDomain[] currentDomains;
+        private final ProtectionDomain[] domains;
+        private final int currentLength;
+        private final ProtectionDomain[] result;
+
+        Combination(int hash, Principal[] principals, ProtectionDomain[] currentDomains, int cLen,
+                    ProtectionDomain[] assignedDomains, int aLen, ProtectionDomain[] result) {
+            this.hash = hash;
+            this.principals = principals;
+            this.currentDomains = currentDomains;
+            this.domains = new ProtectionDomain[cLen + aLen];
+            this.currentLength = cLen;
+            for (int i = 0; i < cLen; i++) {
+                domains[i] = currentDomains[i];
+            }
+            for (int i = 0; i < aLen; i++) {
+                domains[cLen + i] = assignedDomains[i];
+            }
+            this.result = result;
+        }
+
+        static int hash(ProtectionDomain[] currentDomains, int cLen, ProtectionDomain[] assignedDomains, int aLen) {
+            int hash = cLen;
+            for (int i = 0; i < cLen; i++) {
+                hash = 31 * hash + System.identityHashCode(currentDomains[i]);
+            }
+            for (int i = 0; i < aLen; i++) {
+                hash = 31 * hash + System.identityHashCode(assignedDomains[i]);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        boolean matches(ProtectionDomain[] currentDomains, int cLen, ProtectionDomain[] assignedDomains, int aLen) {
+            if (currentLength != cLen || domains.length != cLen + aLen) {
+                return false;
+            }
+            // domains of an access control context are never modified, same array needs no further comparison
+            if (currentDomains != this.currentDomains) {
+                for (int i = 0; i < cLen; i++) {
+                    if (domains[i] != currentDomains[i]) {
+                        return false;
+                    }
+                }
+            }
+            for (int i = 0; i < aLen; i++) {
+                if (domains[cLen + i] != assignedDomains[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public static class DelegatingProtectionDomain extends ProtectionDomain {
 
         private final ProtectionDomain delegate;
+        private final Principal[] principals;
 
         DelegatingProtectionDomain(ProtectionDomain delegate, Principal[] principals) {
             super(delegate.getCodeSource(), delegate.getPermissions(), delegate.getClassLoader(), principals);
             this.delegate = delegate;
+            this.principals = principals;
         }
 
         @Override
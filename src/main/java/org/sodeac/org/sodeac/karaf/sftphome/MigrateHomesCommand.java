@@ -0,0 +1,63 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.List;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+@Command(scope = "sftphome", name = "migrate-homes", description = "Moves existing home directories into configured home layout, while server is running")
+@Service
+public class MigrateHomesCommand implements Action
+{
+	@Reference
+	private SFTPHomeSetup setup;
+	
+	@Option(name = "-b", aliases = "--batch", description = "number of home directories moved without pause (default 100)", required = false, multiValued = false)
+	private int batch = 100;
+	
+	@Option(name = "-p", aliases = "--pause", description = "pause between two batches in milliseconds (default 1000)", required = false, multiValued = false)
+	private long pause = 1000L;
+	
+	@Option(name = "-n", aliases = "--dry-run", description = "show number of home directories to move only", required = false, multiValued = false)
+	private boolean dryRun = false;
+
+	@Override
+	public Object execute() throws Exception
+	{
+		for(SFTPHomeFileSystemFactory fileSystemFactory : setup.getFileSystemFactories())
+		{
+			HomeDirectoryIndex homeDirectoryIndex = fileSystemFactory.getHomeDirectoryIndex();
+			HomeDirectoryMigration migration = fileSystemFactory.createHomeDirectoryMigration();
+			List<String> pending = migration.getPending();
+			
+			System.out.println(homeDirectoryIndex.getHomeRoots() + " layout " + homeDirectoryIndex.getLayout().name().toLowerCase() + ": " + pending.size() + " home directories to move");
+			if(dryRun || pending.isEmpty())
+			{
+				continue;
+			}
+			
+			migration.migrate(batch, pause);
+			System.out.println("moved: " + migration.getMoved() + ", skipped (in use): " + migration.getSkipped() + ", failed: " + migration.getFailed());
+		}
+		return null;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram of one operation. Recording is lock free, concurrent updates are spread over striped counters.
+ * 
+ * The histogram has logarithmic buckets. Bucket n counts latencies below 2^n microseconds, the last bucket counts all greater latencies.
+ */
+public class OperationMetrics
+{
+	public static final int BUCKETS = 28;
+	
+	private final LongAdder count = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder[] histogram = new LongAdder[BUCKETS];
+	
+	public OperationMetrics()
+	{
+		super();
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			this.histogram[i] = new LongAdder();
+		}
+	}
+	
+	public void record(long nanos, long bytes, boolean failed)
+	{
+		this.count.increment();
+		if(failed)
+		{
+			this.failed.increment();
+		}
+		this.nanos.add(nanos);
+		if(bytes > 0L)
+		{
+			this.bytes.add(bytes);
+		}
+		this.histogram[bucket(nanos)].increment();
+	}
+	
+	private static int bucket(long nanos)
+	{
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0L, micros)));
+	}
+	
+	public long getCount()
+	{
+		return count.sum();
+	}
+	
+	public long getFailed()
+	{
+		return failed.sum();
+	}
+	
+	public long getBytes()
+	{
+		return bytes.sum();
+	}
+	
+	public long getAverageMicros()
+	{
+		long count = this.count.sum();
+		return count == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros(this.nanos.sum() / count);
+	}
+	
+	/**
+	 * 
+	 * @return number of latencies per bucket
+	 */
+	public long[] getHistogram()
+	{
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = this.histogram[i].sum();
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Returns upper bound of bucket containing percentile.
+	 * 
+	 * @param percentile percentile between 0 and 100
+	 * @return upper bound in microseconds, or -1 for last bucket
+	 */
+	public long getPercentileMicros(double percentile)
+	{
+		long[] snapshot = getHistogram();
+		long total = 0L;
+		for(long value : snapshot)
+		{
+			total += value;
+		}
+		if(total == 0L)
+		{
+			return 0L;
+		}
+		
+		long threshold = (long)Math.ceil(total * percentile / 100.0);
+		long sum = 0L;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			sum += snapshot[i];
+			if(sum >= threshold)
+			{
+				return i == (BUCKETS - 1) ? -1L : (1L << i);
+			}
+		}
+		return -1L;
+	}
+	
+	public boolean isEmpty()
+	{
+		return this.count.sum() == 0L;
+	}
+	
+	public void reset()
+	{
+		this.count.reset();
+		this.failed.reset();
+		this.nanos.reset();
+		this.bytes.reset();
+		for(LongAdder bucket : this.histogram)
+		{
+			bucket.reset();
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "count=" + getCount() + " failed=" + getFailed() + " bytes=" + getBytes() + " avg=" + getAverageMicros() + "us p50" 
+				+ formatBound(getPercentileMicros(50.0)) + " p99" + formatBound(getPercentileMicros(99.0));
+	}
+	
+	/**
+	 * 
+	 * @param micros upper bound returned by {@link #getPercentileMicros(double)}
+	 * @return formatted bound
+	 */
+	public static String formatBound(long micros)
+	{
+		return micros < 0L ? ">" + (1L << (BUCKETS - 2)) + "us" : "<=" + micros + "us";
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool executing sftp write requests in parallel. Clients keep many write requests in flight, by default sshd 
+ * processes them one by one in order of arrival.
+ * 
+ * Writes of one subsystem are limited by count of pending writes. Subsystems keep order of requests, 
+ * that overlap with a pending write or do not write at all, by waiting for pending writes.
+ */
+public class ParallelWriter
+{
+	private volatile ThreadPoolExecutor executor = null;
+	private volatile int maxPending = 16;
+	private volatile int minSize = 16384;
+	
+	public ParallelWriter(Map<String, ?> properties)
+	{
+		super();
+		this.refresh(properties);
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		int threads = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "sftpparallelwritethreads", 8L));
+		this.maxPending = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "sftpparallelwrites", 16L));
+		this.minSize = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "sftpparallelwriteminsize", 16384L));
+		
+		if((threads == 0) || (this.maxPending == 0))
+		{
+			if(this.executor != null)
+			{
+				// pending writes complete on old pool
+				this.executor.shutdown();
+				this.executor = null;
+			}
+			return;
+		}
+		
+		if(this.executor == null)
+		{
+			AtomicInteger counter = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> 
+			{
+				Thread thread = new Thread(r, "SftpWrite-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+			this.executor = executor;
+		}
+		else if(threads > this.executor.getMaximumPoolSize())
+		{
+			this.executor.setMaximumPoolSize(threads);
+			this.executor.setCorePoolSize(threads);
+		}
+		else
+		{
+			this.executor.setCorePoolSize(threads);
+			this.executor.setMaximumPoolSize(threads);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param length length of write request
+	 * @return true, if write request should be executed in parallel
+	 */
+	public boolean accepts(int length)
+	{
+		return (this.executor != null) && (length >= this.minSize);
+	}
+	
+	public int getMaxPending()
+	{
+		return maxPending;
+	}
+	
+	/**
+	 * 
+	 * @param task write task
+	 * @return future of task or null, if task is rejected
+	 */
+	public Future<?> submit(Runnable task)
+	{
+		ThreadPoolExecutor executor = this.executor;
+		if(executor == null)
+		{
+			return null;
+		}
+		try
+		{
+			return executor.submit(task);
+		}
+		catch (RejectedExecutionException e) 
+		{
+			return null;
+		}
+	}
+	
+	public synchronized void dispose()
+	{
+		if(this.executor != null)
+		{
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File channel with own position, that reads and writes by positional I/O only. Heap buffers are transferred via pooled direct buffers, 
+ * so the JDK does not need to allocate temporary direct buffers for each thread. If all pooled buffers are in use, heap buffers are 
+ * passed to underlying channel. 
+ * 
+ * Read-only channels of large files can optionally read through memory mapped windows, as long as the file is not throttled. 
+ * Mapped reads are limited to current file size. If the file is truncated concurrently while mapped, the access fault is caught 
+ * and the channel continues with positional reads.
+ */
+public class PositionalFileChannel extends DelegatingFileChannel
+{
+	private final DirectBufferPool bufferPool;
+	private final long mappedWindowSize;
+	private final long mappedSize;
+	private final ThrottledFileChannel throttledChannel;
+	
+	private final Object positionLock = new Object();
+	private volatile long position = 0L;
+	
+	private MappedByteBuffer mappedWindow = null;
+	private long mappedWindowStart = -1L;
+	private volatile boolean mappingFailed = false;
+	
+	/**
+	 * 
+	 * @param delegate underlying file channel
+	 * @param bufferPool pool of direct buffers
+	 * @param mappedReadThreshold minimal file size to read through memory mapped windows or 0, if channel is writable or mapping is disabled 
+	 * @param mappedWindowSize size of memory mapped window
+	 * @throws IOException
+	 */
+	public PositionalFileChannel(FileChannel delegate, DirectBufferPool bufferPool, long mappedReadThreshold, long mappedWindowSize) throws IOException
+	{
+		super(delegate);
+		this.bufferPool = bufferPool;
+		this.mappedWindowSize = Math.min(mappedWindowSize, Integer.MAX_VALUE);
+		
+		long size = ((mappedReadThreshold > 0L) && (mappedWindowSize > 0L)) ? delegate.size() : 0L;
+		this.mappedSize = size >= mappedReadThreshold ? size : 0L;
+		this.throttledChannel = DelegatingFileChannel.unwrap(delegate, ThrottledFileChannel.class);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException
+	{
+		synchronized (this.positionLock)
+		{
+			int read = read(dst, this.position);
+			if(read > 0)
+			{
+				this.position += read;
+			}
+			return read;
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		long total = 0L;
+		for(int i = offset; i < offset + length; i++)
+		{
+			int read = read(dsts[i]);
+			if(read < 0)
+			{
+				return total == 0L ? -1L : total;
+			}
+			total += read;
+			if(dsts[i].hasRemaining())
+			{
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		synchronized (this.positionLock)
+		{
+			int written = write(src, this.position);
+			this.position += written;
+			return written;
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		long total = 0L;
+		for(int i = offset; i < offset + length; i++)
+		{
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+
+	@Override
+	public long position() throws IOException
+	{
+		return this.position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException
+	{
+		if(newPosition < 0L)
+		{
+			throw new IllegalArgumentException("negative position " + newPosition);
+		}
+		synchronized (this.positionLock)
+		{
+			this.position = newPosition;
+		}
+		return this;
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		synchronized (this.positionLock)
+		{
+			delegate.truncate(size);
+			if(this.position > size)
+			{
+				this.position = size;
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException
+	{
+		if((! dst.hasRemaining()) || dst.isDirect())
+		{
+			return delegate.read(dst, position);
+		}
+		
+		// mapped reads bypass throttled channel
+		
+		if((this.mappedSize > 0L) && (position < this.mappedSize) && (! this.mappingFailed) && ((this.throttledChannel == null) || (! this.throttledChannel.isThrottled())))
+		{
+			return readMapped(dst, position);
+		}
+		
+		ByteBuffer buffer = this.bufferPool.tryAcquire();
+		if(buffer == null)
+		{
+			return delegate.read(dst, position);
+		}
+		try
+		{
+			int total = 0;
+			while(dst.hasRemaining())
+			{
+				buffer.clear();
+				if(dst.remaining() < buffer.capacity())
+				{
+					buffer.limit(dst.remaining());
+				}
+				int read = delegate.read(buffer, position + total);
+				if(read < 0)
+				{
+					return total == 0 ? -1 : total;
+				}
+				buffer.flip();
+				dst.put(buffer);
+				total += read;
+				if(read == 0)
+				{
+					break;
+				}
+			}
+			return total;
+		}
+		finally 
+		{
+			this.bufferPool.release(buffer);
+		}
+	}
+	
+	private synchronized int readMapped(ByteBuffer dst, long position) throws IOException
+	{
+		// pages beyond end of truncated file must not be touched
+		
+		long mappedLimit = Math.min(this.mappedSize, delegate.size());
+		int total = 0;
+		try
+		{
+			while(dst.hasRemaining() && ((position + total) < mappedLimit))
+			{
+				long current = position + total;
+				if((this.mappedWindow == null) || (current < this.mappedWindowStart) || (current >= (this.mappedWindowStart + this.mappedWindow.capacity())))
+				{
+					this.mappedWindowStart = current;
+					this.mappedWindow = delegate.map(MapMode.READ_ONLY, current, Math.min(this.mappedWindowSize, this.mappedSize - current));
+				}
+				
+				ByteBuffer window = this.mappedWindow.duplicate();
+				window.position((int)(current - this.mappedWindowStart));
+				if(window.remaining() > dst.remaining())
+				{
+					window.limit(window.position() + dst.remaining());
+				}
+				if(window.remaining() > (mappedLimit - current))
+				{
+					window.limit(window.position() + (int)(mappedLimit - current));
+				}
+				int length = window.remaining();
+				dst.put(window);
+				total += length;
+			}
+		}
+		catch (InternalError e) 
+		{
+			// file truncated by other channel while mapped (SIGBUS), positions of dst and total are unchanged
+			
+			this.mappedWindow = null;
+			this.mappingFailed = true;
+		}
+		
+		if(dst.hasRemaining())
+		{
+			// file grows after open or is truncated
+			int read = delegate.read(dst, position + total);
+			if(read > 0)
+			{
+				total += read;
+			}
+			else if(total == 0)
+			{
+				return read;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		if((! src.hasRemaining()) || src.isDirect())
+		{
+			return delegate.write(src, position);
+		}
+		
+		ByteBuffer buffer = this.bufferPool.tryAcquire();
+		if(buffer == null)
+		{
+			return delegate.write(src, position);
+		}
+		try
+		{
+			int total = 0;
+			while(src.hasRemaining())
+			{
+				buffer.clear();
+				int chunk = Math.min(src.remaining(), buffer.capacity());
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + chunk);
+				buffer.put(slice);
+				buffer.flip();
+				long chunkPosition = position + total;
+				while(buffer.hasRemaining())
+				{
+					delegate.write(buffer, chunkPosition + buffer.position());
+				}
+				src.position(src.position() + chunk);
+				total += chunk;
+			}
+			return total;
+		}
+		finally 
+		{
+			this.bufferPool.release(buffer);
+		}
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		synchronized (this)
+		{
+			this.mappedWindow = null;
+		}
+		super.implCloseChannel();
+	}
+}
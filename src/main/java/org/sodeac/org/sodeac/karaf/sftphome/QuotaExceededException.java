@@ -0,0 +1,33 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.subsystem.sftp.SftpException;
+
+/**
+ * Thrown if hard quota of home directory would be exceeded. Reported to sftp clients as SSH_FX_QUOTA_EXCEEDED.
+ */
+public class QuotaExceededException extends SftpException
+{
+	private static final long serialVersionUID = 6482031527729156409L;
+
+	public QuotaExceededException(String message)
+	{
+		super(SftpConstants.SSH_FX_QUOTA_EXCEEDED, message);
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * File channel charging growth and shrinkage of file to usage of home directory. 
+ * 
+ * Growth is reserved before write, so writes exceeding hard quota are rejected without touching the file. 
+ * The size of file is shared by all quota channels opened on same file by {@link OpenFiles}, so concurrent channels, 
+ * e.g. of segmented uploads over multiple connections, charge growth of file only once. 
+ * Changes by other channels on same file are corrected by reconciliation.
+ */
+public class QuotaFileChannel extends DelegatingFileChannel
+{
+	private final HomeUsage homeUsage;
+	private final OpenFiles openFiles;
+	private final FileSize fileSize;
+	
+	public QuotaFileChannel(FileChannel delegate, HomeUsage homeUsage) throws IOException
+	{
+		super(delegate);
+		this.homeUsage = homeUsage;
+		this.openFiles = null;
+		this.fileSize = new FileSize(null, delegate.size());
+	}
+	
+	/**
+	 * 
+	 * @param delegate underlying file channel
+	 * @param homeUsage usage of home directory
+	 * @param openFiles sizes of files opened by quota channels
+	 * @param path opened file
+	 * @param truncated true, if file was truncated by open
+	 * @throws IOException
+	 */
+	public QuotaFileChannel(FileChannel delegate, HomeUsage homeUsage, OpenFiles openFiles, Path path, boolean truncated) throws IOException
+	{
+		super(delegate);
+		this.homeUsage = homeUsage;
+		this.openFiles = openFiles;
+		this.fileSize = openFiles.acquire(path, delegate, truncated);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		long position = delegate.position();
+		long bytes = src.remaining();
+		long reserved = reserve(position, bytes);
+		int written = 0;
+		try
+		{
+			written = delegate.write(src);
+			return written;
+		}
+		finally 
+		{
+			releaseUnused(position, bytes, reserved, written);
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		long bytes = 0L;
+		for(int i = offset; i < offset + length; i++)
+		{
+			bytes += srcs[i].remaining();
+		}
+		long position = delegate.position();
+		long reserved = reserve(position, bytes);
+		long written = 0L;
+		try
+		{
+			written = delegate.write(srcs, offset, length);
+			return written;
+		}
+		finally 
+		{
+			releaseUnused(position, bytes, reserved, written);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		long bytes = src.remaining();
+		long reserved = reserve(position, bytes);
+		int written = 0;
+		try
+		{
+			written = delegate.write(src, position);
+			return written;
+		}
+		finally 
+		{
+			releaseUnused(position, bytes, reserved, written);
+		}
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		long reserved = reserve(position, count);
+		long transferred = 0L;
+		try
+		{
+			transferred = delegate.transferFrom(src, position, count);
+			return transferred;
+		}
+		finally 
+		{
+			releaseUnused(position, count, reserved, transferred);
+		}
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		synchronized (this.fileSize)
+		{
+			delegate.truncate(size);
+			if(size < this.fileSize.knownSize)
+			{
+				this.homeUsage.release(this.fileSize.knownSize - size);
+				this.fileSize.knownSize = size;
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Gives back reservation not used by failed or short write, as long as no other write has grown file beyond this write.
+	 * 
+	 * @param position start of write
+	 * @param bytes requested bytes
+	 * @param reserved reserved growth
+	 * @param written bytes actually written
+	 */
+	private void releaseUnused(long position, long bytes, long reserved, long written)
+	{
+		if((reserved == 0L) || (written >= bytes))
+		{
+			return;
+		}
+		
+		synchronized (this.fileSize)
+		{
+			// reservation has grown known size from sizeBefore to end of write
+			
+			long sizeBefore = position + bytes - reserved;
+			long end = Math.max(sizeBefore, position + Math.max(0L, written));
+			if((this.fileSize.knownSize == (position + bytes)) && (end < this.fileSize.knownSize))
+			{
+				this.homeUsage.release(Math.min(reserved, this.fileSize.knownSize - end));
+				this.fileSize.knownSize = end;
+			}
+		}
+	}
+	
+	private long reserve(long position, long bytes) throws IOException
+	{
+		synchronized (this.fileSize)
+		{
+			long end = position + bytes;
+			if(end <= this.fileSize.knownSize)
+			{
+				return 0L;
+			}
+			
+			long growth = end - this.fileSize.knownSize;
+			this.homeUsage.reserve(growth);
+			this.fileSize.knownSize = end;
+			return growth;
+		}
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		try
+		{
+			delegate.close();
+		}
+		finally 
+		{
+			if(this.openFiles != null)
+			{
+				this.openFiles.release(this.fileSize);
+			}
+		}
+	}
+	
+	/**
+	 * Sizes of files opened by quota channels.
+	 */
+	public static class OpenFiles
+	{
+		private final Map<Path,FileSize> index = new HashMap<Path,FileSize>();
+		
+		private synchronized FileSize acquire(Path path, FileChannel channel, boolean truncated) throws IOException
+		{
+			// size is read in lock, file may be grown by channel closed concurrently
+			
+			Path key = path.toAbsolutePath().normalize();
+			long size = channel.size();
+			FileSize fileSize = this.index.get(key);
+			if(fileSize == null)
+			{
+				fileSize = new FileSize(key, size);
+				this.index.put(key, fileSize);
+			}
+			else
+			{
+				// truncated size is released by file system provider
+				
+				synchronized (fileSize)
+				{
+					if(truncated || (size > fileSize.knownSize))
+					{
+						fileSize.knownSize = size;
+					}
+				}
+			}
+			fileSize.references++;
+			return fileSize;
+		}
+		
+		private synchronized void release(FileSize fileSize)
+		{
+			fileSize.references--;
+			if((fileSize.references <= 0) && (this.index.get(fileSize.path) == fileSize))
+			{
+				this.index.remove(fileSize.path);
+			}
+		}
+	}
+	
+	private static class FileSize
+	{
+		private final Path path;
+		private long knownSize;
+		private int references = 0;
+		
+		private FileSize(Path path, long knownSize)
+		{
+			super();
+			this.path = path;
+			this.knownSize = knownSize;
+		}
+	}
+}
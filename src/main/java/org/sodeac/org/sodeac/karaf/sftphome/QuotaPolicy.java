@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable quota configuration. Default limits are defined by properties quotasoft and quotahard, 
+ * limits of single users by entries of property quotauser with format {@code user:soft=N;hard=N}. 0 means unlimited.
+ */
+public class QuotaPolicy
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(QuotaPolicy.class);
+	
+	private final long softLimit;
+	private final long hardLimit;
+	private final Map<String,long[]> userLimits;
+	
+	private QuotaPolicy(long softLimit, long hardLimit, Map<String,long[]> userLimits)
+	{
+		super();
+		this.softLimit = softLimit;
+		this.hardLimit = hardLimit;
+		this.userLimits = userLimits;
+	}
+	
+	public static QuotaPolicy fromProperties(Map<String, ?> properties)
+	{
+		long softLimit = SFTPHomeSetup.getPropertyLong(properties, "quotasoft", 0L);
+		long hardLimit = SFTPHomeSetup.getPropertyLong(properties, "quotahard", 0L);
+		
+		Map<String,long[]> userLimits = new HashMap<String,long[]>();
+		String[] entries = SFTPHomeSetup.getPropertyStringArray(properties, "quotauser");
+		if(entries != null)
+		{
+			for(String entry : entries)
+			{
+				int separator = entry.indexOf(':');
+				if(separator < 1)
+				{
+					LOGGER.warn("ignore invalid quota entry " + entry);
+					continue;
+				}
+				
+				long[] limits = new long[] {0L, 0L};
+				for(String setting : entry.substring(separator + 1).split(";"))
+				{
+					int assign = setting.indexOf('=');
+					if(assign < 1)
+					{
+						continue;
+					}
+					String key = setting.substring(0, assign).trim();
+					try
+					{
+						if("soft".equals(key))
+						{
+							limits[0] = Long.parseLong(setting.substring(assign + 1).trim());
+						}
+						else if("hard".equals(key))
+						{
+							limits[1] = Long.parseLong(setting.substring(assign + 1).trim());
+						}
+					}
+					catch (NumberFormatException e) 
+					{
+						LOGGER.warn("ignore invalid quota setting " + setting);
+					}
+				}
+				userLimits.put(entry.substring(0, separator).trim(), limits);
+			}
+		}
+		
+		return new QuotaPolicy(softLimit, hardLimit, Collections.unmodifiableMap(userLimits));
+	}
+	
+	/**
+	 * 
+	 * @return true, if any limit is configured and usage of home directories has to be tracked
+	 */
+	public boolean isEnabled()
+	{
+		return (softLimit > 0L) || (hardLimit > 0L) || (! userLimits.isEmpty());
+	}
+	
+	public void apply(HomeUsage homeUsage)
+	{
+		long[] limits = this.userLimits.get(homeUsage.getUserName());
+		if(limits != null)
+		{
+			homeUsage.setLimits(limits[0], limits[1]);
+		}
+		else
+		{
+			homeUsage.setLimits(this.softLimit, this.hardLimit);
+		}
+	}
+}
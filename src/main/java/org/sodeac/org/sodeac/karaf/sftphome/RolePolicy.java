@@ -0,0 +1,252 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.AttributeStore;
+
+/**
+ * Immutable role configuration. A new instance is built for each configuration update and
+ * replaces the previous one as a whole.
+ *
+ * The access decision of a session is resolved once and stored as session attribute. Roles of session are limited to roles 
+ * named in configuration, so subjects with many groups do not cost a role set of all groups.
+ */
+public class RolePolicy
+{
+	public static final AttributeKey<SessionAccess> SESSION_ACCESS_ATTRIBUTE_KEY = new AttributeKey<SessionAccess>();
+
+	private static final int ROLE_HOMEDIR = 1;
+	private static final int ROLE_KARAFBASEDIR = 2;
+	private static final int ROLE_SECURESHELL = 4;
+	private static final int ROLE_ALL = ROLE_HOMEDIR | ROLE_KARAFBASEDIR | ROLE_SECURESHELL;
+	
+	// properties with entries of format role:setting
+	
+	private static final String[] ROLE_SETTING_PROPERTIES = new String[] {"throttlerole", "durabilityrole", "transportrole", "admissionrole"};
+
+	public enum FileSystemAccess {KARAF_BASE, HOME, DENIED}
+
+	private final Class<?>[] roleClasses;
+	private final Map<String,Integer> roleIndex;
+	private final Set<String> configuredRoles;
+
+	private RolePolicy(Class<?>[] roleClasses, Map<String,Integer> roleIndex, Set<String> configuredRoles)
+	{
+		super();
+		this.roleClasses = roleClasses;
+		this.roleIndex = roleIndex;
+		this.configuredRoles = configuredRoles;
+	}
+
+	public static RolePolicy fromProperties(Map<String, ?> properties, Class<?>[] roleClasses)
+	{
+		String[] homeDirRoles = SFTPHomeSetup.getPropertyStringArray(properties, "rolehomedir");
+		if((homeDirRoles == null) || (homeDirRoles.length == 0))
+		{
+			homeDirRoles = new String[] {"sftp"};
+		}
+
+		String[] karafRootRoles = SFTPHomeSetup.getPropertyStringArray(properties, "rolekarafbasedir");
+		if((karafRootRoles == null) || (karafRootRoles.length == 0))
+		{
+			karafRootRoles = new String[] {"admin"};
+		}
+
+		String[] secureShellRoles = SFTPHomeSetup.getPropertyStringArray(properties, "rolesecureshell");
+		if((secureShellRoles == null) || (secureShellRoles.length == 0))
+		{
+			secureShellRoles = new String[] {"sshconsole"};
+		}
+
+		Map<String,Integer> roleIndex = new HashMap<String,Integer>();
+		addRoles(roleIndex, homeDirRoles, ROLE_HOMEDIR);
+		addRoles(roleIndex, karafRootRoles, ROLE_KARAFBASEDIR);
+		addRoles(roleIndex, secureShellRoles, ROLE_SECURESHELL);
+
+		Set<String> configuredRoles = new HashSet<String>(roleIndex.keySet());
+		for(String property : ROLE_SETTING_PROPERTIES)
+		{
+			String[] entries = SFTPHomeSetup.getPropertyStringArray(properties, property);
+			if(entries == null)
+			{
+				continue;
+			}
+			for(String entry : entries)
+			{
+				int separator = entry.indexOf(':');
+				if(separator > 0)
+				{
+					configuredRoles.add(entry.substring(0, separator).trim());
+				}
+			}
+		}
+
+		return new RolePolicy(roleClasses.clone(), Collections.unmodifiableMap(roleIndex), Collections.unmodifiableSet(configuredRoles));
+	}
+
+	private static void addRoles(Map<String,Integer> roleIndex, String[] roles, int flag)
+	{
+		for(String role : roles)
+		{
+			Integer flags = roleIndex.get(role);
+			roleIndex.put(role, flags == null ? flag : (flags | flag));
+		}
+	}
+
+	/**
+	 * Returns the access decision of session. The decision is computed on first call and reused until configuration changes.
+	 *
+	 * @param session ssh session
+	 * @return access decision or null, if session is not authenticated by jaas
+	 */
+	public SessionAccess resolve(AttributeStore session)
+	{
+		SessionAccess sessionAccess = session.getAttribute(SESSION_ACCESS_ATTRIBUTE_KEY);
+		if((sessionAccess != null) && (sessionAccess.rolePolicy == this))
+		{
+			return sessionAccess;
+		}
+
+		final Subject subject = session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY);
+		if(subject == null)
+		{
+			return null;
+		}
+
+		sessionAccess = resolve(subject);
+		session.setAttribute(SESSION_ACCESS_ATTRIBUTE_KEY, sessionAccess);
+		return sessionAccess;
+	}
+
+	public SessionAccess resolve(Subject subject)
+	{
+		int flags = 0;
+		String userName = null;
+		Set<String> roles = null;
+
+		for (Principal principal : subject.getPrincipals())
+		{
+			if((userName == null) && (principal instanceof UserPrincipal))
+			{
+				userName = principal.getName();
+			}
+
+			if((flags == ROLE_ALL) && (roles != null) && (roles.size() == this.configuredRoles.size()))
+			{
+				if(userName != null)
+				{
+					break;
+				}
+				continue;
+			}
+
+			if((! this.configuredRoles.contains(principal.getName())) || (! isRole(principal)))
+			{
+				continue;
+			}
+
+			if(roles == null)
+			{
+				roles = new HashSet<String>();
+			}
+			roles.add(principal.getName());
+
+			Integer roleFlags = this.roleIndex.get(principal.getName());
+			if(roleFlags != null)
+			{
+				flags |= roleFlags;
+			}
+		}
+
+		return new SessionAccess(this, flags, userName, roles == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(roles));
+	}
+
+	private boolean isRole(Principal principal)
+	{
+		for(Class<?> roleClass : this.roleClasses)
+		{
+			if (roleClass.isInstance(principal))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static class SessionAccess
+	{
+		private final RolePolicy rolePolicy;
+		private final FileSystemAccess fileSystemAccess;
+		private final boolean secureShellAccess;
+		private final String userName;
+		private final Set<String> roles;
+
+		private SessionAccess(RolePolicy rolePolicy, int flags, String userName, Set<String> roles)
+		{
+			super();
+			this.rolePolicy = rolePolicy;
+			this.userName = userName;
+			this.roles = roles;
+			this.secureShellAccess = (flags & ROLE_SECURESHELL) != 0;
+
+			if((flags & ROLE_KARAFBASEDIR) != 0)
+			{
+				this.fileSystemAccess = FileSystemAccess.KARAF_BASE;
+			}
+			else if(((flags & ROLE_HOMEDIR) != 0) && (userName != null) && (! userName.isEmpty()))
+			{
+				this.fileSystemAccess = FileSystemAccess.HOME;
+			}
+			else
+			{
+				this.fileSystemAccess = FileSystemAccess.DENIED;
+			}
+		}
+
+		public FileSystemAccess getFileSystemAccess()
+		{
+			return fileSystemAccess;
+		}
+
+		public boolean hasSecureShellAccess()
+		{
+			return secureShellAccess;
+		}
+
+		public String getUserName()
+		{
+			return userName;
+		}
+
+		public Set<String> getRoles()
+		{
+			return roles;
+		}
+	}
+}
\ No newline at end of file
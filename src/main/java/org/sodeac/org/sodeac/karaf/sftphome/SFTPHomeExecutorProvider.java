@@ -0,0 +1,182 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.SshThreadPoolExecutor;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supplies executors for sftp subsystems or scp commands. Each subsystem or command occupies one thread of its executor for its whole lifetime.
+ * 
+ * <ul>
+ * <li>session: new single thread executor for each subsystem or command (default of sshd)</li>
+ * <li>shared: bounded pool shared by all subsystems or commands. Tasks exceeding thread count wait in queue, tasks exceeding queue are rejected</li>
+ * <li>virtual: new single thread executor for each subsystem or command running on a virtual thread (requires java 21+, falls back to session)</li>
+ * </ul>
+ * 
+ * Configuration keys are derived from property prefix: prefix (mode), prefix + threads and prefix + queue.
+ */
+public class SFTPHomeExecutorProvider implements Supplier<CloseableExecutorService>
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeExecutorProvider.class);
+	
+	public static final String MODE_SESSION = "session";
+	public static final String MODE_SHARED = "shared";
+	public static final String MODE_VIRTUAL = "virtual";
+	
+	private volatile String mode = MODE_SESSION;
+	private volatile int queueLimit = 256;
+	private volatile SharedExecutor sharedExecutor = null;
+	private volatile ThreadFactory virtualThreadFactory = null;
+	
+	private final String propertyPrefix;
+	private final String threadName;
+	
+	/**
+	 * 
+	 * @param properties configuration
+	 * @param propertyPrefix prefix of configuration keys, e.g. sftpexecutor
+	 * @param threadName prefix of thread names, e.g. SftpSubsystem
+	 */
+	public SFTPHomeExecutorProvider(Map<String, ?> properties, String propertyPrefix, String threadName)
+	{
+		super();
+		this.propertyPrefix = propertyPrefix;
+		this.threadName = threadName;
+		this.refresh(properties);
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		String mode = properties.get(this.propertyPrefix) instanceof String ? ((String)properties.get(this.propertyPrefix)).trim() : MODE_SESSION;
+		int threads = (int)Math.max(1L, SFTPHomeSetup.getPropertyLong(properties, this.propertyPrefix + "threads", 64L));
+		this.queueLimit = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, this.propertyPrefix + "queue", 256L));
+		
+		if(MODE_VIRTUAL.equals(mode) && (this.virtualThreadFactory == null))
+		{
+			this.virtualThreadFactory = VirtualThreadSupport.createThreadFactory(this.threadName + "-virtual-");
+			if(this.virtualThreadFactory == null)
+			{
+				LOGGER.warn("virtual threads are not supported by this jvm, use " + this.propertyPrefix + " mode " + MODE_SESSION);
+				mode = MODE_SESSION;
+			}
+		}
+		
+		if(MODE_SHARED.equals(mode))
+		{
+			if(this.sharedExecutor == null)
+			{
+				this.sharedExecutor = new SharedExecutor(threads);
+			}
+			else if(threads > this.sharedExecutor.getMaximumPoolSize())
+			{
+				this.sharedExecutor.setMaximumPoolSize(threads);
+				this.sharedExecutor.setCorePoolSize(threads);
+			}
+			else
+			{
+				this.sharedExecutor.setCorePoolSize(threads);
+				this.sharedExecutor.setMaximumPoolSize(threads);
+			}
+		}
+		else if(! (MODE_SESSION.equals(mode) || MODE_VIRTUAL.equals(mode)))
+		{
+			LOGGER.warn("unknown " + this.propertyPrefix + " mode " + mode + ", use " + this.propertyPrefix + " mode " + MODE_SESSION);
+			mode = MODE_SESSION;
+		}
+		
+		this.mode = mode;
+		
+		if((! MODE_SHARED.equals(mode)) && (this.sharedExecutor != null))
+		{
+			// running subsystems complete on old pool
+			this.sharedExecutor.shutdown();
+			this.sharedExecutor = null;
+		}
+	}
+	
+	@Override
+	public CloseableExecutorService get()
+	{
+		String mode = this.mode;
+		SharedExecutor sharedExecutor = this.sharedExecutor;
+		ThreadFactory virtualThreadFactory = this.virtualThreadFactory;
+		
+		if(MODE_SHARED.equals(mode) && (sharedExecutor != null))
+		{
+			return ThreadUtils.noClose(sharedExecutor);
+		}
+		if(MODE_VIRTUAL.equals(mode) && (virtualThreadFactory != null))
+		{
+			return new SshThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), virtualThreadFactory);
+		}
+		return ThreadUtils.newSingleThreadExecutor(this.threadName);
+	}
+	
+	public synchronized void dispose()
+	{
+		if(this.sharedExecutor != null)
+		{
+			this.sharedExecutor.shutdownNow();
+			this.sharedExecutor = null;
+		}
+		this.mode = MODE_SESSION;
+	}
+	
+	private class SharedExecutor extends SshThreadPoolExecutor
+	{
+		private SharedExecutor(int threads)
+		{
+			super(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SharedThreadFactory());
+			super.allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public void execute(Runnable command)
+		{
+			if(getQueue().size() >= queueLimit)
+			{
+				throw new RejectedExecutionException(threadName + " queue is full (" + queueLimit + ")");
+			}
+			super.execute(command);
+		}
+	}
+	
+	private class SharedThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger counter = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, threadName + "-shared-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
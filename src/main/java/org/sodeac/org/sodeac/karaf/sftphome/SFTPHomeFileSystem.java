@@ -0,0 +1,227 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.sshd.common.file.root.RootedFileSystem;
+import org.apache.sshd.common.file.root.RootedFileSystemProvider;
+import org.sodeac.org.sodeac.karaf.sftphome.DurabilityPolicy.Mode;
+import org.sodeac.org.sodeac.karaf.sftphome.QuotaFileChannel.OpenFiles;
+import org.sodeac.org.sodeac.karaf.sftphome.ThrottlePolicy.Limits;
+
+/**
+ * Rooted file system shared by all sessions of one user with same home directory.
+ * 
+ * Sessions must not close the file system. It is closed by {@link SFTPHomeFileSystemPool} after last session is released.
+ */
+public class SFTPHomeFileSystem extends RootedFileSystem
+{
+	private final String owner;
+	
+	// guarded by pool
+	int referenceCount = 0;
+	long idleSince = -1L;
+	
+	private volatile boolean open = true;
+	private volatile Set<String> ownerRoles = Collections.emptySet();
+	private volatile TransferThrottle transferThrottle = null;
+	private volatile HomeUsage homeUsage = null;
+	private volatile Mode durabilityMode = null;
+	private volatile GroupCommitter groupCommitter = null;
+	private volatile UploadEventPublisher uploadEventPublisher = null;
+	private volatile DedupStore dedupStore = null;
+	private volatile boolean deduplicating = false;
+	private volatile AttributeCache attributeCache = null;
+	private final OpenFiles openFiles = new OpenFiles();
+	
+	public SFTPHomeFileSystem(RootedFileSystemProvider fileSystemProvider, Path root, String owner)
+	{
+		super(fileSystemProvider, root, Collections.emptyMap());
+		this.owner = owner;
+	}
+	
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	public Set<String> getOwnerRoles()
+	{
+		return ownerRoles;
+	}
+	
+	public void setOwnerRoles(Set<String> ownerRoles)
+	{
+		this.ownerRoles = ownerRoles == null ? Collections.emptySet() : ownerRoles;
+	}
+	
+	public TransferThrottle getTransferThrottle()
+	{
+		return transferThrottle;
+	}
+	
+	public HomeUsage getHomeUsage()
+	{
+		return homeUsage;
+	}
+	
+	public void setHomeUsage(HomeUsage homeUsage)
+	{
+		this.homeUsage = homeUsage;
+	}
+	
+	/**
+	 * 
+	 * @param durabilityMode durability mode of written files or null for default of sshd
+	 * @param groupCommitter group commit for durability mode group
+	 */
+	public void setDurability(Mode durabilityMode, GroupCommitter groupCommitter)
+	{
+		this.groupCommitter = groupCommitter;
+		this.durabilityMode = durabilityMode;
+	}
+	
+	public Mode getDurabilityMode()
+	{
+		return durabilityMode;
+	}
+	
+	public UploadEventPublisher getUploadEventPublisher()
+	{
+		return uploadEventPublisher;
+	}
+	
+	public void setUploadEventPublisher(UploadEventPublisher uploadEventPublisher)
+	{
+		this.uploadEventPublisher = uploadEventPublisher;
+	}
+	
+	public DedupStore getDedupStore()
+	{
+		return dedupStore;
+	}
+	
+	/**
+	 * 
+	 * @return true, if files written by file system are handed to dedup store
+	 */
+	public boolean isDeduplicating()
+	{
+		return deduplicating;
+	}
+	
+	/**
+	 * 
+	 * @param dedupStore store sharing identical files or null, if deduplication is disabled
+	 * @param deduplicating true, if files written by file system are handed to store, false, if shared files are only copied 
+	 * before modification (e.g. karaf base directory containing home roots)
+	 */
+	public void setDedupStore(DedupStore dedupStore, boolean deduplicating)
+	{
+		this.deduplicating = deduplicating;
+		this.dedupStore = dedupStore;
+	}
+	
+	public AttributeCache getAttributeCache()
+	{
+		return attributeCache;
+	}
+	
+	/**
+	 * 
+	 * @param attributeCache cache of attributes and directory listings or null, if caching is disabled
+	 */
+	public void setAttributeCache(AttributeCache attributeCache)
+	{
+		this.attributeCache = attributeCache;
+	}
+	
+	/**
+	 * Resolves limits of owner. Buckets are kept, if limits are unchanged.
+	 * 
+	 * @param throttlePolicy current throttle configuration
+	 */
+	public synchronized void applyThrottlePolicy(ThrottlePolicy throttlePolicy)
+	{
+		Limits limits = throttlePolicy == null ? null : throttlePolicy.resolve(this.owner, this.ownerRoles);
+		TransferThrottle current = this.transferThrottle;
+		if(current == null ? limits == null : current.getLimits().equals(limits))
+		{
+			return;
+		}
+		this.transferThrottle = limits == null ? null : new TransferThrottle(limits);
+	}
+	
+	/**
+	 * Decorates channel opened by provider of this file system.
+	 * 
+	 * @param path opened file
+	 * @param options open options
+	 * @param channel channel of underlying file system
+	 * @return decorated channel
+	 * @throws IOException 
+	 */
+	protected FileChannel decorate(Path path, Set<? extends OpenOption> options, FileChannel channel) throws IOException
+	{
+		boolean writable = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+		Mode durabilityMode = this.durabilityMode;
+		if((durabilityMode != null) && writable)
+		{
+			channel = new DurableFileChannel(channel, durabilityMode, this.groupCommitter);
+		}
+		HomeUsage homeUsage = this.homeUsage;
+		if((homeUsage != null) && writable)
+		{
+			channel = new QuotaFileChannel(channel, homeUsage, this.openFiles, path, options.contains(StandardOpenOption.TRUNCATE_EXISTING));
+		}
+		if(this.transferThrottle != null)
+		{
+			channel = new ThrottledFileChannel(channel, this);
+		}
+		UploadEventPublisher uploadEventPublisher = this.uploadEventPublisher;
+		if((uploadEventPublisher != null) && uploadEventPublisher.isActive() && writable)
+		{
+			boolean modified = options.contains(StandardOpenOption.TRUNCATE_EXISTING) || options.contains(StandardOpenOption.CREATE_NEW);
+			channel = new UploadEventFileChannel(channel, this, uploadEventPublisher, path.toAbsolutePath().normalize().toString(), modified);
+		}
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// shared file system is closed by pool
+	}
+	
+	protected void dispose()
+	{
+		this.open = false;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return this.open && super.isOpen();
+	}
+}
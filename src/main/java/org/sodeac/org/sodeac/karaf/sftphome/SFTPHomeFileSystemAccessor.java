@@ -0,0 +1,90 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.FileHandle;
+import org.apache.sshd.server.subsystem.sftp.SftpFileSystemAccessor;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemProxy;
+
+/**
+ * Sftp file system accessor opening files as {@link PositionalFileChannel}.
+ */
+public class SFTPHomeFileSystemAccessor implements SftpFileSystemAccessor
+{
+	private volatile DirectBufferPool bufferPool;
+	private volatile long mappedReadThreshold;
+	private volatile long mappedReadWindow;
+	
+	public SFTPHomeFileSystemAccessor(Map<String, ?> properties)
+	{
+		super();
+		this.refresh(properties);
+	}
+	
+	public void refresh(Map<String, ?> properties)
+	{
+		int bufferSize = DirectBufferPool.bufferSize(SFTPHomeSetup.getPropertyLong(properties, "sftpdirectbuffersize", 65536L));
+		int maxBuffers = (int)Math.max(0L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "sftpdirectbuffers", 32L)));
+		
+		DirectBufferPool bufferPool = this.bufferPool;
+		if((bufferPool == null) || (bufferPool.getBufferSize() != bufferSize) || (bufferPool.getMaxBuffers() != maxBuffers))
+		{
+			this.bufferPool = new DirectBufferPool(bufferSize, maxBuffers);
+		}
+		
+		this.mappedReadThreshold = SFTPHomeSetup.getPropertyLong(properties, "sftpmappedreadthreshold", 0L);
+		this.mappedReadWindow = SFTPHomeSetup.getPropertyLong(properties, "sftpmappedreadwindow", 8388608L);
+	}
+
+	@Override
+	public SeekableByteChannel openFile(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+	{
+		SeekableByteChannel channel = SftpFileSystemAccessor.super.openFile(session, subsystem, fileHandle, file, handle, options, attrs);
+		if(! (channel instanceof FileChannel))
+		{
+			return channel;
+		}
+		
+		boolean writable = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+		return new PositionalFileChannel((FileChannel)channel, this.bufferPool, writable ? 0L : this.mappedReadThreshold, this.mappedReadWindow);
+	}
+
+	@Override
+	public void closeFile(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Channel channel, Set<? extends OpenOption> options) throws IOException
+	{
+		// durability mode of file system replaces auto sync of sshd
+		
+		if((channel instanceof FileChannel) && (DelegatingFileChannel.unwrap((FileChannel)channel, DurableFileChannel.class) != null))
+		{
+			channel.close();
+			return;
+		}
+		SftpFileSystemAccessor.super.closeFile(session, subsystem, fileHandle, file, handle, channel, options);
+	}
+}
@@ -1,160 +1,394 @@
-/*
- *  Copyright (c) 2019, 2020 Sebastian Palarus
- *  
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *  You may obtain a copy of the License at
- *
- *       http://www.apache.org/licenses/LICENSE-2.0
- *
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and
- *  limitations under the License.
- *  under the License.
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
  */
-package org.sodeac.org.sodeac.karaf.sftphome;
-
-import java.io.IOException;
-import java.nio.file.FileSystem;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.Principal;
-import java.util.Collections;
-import java.util.Map;
-
-import javax.security.auth.Subject;
-
-import org.apache.karaf.jaas.boot.principal.UserPrincipal;
-import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
-import org.apache.sshd.common.file.FileSystemFactory;
-import org.apache.sshd.common.file.root.RootedFileSystemProvider;
-import org.apache.sshd.common.session.SessionContext;
-
-// based on https://github.com/apache/karaf/tree/master/shell/ssh
-
-public class SFTPHomeFileSystemFactory implements FileSystemFactory
-{
-	public  SFTPHomeFileSystemFactory(Map<String, ?> properties,Class<?>[] roleClasses)
-	{
-		super();
-		this.roleClasses = roleClasses;
-		this.refresh(properties);
-	}
-	
-	public void refresh(Map<String, ?> properties)
-	{
-		this.homeRootPath = System.getProperty("karaf.base") + "/data/home";
-		this.sftpHomeDirRoles = new String[] {"sftp"};
-		this.sftpKarafRootRoles = new String[] {"admin"};
-		
-		if((properties.get("homeroot") != null) && (properties.get("homeroot") instanceof String) && (! ((String)properties.get("homeroot")).isEmpty()))
-		{
-			this.homeRootPath = (String)properties.get("homeroot");
-		}
-		
-		String[] homeDirRoles = SFTPHomeSetup.getPropertyStringArray(properties, "rolehomedir");
-		if((homeDirRoles != null) && (homeDirRoles.length > 0))
-		{
-			this.sftpHomeDirRoles = homeDirRoles;
-		}
-		
-		String[] karafRootRoles = SFTPHomeSetup.getPropertyStringArray(properties, "rolekarafbasedir");
-		if((karafRootRoles != null) && (karafRootRoles.length > 0))
-		{
-			this.sftpKarafRootRoles = karafRootRoles;
-		}
-	}
-	
-	
-	
-	private Class<?>[] roleClasses;
-	
-	private String[] sftpHomeDirRoles;
-	private String[] sftpKarafRootRoles;
-	private String homeRootPath;
-
-	@Override
-	public FileSystem createFileSystem(SessionContext session) throws IOException 
-	{
-		Path home = getUserHomeDir(session);
-		
-		if (Files.notExists(home)) 
-		{
-			Files.createDirectories(home); 
-		}
-		
-		return new RootedFileSystemProvider().newFileSystem(home,Collections.emptyMap());
-	}
-
-	@Override
-	public Path getUserHomeDir(SessionContext session) throws IOException 
-	{
-		boolean hasRoleHomeDir = false;
-		boolean hasRoleKarafRootDir = false;
-		final Subject subject = session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY);
-		
-		if(subject == null)
-		{
-			return null;
-		}
-		
-		for (Principal principal : subject.getPrincipals()) 
-		{
-			for(Class<?> roleClass : this.roleClasses)
-			{
-				if (roleClass.isInstance(principal))
-				{
-					for(String sftpHomeDirRole : sftpHomeDirRoles)
-					{
-						if(sftpHomeDirRole.equals(principal.getName()))
-						{
-							hasRoleHomeDir = true;
-						}
-					}
-					for(String sftpKarafRootRole : sftpKarafRootRoles)
-					{
-						if(sftpKarafRootRole.equals(principal.getName()))
-						{
-							hasRoleKarafRootDir = true;
-						}
-					}
-				}
-			}
-		}
-		
-		if((! hasRoleHomeDir) && (! hasRoleKarafRootDir))
-		{
-			return null;
-		}
-		
-		if(hasRoleKarafRootDir)
-		{
-			return Paths.get(System.getProperty("karaf.base"));
-		}
-		
-		if(!subject.getPrincipals(UserPrincipal.class).iterator().hasNext())
-		{
-			return null;
-		}
-		
-		String userName = subject.getPrincipals(UserPrincipal.class).iterator().next().getName();
-		
-		if((userName == null) || (userName.isEmpty()))
-		{
-			return null;
-		}
-		
-		Path home = Paths.get(this.homeRootPath,userName);
-		
-		if (Files.notExists(home)) 
-		{
-			Files.createDirectories(home); 
-		}
-		
-		return home;
-	}
-
-}
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.sshd.common.file.FileSystemFactory;
+import org.apache.sshd.common.session.SessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Layout;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Placement;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.FileSystemAccess;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.SessionAccess;
+
+// based on https://github.com/apache/karaf/tree/master/shell/ssh
+
+public class SFTPHomeFileSystemFactory implements FileSystemFactory
+{
+	public  SFTPHomeFileSystemFactory(Map<String, ?> properties,RolePolicy rolePolicy, UploadEventPublisher uploadEventPublisher)
+	{
+		super();
+		this.uploadEventPublisher = uploadEventPublisher;
+		this.refresh(properties, rolePolicy);
+	}
+	
+	public void refresh(Map<String, ?> properties, RolePolicy rolePolicy)
+	{
+		List<Path> homeRoots = new ArrayList<Path>();
+		String[] homeRootPaths = SFTPHomeSetup.getPropertyStringArray(properties, "homeroot");
+		if(homeRootPaths != null)
+		{
+			for(String homeRootPath : homeRootPaths)
+			{
+				homeRoots.add(Paths.get(homeRootPath).toAbsolutePath().normalize());
+			}
+		}
+		if(homeRoots.isEmpty())
+		{
+			homeRoots.add(Paths.get(System.getProperty("karaf.base") + "/data/home").toAbsolutePath().normalize());
+		}
+		
+		Placement placement = Placement.HASH;
+		if((properties.get("homeplacement") instanceof String) && (! ((String)properties.get("homeplacement")).isEmpty()))
+		{
+			try
+			{
+				placement = Placement.valueOf(((String)properties.get("homeplacement")).trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) 
+			{
+				LOGGER.warn("unknown home placement " + properties.get("homeplacement") + ", using hash");
+			}
+		}
+		
+		Layout layout = Layout.FLAT;
+		if((properties.get("homelayout") instanceof String) && (! ((String)properties.get("homelayout")).isEmpty()))
+		{
+			try
+			{
+				layout = Layout.valueOf(((String)properties.get("homelayout")).trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) 
+			{
+				LOGGER.warn("unknown home layout " + properties.get("homelayout") + ", using flat");
+			}
+		}
+		
+		Path placementFile = null;
+		if(homeRoots.size() > 1)
+		{
+			String placementFilePath = System.getProperty("karaf.data", System.getProperty("karaf.base") + "/data") + "/sftphome/home-placement.properties";
+			if((properties.get("homeplacementfile") instanceof String) && (! ((String)properties.get("homeplacementfile")).isEmpty()))
+			{
+				placementFilePath = (String)properties.get("homeplacementfile");
+			}
+			placementFile = Paths.get(placementFilePath);
+		}
+		
+		long idleTimeout = SFTPHomeSetup.getPropertyLong(properties, "filesystemidletimeout", 60L);
+		
+		HomeDirectoryIndex homeDirectoryIndex = this.homeDirectoryIndex;
+		if
+		(
+			(homeDirectoryIndex == null) || (! homeDirectoryIndex.getHomeRoots().equals(homeRoots)) || 
+			(homeDirectoryIndex.getPlacement() != placement) || (! Objects.equals(homeDirectoryIndex.getPlacementFile(), placementFile)) ||
+			(homeDirectoryIndex.getLayout() != layout)
+		)
+		{
+			homeDirectoryIndex = new HomeDirectoryIndex(homeRoots, placement, placementFile, layout);
+			try
+			{
+				homeDirectoryIndex.scan();
+			}
+			catch (IOException e) 
+			{
+				LOGGER.warn("unable to scan home roots " + homeRoots, e);
+			}
+		}
+		
+		this.homeDirectoryIndex = homeDirectoryIndex;
+		this.rolePolicy = rolePolicy;
+		this.throttlePolicy = ThrottlePolicy.fromProperties(properties);
+		this.durabilityPolicy = DurabilityPolicy.fromProperties(properties);
+		this.groupCommitter.setInterval(SFTPHomeSetup.getPropertyLong(properties, "durabilitygroupinterval", 100L));
+		
+		QuotaPolicy quotaPolicy = QuotaPolicy.fromProperties(properties);
+		DiskQuotaIndex diskQuotaIndex = this.diskQuotaIndex;
+		if(quotaPolicy.isEnabled())
+		{
+			String indexFilePath = System.getProperty("karaf.data", System.getProperty("karaf.base") + "/data") + "/sftphome/quota-usage.properties";
+			if((properties.get("quotaindex") instanceof String) && (! ((String)properties.get("quotaindex")).isEmpty()))
+			{
+				indexFilePath = (String)properties.get("quotaindex");
+			}
+			
+			if((diskQuotaIndex == null) || (diskQuotaIndex.getHomeDirectoryIndex() != homeDirectoryIndex) || (! diskQuotaIndex.getIndexFile().equals(Paths.get(indexFilePath))))
+			{
+				if(diskQuotaIndex != null)
+				{
+					diskQuotaIndex.dispose();
+				}
+				diskQuotaIndex = new DiskQuotaIndex(homeDirectoryIndex, Paths.get(indexFilePath));
+				try
+				{
+					diskQuotaIndex.load();
+				}
+				catch (IOException e) 
+				{
+					LOGGER.warn("unable to load disk quota index " + indexFilePath, e);
+				}
+			}
+			diskQuotaIndex.setReconcileInterval(SFTPHomeSetup.getPropertyLong(properties, "quotareconcileinterval", 86400L));
+		}
+		else if(diskQuotaIndex != null)
+		{
+			diskQuotaIndex.dispose();
+			diskQuotaIndex = null;
+		}
+		this.quotaPolicy = quotaPolicy;
+		this.diskQuotaIndex = diskQuotaIndex;
+		
+		DedupStore dedupStore = this.dedupStore;
+		String dedupDirectory = properties.get("dedupstore") instanceof String ? ((String)properties.get("dedupstore")).trim() : "";
+		if(dedupDirectory.isEmpty() || (! DedupStore.isSupported()))
+		{
+			if(! dedupDirectory.isEmpty())
+			{
+				LOGGER.warn("file system does not support link counts, dedup store " + dedupDirectory + " is disabled");
+			}
+			if(dedupStore != null)
+			{
+				dedupStore.dispose();
+				dedupStore = null;
+			}
+		}
+		else if((dedupStore == null) || (! dedupStore.getDirectory().equals(Paths.get(dedupDirectory).toAbsolutePath().normalize())))
+		{
+			if(dedupStore != null)
+			{
+				dedupStore.dispose();
+				dedupStore = null;
+			}
+			try
+			{
+				dedupStore = new DedupStore(Paths.get(dedupDirectory));
+			}
+			catch (IOException e) 
+			{
+				LOGGER.warn("unable to create dedup store " + dedupDirectory, e);
+			}
+		}
+		if(dedupStore != null)
+		{
+			dedupStore.refresh(properties);
+		}
+		this.dedupStore = dedupStore;
+		
+		AttributeCache attributeCache = this.attributeCache;
+		if(SFTPHomeSetup.getPropertyLong(properties, "karafbasecacheentries", 100000L) <= 0L)
+		{
+			if(attributeCache != null)
+			{
+				attributeCache.dispose();
+				attributeCache = null;
+			}
+		}
+		else if(attributeCache == null)
+		{
+			try
+			{
+				attributeCache = new AttributeCache();
+			}
+			catch (IOException | UnsupportedOperationException e) 
+			{
+				LOGGER.warn("unable to create karaf base cache", e);
+			}
+		}
+		if(attributeCache != null)
+		{
+			attributeCache.refresh(properties);
+		}
+		this.attributeCache = attributeCache;
+		
+		for(SFTPHomeFileSystem fileSystem : this.fileSystemPool.getFileSystems())
+		{
+			fileSystem.applyThrottlePolicy(this.throttlePolicy);
+			fileSystem.setDurability(this.durabilityPolicy.resolve(fileSystem.getOwnerRoles()), this.groupCommitter);
+			if(fileSystem.getHomeUsage() != null)
+			{
+				fileSystem.setHomeUsage(homeUsage(fileSystem.getOwner()));
+			}
+			if(fileSystem.getDedupStore() != null)
+			{
+				fileSystem.setDedupStore(dedupStore, fileSystem.isDeduplicating());
+			}
+			if(fileSystem.getAttributeCache() != null)
+			{
+				fileSystem.setAttributeCache(attributeCache);
+			}
+		}
+		
+		this.fileSystemPool.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeout));
+	}
+	
+	public void dispose()
+	{
+		this.fileSystemPool.dispose();
+		this.groupCommitter.dispose();
+		
+		DiskQuotaIndex diskQuotaIndex = this.diskQuotaIndex;
+		if(diskQuotaIndex != null)
+		{
+			diskQuotaIndex.dispose();
+		}
+		
+		DedupStore dedupStore = this.dedupStore;
+		if(dedupStore != null)
+		{
+			dedupStore.dispose();
+		}
+		
+		AttributeCache attributeCache = this.attributeCache;
+		if(attributeCache != null)
+		{
+			attributeCache.dispose();
+		}
+	}
+	
+	public DiskQuotaIndex getDiskQuotaIndex()
+	{
+		return diskQuotaIndex;
+	}
+	
+	private HomeUsage homeUsage(String userName)
+	{
+		DiskQuotaIndex diskQuotaIndex = this.diskQuotaIndex;
+		if(diskQuotaIndex == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			HomeUsage homeUsage = diskQuotaIndex.getUsage(userName);
+			this.quotaPolicy.apply(homeUsage);
+			return homeUsage;
+		}
+		catch (IOException e) 
+		{
+			LOGGER.warn("unable to measure home directory of " + userName, e);
+			return null;
+		}
+	}
+	
+	public HomeDirectoryIndex getHomeDirectoryIndex()
+	{
+		return homeDirectoryIndex;
+	}
+	
+	/**
+	 * 
+	 * @return migration of home directories into configured layout
+	 */
+	public HomeDirectoryMigration createHomeDirectoryMigration()
+	{
+		return new HomeDirectoryMigration(this.homeDirectoryIndex, this.fileSystemPool);
+	}
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeFileSystemFactory.class);
+	
+	private volatile RolePolicy rolePolicy;
+	private volatile HomeDirectoryIndex homeDirectoryIndex;
+	private volatile ThrottlePolicy throttlePolicy;
+	private volatile DurabilityPolicy durabilityPolicy;
+	private volatile QuotaPolicy quotaPolicy;
+	private volatile DiskQuotaIndex diskQuotaIndex;
+	private volatile DedupStore dedupStore;
+	private volatile AttributeCache attributeCache;
+	private final SFTPHomeFileSystemPool fileSystemPool = new SFTPHomeFileSystemPool();
+	private final GroupCommitter groupCommitter = new GroupCommitter(100L);
+	private final UploadEventPublisher uploadEventPublisher;
+
+	@Override
+	public FileSystem createFileSystem(SessionContext session) throws IOException 
+	{
+		HomeDirectoryIndex homeDirectoryIndex = this.homeDirectoryIndex;
+		SessionAccess sessionAccess = this.rolePolicy.resolve(session);
+		SFTPHomeFileSystem fileSystem;
+		
+		// home directory must not be relocated between resolving and opening file system
+		
+		Lock lock = homeDirectoryIndex.getRelocationLock().readLock();
+		lock.lock();
+		try
+		{
+			Path home = getUserHomeDir(sessionAccess, homeDirectoryIndex);
+			
+			if(home == null)
+			{
+				throw new AccessDeniedException(session.getUsername(), null, "no sftp access");
+			}
+			
+			fileSystem = this.fileSystemPool.acquire(session, home.toAbsolutePath().normalize(), sessionAccess.getUserName());
+		}
+		finally 
+		{
+			lock.unlock();
+		}
+		
+		fileSystem.setOwnerRoles(sessionAccess.getRoles());
+		fileSystem.applyThrottlePolicy(this.throttlePolicy);
+		fileSystem.setDurability(this.durabilityPolicy.resolve(sessionAccess.getRoles()), this.groupCommitter);
+		fileSystem.setHomeUsage(sessionAccess.getFileSystemAccess() == FileSystemAccess.HOME ? homeUsage(sessionAccess.getUserName()) : null);
+		fileSystem.setUploadEventPublisher(this.uploadEventPublisher);
+		
+		// karaf base directory may contain home roots, so shared files must be copied before modification by karaf base sessions too
+		
+		fileSystem.setDedupStore(this.dedupStore, sessionAccess.getFileSystemAccess() == FileSystemAccess.HOME);
+		fileSystem.setAttributeCache(sessionAccess.getFileSystemAccess() == FileSystemAccess.KARAF_BASE ? this.attributeCache : null);
+		return fileSystem;
+	}
+
+	@Override
+	public Path getUserHomeDir(SessionContext session) throws IOException 
+	{
+		return getUserHomeDir(this.rolePolicy.resolve(session), this.homeDirectoryIndex);
+	}
+	
+	private Path getUserHomeDir(SessionAccess sessionAccess, HomeDirectoryIndex homeDirectoryIndex) throws IOException 
+	{
+		if(sessionAccess == null)
+		{
+			return null;
+		}
+		
+		if(sessionAccess.getFileSystemAccess() == FileSystemAccess.KARAF_BASE)
+		{
+			return Paths.get(System.getProperty("karaf.base"));
+		}
+		
+		if(sessionAccess.getFileSystemAccess() != FileSystemAccess.HOME)
+		{
+			return null;
+		}
+		
+		return homeDirectoryIndex.provision(sessionAccess.getUserName());
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,279 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.session.SessionContext;
+
+/**
+ * Pool of rooted file systems. All sessions of a user with same home directory share one file system. 
+ * The file system is referenced once per session and released if session is closed. 
+ * Unreferenced file systems are closed after idle timeout.
+ */
+public class SFTPHomeFileSystemPool
+{
+	private static final AttributeKey<Map<Key,SFTPHomeFileSystem>> SESSION_LEASES_ATTRIBUTE_KEY = new AttributeKey<Map<Key,SFTPHomeFileSystem>>();
+	
+	private final SFTPHomeFileSystemProvider fileSystemProvider = new SFTPHomeFileSystemProvider();
+	private final Map<Key,SFTPHomeFileSystem> index = new HashMap<Key,SFTPHomeFileSystem>();
+	private final ScheduledExecutorService evictionExecutor;
+	
+	private volatile long idleTimeout = 0L;
+	private boolean disposed = false;
+	
+	public SFTPHomeFileSystemPool()
+	{
+		super();
+		
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> 
+		{
+			Thread thread = new Thread(r, "SFTP home file system eviction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		this.evictionExecutor = executor;
+	}
+	
+	public synchronized void setIdleTimeout(long idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+		if(! disposed)
+		{
+			this.evictionExecutor.execute(this::evictIdle);
+		}
+	}
+	
+	/**
+	 * Returns shared file system for home directory and owner. Reference is released automatically, if session is closed.
+	 * 
+	 * @param session ssh session
+	 * @param home root directory
+	 * @param owner name of user
+	 * @return shared file system
+	 */
+	public SFTPHomeFileSystem acquire(SessionContext session, Path home, String owner)
+	{
+		Key key = new Key(home, owner);
+		
+		Map<Key,SFTPHomeFileSystem> leases;
+		synchronized (session)
+		{
+			leases = session.getAttribute(SESSION_LEASES_ATTRIBUTE_KEY);
+			if(leases == null)
+			{
+				leases = new HashMap<Key,SFTPHomeFileSystem>();
+				session.setAttribute(SESSION_LEASES_ATTRIBUTE_KEY, leases);
+				
+				final Map<Key,SFTPHomeFileSystem> sessionLeases = leases;
+				session.addCloseFutureListener(future -> releaseAll(sessionLeases));
+			}
+		}
+		
+		synchronized (leases)
+		{
+			SFTPHomeFileSystem fileSystem = leases.get(key);
+			if((fileSystem != null) && fileSystem.isOpen())
+			{
+				return fileSystem;
+			}
+			
+			synchronized (this)
+			{
+				fileSystem = this.index.get(key);
+				if(fileSystem == null)
+				{
+					fileSystem = new SFTPHomeFileSystem(this.fileSystemProvider, home, owner);
+					if(! disposed)
+					{
+						this.index.put(key, fileSystem);
+					}
+				}
+				fileSystem.referenceCount++;
+				fileSystem.idleSince = -1L;
+			}
+			leases.put(key, fileSystem);
+			return fileSystem;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return snapshot of pooled file systems
+	 */
+	public synchronized List<SFTPHomeFileSystem> getFileSystems()
+	{
+		return new ArrayList<SFTPHomeFileSystem>(this.index.values());
+	}
+	
+	/**
+	 * Closes all unreferenced file systems of home directory, if no file system of home directory is referenced by a session.
+	 * 
+	 * @param home root directory
+	 * @return true, if no file system of home directory is left open, otherwise false
+	 */
+	public synchronized boolean evict(Path home)
+	{
+		for(Map.Entry<Key,SFTPHomeFileSystem> entry : this.index.entrySet())
+		{
+			if(entry.getKey().home.equals(home) && (entry.getValue().referenceCount > 0))
+			{
+				return false;
+			}
+		}
+		
+		Iterator<Map.Entry<Key,SFTPHomeFileSystem>> iterator = this.index.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<Key,SFTPHomeFileSystem> entry = iterator.next();
+			if(entry.getKey().home.equals(home))
+			{
+				iterator.remove();
+				entry.getValue().dispose();
+			}
+		}
+		return true;
+	}
+	
+	private void releaseAll(Map<Key,SFTPHomeFileSystem> leases)
+	{
+		synchronized (leases)
+		{
+			for(Map.Entry<Key,SFTPHomeFileSystem> entry : leases.entrySet())
+			{
+				release(entry.getKey(), entry.getValue());
+			}
+			leases.clear();
+		}
+	}
+	
+	private synchronized void release(Key key, SFTPHomeFileSystem fileSystem)
+	{
+		fileSystem.referenceCount--;
+		if(fileSystem.referenceCount > 0)
+		{
+			return;
+		}
+		
+		long timeout = this.idleTimeout;
+		if(disposed || (timeout <= 0L) || (this.index.get(key) != fileSystem))
+		{
+			if(this.index.get(key) == fileSystem)
+			{
+				this.index.remove(key);
+			}
+			fileSystem.dispose();
+			return;
+		}
+		
+		fileSystem.idleSince = System.currentTimeMillis();
+		this.evictionExecutor.schedule(this::evictIdle, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		long timeout = this.idleTimeout;
+		
+		Iterator<SFTPHomeFileSystem> iterator = this.index.values().iterator();
+		while(iterator.hasNext())
+		{
+			SFTPHomeFileSystem fileSystem = iterator.next();
+			if((fileSystem.referenceCount > 0) || (fileSystem.idleSince < 0L))
+			{
+				continue;
+			}
+			if((timeout > 0L) && ((now - fileSystem.idleSince) < timeout))
+			{
+				continue;
+			}
+			iterator.remove();
+			fileSystem.dispose();
+		}
+	}
+	
+	/**
+	 * Closes all unreferenced file systems. Referenced file systems are closed by releasing last session.
+	 */
+	public void dispose()
+	{
+		synchronized (this)
+		{
+			this.disposed = true;
+			
+			Iterator<SFTPHomeFileSystem> iterator = this.index.values().iterator();
+			while(iterator.hasNext())
+			{
+				SFTPHomeFileSystem fileSystem = iterator.next();
+				if(fileSystem.referenceCount > 0)
+				{
+					continue;
+				}
+				iterator.remove();
+				fileSystem.dispose();
+			}
+		}
+		this.evictionExecutor.shutdownNow();
+	}
+	
+	private static class Key
+	{
+		private final Path home;
+		private final String owner;
+		private final int hashCode;
+		
+		private Key(Path home, String owner)
+		{
+			super();
+			this.home = home;
+			this.owner = owner;
+			this.hashCode = Objects.hash(home, owner);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+			{
+				return true;
+			}
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.home.equals(other.home) && Objects.equals(this.owner, other.owner);
+		}
+	}
+}
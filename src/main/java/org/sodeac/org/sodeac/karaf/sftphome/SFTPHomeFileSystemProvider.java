@@ -0,0 +1,707 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.sshd.common.file.root.RootedFileSystemProvider;
+
+/**
+ * Rooted file system provider opening all file content access by {@link #newFileChannel(Path, Set, FileAttribute...)}, 
+ * so channels are decorated by {@link SFTPHomeFileSystem} for sftp and scp alike.
+ * 
+ * Operations changing disk usage are charged to {@link HomeUsage} of file system, if quota is enabled.
+ * 
+ * Files shared by {@link DedupStore} are copied before they are opened for write or their attributes are changed. 
+ * Files written by file systems with deduplication are handed to store after close.
+ * 
+ * Attributes and directory listings are served by {@link AttributeCache} of file system, if enabled. 
+ * Operations changing files invalidate cached entries.
+ */
+public class SFTPHomeFileSystemProvider extends RootedFileSystemProvider
+{
+	private static final DirectoryStream.Filter<Path> ACCEPT_ALL = entry -> true;
+	private static final Set<OpenOption> DEFAULT_READ_OPTIONS = Collections.singleton(StandardOpenOption.READ);
+	private static final Set<OpenOption> DEFAULT_WRITE_OPTIONS = Collections.unmodifiableSet(new HashSet<OpenOption>(Arrays.asList
+	(
+		StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+	)));
+	
+	public SFTPHomeFileSystemProvider()
+	{
+		super();
+	}
+
+	@Override
+	public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+	{
+		FileSystem fileSystem = path.getFileSystem();
+		if(! (fileSystem instanceof SFTPHomeFileSystem))
+		{
+			return super.newFileChannel(path, options, attrs);
+		}
+		
+		SFTPHomeFileSystem homeFileSystem = (SFTPHomeFileSystem)fileSystem;
+		HomeUsage homeUsage = homeFileSystem.getHomeUsage();
+		long truncatedSize = 0L;
+		
+		if((homeUsage != null) && (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)))
+		{
+			if(options.contains(StandardOpenOption.TRUNCATE_EXISTING) && (! options.contains(StandardOpenOption.APPEND)))
+			{
+				truncatedSize = regularFileSize(path);
+			}
+			if(homeUsage.isHardLimitReached() && (options.contains(StandardOpenOption.CREATE_NEW) || options.contains(StandardOpenOption.CREATE)))
+			{
+				checkCreate(path);
+			}
+		}
+		
+		DedupStore dedupStore = homeFileSystem.getDedupStore();
+		Path file = null;
+		long generation = -1L;
+		if((dedupStore != null) && (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)))
+		{
+			file = unroot(path);
+			generation = dedupStore.beforeWrite(file, options.contains(StandardOpenOption.TRUNCATE_EXISTING) && (! options.contains(StandardOpenOption.APPEND)));
+		}
+		
+		AttributeCache attributeCache = homeFileSystem.getAttributeCache();
+		Path cachedFile = null;
+		if((attributeCache != null) && (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)))
+		{
+			cachedFile = unroot(path);
+			attributeCache.writerOpened(cachedFile);
+		}
+		
+		FileChannel channel;
+		try
+		{
+			channel = super.newFileChannel(path, options, attrs);
+			if(file != null)
+			{
+				channel = new DedupFileChannel(channel, dedupStore, file, generation, homeFileSystem.isDeduplicating());
+			}
+			if(cachedFile != null)
+			{
+				channel = new AttributeCacheFileChannel(channel, attributeCache, cachedFile);
+			}
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			if(file != null)
+			{
+				dedupStore.writerClosed(file, generation);
+			}
+			if(cachedFile != null)
+			{
+				attributeCache.writerClosed(cachedFile);
+			}
+			throw e;
+		}
+		
+		if(homeUsage != null)
+		{
+			homeUsage.release(truncatedSize);
+		}
+		return homeFileSystem.decorate(path, options, channel);
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+	{
+		return newFileChannel(path, options, attrs);
+	}
+
+	@Override
+	public InputStream newInputStream(Path path, OpenOption... options) throws IOException
+	{
+		Set<OpenOption> openOptions = DEFAULT_READ_OPTIONS;
+		if(options.length > 0)
+		{
+			openOptions = new HashSet<OpenOption>(Arrays.asList(options));
+			if(openOptions.contains(StandardOpenOption.WRITE) || openOptions.contains(StandardOpenOption.APPEND))
+			{
+				throw new UnsupportedOperationException("'" + StandardOpenOption.WRITE + "' or '" + StandardOpenOption.APPEND + "' not allowed");
+			}
+			openOptions.add(StandardOpenOption.READ);
+		}
+		return Channels.newInputStream(newFileChannel(path, openOptions));
+	}
+
+	@Override
+	public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException
+	{
+		Set<OpenOption> openOptions = DEFAULT_WRITE_OPTIONS;
+		if(options.length > 0)
+		{
+			openOptions = new HashSet<OpenOption>(Arrays.asList(options));
+			if(openOptions.contains(StandardOpenOption.READ))
+			{
+				throw new IllegalArgumentException("READ not allowed");
+			}
+			openOptions.add(StandardOpenOption.WRITE);
+		}
+		return Channels.newOutputStream(newFileChannel(path, openOptions));
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException
+	{
+		HomeUsage homeUsage = homeUsage(dir);
+		if((homeUsage != null) && homeUsage.isHardLimitReached())
+		{
+			checkCreate(dir);
+		}
+		try
+		{
+			super.createDirectory(dir, attrs);
+		}
+		finally
+		{
+			invalidate(dir);
+		}
+	}
+	
+	@Override
+	protected void createLink(Path link, Path existing, boolean symLink, FileAttribute<?>... attrs) throws IOException
+	{
+		try
+		{
+			super.createLink(link, existing, symLink, attrs);
+		}
+		finally
+		{
+			invalidate(link);
+		}
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException
+	{
+		beforeAttributeChange(path);
+		try
+		{
+			super.setAttribute(path, attribute, value, options);
+		}
+		finally
+		{
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options)
+	{
+		V view = super.getFileAttributeView(path, type, options);
+		
+		// user defined attributes describe content and are shared, other views unshare and invalidate on change only
+		
+		boolean shared = UserDefinedFileAttributeView.class.isAssignableFrom(type);
+		try
+		{
+			return AttributeChangeView.wrap(view, type, new AttributeChangeView.Listener()
+			{
+				@Override
+				public void beforeChange() throws IOException
+				{
+					if(! shared)
+					{
+						beforeAttributeChange(path);
+					}
+					invalidate(path);
+				}
+				
+				@Override
+				public void afterChange()
+				{
+					invalidate(path);
+				}
+			});
+		}
+		catch (IOException e) 
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void beforeAttributeChange(Path path) throws IOException
+	{
+		FileSystem fileSystem = path.getFileSystem();
+		DedupStore dedupStore = fileSystem instanceof SFTPHomeFileSystem ? ((SFTPHomeFileSystem)fileSystem).getDedupStore() : null;
+		if(dedupStore != null)
+		{
+			dedupStore.beforeAttributeChange(unroot(path));
+		}
+	}
+	
+	@Override
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException
+	{
+		AttributeCache attributeCache = attributeCache(path);
+		if(attributeCache == null)
+		{
+			return super.readAttributes(path, type, options);
+		}
+		
+		Path file = unroot(path);
+		String key = type.getName() + (isNoFollowLinks(options) ? "|nofollow" : "");
+		Object attributes = attributeCache.getAttributes(file, key);
+		if(type.isInstance(attributes))
+		{
+			return type.cast(attributes);
+		}
+		
+		long generation = file.getParent() == null ? -1L : attributeCache.getGeneration(file.getParent());
+		A readAttributes = super.readAttributes(path, type, options);
+		attributeCache.putAttributes(file, key, readAttributes, generation);
+		return readAttributes;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException
+	{
+		AttributeCache attributeCache = attributeCache(path);
+		if(attributeCache == null)
+		{
+			return super.readAttributes(path, attributes, options);
+		}
+		
+		Path file = unroot(path);
+		String key = attributes + (isNoFollowLinks(options) ? "|nofollow" : "");
+		Object cachedAttributes = attributeCache.getAttributes(file, key);
+		if(cachedAttributes instanceof Map)
+		{
+			return new HashMap<String, Object>((Map<String, Object>)cachedAttributes);
+		}
+		
+		long generation = file.getParent() == null ? -1L : attributeCache.getGeneration(file.getParent());
+		Map<String, Object> readAttributes = super.readAttributes(path, attributes, options);
+		attributeCache.putAttributes(file, key, Collections.unmodifiableMap(new HashMap<String, Object>(readAttributes)), generation);
+		return readAttributes;
+	}
+	
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException
+	{
+		AttributeCache attributeCache = attributeCache(dir);
+		if(attributeCache == null)
+		{
+			return super.newDirectoryStream(dir, filter);
+		}
+		
+		Path localDir = unroot(dir);
+		List<String> listing = attributeCache.getListing(localDir);
+		if(listing != null)
+		{
+			return new CachedDirectoryStream(dir, listing, filter);
+		}
+		
+		// directory is watched before it is read, generation detects changes while reading
+		
+		long generation = attributeCache.getGeneration(localDir);
+		DirectoryStream<Path> directoryStream = super.newDirectoryStream(dir, ACCEPT_ALL);
+		if(generation < 0L)
+		{
+			return new RecordingDirectoryStream(directoryStream, filter, localDir, null, 0L, 0);
+		}
+		return new RecordingDirectoryStream(directoryStream, filter, localDir, attributeCache, generation, attributeCache.getMaxListing());
+	}
+	
+	private AttributeCache attributeCache(Path path)
+	{
+		FileSystem fileSystem = path.getFileSystem();
+		return fileSystem instanceof SFTPHomeFileSystem ? ((SFTPHomeFileSystem)fileSystem).getAttributeCache() : null;
+	}
+	
+	private void invalidate(Path path)
+	{
+		AttributeCache attributeCache = attributeCache(path);
+		if(attributeCache != null)
+		{
+			attributeCache.invalidate(unroot(path));
+		}
+	}
+	
+	private static boolean isNoFollowLinks(LinkOption... options)
+	{
+		for(LinkOption option : options)
+		{
+			if(option == LinkOption.NOFOLLOW_LINKS)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void delete(Path path) throws IOException
+	{
+		HomeUsage homeUsage = homeUsage(path);
+		if(homeUsage == null)
+		{
+			try
+			{
+				super.delete(path);
+			}
+			finally
+			{
+				invalidate(path);
+			}
+			return;
+		}
+		
+		long size = regularFileSize(path);
+		super.delete(path);
+		homeUsage.release(size);
+	}
+
+	@Override
+	public boolean deleteIfExists(Path path) throws IOException
+	{
+		HomeUsage homeUsage = homeUsage(path);
+		if(homeUsage == null)
+		{
+			try
+			{
+				return super.deleteIfExists(path);
+			}
+			finally
+			{
+				invalidate(path);
+			}
+		}
+		
+		long size = regularFileSize(path);
+		boolean deleted = super.deleteIfExists(path);
+		if(deleted)
+		{
+			homeUsage.release(size);
+		}
+		return deleted;
+	}
+
+	@Override
+	public void copy(Path source, Path target, CopyOption... options) throws IOException
+	{
+		HomeUsage homeUsage = homeUsage(target);
+		if(homeUsage == null)
+		{
+			try
+			{
+				super.copy(source, target, options);
+			}
+			finally
+			{
+				invalidate(target);
+			}
+			return;
+		}
+		
+		long sourceSize = regularFileSize(source);
+		long targetSize = regularFileSize(target);
+		homeUsage.reserve(sourceSize - targetSize);
+		try
+		{
+			super.copy(source, target, options);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			homeUsage.release(sourceSize - targetSize);
+			throw e;
+		}
+		if(targetSize > sourceSize)
+		{
+			homeUsage.release(targetSize - sourceSize);
+		}
+	}
+
+	@Override
+	public void move(Path source, Path target, CopyOption... options) throws IOException
+	{
+		HomeUsage homeUsage = homeUsage(target);
+		if((homeUsage == null) || (homeUsage != homeUsage(source)))
+		{
+			try
+			{
+				super.move(source, target, options);
+			}
+			finally
+			{
+				invalidate(source);
+				invalidate(target);
+			}
+		}
+		else
+		{
+			// replaced target is released, moved file stays in same home
+			
+			long targetSize = isSameFile(source, target) ? 0L : regularFileSize(target);
+			super.move(source, target, options);
+			homeUsage.release(targetSize);
+		}
+		
+		FileSystem fileSystem = target.getFileSystem();
+		UploadEventPublisher uploadEventPublisher = fileSystem instanceof SFTPHomeFileSystem ? ((SFTPHomeFileSystem)fileSystem).getUploadEventPublisher() : null;
+		if((uploadEventPublisher != null) && uploadEventPublisher.isActive())
+		{
+			BasicFileAttributes attributes = readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if(attributes.isRegularFile())
+			{
+				uploadEventPublisher.renamed
+				(
+					(SFTPHomeFileSystem)fileSystem, source.toAbsolutePath().normalize().toString(), 
+					target.toAbsolutePath().normalize().toString(), attributes.size()
+				);
+			}
+		}
+	}
+	
+	private static HomeUsage homeUsage(Path path)
+	{
+		FileSystem fileSystem = path.getFileSystem();
+		return fileSystem instanceof SFTPHomeFileSystem ? ((SFTPHomeFileSystem)fileSystem).getHomeUsage() : null;
+	}
+	
+	private long regularFileSize(Path path) throws IOException
+	{
+		try
+		{
+			BasicFileAttributes attributes = readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return attributes.isRegularFile() ? attributes.size() : 0L;
+		}
+		catch (NoSuchFileException e) 
+		{
+			return 0L;
+		}
+	}
+	
+	private void checkCreate(Path path) throws IOException
+	{
+		try
+		{
+			readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		}
+		catch (NoSuchFileException e) 
+		{
+			throw new QuotaExceededException("disk quota exceeded");
+		}
+	}
+	
+	private static boolean accept(DirectoryStream.Filter<? super Path> filter, Path entry)
+	{
+		try
+		{
+			return filter.accept(entry);
+		}
+		catch (IOException e) 
+		{
+			throw new DirectoryIteratorException(e);
+		}
+	}
+	
+	/**
+	 * Directory stream of cached listing.
+	 */
+	private static class CachedDirectoryStream implements DirectoryStream<Path>
+	{
+		private final Path dir;
+		private final List<String> listing;
+		private final DirectoryStream.Filter<? super Path> filter;
+		private boolean iterated = false;
+		
+		private CachedDirectoryStream(Path dir, List<String> listing, DirectoryStream.Filter<? super Path> filter)
+		{
+			super();
+			this.dir = dir;
+			this.listing = listing;
+			this.filter = filter;
+		}
+		
+		@Override
+		public Iterator<Path> iterator()
+		{
+			if(iterated)
+			{
+				throw new IllegalStateException("iterator already obtained");
+			}
+			iterated = true;
+			
+			Iterator<String> names = listing.iterator();
+			return new Iterator<Path>()
+			{
+				private Path next = null;
+				
+				@Override
+				public boolean hasNext()
+				{
+					while((next == null) && names.hasNext())
+					{
+						Path entry = dir.resolve(names.next());
+						if(accept(filter, entry))
+						{
+							next = entry;
+						}
+					}
+					return next != null;
+				}
+				
+				@Override
+				public Path next()
+				{
+					if(! hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+					Path entry = next;
+					next = null;
+					return entry;
+				}
+			};
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+		}
+	}
+	
+	/**
+	 * Directory stream recording names of entries. Complete listing is stored in cache, 
+	 * if directory is not larger than limit.
+	 */
+	private static class RecordingDirectoryStream implements DirectoryStream<Path>
+	{
+		private final DirectoryStream<Path> delegate;
+		private final DirectoryStream.Filter<? super Path> filter;
+		private final AttributeCache attributeCache;
+		private final Path localDir;
+		private final long generation;
+		private final int limit;
+		
+		private RecordingDirectoryStream
+		(
+			DirectoryStream<Path> delegate, DirectoryStream.Filter<? super Path> filter, Path localDir, 
+			AttributeCache attributeCache, long generation, int limit
+		)
+		{
+			super();
+			this.delegate = delegate;
+			this.filter = filter;
+			this.localDir = localDir;
+			this.attributeCache = attributeCache;
+			this.generation = generation;
+			this.limit = limit;
+		}
+		
+		@Override
+		public Iterator<Path> iterator()
+		{
+			Iterator<Path> entries = delegate.iterator();
+			return new Iterator<Path>()
+			{
+				private List<String> names = attributeCache == null ? null : new ArrayList<String>();
+				private Path next = null;
+				
+				@Override
+				public boolean hasNext()
+				{
+					while((next == null) && entries.hasNext())
+					{
+						Path entry = entries.next();
+						record(entry);
+						if(accept(filter, entry))
+						{
+							next = entry;
+						}
+					}
+					if((next == null) && (names != null))
+					{
+						attributeCache.putListing(localDir, names, generation);
+						names = null;
+					}
+					return next != null;
+				}
+				
+				private void record(Path entry)
+				{
+					if(names == null)
+					{
+						return;
+					}
+					if(names.size() >= limit)
+					{
+						// large directories are streamed only
+						
+						names = null;
+						return;
+					}
+					names.add(entry.getFileName().toString());
+				}
+				
+				@Override
+				public Path next()
+				{
+					if(! hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+					Path entry = next;
+					next = null;
+					return entry;
+				}
+			};
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.session.Session;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.SessionAccess;
+
+/**
+ * Statistics of sftp operations, scp transfers and shell starts. Operations are recorded in total, per role of user and per session. 
+ * Only roles named in configuration are recorded (see {@link RolePolicy}), and at most {@value #MAX_ROLES} roles are tracked. Gauges of shell executors are summed over all managed ssh servers.
+ */
+public class SFTPHomeMetrics implements SFTPHomeMetricsMBean
+{
+	public enum Operation {OPEN, READ, WRITE, READDIR, STAT, RENAME, REMOVE, SCP_UPLOAD, SCP_DOWNLOAD, SHELL_START}
+	
+	private static final AttributeKey<SessionMetrics> SESSION_METRICS_ATTRIBUTE_KEY = new AttributeKey<SessionMetrics>();
+	private static final Operation[] OPERATIONS = Operation.values();
+	
+	/**
+	 * maximum number of roles with own metrics, roles of removed configuration entries are kept until restart
+	 */
+	public static final int MAX_ROLES = 64;
+	
+	private final OperationMetrics[] totals = newOperationMetrics();
+	private final Map<String,OperationMetrics[]> roles = new ConcurrentHashMap<String,OperationMetrics[]>();
+	private final Set<SessionMetrics> sessions = ConcurrentHashMap.newKeySet();
+	private final Set<SFTPHomeShellExecutor> shellExecutors = new CopyOnWriteArraySet<SFTPHomeShellExecutor>();
+	
+	private static OperationMetrics[] newOperationMetrics()
+	{
+		OperationMetrics[] operationMetrics = new OperationMetrics[OPERATIONS.length];
+		for(int i = 0; i < operationMetrics.length; i++)
+		{
+			operationMetrics[i] = new OperationMetrics();
+		}
+		return operationMetrics;
+	}
+	
+	/**
+	 * Records completed operation.
+	 * 
+	 * @param session ssh session
+	 * @param operation type of operation
+	 * @param nanos duration of operation
+	 * @param bytes transferred bytes, or number of entries for readdir
+	 * @param failed true, if operation failed
+	 */
+	public void record(Session session, Operation operation, long nanos, long bytes, boolean failed)
+	{
+		int index = operation.ordinal();
+		this.totals[index].record(nanos, bytes, failed);
+		
+		if(session == null)
+		{
+			return;
+		}
+		
+		SessionMetrics sessionMetrics = sessionMetrics(session);
+		sessionMetrics.operations[index].record(nanos, bytes, failed);
+		for(OperationMetrics[] roleMetrics : sessionMetrics.roles)
+		{
+			roleMetrics[index].record(nanos, bytes, failed);
+		}
+	}
+	
+	private SessionMetrics sessionMetrics(Session session)
+	{
+		SessionMetrics sessionMetrics = session.getAttribute(SESSION_METRICS_ATTRIBUTE_KEY);
+		if(sessionMetrics != null)
+		{
+			return sessionMetrics;
+		}
+		
+		synchronized (session)
+		{
+			sessionMetrics = session.getAttribute(SESSION_METRICS_ATTRIBUTE_KEY);
+			if(sessionMetrics != null)
+			{
+				return sessionMetrics;
+			}
+			
+			// roles are known after access of session is resolved by role policy
+			
+			SessionAccess sessionAccess = session.getAttribute(RolePolicy.SESSION_ACCESS_ATTRIBUTE_KEY);
+			List<OperationMetrics[]> roleMetrics = new ArrayList<OperationMetrics[]>();
+			if(sessionAccess != null)
+			{
+				for(String role : sessionAccess.getRoles())
+				{
+					OperationMetrics[] metrics = this.roles.get(role);
+					if((metrics == null) && (this.roles.size() < MAX_ROLES))
+					{
+						metrics = this.roles.computeIfAbsent(role, r -> newOperationMetrics());
+					}
+					if(metrics != null)
+					{
+						roleMetrics.add(metrics);
+					}
+				}
+			}
+			
+			final SessionMetrics newSessionMetrics = new SessionMetrics
+			(
+				session.getUsername() + "@" + session.getIoSession().getRemoteAddress() + "#" + session.getIoSession().getId(), 
+				roleMetrics.toArray(new OperationMetrics[roleMetrics.size()][])
+			);
+			session.setAttribute(SESSION_METRICS_ATTRIBUTE_KEY, newSessionMetrics);
+			this.sessions.add(newSessionMetrics);
+			session.addCloseFutureListener(future -> this.sessions.remove(newSessionMetrics));
+			return newSessionMetrics;
+		}
+	}
+	
+	public OperationMetrics getTotal(Operation operation)
+	{
+		return this.totals[operation.ordinal()];
+	}
+	
+	/**
+	 * 
+	 * @return metrics of all operations per role, sorted by role
+	 */
+	public Map<String,OperationMetrics[]> getRoleMetrics()
+	{
+		return Collections.unmodifiableMap(new TreeMap<String,OperationMetrics[]>(this.roles));
+	}
+	
+	/**
+	 * 
+	 * @return metrics of all operations per active session, sorted by session
+	 */
+	public Map<String,OperationMetrics[]> getSessionMetrics()
+	{
+		Map<String,OperationMetrics[]> sessionMetrics = new TreeMap<String,OperationMetrics[]>();
+		for(SessionMetrics session : this.sessions)
+		{
+			sessionMetrics.put(session.name, session.operations);
+		}
+		return Collections.unmodifiableMap(sessionMetrics);
+	}
+
+	@Override
+	public int getActiveSessions()
+	{
+		return this.sessions.size();
+	}
+
+	public void addShellExecutor(SFTPHomeShellExecutor shellExecutor)
+	{
+		this.shellExecutors.add(shellExecutor);
+	}
+	
+	public void removeShellExecutor(SFTPHomeShellExecutor shellExecutor)
+	{
+		this.shellExecutors.remove(shellExecutor);
+	}
+	
+	@Override
+	public int getShellActive()
+	{
+		int active = 0;
+		for(SFTPHomeShellExecutor shellExecutor : this.shellExecutors)
+		{
+			active += shellExecutor.getActiveCount();
+		}
+		return active;
+	}
+	
+	@Override
+	public int getShellQueued()
+	{
+		int queued = 0;
+		for(SFTPHomeShellExecutor shellExecutor : this.shellExecutors)
+		{
+			queued += shellExecutor.getQueueSize();
+		}
+		return queued;
+	}
+	
+	@Override
+	public long getShellRejected()
+	{
+		long rejected = 0L;
+		for(SFTPHomeShellExecutor shellExecutor : this.shellExecutors)
+		{
+			rejected += shellExecutor.getRejectedCount();
+		}
+		return rejected;
+	}
+
+	@Override
+	public String[] getStatistics()
+	{
+		List<String> lines = new ArrayList<String>();
+		addLines(lines, null, this.totals);
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public String[] getRoleStatistics()
+	{
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String,OperationMetrics[]> entry : getRoleMetrics().entrySet())
+		{
+			addLines(lines, entry.getKey(), entry.getValue());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public String[] getSessionStatistics()
+	{
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String,OperationMetrics[]> entry : getSessionMetrics().entrySet())
+		{
+			addLines(lines, entry.getKey(), entry.getValue());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+	
+	private static void addLines(List<String> lines, String scope, OperationMetrics[] operationMetrics)
+	{
+		for(Operation operation : OPERATIONS)
+		{
+			OperationMetrics metrics = operationMetrics[operation.ordinal()];
+			if(metrics.isEmpty())
+			{
+				continue;
+			}
+			lines.add((scope == null ? "" : scope + " ") + operation.name().toLowerCase() + " " + metrics);
+		}
+	}
+
+	@Override
+	public void reset()
+	{
+		for(OperationMetrics metrics : this.totals)
+		{
+			metrics.reset();
+		}
+		for(OperationMetrics[] roleMetrics : this.roles.values())
+		{
+			for(OperationMetrics metrics : roleMetrics)
+			{
+				metrics.reset();
+			}
+		}
+		for(SessionMetrics session : this.sessions)
+		{
+			for(OperationMetrics metrics : session.operations)
+			{
+				metrics.reset();
+			}
+		}
+	}
+	
+	private static class SessionMetrics
+	{
+		private final String name;
+		private final OperationMetrics[] operations = newOperationMetrics();
+		private final OperationMetrics[][] roles;
+		
+		private SessionMetrics(String name, OperationMetrics[][] roles)
+		{
+			super();
+			this.name = name;
+			this.roles = roles;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+/**
+ * Management interface of {@link SFTPHomeMetrics}. Statistics are reported as one line per operation.
+ */
+public interface SFTPHomeMetricsMBean
+{
+	public static final String OBJECT_NAME = "org.sodeac.karaf.sftphome:type=statistics";
+	
+	public int getActiveSessions();
+	
+	public int getShellActive();
+	
+	public int getShellQueued();
+	
+	public long getShellRejected();
+	
+	public String[] getStatistics();
+	
+	public String[] getRoleStatistics();
+	
+	public String[] getSessionStatistics();
+	
+	public void reset();
+}
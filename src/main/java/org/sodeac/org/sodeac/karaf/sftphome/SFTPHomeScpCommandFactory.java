@@ -0,0 +1,60 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Map;
+
+import org.apache.karaf.shell.api.console.SessionFactory;
+import org.apache.karaf.shell.ssh.ShellCommand;
+import org.apache.sshd.common.scp.ScpHelper;
+import org.apache.sshd.server.scp.ScpCommandFactory;
+
+/**
+ * Scp command factory with configurable buffer sizes, executor and file opener. Commands other than scp are delegated to karaf shell.
+ */
+public class SFTPHomeScpCommandFactory extends ScpCommandFactory
+{
+	private final SFTPHomeExecutorProvider executorProvider;
+	private final SFTPHomeScpFileOpener fileOpener;
+	
+	public SFTPHomeScpCommandFactory(SessionFactory sessionFactory, Map<String, ?> properties, SFTPHomeMetrics metrics)
+	{
+		super();
+		this.executorProvider = new SFTPHomeExecutorProvider(properties, "scpexecutor", "ScpCommand");
+		this.fileOpener = new SFTPHomeScpFileOpener(properties);
+		
+		super.setDelegateCommandFactory((channel, command) -> new ShellCommand(sessionFactory, command));
+		super.setExecutorServiceProvider(this.executorProvider);
+		super.setScpFileOpener(this.fileOpener);
+		super.addEventListener(new SFTPHomeScpMetricsListener(metrics));
+		
+		this.refresh(properties);
+	}
+	
+	public void refresh(Map<String, ?> properties)
+	{
+		super.setSendBufferSize((int)Math.max(ScpHelper.MIN_SEND_BUFFER_SIZE, SFTPHomeSetup.getPropertyLong(properties, "scpsendbuffersize", 65536L)));
+		super.setReceiveBufferSize((int)Math.max(ScpHelper.MIN_RECEIVE_BUFFER_SIZE, SFTPHomeSetup.getPropertyLong(properties, "scpreceivebuffersize", 65536L)));
+		this.executorProvider.refresh(properties);
+		this.fileOpener.refresh(properties);
+	}
+	
+	public void dispose()
+	{
+		this.executorProvider.dispose();
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sshd.common.scp.helpers.DefaultScpFileOpener;
+import org.apache.sshd.common.session.Session;
+
+/**
+ * Scp file opener streaming large files through pooled direct buffers. Files with size not less than threshold are read and 
+ * written by file channel in chunks of buffer size, instead of a native write for each chunk of scp buffer size. 
+ * Smaller files, and large files while all direct buffers are in use, are handled by default file opener.
+ */
+public class SFTPHomeScpFileOpener extends DefaultScpFileOpener
+{
+	private volatile DirectBufferPool bufferPool;
+	private volatile long largeFileThreshold;
+	
+	public SFTPHomeScpFileOpener(Map<String, ?> properties)
+	{
+		super();
+		this.refresh(properties);
+	}
+	
+	public void refresh(Map<String, ?> properties)
+	{
+		int bufferSize = DirectBufferPool.bufferSize(SFTPHomeSetup.getPropertyLong(properties, "scplargefilebuffersize", 1048576L));
+		int maxBuffers = (int)Math.max(0L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "scplargefilebuffers", 16L)));
+		
+		DirectBufferPool bufferPool = this.bufferPool;
+		if((bufferPool == null) || (bufferPool.getBufferSize() != bufferSize) || (bufferPool.getMaxBuffers() != maxBuffers))
+		{
+			this.bufferPool = new DirectBufferPool(bufferSize, maxBuffers);
+		}
+		
+		this.largeFileThreshold = SFTPHomeSetup.getPropertyLong(properties, "scplargefilethreshold", 8388608L);
+	}
+
+	@Override
+	public InputStream openRead(Session session, Path file, long size, Set<PosixFilePermission> permissions, OpenOption... options) throws IOException
+	{
+		long threshold = this.largeFileThreshold;
+		DirectBufferPool bufferPool = this.bufferPool;
+		ByteBuffer buffer = ((threshold <= 0L) || (size < threshold)) ? null : bufferPool.tryAcquire();
+		if(buffer == null)
+		{
+			return super.openRead(session, file, size, permissions, options);
+		}
+		
+		Set<OpenOption> openOptions = new HashSet<OpenOption>(Arrays.asList(options));
+		openOptions.add(StandardOpenOption.READ);
+		try
+		{
+			return new ChannelInputStream(FileChannel.open(file, openOptions), bufferPool, buffer);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			bufferPool.release(buffer);
+			throw e;
+		}
+	}
+
+	@Override
+	public OutputStream openWrite(Session session, Path file, long size, Set<PosixFilePermission> permissions, OpenOption... options) throws IOException
+	{
+		long threshold = this.largeFileThreshold;
+		DirectBufferPool bufferPool = this.bufferPool;
+		ByteBuffer buffer = ((threshold <= 0L) || (size < threshold)) ? null : bufferPool.tryAcquire();
+		if(buffer == null)
+		{
+			return super.openWrite(session, file, size, permissions, options);
+		}
+		
+		Set<OpenOption> openOptions = new HashSet<OpenOption>(Arrays.asList(resolveOpenOptions(session, file, size, permissions, options)));
+		if(openOptions.isEmpty())
+		{
+			openOptions.add(StandardOpenOption.CREATE);
+			openOptions.add(StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		openOptions.add(StandardOpenOption.WRITE);
+		try
+		{
+			return new ChannelOutputStream(FileChannel.open(file, openOptions), bufferPool, buffer);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			bufferPool.release(buffer);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Input stream filling a direct buffer from file channel.
+	 */
+	private static class ChannelInputStream extends InputStream
+	{
+		private final FileChannel channel;
+		private final DirectBufferPool bufferPool;
+		private ByteBuffer buffer;
+		private boolean eof = false;
+		
+		private ChannelInputStream(FileChannel channel, DirectBufferPool bufferPool, ByteBuffer buffer)
+		{
+			super();
+			this.channel = channel;
+			this.bufferPool = bufferPool;
+			this.buffer = buffer;
+			this.buffer.flip();
+		}
+		
+		private boolean fill() throws IOException
+		{
+			if(this.buffer == null)
+			{
+				throw new IOException("stream closed");
+			}
+			if(this.buffer.hasRemaining())
+			{
+				return true;
+			}
+			if(this.eof)
+			{
+				return false;
+			}
+			
+			this.buffer.clear();
+			int read;
+			do
+			{
+				read = this.channel.read(this.buffer);
+			}
+			while((read == 0) && this.buffer.hasRemaining());
+			this.buffer.flip();
+			
+			if(read < 0)
+			{
+				this.eof = true;
+			}
+			return this.buffer.hasRemaining();
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(! fill())
+			{
+				return -1;
+			}
+			return this.buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if(length == 0)
+			{
+				return 0;
+			}
+			if(! fill())
+			{
+				return -1;
+			}
+			int count = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return this.buffer == null ? 0 : this.buffer.remaining();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if(this.buffer != null)
+			{
+				this.bufferPool.release(this.buffer);
+				this.buffer = null;
+			}
+			this.channel.close();
+		}
+	}
+	
+	/**
+	 * Output stream collecting bytes in a direct buffer, that is written to file channel if full.
+	 */
+	private static class ChannelOutputStream extends OutputStream
+	{
+		private final FileChannel channel;
+		private final DirectBufferPool bufferPool;
+		private ByteBuffer buffer;
+		
+		private ChannelOutputStream(FileChannel channel, DirectBufferPool bufferPool, ByteBuffer buffer)
+		{
+			super();
+			this.channel = channel;
+			this.bufferPool = bufferPool;
+			this.buffer = buffer;
+		}
+		
+		private void drain() throws IOException
+		{
+			this.buffer.flip();
+			while(this.buffer.hasRemaining())
+			{
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if(this.buffer == null)
+			{
+				throw new IOException("stream closed");
+			}
+			if(! this.buffer.hasRemaining())
+			{
+				drain();
+			}
+			this.buffer.put((byte)b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			if(this.buffer == null)
+			{
+				throw new IOException("stream closed");
+			}
+			while(length > 0)
+			{
+				if(! this.buffer.hasRemaining())
+				{
+					drain();
+				}
+				int count = Math.min(length, this.buffer.remaining());
+				this.buffer.put(bytes, offset, count);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if(this.buffer != null)
+			{
+				drain();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if(this.buffer == null)
+			{
+				return;
+			}
+			try
+			{
+				drain();
+			}
+			finally 
+			{
+				this.bufferPool.release(this.buffer);
+				this.buffer = null;
+				this.channel.close();
+			}
+		}
+	}
+}
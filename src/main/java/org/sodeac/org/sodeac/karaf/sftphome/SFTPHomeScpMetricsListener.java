@@ -0,0 +1,72 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.scp.ScpTransferEventListener;
+import org.apache.sshd.common.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.SFTPHomeMetrics.Operation;
+
+/**
+ * Records scp file transfers to {@link SFTPHomeMetrics} and reports bytes and duration of each transfer to debug log. 
+ * Start and end of a file transfer are signaled by same thread.
+ */
+public class SFTPHomeScpMetricsListener implements ScpTransferEventListener
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeScpMetricsListener.class);
+	
+	private final SFTPHomeMetrics metrics;
+	private final ThreadLocal<long[]> transferStart = ThreadLocal.withInitial(() -> new long[1]);
+	
+	public SFTPHomeScpMetricsListener(SFTPHomeMetrics metrics)
+	{
+		super();
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void startFileEvent(Session session, FileOperation op, Path file, long length, Set<PosixFilePermission> perms) throws IOException
+	{
+		this.transferStart.get()[0] = System.nanoTime();
+	}
+
+	@Override
+	public void endFileEvent(Session session, FileOperation op, Path file, long length, Set<PosixFilePermission> perms, Throwable thrown) throws IOException
+	{
+		long nanos = System.nanoTime() - this.transferStart.get()[0];
+		this.metrics.record(session, op == FileOperation.RECEIVE ? Operation.SCP_UPLOAD : Operation.SCP_DOWNLOAD, nanos, length, thrown != null);
+		
+		if(LOGGER.isDebugEnabled())
+		{
+			LOGGER.debug
+			(
+				String.format
+				(
+					"scp %s of %s by %s: %d bytes in %d ms (%.1f MB/s)%s", op == FileOperation.RECEIVE ? "upload" : "download", file, session.getUsername(), 
+					length, TimeUnit.NANOSECONDS.toMillis(nanos), nanos > 0L ? (length * 1e9 / nanos / (1024 * 1024)) : 0.0, thrown == null ? "" : " failed: " + thrown
+				)
+			);
+		}
+	}
+}
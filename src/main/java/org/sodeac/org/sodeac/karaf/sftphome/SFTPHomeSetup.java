@@ -1,283 +1,833 @@
-/*
- *  Copyright (c) 2019, 2020 Sebastian Palarus
- *  
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *  You may obtain a copy of the License at
- *
- *       http://www.apache.org/licenses/LICENSE-2.0
- *
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and
- *  limitations under the License.
- *  under the License.
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
  */
-package org.sodeac.org.sodeac.karaf.sftphome;
-
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-
-import org.apache.karaf.shell.api.console.SessionFactory;
-import org.apache.karaf.shell.ssh.ShellCommand;
-import org.apache.sshd.common.file.FileSystemFactory;
-import org.apache.sshd.server.SshServer;
-import org.apache.sshd.server.command.CommandFactory;
-import org.apache.sshd.server.scp.ScpCommandFactory;
-import org.apache.sshd.server.shell.ShellFactory;
-import org.apache.sshd.server.subsystem.SubsystemFactory;
-import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
-import org.osgi.framework.ServiceReference;
-import org.osgi.service.component.ComponentContext;
-import org.osgi.service.component.annotations.Activate;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.ConfigurationPolicy;
-import org.osgi.service.component.annotations.Deactivate;
-import org.osgi.service.component.annotations.Modified;
-import org.osgi.service.component.annotations.Reference;
-import org.osgi.service.component.annotations.ReferenceCardinality;
-import org.osgi.service.component.annotations.ReferencePolicy;
-import org.osgi.service.metatype.annotations.AttributeDefinition;
-import org.osgi.service.metatype.annotations.AttributeType;
-import org.osgi.service.metatype.annotations.ObjectClassDefinition;
-
-// based on https://github.com/apache/karaf/tree/master/shell/ssh
-
-@Component
-(
-	immediate=true,
-	configurationPid	= SFTPHomeSetup.SERVICE_PID, 
-	configurationPolicy	= ConfigurationPolicy.REQUIRE,
-	service= SFTPHomeSetup.class
-)
-public class SFTPHomeSetup 
-{
-	public static final String SERVICE_PID = "org.sodeac.org.sodeac.karaf.sftphome";
-	
-	@ObjectClassDefinition(name=SERVICE_PID, description="Configuration Setup SFTP",pid=SFTPHomeSetup.SERVICE_PID)
-	interface Config
-	{
-		@AttributeDefinition(name="homeroot",description = "directory contains private homedirectories of users" , defaultValue="./data/home" ,type=AttributeType.STRING)
-		String homeroot();
-		
-		@AttributeDefinition(name="rolesecureshell",description = "role for users with access to secure shell" , defaultValue="sshconsole" ,type=AttributeType.STRING)
-		String rolesecureshell();
-		
-		@AttributeDefinition(name="rolehomedir",description = "role for users with private home directory" , defaultValue="sftphome" ,type=AttributeType.STRING)
-		String rolehomedir();
-		
-		@AttributeDefinition(name="rolekarafbasedir",description = "role for users with access to karaf base directory" , defaultValue="admin" ,type=AttributeType.STRING)
-		String rolekarafbasedir();
-	}
-	
-	private SessionFactory sessionFactory = null;
-	private Set<SshServer> pending = new HashSet<SshServer>();
-	private Map<SshServer, ManagedSSHServer> managedServerIndex = new HashMap<SshServer, ManagedSSHServer>(); 
-	
-	protected ComponentContext context = null;
-	protected Map<String, ?> properties = null;
-	
-	@Activate
-	public void activate(ComponentContext context, Map<String, ?> properties) throws Exception
-	{
-		this.context = context;
-		this.properties = properties;
-		
-		this.setupPendingServer();
-		
-	}
-	
-	@Deactivate
-	public void deactivate(ComponentContext context) throws Exception 
-	{
-		this.properties = null;
-		this.context = null;
-		
-		for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
-		{
-			SshServer sshServer = entry.getKey();
-			ManagedSSHServer managedSSHServer = entry.getValue();
-			
-			sshServer.setShellFactory(managedSSHServer.originalShellFactory);
-			sshServer.setFileSystemFactory(managedSSHServer.originalFileSystemFactory);
-			sshServer.setCommandFactory(managedSSHServer.originalCommandFactory);
-			sshServer.setSubsystemFactories(managedSSHServer.originalSubsystemFactories);
-		}
-		this.managedServerIndex.clear();
-		this.pending.clear();
-	}
-	
-	@Modified 
-	public void modified(Map<String, ?> properties) throws Exception
-	{
-		this.properties = properties;
-		for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
-		{
-			SshServer sshServer = entry.getKey();
-			
-			if(sshServer.getShellFactory() instanceof SFTPHomeShellFactory)
-			{
-				((SFTPHomeShellFactory)sshServer.getShellFactory()).refresh(this.properties);
-			}
-			if(sshServer.getFileSystemFactory() instanceof SFTPHomeFileSystemFactory)
-			{
-				((SFTPHomeFileSystemFactory)sshServer.getFileSystemFactory()).refresh(this.properties);
-			}
-		}
-	}
-	
-	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
-	public void bindSessionFactory(ServiceReference<SessionFactory> serviceReference, SessionFactory sessionFactory)
-	{
-		if(! "org.apache.karaf.shell.core".equals(serviceReference.getBundle().getSymbolicName()))
-		{
-			return;
-		}
-		this.sessionFactory = sessionFactory;
-		this.setupPendingServer();
-	}
-	
-	public void unbindSessionFactory(ServiceReference<SessionFactory> serviceReference, SessionFactory sessionFactory) 
-	{
-		if(this.sessionFactory == sessionFactory)
-		{
-			this.sessionFactory = null;
-			
-			for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
-			{
-				SshServer sshServer = entry.getKey();
-				ManagedSSHServer managedSSHServer = entry.getValue();
-				
-				sshServer.setShellFactory(managedSSHServer.originalShellFactory);
-				sshServer.setFileSystemFactory(managedSSHServer.originalFileSystemFactory);
-				sshServer.setCommandFactory(managedSSHServer.originalCommandFactory);
-				sshServer.setSubsystemFactories(managedSSHServer.originalSubsystemFactories);
-				this.pending.add(sshServer);
-			}
-			managedServerIndex.clear();
-		}
-	}
-	
-	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
-	public void bindSshServer(ServiceReference<SshServer> serviceReference,SshServer sshServer)
-	{
-		if(! "org.apache.karaf.shell.ssh".equals(serviceReference.getBundle().getSymbolicName()))
-		{
-			return;
-		}
-		
-		this.pending.add(sshServer);
-		this.setupPendingServer();
-        
-	}
-	
-	private void setupPendingServer()
-	{
-		if(this.sessionFactory == null)
-		{
-			return;
-		}
-		
-		if(this.properties == null)
-		{
-			return;
-		}
-		
-		if((this.pending == null) || pending.isEmpty())
-		{
-			return;
-		}
-		
-		for(SshServer sshServer : this.pending)
-		{
-			if(managedServerIndex.containsKey(sshServer))
-			{
-				continue;
-			}
-			
-			ManagedSSHServer managedSSHServer = new ManagedSSHServer();
-			managedSSHServer.originalShellFactory = sshServer.getShellFactory();
-			managedSSHServer.originalFileSystemFactory = sshServer.getFileSystemFactory(); 
-			managedSSHServer.originalCommandFactory = sshServer.getCommandFactory();
-			managedSSHServer.originalSubsystemFactories = sshServer.getSubsystemFactories();
-			
-			sshServer.setShellFactory(new SFTPHomeShellFactory(sessionFactory, this.properties,new Class[] {org.apache.karaf.jaas.boot.principal.RolePrincipal.class}));
-			sshServer.setFileSystemFactory(new SFTPHomeFileSystemFactory(this.properties,new Class[] {org.apache.karaf.jaas.boot.principal.RolePrincipal.class}));
-			sshServer.setCommandFactory(new ScpCommandFactory.Builder().withDelegate((channel, cmd) -> new ShellCommand(sessionFactory, cmd)).build());
-			sshServer.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
-			
-			managedServerIndex.put(sshServer, managedSSHServer);
-		}
-		this.pending.clear();
-	}
-	
-	public void unbindSshServer(ServiceReference<SshServer> serviceReference,SshServer sshServer)
-	{
-		ManagedSSHServer managedSSHServer = this.managedServerIndex.get(sshServer);
-		if(managedSSHServer == null)
-		{
-			return;
-		}
-		this.managedServerIndex.remove(sshServer);
-		this.pending.remove(sshServer);
-		
-		sshServer.setShellFactory(managedSSHServer.originalShellFactory);
-		sshServer.setFileSystemFactory(managedSSHServer.originalFileSystemFactory);
-		sshServer.setCommandFactory(managedSSHServer.originalCommandFactory);
-		sshServer.setSubsystemFactories(managedSSHServer.originalSubsystemFactories);
-	}
-	
-	private class ManagedSSHServer
-	{
-		private ShellFactory originalShellFactory;
-		private FileSystemFactory originalFileSystemFactory;
-		private CommandFactory originalCommandFactory;
-		private List<SubsystemFactory> originalSubsystemFactories;
-	}
-	
-	protected static String[] getPropertyStringArray(Map<String, ?> properties, String key)
-	{
-		if(properties.get(key) == null)
-		{
-			return null;
-		}
-		
-		if(properties.get(key) instanceof String)
-		{
-			String[] split = ((String)properties.get(key)).split("\\,");
-			Set<String> values = new HashSet<String>();
-			for(String item : split)
-			{
-				item = item.trim();
-				if(!item.isEmpty())
-				{
-					values.add(item);
-				}
-			}
-			return values.toArray(new String[values.size()]);
-		}
-		
-		if(properties.get(key) instanceof String[])
-		{
-			String[] split =  (String[]) properties.get(key);
-			Set<String> values = new HashSet<String>();
-			for(String item : split)
-			{
-				item = item.trim();
-				if(!item.isEmpty())
-				{
-					values.add(item);
-				}
-			}
-			return values.toArray(new String[values.size()]);
-		}
-		
-		return null;
-	}
-}
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.karaf.jaas.config.JaasRealm;
+import org.apache.karaf.jaas.modules.BackingEngineService;
+import org.apache.karaf.shell.api.console.SessionFactory;
+import org.apache.sshd.common.file.FileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.shell.ShellFactory;
+import org.apache.sshd.server.subsystem.SubsystemFactory;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.AttributeType;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// based on https://github.com/apache/karaf/tree/master/shell/ssh
+
+@Component
+(
+	immediate=true,
+	configurationPid	= SFTPHomeSetup.SERVICE_PID, 
+	configurationPolicy	= ConfigurationPolicy.REQUIRE,
+	service= SFTPHomeSetup.class
+)
+public class SFTPHomeSetup 
+{
+	public static final String SERVICE_PID = "org.sodeac.org.sodeac.karaf.sftphome";
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeSetup.class);
+	
+	static final Class<?>[] ROLE_CLASSES = new Class[] {org.apache.karaf.jaas.boot.principal.RolePrincipal.class};
+	
+	@ObjectClassDefinition(name=SERVICE_PID, description="Configuration Setup SFTP",pid=SFTPHomeSetup.SERVICE_PID)
+	interface Config
+	{
+		@AttributeDefinition(name="homeroot",description = "comma separated directories contain private homedirectories of users, e.g. mount points of different volumes" , defaultValue="./data/home" ,type=AttributeType.STRING)
+		String homeroot();
+		
+		@AttributeDefinition(name="homeplacement",description = "placement of new users on multiple home roots: hash (stable hash of user name) or leastused (home root with most usable space)" , defaultValue="hash" ,type=AttributeType.STRING)
+		String homeplacement();
+		
+		@AttributeDefinition(name="homelayout",description = "layout of new home directories: flat (homeroot/username) or hashed (homeroot/ab/cd/username), existing homes are moved by sftphome:migrate-homes" , defaultValue="flat" ,type=AttributeType.STRING)
+		String homelayout();
+		
+		@AttributeDefinition(name="homeplacementfile",description = "file to persist home root of users with multiple home roots, default ${karaf.data}/sftphome/home-placement.properties" ,type=AttributeType.STRING)
+		String homeplacementfile();
+		
+		@AttributeDefinition(name="rolesecureshell",description = "role for users with access to secure shell" , defaultValue="sshconsole" ,type=AttributeType.STRING)
+		String rolesecureshell();
+		
+		@AttributeDefinition(name="rolehomedir",description = "role for users with private home directory" , defaultValue="sftphome" ,type=AttributeType.STRING)
+		String rolehomedir();
+		
+		@AttributeDefinition(name="rolekarafbasedir",description = "role for users with access to karaf base directory" , defaultValue="admin" ,type=AttributeType.STRING)
+		String rolekarafbasedir();
+		
+		@AttributeDefinition(name="filesystemidletimeout",description = "seconds an unused file system is kept open for further sessions of same user" , defaultValue="60" ,type=AttributeType.LONG)
+		long filesystemidletimeout();
+		
+		@AttributeDefinition(name="provisionhomes",description = "create home directories for all users with role for private home directory in advance" , defaultValue="false" ,type=AttributeType.BOOLEAN)
+		boolean provisionhomes();
+		
+		@AttributeDefinition(name="sftpdirectbuffersize",description = "size of pooled direct buffers used to read and write files by sftp, 4096 to 67108864" , defaultValue="65536" ,type=AttributeType.INTEGER)
+		int sftpdirectbuffersize();
+		
+		@AttributeDefinition(name="sftpdirectbuffers",description = "maximum number of direct buffers, further sftp reads and writes are not pooled" , defaultValue="32" ,type=AttributeType.INTEGER)
+		int sftpdirectbuffers();
+		
+		@AttributeDefinition(name="sftpmappedreadthreshold",description = "minimum file size in bytes to read files by memory mapped windows, 0 disables memory mapping" , defaultValue="0" ,type=AttributeType.LONG)
+		long sftpmappedreadthreshold();
+		
+		@AttributeDefinition(name="sftpmappedreadwindow",description = "size of memory mapped window in bytes" , defaultValue="8388608" ,type=AttributeType.LONG)
+		long sftpmappedreadwindow();
+		
+		@AttributeDefinition(name="sftpexecutor",description = "executor model of sftp subsystems: session (thread per session), shared (bounded shared pool) or virtual (virtual thread per session, java 21+)" , defaultValue="session" ,type=AttributeType.STRING)
+		String sftpexecutor();
+		
+		@AttributeDefinition(name="sftpexecutorthreads",description = "maximum threads of shared sftp executor" , defaultValue="64" ,type=AttributeType.INTEGER)
+		int sftpexecutorthreads();
+		
+		@AttributeDefinition(name="sftpexecutorqueue",description = "maximum sftp subsystems waiting for a thread of shared sftp executor" , defaultValue="256" ,type=AttributeType.INTEGER)
+		int sftpexecutorqueue();
+		
+		@AttributeDefinition(name="shellexecutor",description = "executor model of console shells: thread (thread per shell), pool (bounded pool) or virtual (virtual thread per shell, java 21+)" , defaultValue="thread" ,type=AttributeType.STRING)
+		String shellexecutor();
+		
+		@AttributeDefinition(name="shellexecutorthreads",description = "maximum concurrent console shells in modes pool and virtual" , defaultValue="32" ,type=AttributeType.INTEGER)
+		int shellexecutorthreads();
+		
+		@AttributeDefinition(name="shellexecutorqueue",description = "maximum console shells waiting for a pool thread" , defaultValue="0" ,type=AttributeType.INTEGER)
+		int shellexecutorqueue();
+		
+		@AttributeDefinition(name="scpsendbuffersize",description = "size of buffer to send files by scp" , defaultValue="65536" ,type=AttributeType.INTEGER)
+		int scpsendbuffersize();
+		
+		@AttributeDefinition(name="scpreceivebuffersize",description = "size of buffer to receive files by scp" , defaultValue="65536" ,type=AttributeType.INTEGER)
+		int scpreceivebuffersize();
+		
+		@AttributeDefinition(name="scpexecutor",description = "executor model of scp transfers: session (thread per transfer), shared (bounded shared pool) or virtual (virtual thread per transfer, java 21+)" , defaultValue="session" ,type=AttributeType.STRING)
+		String scpexecutor();
+		
+		@AttributeDefinition(name="scpexecutorthreads",description = "maximum threads of shared scp executor" , defaultValue="64" ,type=AttributeType.INTEGER)
+		int scpexecutorthreads();
+		
+		@AttributeDefinition(name="scpexecutorqueue",description = "maximum scp transfers waiting for a thread of shared scp executor" , defaultValue="256" ,type=AttributeType.INTEGER)
+		int scpexecutorqueue();
+		
+		@AttributeDefinition(name="scplargefilethreshold",description = "minimum file size in bytes to stream scp transfers through large direct buffers, 0 disables" , defaultValue="8388608" ,type=AttributeType.LONG)
+		long scplargefilethreshold();
+		
+		@AttributeDefinition(name="scplargefilebuffersize",description = "size of direct buffers used for large scp transfers, 4096 to 67108864" , defaultValue="1048576" ,type=AttributeType.INTEGER)
+		int scplargefilebuffersize();
+		
+		@AttributeDefinition(name="scplargefilebuffers",description = "maximum number of direct buffers for large scp transfers, further transfers use default file opener" , defaultValue="16" ,type=AttributeType.INTEGER)
+		int scplargefilebuffers();
+		
+		@AttributeDefinition(name="throttleuser",description = "comma separated bandwidth limits of users, format user:readbytes=N;writebytes=N;readops=N;writeops=N;burst=S" ,type=AttributeType.STRING)
+		String throttleuser();
+		
+		@AttributeDefinition(name="throttlerole",description = "comma separated bandwidth limits of roles, format role:readbytes=N;writebytes=N;readops=N;writeops=N;burst=S" ,type=AttributeType.STRING)
+		String throttlerole();
+		
+		@AttributeDefinition(name="durabilityrole",description = "comma separated durability modes of written files per role, format role:mode with mode sync (force on close), group (force in batches, close waits for batch) or none" ,type=AttributeType.STRING)
+		String durabilityrole();
+		
+		@AttributeDefinition(name="durabilitydefault",description = "durability mode of users without role in durabilityrole, empty keeps default of sshd" ,type=AttributeType.STRING)
+		String durabilitydefault();
+		
+		@AttributeDefinition(name="durabilitygroupinterval",description = "milliseconds between two group commits of durability mode group, maximum wait of close for next group commit" , defaultValue="100" ,type=AttributeType.LONG)
+		long durabilitygroupinterval();
+		
+		@AttributeDefinition(name="sftpdigestcache",description = "cache of check-file digests: xattr (user defined file attributes, in memory if not supported), memory or none" , defaultValue="xattr" ,type=AttributeType.STRING)
+		String sftpdigestcache();
+		
+		@AttributeDefinition(name="sftpdigestcacheentries",description = "max count of check-file digests cached in memory" , defaultValue="10000" ,type=AttributeType.LONG)
+		long sftpdigestcacheentries();
+		
+		@AttributeDefinition(name="sftpparallelwrites",description = "max count of pending parallel write requests per sftp subsystem, 0 processes writes in order of arrival" , defaultValue="16" ,type=AttributeType.LONG)
+		long sftpparallelwrites();
+		
+		@AttributeDefinition(name="sftpparallelwritethreads",description = "count of threads writing sftp write requests in parallel, shared by all sftp subsystems, 0 disables parallel writes" , defaultValue="8" ,type=AttributeType.LONG)
+		long sftpparallelwritethreads();
+		
+		@AttributeDefinition(name="sftpparallelwriteminsize",description = "min length of sftp write request to write in parallel" , defaultValue="16384" ,type=AttributeType.LONG)
+		long sftpparallelwriteminsize();
+		
+		@AttributeDefinition(name="transportrole",description = "comma separated transport profiles per role, format role:profile with predefined profiles bulk (aes ctr, etm macs, no compression) and wan (bulk with delayed zlib compression), applied by new key exchange on first channel of authenticated session" ,type=AttributeType.STRING)
+		String transportrole();
+		
+		@AttributeDefinition(name="transportprofile",description = "comma separated additional transport profiles, format name;ciphers=a:b;macs=c:d;compressions=e:f" ,type=AttributeType.STRING)
+		String transportprofile();
+		
+		@AttributeDefinition(name="admissionuser",description = "comma separated admission limits per user, format user:sessions=n;handles=n;shells=n, 0 is unlimited" ,type=AttributeType.STRING)
+		String admissionuser();
+		
+		@AttributeDefinition(name="admissionrole",description = "comma separated admission limits per role, format role:sessions=n;handles=n;shells=n, most generous limit of user roles is applied if user is not configured" ,type=AttributeType.STRING)
+		String admissionrole();
+		
+		@AttributeDefinition(name="admissiondefault",description = "admission limits of users without configured user or role, format sessions=n;handles=n;shells=n" ,type=AttributeType.STRING)
+		String admissiondefault();
+		
+		@AttributeDefinition(name="admissionqueuetimeout",description = "max milliseconds an sftp open request waits for a free handle of user" , defaultValue="2000" ,type=AttributeType.LONG)
+		long admissionqueuetimeout();
+		
+		@AttributeDefinition(name="uploadeventdelay",description = "milliseconds to collect and coalesce committed files before a batch per home is published to upload listeners" , defaultValue="500" ,type=AttributeType.LONG)
+		long uploadeventdelay();
+		
+		@AttributeDefinition(name="uploadeventbatchsize",description = "max committed files of one home in a published batch, a full batch is published immediately" , defaultValue="1000" ,type=AttributeType.LONG)
+		long uploadeventbatchsize();
+		
+		@AttributeDefinition(name="uploadeventqueuesize",description = "max pending committed files of all homes, further commits wait for next publication" , defaultValue="10000" ,type=AttributeType.LONG)
+		long uploadeventqueuesize();
+		
+		@AttributeDefinition(name="uploadeventblocktimeout",description = "max milliseconds a commit waits for space in full queue, before the event is dropped" , defaultValue="5000" ,type=AttributeType.LONG)
+		long uploadeventblocktimeout();
+		
+		@AttributeDefinition(name="dedupstore",description = "directory of content addressed store sharing identical files of home directories by hardlinks, must be on same file system as home roots, empty disables" ,type=AttributeType.STRING)
+		String dedupstore();
+		
+		@AttributeDefinition(name="dedupminsize",description = "min size in bytes of files shared by dedup store" , defaultValue="1048576" ,type=AttributeType.LONG)
+		long dedupminsize();
+		
+		@AttributeDefinition(name="dedupsweepinterval",description = "seconds between removals of dedup store entries not linked by any home directory, 0 disables" , defaultValue="3600" ,type=AttributeType.LONG)
+		long dedupsweepinterval();
+		
+		@AttributeDefinition(name="karafbasecacheentries",description = "max count of cached attributes and listing entries of karaf base directory, 0 disables cache" , defaultValue="100000" ,type=AttributeType.LONG)
+		long karafbasecacheentries();
+		
+		@AttributeDefinition(name="karafbasecachedirectories",description = "max count of cached and watched directories of karaf base directory" , defaultValue="2000" ,type=AttributeType.LONG)
+		long karafbasecachedirectories();
+		
+		@AttributeDefinition(name="karafbasecachelisting",description = "max count of entries of cached directory listing, larger directories are streamed uncached" , defaultValue="5000" ,type=AttributeType.LONG)
+		long karafbasecachelisting();
+		
+		@AttributeDefinition(name="karafbasecachettl",description = "milliseconds cached attributes and listings of karaf base directory are valid" , defaultValue="30000" ,type=AttributeType.LONG)
+		long karafbasecachettl();
+		
+		@AttributeDefinition(name="authcachettl",description = "milliseconds successful password logins are cached to skip jaas login of further sessions, 0 disables cache" , defaultValue="0" ,type=AttributeType.LONG)
+		long authcachettl();
+		
+		@AttributeDefinition(name="authcachesize",description = "max count of users with cached password login" , defaultValue="1000" ,type=AttributeType.LONG)
+		long authcachesize();
+		
+		@AttributeDefinition(name="iobackend",description = "io backend of ssh server: nio2, mina or netty (requires bundle of backend), empty keeps backend of karaf" ,type=AttributeType.STRING)
+		String iobackend();
+		
+		@AttributeDefinition(name="ioworkers",description = "io worker threads of ssh server, 0 keeps setting of karaf" , defaultValue="0" ,type=AttributeType.INTEGER)
+		int ioworkers();
+		
+		@AttributeDefinition(name="iobacklog",description = "max pending connections of ssh server socket, 0 keeps default" , defaultValue="0" ,type=AttributeType.INTEGER)
+		int iobacklog();
+		
+		@AttributeDefinition(name="iorestart",description = "restart ssh server of karaf and disconnect all sessions, if changed iobackend, ioworkers or iobacklog can not be applied to running server" , defaultValue="false" ,type=AttributeType.BOOLEAN)
+		boolean iorestart();
+		
+		@AttributeDefinition(name="socketrcvbuf",description = "SO_RCVBUF of accepted connections in bytes, 0 keeps default" , defaultValue="0" ,type=AttributeType.INTEGER)
+		int socketrcvbuf();
+		
+		@AttributeDefinition(name="socketsndbuf",description = "SO_SNDBUF of accepted connections in bytes, 0 keeps default" , defaultValue="0" ,type=AttributeType.INTEGER)
+		int socketsndbuf();
+		
+		@AttributeDefinition(name="tcpnodelay",description = "enable TCP_NODELAY of accepted connections" , defaultValue="false" ,type=AttributeType.BOOLEAN)
+		boolean tcpnodelay();
+		
+		@AttributeDefinition(name="windowsize",description = "ssh channel window size in bytes, 0 keeps default" , defaultValue="0" ,type=AttributeType.LONG)
+		long windowsize();
+		
+		@AttributeDefinition(name="packetsize",description = "max ssh channel packet size in bytes, 0 keeps default" , defaultValue="0" ,type=AttributeType.LONG)
+		long packetsize();
+		
+		@AttributeDefinition(name="quotasoft",description = "soft quota of home directories in bytes, exceeding is logged, 0 disables" , defaultValue="0" ,type=AttributeType.LONG)
+		long quotasoft();
+		
+		@AttributeDefinition(name="quotahard",description = "hard quota of home directories in bytes, writes exceeding are rejected, 0 disables" , defaultValue="0" ,type=AttributeType.LONG)
+		long quotahard();
+		
+		@AttributeDefinition(name="quotauser",description = "comma separated quotas of single users, format user:soft=N;hard=N" ,type=AttributeType.STRING)
+		String quotauser();
+		
+		@AttributeDefinition(name="quotaindex",description = "file to persist disk usage of home directories, default ${karaf.data}/sftphome/quota-usage.properties" ,type=AttributeType.STRING)
+		String quotaindex();
+		
+		@AttributeDefinition(name="quotareconcileinterval",description = "seconds between measurements of all home directories to correct disk usage, 0 disables" , defaultValue="86400" ,type=AttributeType.LONG)
+		long quotareconcileinterval();
+	}
+	
+	private SessionFactory sessionFactory = null;
+	private volatile BackingEngineService backingEngineService = null;
+	private List<JaasRealm> jaasRealms = new CopyOnWriteArrayList<JaasRealm>();
+	private Set<SshServer> pending = new HashSet<SshServer>();
+	private Map<SshServer, ManagedSSHServer> managedServerIndex = new HashMap<SshServer, ManagedSSHServer>(); 
+	private Map<SshServer, Bundle> serverBundleIndex = new HashMap<SshServer, Bundle>();
+	private Set<SshServer> restartRequested = new HashSet<SshServer>();
+	
+	private final SFTPHomeMetrics metrics = new SFTPHomeMetrics();
+	private ServiceRegistration<?> metricsRegistration = null;
+	private final UploadEventPublisher uploadEventPublisher = new UploadEventPublisher();
+	private final AtomicReference<HomeDirectoryProvisioner> pendingProvisioner = new AtomicReference<HomeDirectoryProvisioner>();
+	private final ExecutorService provisionExecutor = Executors.newSingleThreadExecutor(r -> 
+	{
+		Thread thread = new Thread(r, "SFTP home directory provisioning");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	protected ComponentContext context = null;
+	protected Map<String, ?> properties = null;
+	
+	@Activate
+	public void activate(ComponentContext context, Map<String, ?> properties) throws Exception
+	{
+		this.context = context;
+		this.properties = properties;
+		this.uploadEventPublisher.refresh(properties);
+		
+		Dictionary<String, Object> metricsProperties = new Hashtable<String, Object>();
+		metricsProperties.put("jmx.objectname", SFTPHomeMetricsMBean.OBJECT_NAME);
+		this.metricsRegistration = context.getBundleContext().registerService
+		(
+			new String[] {SFTPHomeMetricsMBean.class.getName(), SFTPHomeMetrics.class.getName()}, this.metrics, metricsProperties
+		);
+		
+		for(SshServer sshServer : new ArrayList<SshServer>(this.pending))
+		{
+			this.tuneAcceptor(sshServer);
+		}
+		this.setupPendingServer();
+		
+	}
+	
+	@Deactivate
+	public void deactivate(ComponentContext context) throws Exception 
+	{
+		this.properties = null;
+		this.context = null;
+		
+		if(this.metricsRegistration != null)
+		{
+			this.metricsRegistration.unregister();
+			this.metricsRegistration = null;
+		}
+		
+		for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
+		{
+			SshServer sshServer = entry.getKey();
+			ManagedSSHServer managedSSHServer = entry.getValue();
+			
+			restoreServer(sshServer, managedSSHServer);
+		}
+		this.managedServerIndex.clear();
+		this.pending.clear();
+		this.uploadEventPublisher.dispose();
+		
+		// running provisioner stops at next user
+		
+		this.pendingProvisioner.set(null);
+		this.provisionExecutor.shutdownNow();
+	}
+	
+	@Modified 
+	public void modified(Map<String, ?> properties) throws Exception
+	{
+		this.properties = properties;
+		this.uploadEventPublisher.refresh(properties);
+		RolePolicy rolePolicy = RolePolicy.fromProperties(this.properties, ROLE_CLASSES);
+		for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
+		{
+			SshServer sshServer = entry.getKey();
+			
+			if(sshServer.getShellFactory() instanceof SFTPHomeShellFactory)
+			{
+				((SFTPHomeShellFactory)sshServer.getShellFactory()).refresh(this.properties, rolePolicy);
+			}
+			if(sshServer.getFileSystemFactory() instanceof SFTPHomeFileSystemFactory)
+			{
+				((SFTPHomeFileSystemFactory)sshServer.getFileSystemFactory()).refresh(this.properties, rolePolicy);
+			}
+			
+			entry.getValue().fileSystemAccessor.refresh(this.properties);
+			entry.getValue().subsystemExecutorProvider.refresh(this.properties);
+			entry.getValue().scpCommandFactory.refresh(this.properties);
+			entry.getValue().digestCache.refresh(this.properties);
+			entry.getValue().parallelWriter.refresh(this.properties);
+			entry.getValue().transportListener.refresh(this.properties, rolePolicy);
+			entry.getValue().admissionControl.refresh(this.properties, rolePolicy);
+			IoTuning.fromProperties(this.properties).applyProperties(sshServer, entry.getValue().originalServerProperties);
+			if(entry.getValue().passwordAuthenticator != null)
+			{
+				entry.getValue().passwordAuthenticator.refresh(this.properties);
+			}
+		}
+		for(SshServer sshServer : new ArrayList<SshServer>(this.serverBundleIndex.keySet()))
+		{
+			this.tuneAcceptor(sshServer);
+		}
+		this.provisionHomeDirectories();
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
+	public void bindSessionFactory(ServiceReference<SessionFactory> serviceReference, SessionFactory sessionFactory)
+	{
+		if(! "org.apache.karaf.shell.core".equals(serviceReference.getBundle().getSymbolicName()))
+		{
+			return;
+		}
+		this.sessionFactory = sessionFactory;
+		this.setupPendingServer();
+	}
+	
+	public void unbindSessionFactory(ServiceReference<SessionFactory> serviceReference, SessionFactory sessionFactory) 
+	{
+		if(this.sessionFactory == sessionFactory)
+		{
+			this.sessionFactory = null;
+			
+			for(Entry<SshServer,ManagedSSHServer> entry : managedServerIndex.entrySet())
+			{
+				SshServer sshServer = entry.getKey();
+				ManagedSSHServer managedSSHServer = entry.getValue();
+				
+				restoreServer(sshServer, managedSSHServer);
+				this.pending.add(sshServer);
+			}
+			managedServerIndex.clear();
+		}
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL,policy=ReferencePolicy.DYNAMIC)
+	public void bindBackingEngineService(BackingEngineService backingEngineService)
+	{
+		this.backingEngineService = backingEngineService;
+	}
+	
+	public void unbindBackingEngineService(BackingEngineService backingEngineService)
+	{
+		if(this.backingEngineService == backingEngineService)
+		{
+			this.backingEngineService = null;
+		}
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
+	public void bindUploadListener(UploadListener uploadListener)
+	{
+		this.uploadEventPublisher.addListener(uploadListener);
+	}
+	
+	public void unbindUploadListener(UploadListener uploadListener)
+	{
+		this.uploadEventPublisher.removeListener(uploadListener);
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
+	public void bindJaasRealm(JaasRealm jaasRealm)
+	{
+		this.jaasRealms.add(jaasRealm);
+	}
+	
+	public void unbindJaasRealm(JaasRealm jaasRealm)
+	{
+		this.jaasRealms.remove(jaasRealm);
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.MULTIPLE,policy=ReferencePolicy.DYNAMIC)
+	public void bindSshServer(ServiceReference<SshServer> serviceReference,SshServer sshServer)
+	{
+		if(! "org.apache.karaf.shell.ssh".equals(serviceReference.getBundle().getSymbolicName()))
+		{
+			return;
+		}
+		
+		this.serverBundleIndex.put(sshServer, serviceReference.getBundle());
+		this.pending.add(sshServer);
+		this.tuneAcceptor(sshServer);
+		this.setupPendingServer();
+        
+	}
+	
+	/**
+	 * Applies acceptor settings to ssh server. Karaf registers ssh server before it is started, so settings are applied in advance. 
+	 * A running ssh server with other acceptor settings is restarted by transient restart of its bundle, which creates a new ssh server, 
+	 * if property iorestart is enabled. All sessions of restarted server are disconnected.
+	 * 
+	 * @param sshServer ssh server of karaf
+	 */
+	private void tuneAcceptor(SshServer sshServer)
+	{
+		if(this.properties == null)
+		{
+			return;
+		}
+		
+		IoTuning ioTuning = IoTuning.fromProperties(this.properties);
+		if(! sshServer.isStarted())
+		{
+			ioTuning.applyAcceptor(sshServer);
+			return;
+		}
+		
+		// running server may be tuned by previous activation of this component
+		
+		if(ioTuning.isAcceptorApplied(sshServer))
+		{
+			return;
+		}
+		
+		Bundle bundle = this.serverBundleIndex.get(sshServer);
+		if((bundle == null) || (! Boolean.parseBoolean(String.valueOf(this.properties.get("iorestart")))))
+		{
+			LOGGER.warn("io settings " + ioTuning + " apply after next restart of ssh server");
+			return;
+		}
+		if(! this.restartRequested.add(sshServer))
+		{
+			return;
+		}
+		
+		LOGGER.info("restart ssh server to apply io settings " + ioTuning);
+		Thread thread = new Thread(() ->
+		{
+			try
+			{
+				bundle.stop(Bundle.STOP_TRANSIENT);
+				bundle.start(Bundle.START_TRANSIENT);
+			}
+			catch (BundleException | RuntimeException e) 
+			{
+				LOGGER.error("unable to restart ssh server", e);
+			}
+		}, "SFTP home ssh server restart");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void setupPendingServer()
+	{
+		if(this.sessionFactory == null)
+		{
+			return;
+		}
+		
+		if(this.properties == null)
+		{
+			return;
+		}
+		
+		if((this.pending == null) || pending.isEmpty())
+		{
+			return;
+		}
+		
+		RolePolicy rolePolicy = RolePolicy.fromProperties(this.properties, ROLE_CLASSES);
+		
+		for(SshServer sshServer : this.pending)
+		{
+			if(managedServerIndex.containsKey(sshServer))
+			{
+				continue;
+			}
+			
+			ManagedSSHServer managedSSHServer = ManagedSSHServer.install(sshServer, this.sessionFactory, this.properties, rolePolicy, this.metrics, this.uploadEventPublisher);
+			managedServerIndex.put(sshServer, managedSSHServer);
+		}
+		this.pending.clear();
+		
+		this.provisionHomeDirectories();
+	}
+	
+	/**
+	 * 
+	 * @return file system factories of all managed ssh servers
+	 */
+	public List<SFTPHomeFileSystemFactory> getFileSystemFactories()
+	{
+		List<SFTPHomeFileSystemFactory> fileSystemFactories = new ArrayList<SFTPHomeFileSystemFactory>();
+		for(ManagedSSHServer managedSSHServer : new ArrayList<ManagedSSHServer>(this.managedServerIndex.values()))
+		{
+			fileSystemFactories.add(managedSSHServer.fileSystemFactory);
+		}
+		return fileSystemFactories;
+	}
+	
+	private void provisionHomeDirectories()
+	{
+		if((this.properties == null) || (! Boolean.parseBoolean(String.valueOf(this.properties.get("provisionhomes")))))
+		{
+			return;
+		}
+		
+		BackingEngineService backingEngineService = this.backingEngineService;
+		if((backingEngineService == null) || this.managedServerIndex.isEmpty())
+		{
+			return;
+		}
+		
+		List<HomeDirectoryIndex> homeDirectoryIndexList = new ArrayList<HomeDirectoryIndex>();
+		for(ManagedSSHServer managedSSHServer : this.managedServerIndex.values())
+		{
+			homeDirectoryIndexList.add(managedSSHServer.fileSystemFactory.getHomeDirectoryIndex());
+		}
+		
+		HomeDirectoryProvisioner provisioner = new HomeDirectoryProvisioner(new ArrayList<JaasRealm>(this.jaasRealms), backingEngineService, RolePolicy.fromProperties(this.properties, ROLE_CLASSES), homeDirectoryIndexList);
+		
+		// a queued run is replaced by run with current configuration, runs never overlap
+		
+		if(this.pendingProvisioner.getAndSet(provisioner) != null)
+		{
+			return;
+		}
+		try
+		{
+			this.provisionExecutor.execute(() -> 
+			{
+				HomeDirectoryProvisioner pendingProvisioner = this.pendingProvisioner.getAndSet(null);
+				if(pendingProvisioner != null)
+				{
+					pendingProvisioner.run();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) 
+		{
+			this.pendingProvisioner.set(null);
+		}
+	}
+	
+	public void unbindSshServer(ServiceReference<SshServer> serviceReference,SshServer sshServer)
+	{
+		this.serverBundleIndex.remove(sshServer);
+		this.restartRequested.remove(sshServer);
+		
+		ManagedSSHServer managedSSHServer = this.managedServerIndex.get(sshServer);
+		if(managedSSHServer == null)
+		{
+			return;
+		}
+		this.managedServerIndex.remove(sshServer);
+		this.pending.remove(sshServer);
+		
+		restoreServer(sshServer, managedSSHServer);
+	}
+	
+	private void restoreServer(SshServer sshServer, ManagedSSHServer managedSSHServer)
+	{
+		managedSSHServer.restore(sshServer);
+	}
+	
+	/**
+	 * Factories installed on ssh server and the original factories to restore.
+	 */
+	static class ManagedSSHServer
+	{
+		private ShellFactory originalShellFactory;
+		private FileSystemFactory originalFileSystemFactory;
+		private CommandFactory originalCommandFactory;
+		private List<SubsystemFactory> originalSubsystemFactories;
+		private Map<String,Object> originalServerProperties;
+		private PasswordAuthenticator originalPasswordAuthenticator;
+		
+		private SFTPHomeShellFactory shellFactory;
+		private SFTPHomeFileSystemFactory fileSystemFactory;
+		private SFTPHomeFileSystemAccessor fileSystemAccessor;
+		private SFTPHomeExecutorProvider subsystemExecutorProvider;
+		private SFTPHomeScpCommandFactory scpCommandFactory;
+		private DigestCache digestCache;
+		private ParallelWriter parallelWriter;
+		private SFTPHomeTransportListener transportListener;
+		private AdmissionControl admissionControl;
+		private CachingPasswordAuthenticator passwordAuthenticator;
+		
+		/**
+		 * Replaces shell, file system, command and subsystem factories of ssh server, wraps password authenticator and applies socket and channel settings.
+		 * 
+		 * @param sshServer ssh server to setup
+		 * @param sessionFactory karaf shell session factory
+		 * @param properties configuration
+		 * @param rolePolicy compiled role configuration
+		 * @param metrics statistics to record
+		 * @param uploadEventPublisher publisher of committed files
+		 * @return installed factories
+		 */
+		static ManagedSSHServer install(SshServer sshServer, SessionFactory sessionFactory, Map<String, ?> properties, RolePolicy rolePolicy, SFTPHomeMetrics metrics, 
+				UploadEventPublisher uploadEventPublisher)
+		{
+			ManagedSSHServer managedSSHServer = new ManagedSSHServer();
+			managedSSHServer.originalShellFactory = sshServer.getShellFactory();
+			managedSSHServer.originalFileSystemFactory = sshServer.getFileSystemFactory(); 
+			managedSSHServer.originalCommandFactory = sshServer.getCommandFactory();
+			managedSSHServer.originalSubsystemFactories = sshServer.getSubsystemFactories();
+			managedSSHServer.originalPasswordAuthenticator = sshServer.getPasswordAuthenticator();
+			managedSSHServer.originalServerProperties = IoTuning.captureProperties(sshServer);
+			
+			managedSSHServer.admissionControl = new AdmissionControl(properties, rolePolicy);
+			managedSSHServer.shellFactory = new SFTPHomeShellFactory(sessionFactory, properties,rolePolicy, metrics, managedSSHServer.admissionControl);
+			
+			sshServer.setShellFactory(managedSSHServer.shellFactory);
+			managedSSHServer.fileSystemFactory = new SFTPHomeFileSystemFactory(properties,rolePolicy, uploadEventPublisher);
+			
+			sshServer.setFileSystemFactory(managedSSHServer.fileSystemFactory);
+			managedSSHServer.scpCommandFactory = new SFTPHomeScpCommandFactory(sessionFactory, properties, metrics);
+			sshServer.setCommandFactory(managedSSHServer.scpCommandFactory);
+			managedSSHServer.fileSystemAccessor = new SFTPHomeFileSystemAccessor(properties);
+			managedSSHServer.subsystemExecutorProvider = new SFTPHomeExecutorProvider(properties, "sftpexecutor", "SftpSubsystem");
+			
+			managedSSHServer.digestCache = new DigestCache(properties);
+			managedSSHServer.parallelWriter = new ParallelWriter(properties);
+			
+			SftpSubsystemFactory sftpSubsystemFactory = new SFTPHomeSftpSubsystemFactory(metrics, managedSSHServer.digestCache, managedSSHServer.parallelWriter, 
+					managedSSHServer.admissionControl);
+			sftpSubsystemFactory.setFileSystemAccessor(managedSSHServer.fileSystemAccessor);
+			sftpSubsystemFactory.setExecutorServiceProvider(managedSSHServer.subsystemExecutorProvider);
+			sshServer.setSubsystemFactories(Collections.singletonList(sftpSubsystemFactory));
+			
+			managedSSHServer.transportListener = new SFTPHomeTransportListener(properties, rolePolicy);
+			sshServer.addChannelListener(managedSSHServer.transportListener);
+			sshServer.addSessionListener(managedSSHServer.admissionControl);
+			sshServer.addChannelListener(managedSSHServer.admissionControl);
+			
+			if(managedSSHServer.originalPasswordAuthenticator != null)
+			{
+				managedSSHServer.passwordAuthenticator = new CachingPasswordAuthenticator(managedSSHServer.originalPasswordAuthenticator, properties);
+				sshServer.setPasswordAuthenticator(managedSSHServer.passwordAuthenticator);
+			}
+			IoTuning.fromProperties(properties).applyProperties(sshServer, managedSSHServer.originalServerProperties);
+			
+			return managedSSHServer;
+		}
+		
+		/**
+		 * Restores original factories of ssh server and disposes installed factories.
+		 * 
+		 * @param sshServer ssh server setup by {@link #install(SshServer, SessionFactory, Map, RolePolicy, SFTPHomeMetrics, UploadEventPublisher)}
+		 */
+		void restore(SshServer sshServer)
+		{
+			sshServer.setShellFactory(this.originalShellFactory);
+			sshServer.setFileSystemFactory(this.originalFileSystemFactory);
+			sshServer.setCommandFactory(this.originalCommandFactory);
+			sshServer.setSubsystemFactories(this.originalSubsystemFactories);
+			sshServer.removeChannelListener(this.transportListener);
+			sshServer.removeSessionListener(this.admissionControl);
+			sshServer.removeChannelListener(this.admissionControl);
+			if(this.passwordAuthenticator != null)
+			{
+				sshServer.setPasswordAuthenticator(this.originalPasswordAuthenticator);
+				this.passwordAuthenticator.clear();
+			}
+			IoTuning.restoreProperties(sshServer, this.originalServerProperties);
+			
+			this.shellFactory.dispose();
+			this.fileSystemFactory.dispose();
+			this.subsystemExecutorProvider.dispose();
+			this.scpCommandFactory.dispose();
+			this.parallelWriter.dispose();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param properties configuration
+	 * @param key property key
+	 * @return trimmed values of comma separated string or string array in configured order without duplicates, or null
+	 */
+	protected static String[] getPropertyStringArray(Map<String, ?> properties, String key)
+	{
+		if(properties.get(key) == null)
+		{
+			return null;
+		}
+		
+		if(properties.get(key) instanceof String)
+		{
+			String[] split = ((String)properties.get(key)).split("\\,");
+			Set<String> values = new LinkedHashSet<String>();
+			for(String item : split)
+			{
+				item = item.trim();
+				if(!item.isEmpty())
+				{
+					values.add(item);
+				}
+			}
+			return values.toArray(new String[values.size()]);
+		}
+		
+		if(properties.get(key) instanceof String[])
+		{
+			String[] split =  (String[]) properties.get(key);
+			Set<String> values = new LinkedHashSet<String>();
+			for(String item : split)
+			{
+				item = item.trim();
+				if(!item.isEmpty())
+				{
+					values.add(item);
+				}
+			}
+			return values.toArray(new String[values.size()]);
+		}
+		
+		return null;
+	}
+	
+	protected static long getPropertyLong(Map<String, ?> properties, String key, long defaultValue)
+	{
+		Object value = properties.get(key);
+		
+		if(value instanceof Number)
+		{
+			return ((Number)value).longValue();
+		}
+		
+		if((value instanceof String) && (! ((String)value).trim().isEmpty()))
+		{
+			try
+			{
+				return Long.parseLong(((String)value).trim());
+			}
+			catch (NumberFormatException e) {}
+		}
+		
+		return defaultValue;
+	}
+}
\ No newline at end of file
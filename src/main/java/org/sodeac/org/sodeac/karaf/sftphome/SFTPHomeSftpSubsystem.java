@@ -0,0 +1,611 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.digest.Digest;
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.subsystem.sftp.SftpException;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.DirectoryHandle;
+import org.apache.sshd.server.subsystem.sftp.FileHandle;
+import org.apache.sshd.server.subsystem.sftp.Handle;
+import org.apache.sshd.server.subsystem.sftp.SftpErrorStatusDataHandler;
+import org.apache.sshd.server.subsystem.sftp.SftpEventListener;
+import org.apache.sshd.server.subsystem.sftp.SftpFileSystemAccessor;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystem;
+import org.apache.sshd.server.subsystem.sftp.UnsupportedAttributePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.AdmissionControl.UserAdmission;
+import org.sodeac.org.sodeac.karaf.sftphome.SFTPHomeMetrics.Operation;
+
+/**
+ * Sftp subsystem recording duration, transferred bytes and failures of requests to {@link SFTPHomeMetrics}.
+ * 
+ * Requests of one subsystem are processed sequentially, so state of current request is kept in fields.
+ * 
+ * Responses of check-file extensions are cached in {@link DigestCache}.
+ * 
+ * Large writes to files opened without append are written by positional I/O on {@link ParallelWriter}, the status is sent 
+ * after write is completed. Any other request and writes overlapping with a pending write wait for pending writes, 
+ * so the result is the same as if requests were processed in order.
+ * 
+ * Open file and directory handles are admitted by {@link AdmissionControl} within handle limit of user.
+ */
+public class SFTPHomeSftpSubsystem extends SftpSubsystem
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeSftpSubsystem.class);
+	
+	private final SFTPHomeMetrics metrics;
+	private final DigestCache digestCache;
+	private final ParallelWriter parallelWriter;
+	private final AdmissionControl admissionControl;
+	private final Set<String> admittedHandles = new HashSet<String>();
+	private final Deque<PendingWrite> pendingWrites = new ArrayDeque<PendingWrite>();
+	
+	private long requestBytes = 0L;
+	private boolean requestFailed = false;
+	private boolean requestDispatched = false;
+	
+	public SFTPHomeSftpSubsystem(CloseableExecutorService executorService, UnsupportedAttributePolicy policy, SftpFileSystemAccessor accessor, 
+			SftpErrorStatusDataHandler errorStatusDataHandler, SFTPHomeMetrics metrics, DigestCache digestCache, ParallelWriter parallelWriter, 
+			AdmissionControl admissionControl)
+	{
+		super(executorService, policy, accessor, errorStatusDataHandler);
+		this.metrics = metrics;
+		this.digestCache = digestCache;
+		this.parallelWriter = parallelWriter;
+		this.admissionControl = admissionControl;
+	}
+	
+	private static Operation operation(int type)
+	{
+		switch (type)
+		{
+			case SftpConstants.SSH_FXP_OPEN: return Operation.OPEN;
+			case SftpConstants.SSH_FXP_READ: return Operation.READ;
+			case SftpConstants.SSH_FXP_WRITE: return Operation.WRITE;
+			case SftpConstants.SSH_FXP_READDIR: return Operation.READDIR;
+			case SftpConstants.SSH_FXP_STAT: 
+			case SftpConstants.SSH_FXP_LSTAT: 
+			case SftpConstants.SSH_FXP_FSTAT: return Operation.STAT;
+			case SftpConstants.SSH_FXP_RENAME: return Operation.RENAME;
+			case SftpConstants.SSH_FXP_REMOVE: return Operation.REMOVE;
+			default: return null;
+		}
+	}
+
+	@Override
+	protected void doProcess(Buffer buffer, int length, int type, int id) throws IOException
+	{
+		if(type != SftpConstants.SSH_FXP_WRITE)
+		{
+			awaitPendingWrites(null, 0L, 0L);
+		}
+		
+		Operation operation = operation(type);
+		if(operation == null)
+		{
+			super.doProcess(buffer, length, type, id);
+			return;
+		}
+		
+		this.requestBytes = 0L;
+		this.requestFailed = false;
+		this.requestDispatched = false;
+		long start = System.nanoTime();
+		try
+		{
+			super.doProcess(buffer, length, type, id);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+		finally 
+		{
+			// dispatched writes are recorded on completion
+			
+			if(! this.requestDispatched)
+			{
+				this.metrics.record(getServerSession(), operation, System.nanoTime() - start, this.requestBytes, this.requestFailed);
+			}
+		}
+	}
+
+	@Override
+	protected String doOpen(int id, String path, int pflags, int access, Map<String, Object> attrs) throws IOException
+	{
+		UserAdmission userAdmission = admitHandle();
+		boolean opened = false;
+		try
+		{
+			String handle = super.doOpen(id, path, pflags, access, attrs);
+			opened = handleAdmitted(userAdmission, handle);
+			return handle;
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+		finally 
+		{
+			if((userAdmission != null) && (! opened))
+			{
+				userAdmission.getHandles().release();
+			}
+		}
+	}
+	
+	@Override
+	protected String doOpenDir(int id, String path, Path p, LinkOption... options) throws IOException
+	{
+		UserAdmission userAdmission = admitHandle();
+		boolean opened = false;
+		try
+		{
+			String handle = super.doOpenDir(id, path, p, options);
+			opened = handleAdmitted(userAdmission, handle);
+			return handle;
+		}
+		finally 
+		{
+			if((userAdmission != null) && (! opened))
+			{
+				userAdmission.getHandles().release();
+			}
+		}
+	}
+	
+	@Override
+	protected void doClose(int id, String handle) throws IOException
+	{
+		try
+		{
+			super.doClose(id, handle);
+		}
+		finally 
+		{
+			releaseHandle(handle);
+		}
+	}
+	
+	/**
+	 * Waits in queue of user admission for a free handle.
+	 * 
+	 * @return admission holding a handle or null, if session is not controlled by admission control
+	 * @throws IOException if handle is not admitted within queue timeout
+	 */
+	private UserAdmission admitHandle() throws IOException
+	{
+		if(this.admissionControl == null)
+		{
+			return null;
+		}
+		UserAdmission userAdmission = this.admissionControl.getUserAdmission(getServerSession());
+		if(userAdmission == null)
+		{
+			return null;
+		}
+		if(! this.admissionControl.admit(userAdmission.getHandles(), this.admissionControl.getQueueTimeout()))
+		{
+			this.requestFailed = true;
+			throw new SftpException(SftpConstants.SSH_FX_FAILURE, "too many open handles of user " + userAdmission.getUserName());
+		}
+		return userAdmission;
+	}
+	
+	private boolean handleAdmitted(UserAdmission userAdmission, String handle)
+	{
+		if((userAdmission == null) || (handle == null))
+		{
+			return false;
+		}
+		synchronized (this.admittedHandles)
+		{
+			this.admittedHandles.add(handle);
+		}
+		return true;
+	}
+	
+	private void releaseHandle(String handle)
+	{
+		synchronized (this.admittedHandles)
+		{
+			if(! this.admittedHandles.remove(handle))
+			{
+				return;
+			}
+		}
+		UserAdmission userAdmission = this.admissionControl.getUserAdmission(getServerSession());
+		if(userAdmission != null)
+		{
+			userAdmission.getHandles().release();
+		}
+	}
+
+	@Override
+	protected int doRead(int id, String handle, long offset, int length, byte[] data, int doff) throws IOException
+	{
+		try
+		{
+			int read = super.doRead(id, handle, offset, length, data, doff);
+			this.requestBytes = Math.max(0, read);
+			return read;
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected void doWrite(Buffer buffer, int id) throws IOException
+	{
+		int rpos = buffer.rpos();
+		String handle = buffer.getString();
+		long offset = buffer.getLong();
+		int length = buffer.getInt();
+		
+		Handle fileHandle = this.handles.get(handle);
+		if
+		(
+			(this.parallelWriter == null) || (! this.parallelWriter.accepts(length)) || (length > buffer.available()) || (offset < 0L) ||
+			(! (fileHandle instanceof FileHandle)) || ((FileHandle)fileHandle).isOpenAppend() || 
+			(! (((FileHandle)fileHandle).getFileChannel() instanceof FileChannel))
+		)
+		{
+			buffer.rpos(rpos);
+			super.doWrite(buffer, id);
+			return;
+		}
+		
+		awaitPendingWrites(handle, offset, offset + length);
+		
+		PendingWrite pendingWrite = new PendingWrite(handle, offset, offset + length);
+		Future<?> future = this.parallelWriter.submit(() -> writeParallel(buffer, id, handle, (FileHandle)fileHandle, offset, length));
+		if(future == null)
+		{
+			buffer.rpos(rpos);
+			super.doWrite(buffer, id);
+			return;
+		}
+		
+		pendingWrite.future = future;
+		synchronized (this.pendingWrites)
+		{
+			this.pendingWrites.addLast(pendingWrite);
+		}
+		this.requestDispatched = true;
+	}
+	
+	private void writeParallel(Buffer buffer, int id, String handle, FileHandle fileHandle, long offset, int length)
+	{
+		ServerSession session = getServerSession();
+		SftpEventListener listener = getSftpEventListenerProxy();
+		byte[] data = buffer.array();
+		int doff = buffer.rpos();
+		long start = System.nanoTime();
+		
+		Throwable thrown = null;
+		try
+		{
+			listener.writing(session, handle, fileHandle, offset, data, doff, length);
+			
+			FileChannel channel = (FileChannel)fileHandle.getFileChannel();
+			ByteBuffer src = ByteBuffer.wrap(data, doff, length);
+			long position = offset;
+			while(src.hasRemaining())
+			{
+				position += channel.write(src, position);
+			}
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			thrown = e;
+		}
+		
+		try
+		{
+			listener.written(session, handle, fileHandle, offset, data, doff, length, thrown);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			if(thrown == null)
+			{
+				thrown = e;
+			}
+		}
+		
+		this.metrics.record(session, Operation.WRITE, System.nanoTime() - start, thrown == null ? length : 0L, thrown != null);
+		
+		try
+		{
+			if(thrown == null)
+			{
+				sendStatus(prepareReply(buffer), id, SftpConstants.SSH_FX_OK, "");
+			}
+			else
+			{
+				sendStatus(prepareReply(buffer), id, thrown, SftpConstants.SSH_FXP_WRITE, handle, offset, length);
+			}
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			LOGGER.debug("writeParallel({}) failed to send status of write request {}: {}", session, id, e.toString());
+		}
+	}
+	
+	/**
+	 * Waits for pending writes overlapping with range of handle and for oldest pending writes exceeding max count of pending writes.
+	 * 
+	 * @param handle handle to write or null to wait for all pending writes
+	 * @param start start of range to write
+	 * @param end end of range to write
+	 * @throws IOException
+	 */
+	private void awaitPendingWrites(String handle, long start, long end) throws IOException
+	{
+		while(true)
+		{
+			PendingWrite blocking = null;
+			synchronized (this.pendingWrites)
+			{
+				Iterator<PendingWrite> iterator = this.pendingWrites.iterator();
+				while(iterator.hasNext())
+				{
+					PendingWrite pendingWrite = iterator.next();
+					if(pendingWrite.future.isDone())
+					{
+						iterator.remove();
+					}
+					else if((blocking == null) && ((handle == null) || pendingWrite.overlaps(handle, start, end)))
+					{
+						blocking = pendingWrite;
+					}
+				}
+				if((blocking == null) && (! this.pendingWrites.isEmpty()) && (this.pendingWrites.size() >= this.parallelWriter.getMaxPending()))
+				{
+					blocking = this.pendingWrites.peekFirst();
+				}
+			}
+			
+			if(blocking == null)
+			{
+				return;
+			}
+			
+			try
+			{
+				blocking.future.get();
+			}
+			catch (InterruptedException e) 
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for pending writes");
+			}
+			catch (ExecutionException e) 
+			{
+				// status is sent by write task
+			}
+		}
+	}
+	
+	@Override
+	protected void closeAllHandles()
+	{
+		try
+		{
+			awaitPendingWrites(null, 0L, 0L);
+		}
+		catch (IOException e) 
+		{
+			LOGGER.debug("closeAllHandles({}) interrupted while waiting for pending writes", getServerSession());
+		}
+		super.closeAllHandles();
+		
+		int count;
+		synchronized (this.admittedHandles)
+		{
+			count = this.admittedHandles.size();
+			this.admittedHandles.clear();
+		}
+		UserAdmission userAdmission = count == 0 ? null : this.admissionControl.getUserAdmission(getServerSession());
+		for(int i = 0; (userAdmission != null) && (i < count); i++)
+		{
+			userAdmission.getHandles().release();
+		}
+	}
+
+	@Override
+	protected void doWrite(int id, String handle, long offset, int length, byte[] data, int doff, int remaining) throws IOException
+	{
+		try
+		{
+			super.doWrite(id, handle, offset, length, data, doff, remaining);
+			this.requestBytes = length;
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected int doReadDir(int id, String handle, DirectoryHandle dir, Buffer buffer, int maxSize, LinkOption... options) throws IOException
+	{
+		try
+		{
+			int entries = super.doReadDir(id, handle, dir, buffer, maxSize, options);
+			this.requestBytes = entries;
+			return entries;
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected Map<String, Object> doStat(int id, String path, int flags) throws IOException
+	{
+		try
+		{
+			return super.doStat(id, path, flags);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected Map<String, Object> doLStat(int id, String path, int flags) throws IOException
+	{
+		try
+		{
+			return super.doLStat(id, path, flags);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected Map<String, Object> doFStat(int id, String handle, int flags) throws IOException
+	{
+		try
+		{
+			return super.doFStat(id, handle, flags);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected void doRename(int id, String oldPath, String newPath, Collection<CopyOption> opts) throws IOException
+	{
+		try
+		{
+			super.doRename(id, oldPath, newPath, opts);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected void doRemove(int id, String path, LinkOption... options) throws IOException
+	{
+		try
+		{
+			super.doRemove(id, path, options);
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			this.requestFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected void doCheckFileHash(int id, Path file, NamedFactory<? extends Digest> factory, long startOffset, long length, int blockSize, 
+			Buffer buffer) throws Exception
+	{
+		if((this.digestCache == null) || (! this.digestCache.isEnabled()))
+		{
+			super.doCheckFileHash(id, file, factory, startOffset, length, blockSize, buffer);
+			return;
+		}
+		
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		String request = factory.getName() + "." + startOffset + "." + length + "." + blockSize;
+		
+		byte[] response = this.digestCache.get(file, attributes, request);
+		if(response != null)
+		{
+			buffer.putRawBytes(response);
+			return;
+		}
+		
+		int start = buffer.wpos();
+		super.doCheckFileHash(id, file, factory, startOffset, length, blockSize, buffer);
+		
+		BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+		if((current.size() == attributes.size()) && current.lastModifiedTime().equals(attributes.lastModifiedTime()))
+		{
+			this.digestCache.put(file, attributes, request, Arrays.copyOfRange(buffer.array(), start, buffer.wpos()));
+		}
+	}
+	
+	private static class PendingWrite
+	{
+		private final String handle;
+		private final long start;
+		private final long end;
+		private Future<?> future;
+		
+		private PendingWrite(String handle, long start, long end)
+		{
+			super();
+			this.handle = handle;
+			this.start = start;
+			this.end = end;
+		}
+		
+		private boolean overlaps(String handle, long start, long end)
+		{
+			return this.handle.equals(handle) && (start < this.end) && (this.start < end);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+
+import org.apache.sshd.common.util.GenericUtils;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+/**
+ * Sftp subsystem factory creating {@link SFTPHomeSftpSubsystem}.
+ */
+public class SFTPHomeSftpSubsystemFactory extends SftpSubsystemFactory
+{
+	private final SFTPHomeMetrics metrics;
+	private final DigestCache digestCache;
+	private final ParallelWriter parallelWriter;
+	private final AdmissionControl admissionControl;
+	
+	public SFTPHomeSftpSubsystemFactory(SFTPHomeMetrics metrics, DigestCache digestCache, ParallelWriter parallelWriter, AdmissionControl admissionControl)
+	{
+		super();
+		this.metrics = metrics;
+		this.digestCache = digestCache;
+		this.parallelWriter = parallelWriter;
+		this.admissionControl = admissionControl;
+	}
+
+	@Override
+	public Command createSubsystem(ChannelSession channel) throws IOException
+	{
+		SFTPHomeSftpSubsystem subsystem = new SFTPHomeSftpSubsystem
+		(
+			resolveExecutorService(), getUnsupportedAttributePolicy(), getFileSystemAccessor(), getErrorStatusDataHandler(), this.metrics, this.digestCache, this.parallelWriter, 
+			this.admissionControl
+		);
+		GenericUtils.forEach(getRegisteredListeners(), subsystem::addSftpEventListener);
+		return subsystem;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes karaf console shells. A console shell occupies its thread until user logs out.
+ * 
+ * <ul>
+ * <li>thread: new platform thread for each shell (unbounded)</li>
+ * <li>pool: bounded pool of platform threads</li>
+ * <li>virtual: new virtual thread for each shell (requires java 21+, falls back to pool)</li>
+ * </ul>
+ * 
+ * In modes pool and virtual at most threads + queue shells are admitted, further shells are rejected.
+ * Shells run with the access control context of the caller of {@link #execute(Runnable, String)}.
+ */
+public class SFTPHomeShellExecutor
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeShellExecutor.class);
+	
+	public static final String MODE_THREAD = "thread";
+	public static final String MODE_POOL = "pool";
+	public static final String MODE_VIRTUAL = "virtual";
+	
+	private volatile String mode = MODE_THREAD;
+	private volatile int threads = 32;
+	private volatile int queueLimit = 0;
+	private volatile ThreadPoolExecutor pool = null;
+	private volatile ThreadFactory virtualThreadFactory = null;
+	
+	private final AtomicInteger admitted = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	
+	public SFTPHomeShellExecutor(Map<String, ?> properties)
+	{
+		super();
+		this.refresh(properties);
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		String mode = properties.get("shellexecutor") instanceof String ? ((String)properties.get("shellexecutor")).trim() : MODE_THREAD;
+		this.threads = (int)Math.max(1L, SFTPHomeSetup.getPropertyLong(properties, "shellexecutorthreads", 32L));
+		this.queueLimit = (int)Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "shellexecutorqueue", 0L));
+		
+		if(MODE_VIRTUAL.equals(mode) && (this.virtualThreadFactory == null))
+		{
+			this.virtualThreadFactory = VirtualThreadSupport.createThreadFactory("Karaf ssh console virtual-");
+			if(this.virtualThreadFactory == null)
+			{
+				LOGGER.warn("virtual threads are not supported by this jvm, use shell executor mode " + MODE_POOL);
+				mode = MODE_POOL;
+			}
+		}
+		
+		if(! (MODE_THREAD.equals(mode) || MODE_POOL.equals(mode) || MODE_VIRTUAL.equals(mode)))
+		{
+			LOGGER.warn("unknown shell executor mode " + mode + ", use shell executor mode " + MODE_THREAD);
+			mode = MODE_THREAD;
+		}
+		
+		if(MODE_POOL.equals(mode))
+		{
+			if(this.pool == null)
+			{
+				this.pool = new ThreadPoolExecutor(this.threads, this.threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory());
+				this.pool.allowCoreThreadTimeOut(true);
+			}
+			else if(this.threads > this.pool.getMaximumPoolSize())
+			{
+				this.pool.setMaximumPoolSize(this.threads);
+				this.pool.setCorePoolSize(this.threads);
+			}
+			else
+			{
+				this.pool.setCorePoolSize(this.threads);
+				this.pool.setMaximumPoolSize(this.threads);
+			}
+		}
+		
+		this.mode = mode;
+		
+		if((! MODE_POOL.equals(mode)) && (this.pool != null))
+		{
+			// running shells continue on old pool
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+	
+	/**
+	 * Starts shell with access control context of caller.
+	 * 
+	 * @param shell console shell
+	 * @param threadName name of thread while shell is running
+	 * @throws RejectedExecutionException if maximum number of shells is reached
+	 */
+	public void execute(Runnable shell, String threadName)
+	{
+		String mode = this.mode;
+		
+		if(MODE_THREAD.equals(mode))
+		{
+			new Thread(shell, threadName).start();
+			return;
+		}
+		
+		int limit = this.threads + this.queueLimit;
+		if(this.admitted.incrementAndGet() > limit)
+		{
+			this.admitted.decrementAndGet();
+			this.rejected.incrementAndGet();
+			throw new RejectedExecutionException("maximum number of console sessions reached (" + limit + ")");
+		}
+		
+		final AccessControlContext accessControlContext = AccessController.getContext();
+		Runnable task = () -> 
+		{
+			Thread thread = Thread.currentThread();
+			String originalName = thread.getName();
+			thread.setName(threadName);
+			this.active.incrementAndGet();
+			try
+			{
+				AccessController.doPrivileged((PrivilegedAction<Object>)() -> { shell.run(); return null; }, accessControlContext);
+			}
+			finally 
+			{
+				this.active.decrementAndGet();
+				this.admitted.decrementAndGet();
+				thread.setName(originalName);
+			}
+		};
+		
+		try
+		{
+			ThreadPoolExecutor pool = this.pool;
+			ThreadFactory virtualThreadFactory = this.virtualThreadFactory;
+			if(MODE_POOL.equals(mode) && (pool != null))
+			{
+				pool.execute(task);
+			}
+			else if(MODE_VIRTUAL.equals(mode) && (virtualThreadFactory != null))
+			{
+				virtualThreadFactory.newThread(task).start();
+			}
+			else
+			{
+				throw new RejectedExecutionException("shell executor is disposed");
+			}
+		}
+		catch (RejectedExecutionException e) 
+		{
+			this.admitted.decrementAndGet();
+			this.rejected.incrementAndGet();
+			throw e;
+		}
+	}
+	
+	public String getMode()
+	{
+		return mode;
+	}
+	
+	/**
+	 * @return number of running shells in modes pool and virtual
+	 */
+	public int getActiveCount()
+	{
+		return this.active.get();
+	}
+	
+	/**
+	 * @return number of admitted shells waiting for a thread
+	 */
+	public int getQueueSize()
+	{
+		return Math.max(0, this.admitted.get() - this.active.get());
+	}
+	
+	public long getRejectedCount()
+	{
+		return this.rejected.get();
+	}
+	
+	public synchronized void dispose()
+	{
+		this.mode = MODE_THREAD;
+		if(this.pool != null)
+		{
+			// running shells are not terminated
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+	
+	private static class PoolThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger counter = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "Karaf ssh console pool-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.SessionAccess;
+import org.sodeac.org.sodeac.karaf.sftphome.TransportPolicy.Profile;
+
+/**
+ * Applies transport profile of {@link TransportPolicy} to authenticated sessions on opening first channel. 
+ * 
+ * Key exchange is not started on authentication itself, as sshd switches to delayed compression after sending authentication success 
+ * and a key exchange in between corrupts the stream.
+ */
+public class SFTPHomeTransportListener implements ChannelListener
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SFTPHomeTransportListener.class);
+	private static final AttributeKey<Profile> PROFILE_ATTRIBUTE_KEY = new AttributeKey<Profile>();
+	
+	private volatile TransportPolicy transportPolicy;
+	private volatile RolePolicy rolePolicy;
+	
+	public SFTPHomeTransportListener(Map<String, ?> properties, RolePolicy rolePolicy)
+	{
+		super();
+		this.refresh(properties, rolePolicy);
+	}
+	
+	public void refresh(Map<String, ?> properties, RolePolicy rolePolicy)
+	{
+		this.transportPolicy = TransportPolicy.fromProperties(properties);
+		this.rolePolicy = rolePolicy;
+	}
+
+	@Override
+	public void channelOpenSuccess(Channel channel)
+	{
+		TransportPolicy transportPolicy = this.transportPolicy;
+		Session session = channel.getSession();
+		if(transportPolicy.isEmpty() || (session == null) || (! session.isAuthenticated()))
+		{
+			return;
+		}
+		
+		SessionAccess sessionAccess = this.rolePolicy.resolve(session);
+		Profile profile = sessionAccess == null ? null : transportPolicy.resolve(sessionAccess.getRoles());
+		if(profile == null)
+		{
+			return;
+		}
+		
+		// once per session and profile, profiles are recreated on configuration refresh
+		
+		synchronized (session)
+		{
+			if(profile.equals(session.getAttribute(PROFILE_ATTRIBUTE_KEY)))
+			{
+				return;
+			}
+			session.setAttribute(PROFILE_ATTRIBUTE_KEY, profile);
+		}
+		
+		try
+		{
+			if(TransportPolicy.apply(session, profile))
+			{
+				LOGGER.debug("apply transport profile " + profile.getName() + " to session of " + sessionAccess.getUserName());
+			}
+		}
+		catch (IOException | RuntimeException e) 
+		{
+			LOGGER.warn("failed to apply transport profile " + profile.getName() + " to session of " + sessionAccess.getUserName(), e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Map;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.karaf.shell.support.table.ShellTable;
+import org.sodeac.org.sodeac.karaf.sftphome.SFTPHomeMetrics.Operation;
+
+@Command(scope = "sftphome", name = "stats", description = "Shows statistics of sftp operations, scp transfers and shell starts")
+@Service
+public class StatsCommand implements Action
+{
+	@Reference
+	private SFTPHomeMetrics metrics;
+	
+	@Option(name = "-r", aliases = "--roles", description = "show statistics per role", required = false, multiValued = false)
+	private boolean roles = false;
+	
+	@Option(name = "-s", aliases = "--sessions", description = "show statistics per active session", required = false, multiValued = false)
+	private boolean sessions = false;
+	
+	@Option(name = "--reset", description = "reset statistics after output", required = false, multiValued = false)
+	private boolean reset = false;
+
+	@Override
+	public Object execute() throws Exception
+	{
+		ShellTable table = new ShellTable();
+		table.column("Scope");
+		table.column("Operation");
+		table.column("Count").alignRight();
+		table.column("Failed").alignRight();
+		table.column("Bytes").alignRight();
+		table.column("Avg (us)").alignRight();
+		table.column("P50").alignRight();
+		table.column("P99").alignRight();
+		
+		OperationMetrics[] totals = new OperationMetrics[Operation.values().length];
+		for(Operation operation : Operation.values())
+		{
+			totals[operation.ordinal()] = metrics.getTotal(operation);
+		}
+		addRows(table, "total", totals);
+		
+		if(roles)
+		{
+			for(Map.Entry<String, OperationMetrics[]> entry : metrics.getRoleMetrics().entrySet())
+			{
+				addRows(table, "role " + entry.getKey(), entry.getValue());
+			}
+		}
+		
+		if(sessions)
+		{
+			for(Map.Entry<String, OperationMetrics[]> entry : metrics.getSessionMetrics().entrySet())
+			{
+				addRows(table, entry.getKey(), entry.getValue());
+			}
+		}
+		
+		table.print(System.out);
+		System.out.println("active sessions: " + metrics.getActiveSessions());
+		System.out.println("shells active: " + metrics.getShellActive() + ", queued: " + metrics.getShellQueued() + ", rejected: " + metrics.getShellRejected());
+		
+		if(reset)
+		{
+			metrics.reset();
+		}
+		return null;
+	}
+	
+	private static void addRows(ShellTable table, String scope, OperationMetrics[] operationMetrics)
+	{
+		for(Operation operation : Operation.values())
+		{
+			OperationMetrics metrics = operationMetrics[operation.ordinal()];
+			if(metrics.isEmpty())
+			{
+				continue;
+			}
+			table.addRow().addContent
+			(
+				scope, operation.name().toLowerCase(), metrics.getCount(), metrics.getFailed(), metrics.getBytes(), 
+				metrics.getAverageMicros(), OperationMetrics.formatBound(metrics.getPercentileMicros(50.0)), OperationMetrics.formatBound(metrics.getPercentileMicros(99.0))
+			);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable bandwidth configuration. Limits are defined per user with property throttleuser and per role with property throttlerole.
+ * 
+ * Each entry has format {@code name:readbytes=N;writebytes=N;readops=N;writeops=N;burst=S}. Rates are per second, 
+ * 0 or missing value means unlimited, burst is the capacity of buckets in seconds.
+ * 
+ * Limits of user entry win over role entries. Without user entry the most generous value of all throttled roles of user is used 
+ * for each dimension. Roles without entry do not lift limits.
+ */
+public class ThrottlePolicy
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(ThrottlePolicy.class);
+	
+	private final Map<String,Limits> userLimits;
+	private final Map<String,Limits> roleLimits;
+	
+	private ThrottlePolicy(Map<String,Limits> userLimits, Map<String,Limits> roleLimits)
+	{
+		super();
+		this.userLimits = userLimits;
+		this.roleLimits = roleLimits;
+	}
+	
+	public static ThrottlePolicy fromProperties(Map<String, ?> properties)
+	{
+		return new ThrottlePolicy
+		(
+			parseEntries(SFTPHomeSetup.getPropertyStringArray(properties, "throttleuser")),
+			parseEntries(SFTPHomeSetup.getPropertyStringArray(properties, "throttlerole"))
+		);
+	}
+	
+	private static Map<String,Limits> parseEntries(String[] entries)
+	{
+		if((entries == null) || (entries.length == 0))
+		{
+			return Collections.emptyMap();
+		}
+		
+		Map<String,Limits> limitsIndex = new HashMap<String,Limits>();
+		for(String entry : entries)
+		{
+			int separator = entry.indexOf(':');
+			if(separator < 1)
+			{
+				LOGGER.warn("ignore invalid throttle entry " + entry);
+				continue;
+			}
+			
+			String name = entry.substring(0, separator).trim();
+			long readBytes = 0L;
+			long writeBytes = 0L;
+			long readOps = 0L;
+			long writeOps = 0L;
+			long burst = 1L;
+			
+			for(String setting : entry.substring(separator + 1).split(";"))
+			{
+				int assign = setting.indexOf('=');
+				if(assign < 1)
+				{
+					continue;
+				}
+				String key = setting.substring(0, assign).trim();
+				long value;
+				try
+				{
+					value = Long.parseLong(setting.substring(assign + 1).trim());
+				}
+				catch (NumberFormatException e) 
+				{
+					LOGGER.warn("ignore invalid throttle setting " + setting + " of " + name);
+					continue;
+				}
+				
+				switch (key)
+				{
+					case "readbytes": readBytes = value; break;
+					case "writebytes": writeBytes = value; break;
+					case "readops": readOps = value; break;
+					case "writeops": writeOps = value; break;
+					case "burst": burst = value; break;
+					default: LOGGER.warn("ignore unknown throttle setting " + key + " of " + name);
+				}
+			}
+			
+			limitsIndex.put(name, new Limits(readBytes, writeBytes, readOps, writeOps, burst));
+		}
+		return Collections.unmodifiableMap(limitsIndex);
+	}
+	
+	/**
+	 * Returns limits of user.
+	 * 
+	 * @param userName name of user
+	 * @param roles roles of user
+	 * @return limits or null, if user is not throttled
+	 */
+	public Limits resolve(String userName, Set<String> roles)
+	{
+		if(userName != null)
+		{
+			Limits limits = this.userLimits.get(userName);
+			if(limits != null)
+			{
+				return limits.isUnlimited() ? null : limits;
+			}
+		}
+		
+		if((roles == null) || this.roleLimits.isEmpty())
+		{
+			return null;
+		}
+		
+		Limits merged = null;
+		for(String role : roles)
+		{
+			Limits limits = this.roleLimits.get(role);
+			if(limits == null)
+			{
+				continue;
+			}
+			merged = merged == null ? limits : merged.mostGenerous(limits);
+		}
+		return (merged == null) || merged.isUnlimited() ? null : merged;
+	}
+	
+	public static class Limits
+	{
+		private final long readBytes;
+		private final long writeBytes;
+		private final long readOps;
+		private final long writeOps;
+		private final long burst;
+		
+		private Limits(long readBytes, long writeBytes, long readOps, long writeOps, long burst)
+		{
+			super();
+			this.readBytes = Math.max(0L, readBytes);
+			this.writeBytes = Math.max(0L, writeBytes);
+			this.readOps = Math.max(0L, readOps);
+			this.writeOps = Math.max(0L, writeOps);
+			this.burst = Math.max(1L, burst);
+		}
+		
+		private Limits mostGenerous(Limits other)
+		{
+			return new Limits
+			(
+				mostGenerous(this.readBytes, other.readBytes), 
+				mostGenerous(this.writeBytes, other.writeBytes), 
+				mostGenerous(this.readOps, other.readOps), 
+				mostGenerous(this.writeOps, other.writeOps), 
+				Math.max(this.burst, other.burst)
+			);
+		}
+		
+		private static long mostGenerous(long rate1, long rate2)
+		{
+			return (rate1 == 0L) || (rate2 == 0L) ? 0L : Math.max(rate1, rate2);
+		}
+		
+		public boolean isUnlimited()
+		{
+			return (readBytes == 0L) && (writeBytes == 0L) && (readOps == 0L) && (writeOps == 0L);
+		}
+
+		public long getReadBytes()
+		{
+			return readBytes;
+		}
+
+		public long getWriteBytes()
+		{
+			return writeBytes;
+		}
+
+		public long getReadOps()
+		{
+			return readOps;
+		}
+
+		public long getWriteOps()
+		{
+			return writeOps;
+		}
+
+		public long getBurst()
+		{
+			return burst;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(readBytes, writeBytes, readOps, writeOps, burst);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+			{
+				return true;
+			}
+			if(!(obj instanceof Limits))
+			{
+				return false;
+			}
+			Limits other = (Limits) obj;
+			return (readBytes == other.readBytes) && (writeBytes == other.writeBytes) && (readOps == other.readOps) 
+					&& (writeOps == other.writeOps) && (burst == other.burst);
+		}
+	}
+}
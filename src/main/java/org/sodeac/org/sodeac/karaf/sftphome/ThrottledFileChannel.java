@@ -0,0 +1,154 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File channel charging transferred bytes and operations to throttle of file system. 
+ * 
+ * Channels are decorated only if file system is throttled on open. The throttle is looked up for each operation, so changed 
+ * limits apply to open throttled files as well. 
+ * Writes are charged before, reads after transfer with number of bytes actually read.
+ */
+public class ThrottledFileChannel extends DelegatingFileChannel
+{
+	private final SFTPHomeFileSystem fileSystem;
+	
+	public ThrottledFileChannel(FileChannel delegate, SFTPHomeFileSystem fileSystem)
+	{
+		super(delegate);
+		this.fileSystem = fileSystem;
+	}
+
+	/**
+	 * 
+	 * @return true, if transfers are currently throttled
+	 */
+	public boolean isThrottled()
+	{
+		return this.fileSystem.getTransferThrottle() != null;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException
+	{
+		TransferThrottle throttle = beforeRead();
+		int bytes = delegate.read(dst);
+		afterRead(throttle, bytes);
+		return bytes;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		TransferThrottle throttle = beforeRead();
+		long bytes = delegate.read(dsts, offset, length);
+		afterRead(throttle, bytes);
+		return bytes;
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException
+	{
+		TransferThrottle throttle = beforeRead();
+		int bytes = delegate.read(dst, position);
+		afterRead(throttle, bytes);
+		return bytes;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		TransferThrottle throttle = beforeRead();
+		long bytes = delegate.transferTo(position, count, target);
+		afterRead(throttle, bytes);
+		return bytes;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		beforeWrite(src.remaining());
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		long bytes = 0L;
+		for(int i = offset; i < offset + length; i++)
+		{
+			bytes += srcs[i].remaining();
+		}
+		beforeWrite(bytes);
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		beforeWrite(src.remaining());
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		// amount of transfer is unknown in advance
+		
+		beforeWrite(0L);
+		long transferred = delegate.transferFrom(src, position, count);
+		TransferThrottle throttle = this.fileSystem.getTransferThrottle();
+		if(throttle != null)
+		{
+			throttle.chargeWrite(transferred);
+		}
+		return transferred;
+	}
+	
+	private TransferThrottle beforeRead() throws IOException
+	{
+		TransferThrottle throttle = this.fileSystem.getTransferThrottle();
+		if(throttle != null)
+		{
+			throttle.beforeRead();
+		}
+		return throttle;
+	}
+	
+	private void afterRead(TransferThrottle throttle, long bytes) throws IOException
+	{
+		if(throttle != null)
+		{
+			throttle.afterRead(bytes);
+		}
+	}
+	
+	private void beforeWrite(long bytes) throws IOException
+	{
+		TransferThrottle throttle = this.fileSystem.getTransferThrottle();
+		if(throttle != null)
+		{
+			throttle.beforeWrite(bytes);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled continuously with configured rate. 
+ * 
+ * Permits are reserved immediately, even if bucket runs into debt. The caller waits until debt is refilled, 
+ * so concurrent callers are served in order of reservation and large requests are never starved by small ones.
+ */
+public class TokenBucket
+{
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	
+	private final long rate;
+	private final double capacity;
+	
+	private double tokens;
+	private long lastRefill;
+	
+	/**
+	 * 
+	 * @param rate permits per second
+	 * @param burstSeconds capacity of bucket in seconds of rate
+	 */
+	public TokenBucket(long rate, long burstSeconds)
+	{
+		super();
+		if(rate <= 0L)
+		{
+			throw new IllegalArgumentException("rate must be positive");
+		}
+		this.rate = rate;
+		this.capacity = ((double)rate) * Math.max(1L, burstSeconds);
+		this.tokens = this.capacity;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	public long getRate()
+	{
+		return rate;
+	}
+	
+	/**
+	 * Reserves permits and blocks until they are available.
+	 * 
+	 * @param permits number of permits
+	 * @throws InterruptedIOException if waiting thread is interrupted
+	 */
+	public void acquire(long permits) throws InterruptedIOException
+	{
+		if(permits <= 0L)
+		{
+			return;
+		}
+		
+		long waitNanos;
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			this.tokens = Math.min(this.capacity, this.tokens + (((double)(now - this.lastRefill)) * this.rate / NANOS_PER_SECOND));
+			this.lastRefill = now;
+			this.tokens -= permits;
+			
+			if(this.tokens >= 0.0)
+			{
+				return;
+			}
+			waitNanos = (long)Math.ceil((- this.tokens) * NANOS_PER_SECOND / this.rate);
+		}
+		
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			InterruptedIOException interruptedIOException = new InterruptedIOException("interrupted while throttled");
+			interruptedIOException.initCause(e);
+			throw interruptedIOException;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.InterruptedIOException;
+
+import org.sodeac.org.sodeac.karaf.sftphome.ThrottlePolicy.Limits;
+
+/**
+ * Token buckets of one throttled user. Shared by all sessions and open files of user.
+ */
+public class TransferThrottle
+{
+	private final Limits limits;
+	private final TokenBucket readBytes;
+	private final TokenBucket writeBytes;
+	private final TokenBucket readOps;
+	private final TokenBucket writeOps;
+	
+	public TransferThrottle(Limits limits)
+	{
+		super();
+		this.limits = limits;
+		this.readBytes = createBucket(limits.getReadBytes(), limits.getBurst());
+		this.writeBytes = createBucket(limits.getWriteBytes(), limits.getBurst());
+		this.readOps = createBucket(limits.getReadOps(), limits.getBurst());
+		this.writeOps = createBucket(limits.getWriteOps(), limits.getBurst());
+	}
+	
+	private static TokenBucket createBucket(long rate, long burst)
+	{
+		return rate > 0L ? new TokenBucket(rate, burst) : null;
+	}
+	
+	public Limits getLimits()
+	{
+		return limits;
+	}
+	
+	public void beforeRead() throws InterruptedIOException
+	{
+		if(readOps != null)
+		{
+			readOps.acquire(1L);
+		}
+	}
+	
+	public void afterRead(long bytes) throws InterruptedIOException
+	{
+		if((readBytes != null) && (bytes > 0L))
+		{
+			readBytes.acquire(bytes);
+		}
+	}
+	
+	public void beforeWrite(long bytes) throws InterruptedIOException
+	{
+		if(writeOps != null)
+		{
+			writeOps.acquire(1L);
+		}
+		chargeWrite(bytes);
+	}
+	
+	public void chargeWrite(long bytes) throws InterruptedIOException
+	{
+		if((writeBytes != null) && (bytes > 0L))
+		{
+			writeBytes.acquire(bytes);
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.OptionalFeature;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.cipher.Cipher;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.compression.Compression;
+import org.apache.sshd.common.kex.KexFactoryManager;
+import org.apache.sshd.common.kex.KexProposalOption;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.mac.Mac;
+import org.apache.sshd.common.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable transport configuration. Profiles select ciphers, macs and compressions of sessions from algorithms enabled by ssh server, 
+ * so profiles never enable algorithms disabled by global ssh configuration of karaf. Profiles are assigned to roles with property transportrole, 
+ * format {@code role:profile}. If a user has multiple roles with profile, the first configured role applies.
+ * 
+ * Algorithms are negotiated by key exchange before authentication. The profile of authenticated user is applied by a new key exchange, 
+ * if it changes the algorithms negotiated before (see {@link SFTPHomeTransportListener}). The client chooses its most preferred algorithm 
+ * of profile. Algorithms of profile not proposed by client are skipped, if client proposes none of them, the option is not restricted.
+ * 
+ * Predefined profiles, can be replaced by property transportprofile, format {@code name;ciphers=a:b;macs=c:d;compressions=e:f}:
+ * 
+ * <ul>
+ * <li>bulk: aes ctr ciphers (hardware accelerated by jvm intrinsics), encrypt-then-mac macs preferred and no compression</li>
+ * <li>wan: like bulk, with delayed zlib compression</li>
+ * </ul>
+ */
+public class TransportPolicy
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransportPolicy.class);
+	
+	private static final List<String> BULK_CIPHERS = Arrays.asList("aes128-ctr", "aes256-ctr", "aes192-ctr");
+	private static final List<String> BULK_MACS = Arrays.asList("hmac-sha2-256-etm@openssh.com", "hmac-sha1-etm@openssh.com", "hmac-sha2-512-etm@openssh.com", "hmac-sha2-256", "hmac-sha1");
+	
+	private final Map<String,Profile> roleProfiles;
+	
+	private TransportPolicy(Map<String,Profile> roleProfiles)
+	{
+		super();
+		this.roleProfiles = roleProfiles;
+	}
+	
+	public static TransportPolicy fromProperties(Map<String, ?> properties)
+	{
+		Map<String,Profile> profiles = new HashMap<String,Profile>();
+		profiles.put("bulk", new Profile("bulk", BULK_CIPHERS, BULK_MACS, Arrays.asList("none")));
+		profiles.put("wan", new Profile("wan", BULK_CIPHERS, BULK_MACS, Arrays.asList("zlib@openssh.com", "zlib")));
+		
+		String[] entries = SFTPHomeSetup.getPropertyStringArray(properties, "transportprofile");
+		if(entries != null)
+		{
+			for(String entry : entries)
+			{
+				Profile profile = parseProfile(entry);
+				if(profile == null)
+				{
+					LOGGER.warn("ignore invalid transport profile " + entry);
+					continue;
+				}
+				profiles.put(profile.name, profile);
+			}
+		}
+		
+		Map<String,Profile> roleProfiles = new LinkedHashMap<String,Profile>();
+		entries = SFTPHomeSetup.getPropertyStringArray(properties, "transportrole");
+		if(entries != null)
+		{
+			for(String entry : entries)
+			{
+				int separator = entry.indexOf(':');
+				Profile profile = separator < 1 ? null : profiles.get(entry.substring(separator + 1).trim());
+				if(profile == null)
+				{
+					LOGGER.warn("ignore invalid transport entry " + entry);
+					continue;
+				}
+				roleProfiles.putIfAbsent(entry.substring(0, separator).trim(), profile);
+			}
+		}
+		
+		return new TransportPolicy(Collections.unmodifiableMap(roleProfiles));
+	}
+	
+	private static Profile parseProfile(String entry)
+	{
+		String[] parts = entry.split(";");
+		if(parts[0].trim().isEmpty())
+		{
+			return null;
+		}
+		
+		List<String> ciphers = Collections.emptyList();
+		List<String> macs = Collections.emptyList();
+		List<String> compressions = Collections.emptyList();
+		for(int i = 1; i < parts.length; i++)
+		{
+			int separator = parts[i].indexOf('=');
+			if(separator < 1)
+			{
+				return null;
+			}
+			String key = parts[i].substring(0, separator).trim();
+			List<String> names = new ArrayList<String>();
+			for(String name : parts[i].substring(separator + 1).split(":"))
+			{
+				if(! name.trim().isEmpty())
+				{
+					names.add(name.trim());
+				}
+			}
+			
+			if("ciphers".equals(key))
+			{
+				ciphers = names;
+			}
+			else if("macs".equals(key))
+			{
+				macs = names;
+			}
+			else if("compressions".equals(key))
+			{
+				compressions = names;
+			}
+			else
+			{
+				return null;
+			}
+		}
+		return new Profile(parts[0].trim(), ciphers, macs, compressions);
+	}
+	
+	public boolean isEmpty()
+	{
+		return this.roleProfiles.isEmpty();
+	}
+	
+	/**
+	 * 
+	 * @param roles roles of user
+	 * @return profile of first configured role of user or null
+	 */
+	public Profile resolve(Set<String> roles)
+	{
+		if(roles == null)
+		{
+			return null;
+		}
+		for(Map.Entry<String,Profile> entry : this.roleProfiles.entrySet())
+		{
+			if(roles.contains(entry.getKey()))
+			{
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Restricts algorithms of session to profile and starts new key exchange, if negotiated algorithms change.
+	 * 
+	 * @param session authenticated session
+	 * @param profile profile to apply
+	 * @return true, if new key exchange is started
+	 * @throws IOException
+	 */
+	public static boolean apply(Session session, Profile profile) throws IOException
+	{
+		Map<KexProposalOption,String> clientProposals = session.getClientKexProposals();
+		
+		// algorithms enabled by server, algorithms of session may be restricted by a previous profile already
+		
+		KexFactoryManager enabled = session.getFactoryManager() == null ? session : session.getFactoryManager();
+		
+		List<NamedFactory<Cipher>> ciphers = select
+		(
+			BuiltinCiphers::fromFactoryName, profile.ciphers, enabled.getCipherFactories(), clientProposals, KexProposalOption.C2SENC, KexProposalOption.S2CENC
+		);
+		List<NamedFactory<Mac>> macs = select
+		(
+			BuiltinMacs::fromFactoryName, profile.macs, enabled.getMacFactories(), clientProposals, KexProposalOption.C2SMAC, KexProposalOption.S2CMAC
+		);
+		List<NamedFactory<Compression>> compressions = select
+		(
+			BuiltinCompressions::fromFactoryName, profile.compressions, enabled.getCompressionFactories(), clientProposals, KexProposalOption.C2SCOMP, KexProposalOption.S2CCOMP
+		);
+		
+		boolean changed = changes(session, ciphers, clientProposals, KexProposalOption.C2SENC, KexProposalOption.S2CENC);
+		changed = changes(session, macs, clientProposals, KexProposalOption.C2SMAC, KexProposalOption.S2CMAC) || changed;
+		changed = changes(session, compressions, clientProposals, KexProposalOption.C2SCOMP, KexProposalOption.S2CCOMP) || changed;
+		if(! changed)
+		{
+			return false;
+		}
+		
+		if(ciphers != null)
+		{
+			session.setCipherFactories(ciphers);
+		}
+		if(macs != null)
+		{
+			session.setMacFactories(macs);
+		}
+		if(compressions != null)
+		{
+			session.setCompressionFactories(compressions);
+		}
+		session.reExchangeKeys();
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param builtinFactories resolves builtin factory by name
+	 * @param names algorithms of profile in order of preference
+	 * @param enabledFactories algorithms enabled by server
+	 * @param clientProposals algorithms proposed by client
+	 * @param options proposal options of both directions
+	 * @return supported and enabled factories of profile proposed by client or null, if option is not restricted
+	 */
+	private static <T> List<NamedFactory<T>> select(Function<String, ? extends NamedFactory<T>> builtinFactories, List<String> names, 
+			List<NamedFactory<T>> enabledFactories, Map<KexProposalOption,String> clientProposals, KexProposalOption... options)
+	{
+		if(names.isEmpty() || (enabledFactories == null))
+		{
+			return null;
+		}
+		
+		List<NamedFactory<T>> selected = new ArrayList<NamedFactory<T>>();
+		for(String name : names)
+		{
+			NamedFactory<T> factory = builtinFactories.apply(name);
+			if((factory == null) || ((factory instanceof OptionalFeature) && (! ((OptionalFeature)factory).isSupported())))
+			{
+				continue;
+			}
+			if(NamedResource.findByName(factory.getName(), String.CASE_INSENSITIVE_ORDER, enabledFactories) == null)
+			{
+				continue;
+			}
+			boolean proposed = true;
+			for(KexProposalOption option : options)
+			{
+				String proposal = clientProposals == null ? null : clientProposals.get(option);
+				proposed = proposed && (proposal != null) && Arrays.asList(proposal.split(",")).contains(factory.getName());
+			}
+			if(proposed)
+			{
+				selected.add(factory);
+			}
+		}
+		return selected.isEmpty() ? null : selected;
+	}
+	
+	private static <T> boolean changes(Session session, List<NamedFactory<T>> selected, Map<KexProposalOption,String> clientProposals, 
+			KexProposalOption... options)
+	{
+		if(selected == null)
+		{
+			return false;
+		}
+		
+		// client's first algorithm supported by server is negotiated
+		
+		for(KexProposalOption option : options)
+		{
+			String negotiated = null;
+			for(String name : clientProposals.get(option).split(","))
+			{
+				if(NamedResource.findByName(name, String.CASE_INSENSITIVE_ORDER, selected) != null)
+				{
+					negotiated = name;
+					break;
+				}
+			}
+			if(! String.valueOf(negotiated).equals(session.getNegotiatedKexParameter(option)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public static class Profile
+	{
+		private final String name;
+		private final List<String> ciphers;
+		private final List<String> macs;
+		private final List<String> compressions;
+		
+		private Profile(String name, List<String> ciphers, List<String> macs, List<String> compressions)
+		{
+			super();
+			this.name = name;
+			this.ciphers = Collections.unmodifiableList(ciphers);
+			this.macs = Collections.unmodifiableList(macs);
+			this.compressions = Collections.unmodifiableList(compressions);
+		}
+		
+		public String getName()
+		{
+			return name;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(name, ciphers, macs, compressions);
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+			{
+				return true;
+			}
+			if(! (obj instanceof Profile))
+			{
+				return false;
+			}
+			Profile other = (Profile)obj;
+			return name.equals(other.name) && ciphers.equals(other.ciphers) && macs.equals(other.macs) && compressions.equals(other.compressions);
+		}
+	}
+}
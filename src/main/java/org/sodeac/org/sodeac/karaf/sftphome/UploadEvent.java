@@ -0,0 +1,110 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Path;
+
+/**
+ * File committed in a home directory, because a written file was closed or a file was renamed to its path.
+ */
+public class UploadEvent
+{
+	public enum Kind {WRITTEN, RENAMED}
+	
+	private final String owner;
+	private final Path home;
+	private final String path;
+	private final Kind kind;
+	private final long size;
+	private final long timestamp;
+	
+	public UploadEvent(String owner, Path home, String path, Kind kind, long size, long timestamp)
+	{
+		super();
+		this.owner = owner;
+		this.home = home;
+		this.path = path;
+		this.kind = kind;
+		this.size = size;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * 
+	 * @return name of user owning home directory
+	 */
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	/**
+	 * 
+	 * @return root directory of file system
+	 */
+	public Path getHome()
+	{
+		return home;
+	}
+
+	/**
+	 * 
+	 * @return absolute path of file inside home directory, e.g. /incoming/data.csv
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+	
+	/**
+	 * 
+	 * @return path of file in default file system
+	 */
+	public Path getFile()
+	{
+		return path.startsWith("/") ? home.resolve(path.substring(1)) : home.resolve(path);
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 * 
+	 * @return size of file when committed or -1, if unknown
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * 
+	 * @return milliseconds since epoch of commit
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "UploadEvent [owner=" + owner + ", home=" + home + ", path=" + path + ", kind=" + kind + ", size=" + size + "]";
+	}
+}
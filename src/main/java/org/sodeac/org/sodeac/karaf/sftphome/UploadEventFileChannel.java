@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * File channel registering a commit with {@link UploadEventPublisher} after channel is closed, if file was modified. 
+ * Files created or truncated by open count as modified.
+ */
+public class UploadEventFileChannel extends DelegatingFileChannel
+{
+	private final SFTPHomeFileSystem fileSystem;
+	private final UploadEventPublisher uploadEventPublisher;
+	private final String path;
+	private volatile boolean modified;
+	
+	public UploadEventFileChannel(FileChannel delegate, SFTPHomeFileSystem fileSystem, UploadEventPublisher uploadEventPublisher, String path, boolean modified)
+	{
+		super(delegate);
+		this.fileSystem = fileSystem;
+		this.uploadEventPublisher = uploadEventPublisher;
+		this.path = path;
+		this.modified = modified;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(srcs, offset, length);
+	}
+	
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException
+	{
+		this.modified = true;
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		this.modified = true;
+		return delegate.transferFrom(src, position, count);
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException
+	{
+		this.modified = true;
+		delegate.truncate(size);
+		return this;
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+		if(! this.modified)
+		{
+			delegate.close();
+			return;
+		}
+		
+		long size = -1L;
+		try
+		{
+			size = delegate.size();
+		}
+		catch (IOException e) 
+		{
+			// size is optional
+		}
+		
+		delegate.close();
+		this.uploadEventPublisher.written(this.fileSystem, this.path, size);
+	}
+}
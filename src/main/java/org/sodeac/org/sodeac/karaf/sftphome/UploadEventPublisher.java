@@ -0,0 +1,318 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sodeac.org.sodeac.karaf.sftphome.UploadEvent.Kind;
+
+/**
+ * Publishes committed files to {@link UploadListener} services in batches per home directory.
+ * 
+ * Commits are collected for uploadeventdelay milliseconds after first pending commit, repeated commits of same path are coalesced. 
+ * A batch is published immediately, if it reaches uploadeventbatchsize. If uploadeventqueuesize commits are pending, 
+ * committing threads wait up to uploadeventblocktimeout milliseconds for the next publication, before the commit is dropped.
+ * 
+ * Without listeners commits are ignored.
+ */
+public class UploadEventPublisher
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(UploadEventPublisher.class);
+	
+	private final List<UploadListener> listeners = new CopyOnWriteArrayList<UploadListener>();
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	
+	// guarded by this
+	private Map<Home,Map<String,UploadEvent>> pending = new LinkedHashMap<Home,Map<String,UploadEvent>>();
+	private int pendingCount = 0;
+	private ScheduledFuture<?> future = null;
+	private boolean disposed = false;
+	
+	private long delay = 500L;
+	private int batchSize = 1000;
+	private int queueSize = 10000;
+	private long blockTimeout = 5000L;
+	
+	public UploadEventPublisher()
+	{
+		super();
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> 
+		{
+			Thread thread = new Thread(r, "SFTP home upload events");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+	
+	public synchronized void refresh(Map<String, ?> properties)
+	{
+		this.delay = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "uploadeventdelay", 500L));
+		this.batchSize = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "uploadeventbatchsize", 1000L)));
+		this.queueSize = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, SFTPHomeSetup.getPropertyLong(properties, "uploadeventqueuesize", 10000L)));
+		this.blockTimeout = Math.max(0L, SFTPHomeSetup.getPropertyLong(properties, "uploadeventblocktimeout", 5000L));
+		this.notifyAll();
+	}
+	
+	public void addListener(UploadListener listener)
+	{
+		this.listeners.add(listener);
+	}
+	
+	public void removeListener(UploadListener listener)
+	{
+		this.listeners.remove(listener);
+	}
+	
+	/**
+	 * 
+	 * @return true, if commits are published to listeners, otherwise false
+	 */
+	public boolean isActive()
+	{
+		return ! this.listeners.isEmpty();
+	}
+	
+	public long getPublishedCount()
+	{
+		return published.get();
+	}
+	
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+	
+	/**
+	 * Registers written file closed by a session.
+	 * 
+	 * @param fileSystem file system of home directory
+	 * @param path absolute path inside file system
+	 * @param size size of file or -1, if unknown
+	 */
+	public void written(SFTPHomeFileSystem fileSystem, String path, long size)
+	{
+		enqueue(fileSystem, null, path, Kind.WRITTEN, size);
+	}
+	
+	/**
+	 * Registers file renamed by a session. A pending commit of source path is replaced.
+	 * 
+	 * @param fileSystem file system of home directory
+	 * @param source previous absolute path inside file system
+	 * @param target new absolute path inside file system
+	 * @param size size of file or -1, if unknown
+	 */
+	public void renamed(SFTPHomeFileSystem fileSystem, String source, String target, long size)
+	{
+		enqueue(fileSystem, source, target, Kind.RENAMED, size);
+	}
+	
+	private void enqueue(SFTPHomeFileSystem fileSystem, String source, String path, Kind kind, long size)
+	{
+		if(! isActive())
+		{
+			return;
+		}
+		
+		Home home = new Home(fileSystem.getRoot(), fileSystem.getOwner());
+		UploadEvent event = new UploadEvent(home.owner, home.root, path, kind, size, System.currentTimeMillis());
+		
+		synchronized (this)
+		{
+			Map<String,UploadEvent> batch = this.pending.get(home);
+			boolean coalesced = (batch != null) && (batch.containsKey(path) || ((source != null) && batch.containsKey(source)));
+			
+			// backpressure: wait for next publication
+			
+			if((! coalesced) && (this.pendingCount >= this.queueSize) && (! this.disposed))
+			{
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.blockTimeout);
+				try
+				{
+					while((this.pendingCount >= this.queueSize) && (! this.disposed))
+					{
+						long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+						if(remaining <= 0L)
+						{
+							break;
+						}
+						this.wait(remaining);
+					}
+				}
+				catch (InterruptedException e) 
+				{
+					Thread.currentThread().interrupt();
+				}
+				if(this.pendingCount >= this.queueSize)
+				{
+					this.dropped.incrementAndGet();
+					LOGGER.warn("upload event queue is full, drop " + event);
+					return;
+				}
+				batch = this.pending.get(home);
+			}
+			
+			if(this.disposed)
+			{
+				return;
+			}
+			
+			if(batch == null)
+			{
+				batch = new LinkedHashMap<String,UploadEvent>();
+				this.pending.put(home, batch);
+			}
+			if((source != null) && (batch.remove(source) != null))
+			{
+				this.pendingCount--;
+			}
+			
+			// coalesced path moves to end of batch
+			
+			if(batch.remove(path) != null)
+			{
+				this.pendingCount--;
+			}
+			batch.put(path, event);
+			this.pendingCount++;
+			
+			if(batch.size() >= this.batchSize)
+			{
+				if(this.future != null)
+				{
+					this.future.cancel(false);
+				}
+				this.future = this.executor.schedule(this::flush, 0L, TimeUnit.MILLISECONDS);
+			}
+			else if(this.future == null)
+			{
+				this.future = this.executor.schedule(this::flush, this.delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Publishes all pending commits.
+	 */
+	public void flush()
+	{
+		Map<Home,Map<String,UploadEvent>> batches;
+		synchronized (this)
+		{
+			this.future = null;
+			if(this.pending.isEmpty())
+			{
+				return;
+			}
+			batches = this.pending;
+			this.pending = new LinkedHashMap<Home,Map<String,UploadEvent>>();
+			this.pendingCount = 0;
+			this.notifyAll();
+		}
+		
+		int batchSize = this.batchSize;
+		for(Map<String,UploadEvent> batch : batches.values())
+		{
+			List<UploadEvent> events = new ArrayList<UploadEvent>(batch.values());
+			for(int from = 0; from < events.size(); from += batchSize)
+			{
+				publish(events.subList(from, Math.min(events.size(), from + batchSize)));
+			}
+		}
+	}
+	
+	private void publish(List<UploadEvent> events)
+	{
+		for(UploadListener listener : this.listeners)
+		{
+			try
+			{
+				listener.uploadsCommitted(events);
+			}
+			catch (RuntimeException e) 
+			{
+				LOGGER.warn("upload listener " + listener + " failed", e);
+			}
+		}
+		this.published.addAndGet(events.size());
+	}
+	
+	/**
+	 * Stops timer and publishes all pending commits.
+	 */
+	public void dispose()
+	{
+		synchronized (this)
+		{
+			this.disposed = true;
+			this.notifyAll();
+		}
+		this.executor.shutdownNow();
+		flush();
+	}
+	
+	private static class Home
+	{
+		private final Path root;
+		private final String owner;
+		private final int hashCode;
+		
+		private Home(Path root, String owner)
+		{
+			super();
+			this.root = root;
+			this.owner = owner;
+			this.hashCode = Objects.hash(root, owner);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+			{
+				return true;
+			}
+			if(!(obj instanceof Home))
+			{
+				return false;
+			}
+			Home other = (Home) obj;
+			return this.root.equals(other.root) && Objects.equals(this.owner, other.owner);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.List;
+
+/**
+ * Listener service notified about committed files of home directories. Services registered with this interface are bound by 
+ * {@link SFTPHomeSetup} and notified by {@link UploadEventPublisher}.
+ */
+public interface UploadListener
+{
+	/**
+	 * Notifies a batch of committed files. All events of a batch belong to the same home directory. 
+	 * Repeated commits of a path within one batch are coalesced to the last one.
+	 * 
+	 * Listeners are notified by a single thread, long running work should be handed over to other threads.
+	 * 
+	 * @param events committed files of one home directory
+	 */
+	public void uploadsCommitted(List<UploadEvent> events);
+}
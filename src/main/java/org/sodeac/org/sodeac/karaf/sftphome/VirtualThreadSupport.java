@@ -0,0 +1,51 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads of java 21+, while bundle is compiled for java 8.
+ */
+public class VirtualThreadSupport
+{
+	private VirtualThreadSupport()
+	{
+		super();
+	}
+	
+	/**
+	 * Creates factory for virtual threads.
+	 * 
+	 * @param namePrefix prefix of thread names, followed by counter
+	 * @return thread factory or null, if jvm does not support virtual threads
+	 */
+	public static ThreadFactory createThreadFactory(String namePrefix)
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) 
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener.Event;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.sodeac.org.sodeac.karaf.sftphome.AdmissionControl.Gate;
+import org.sodeac.org.sodeac.karaf.sftphome.AdmissionControl.UserAdmission;
+
+import junit.framework.TestCase;
+
+public class AdmissionControlTest extends TestCase
+{
+	private final Map<String,Object> properties = new HashMap<String,Object>();
+	private RolePolicy rolePolicy;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.properties.put("admissionrole", "small:sessions=1;handles=1, big:sessions=3;handles=2");
+		this.properties.put("admissionqueuetimeout", "100");
+		this.rolePolicy = RolePolicy.fromProperties(this.properties, new Class<?>[] {RolePrincipal.class});
+	}
+	
+	public void testSessionLimitRejectsAndReleases()
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Session first = authenticated(admissionControl, "alice", "small");
+		Session second = authenticated(admissionControl, "alice", "small");
+		
+		assertNotNull(admissionControl.getUserAdmission(first));
+		assertNull(admissionControl.getUserAdmission(second));
+		assertEquals(1L, admissionControl.getRejectedCount());
+		assertEquals(1, admissionControl.getUserCount());
+		
+		admissionControl.sessionClosed(second);
+		admissionControl.sessionClosed(first);
+		assertEquals(0, admissionControl.getUserCount());
+		
+		Session third = authenticated(admissionControl, "alice", "small");
+		assertNotNull(admissionControl.getUserAdmission(third));
+		assertEquals(1, admissionControl.getUserAdmission(third).getSessions().getUsed());
+	}
+	
+	public void testAdmissionIsDroppedWithLastSession()
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Session first = authenticated(admissionControl, "bob", "big");
+		Session second = authenticated(admissionControl, "bob", "big");
+		UserAdmission userAdmission = admissionControl.getUserAdmission(first);
+		assertSame(userAdmission, admissionControl.getUserAdmission(second));
+		
+		admissionControl.sessionClosed(first);
+		admissionControl.sessionClosed(first);
+		assertEquals(1, admissionControl.getUserCount());
+		assertEquals(1, userAdmission.getSessions().getUsed());
+		
+		admissionControl.sessionClosed(second);
+		assertEquals(0, admissionControl.getUserCount());
+		assertEquals(0, userAdmission.getSessions().getUsed());
+		
+		// admission remains available for handles released after close
+		
+		assertSame(userAdmission, admissionControl.getUserAdmission(second));
+	}
+	
+	public void testLimitsFollowLatestSessionAndConfiguration()
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Session first = authenticated(admissionControl, "carol", "small");
+		UserAdmission userAdmission = admissionControl.getUserAdmission(first);
+		assertEquals(1, userAdmission.getSessions().getLimit());
+		
+		Session second = authenticated(admissionControl, "carol", "small", "big");
+		assertSame(userAdmission, admissionControl.getUserAdmission(second));
+		assertEquals(3, userAdmission.getSessions().getLimit());
+		assertEquals(2, userAdmission.getHandles().getLimit());
+		
+		this.properties.put("admissionrole", "small:sessions=1, big:sessions=5");
+		admissionControl.refresh(this.properties, this.rolePolicy);
+		assertEquals(5, userAdmission.getSessions().getLimit());
+		assertEquals(0, userAdmission.getHandles().getLimit());
+	}
+	
+	public void testRejectedSessionIsDisconnectedWithoutChannel() throws Exception
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		sshServer.setPort(0);
+		sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+		sshServer.setPasswordAuthenticator((userName, password, session) -> 
+		{
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new UserPrincipal(userName));
+			subject.getPrincipals().add(new RolePrincipal("small"));
+			session.setAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+			return true;
+		});
+		sshServer.addSessionListener(admissionControl);
+		sshServer.start();
+		
+		SshClient sshClient = SshClient.setUpDefaultClient();
+		sshClient.start();
+		try
+		{
+			try(ClientSession first = connect(sshClient, sshServer.getPort()))
+			{
+				first.auth().verify(10, TimeUnit.SECONDS);
+				
+				// second session authenticates, but never opens a channel
+				
+				ClientSession second = connect(sshClient, sshServer.getPort());
+				try
+				{
+					second.auth().verify(10, TimeUnit.SECONDS);
+				}
+				catch (IOException e) 
+				{
+					// disconnect may overtake authentication success
+				}
+				long deadline = System.currentTimeMillis() + 10000L;
+				while((! second.isClosed()) && (System.currentTimeMillis() < deadline))
+				{
+					Thread.sleep(10L);
+				}
+				assertTrue("rejected session must be closed", second.isClosed());
+				assertTrue(first.isOpen());
+				assertEquals(1L, admissionControl.getRejectedCount());
+				assertEquals(1, admissionControl.getUserCount());
+			}
+		}
+		finally 
+		{
+			sshClient.stop();
+			sshServer.stop(true);
+		}
+	}
+	
+	public void testGateCountsUpToLimit() throws Exception
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Gate handles = admissionControl.getUserAdmission(authenticated(admissionControl, "dave", "big")).getHandles();
+		
+		assertTrue(handles.tryAcquire());
+		assertTrue(handles.acquire(0L));
+		assertFalse(handles.tryAcquire());
+		assertFalse(admissionControl.admit(handles, 0L));
+		assertEquals(1L, admissionControl.getRejectedCount());
+		
+		handles.release();
+		assertTrue(admissionControl.admit(handles, 0L));
+		assertEquals(2, handles.getUsed());
+	}
+	
+	public void testGateTimesOut() throws Exception
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Gate handles = admissionControl.getUserAdmission(authenticated(admissionControl, "erin", "small")).getHandles();
+		assertTrue(handles.tryAcquire());
+		
+		long start = System.currentTimeMillis();
+		assertFalse(admissionControl.admit(handles, admissionControl.getQueueTimeout()));
+		assertTrue(System.currentTimeMillis() - start >= 90L);
+		assertEquals(1, handles.getUsed());
+	}
+	
+	public void testGateAdmitsWaitersInOrderOfArrival() throws Exception
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Gate handles = admissionControl.getUserAdmission(authenticated(admissionControl, "frank", "small")).getHandles();
+		assertTrue(handles.tryAcquire());
+		
+		List<String> order = new ArrayList<String>();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] waiters = new Thread[3];
+		for(int i = 0; i < waiters.length; i++)
+		{
+			String name = "waiter" + i;
+			waiters[i] = new Thread(() -> 
+			{
+				try
+				{
+					assertTrue(handles.acquire(10000L));
+					synchronized (order)
+					{
+						order.add(name);
+					}
+					Thread.sleep(20L);
+					handles.release();
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+			waiters[i].start();
+			
+			// enqueue waiters one after another
+			
+			Thread.sleep(100L);
+		}
+		
+		// new arrivals must not overtake queued waiters
+		
+		handles.release();
+		assertFalse(handles.tryAcquire());
+		
+		for(Thread waiter : waiters)
+		{
+			waiter.join(10000L);
+		}
+		assertNull(failure.get());
+		assertEquals(3, order.size());
+		assertEquals("waiter0", order.get(0));
+		assertEquals("waiter1", order.get(1));
+		assertEquals("waiter2", order.get(2));
+		assertEquals(0, handles.getUsed());
+	}
+	
+	public void testRaisedLimitWakesWaiter() throws Exception
+	{
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Gate handles = admissionControl.getUserAdmission(authenticated(admissionControl, "grace", "small")).getHandles();
+		assertTrue(handles.tryAcquire());
+		
+		CountDownLatch admitted = new CountDownLatch(1);
+		Thread waiter = new Thread(() -> 
+		{
+			try
+			{
+				if(handles.acquire(10000L))
+				{
+					admitted.countDown();
+				}
+			}
+			catch (InterruptedException e) 
+			{
+				// fails by latch
+			}
+		});
+		waiter.start();
+		Thread.sleep(100L);
+		assertEquals(1L, admitted.getCount());
+		
+		this.properties.put("admissionrole", "small:sessions=1;handles=2");
+		admissionControl.refresh(this.properties, this.rolePolicy);
+		waiter.join(5000L);
+		assertEquals(0L, admitted.getCount());
+		assertEquals(2, handles.getUsed());
+	}
+	
+	public void testConcurrentAcquireNeverExceedsLimit() throws Exception
+	{
+		this.properties.put("admissionrole", "small:handles=3");
+		AdmissionControl admissionControl = new AdmissionControl(this.properties, this.rolePolicy);
+		Gate handles = admissionControl.getUserAdmission(authenticated(admissionControl, "heidi", "small")).getHandles();
+		
+		AtomicInteger holders = new AtomicInteger();
+		AtomicInteger maxHolders = new AtomicInteger();
+		AtomicInteger admittedCount = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> 
+			{
+				try
+				{
+					for(int j = 0; j < 2000; j++)
+					{
+						if(! handles.acquire(1000L))
+						{
+							continue;
+						}
+						admittedCount.incrementAndGet();
+						int current = holders.incrementAndGet();
+						maxHolders.accumulateAndGet(current, Math::max);
+						holders.decrementAndGet();
+						handles.release();
+					}
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+		
+		assertNull(failure.get());
+		assertTrue("max holders " + maxHolders.get(), maxHolders.get() <= 3);
+		assertTrue(admittedCount.get() > 0);
+		assertEquals(0, handles.getUsed());
+	}
+	
+	private static ClientSession connect(SshClient sshClient, int port) throws IOException
+	{
+		ClientSession session = sshClient.connect("alice", "localhost", port).verify(10, TimeUnit.SECONDS).getSession();
+		session.addPasswordIdentity("secret");
+		return session;
+	}
+	
+	private Session authenticated(AdmissionControl admissionControl, String userName, String... roles)
+	{
+		Session session = newSession(userName, roles);
+		admissionControl.sessionEvent(session, Event.Authenticated);
+		return session;
+	}
+	
+	private static Session newSession(String userName, String... roles)
+	{
+		Subject subject = new Subject();
+		subject.getPrincipals().add(new UserPrincipal(userName));
+		for(String role : roles)
+		{
+			subject.getPrincipals().add(new RolePrincipal(role));
+		}
+		
+		Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		attributes.put(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+		return (Session)Proxy.newProxyInstance(AdmissionControlTest.class.getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					return attributes.put(args[0], args[1]);
+				case "removeAttribute":
+					return attributes.remove(args[0]);
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return "session of " + userName;
+				default:
+					return null;
+			}
+		});
+	}
+}
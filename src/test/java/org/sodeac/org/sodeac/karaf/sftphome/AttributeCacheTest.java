@@ -0,0 +1,219 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class AttributeCacheTest extends TestCase
+{
+	private Path directory;
+	private AttributeCache attributeCache;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-attributes").toRealPath();
+		this.attributeCache = new AttributeCache();
+		this.attributeCache.refresh(new HashMap<String,Object>());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.attributeCache.dispose();
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testAttributesAreCachedUntilInvalidated() throws Exception
+	{
+		Path file = Files.createFile(this.directory.resolve("file.txt"));
+		
+		assertNull(this.attributeCache.getAttributes(file, "basic"));
+		long generation = this.attributeCache.getGeneration(this.directory);
+		this.attributeCache.putAttributes(file, "basic", "attributes", generation);
+		assertEquals("attributes", this.attributeCache.getAttributes(file, "basic"));
+		assertNull(this.attributeCache.getAttributes(file, "posix"));
+		assertEquals(1L, this.attributeCache.getHitCount());
+		assertEquals(2L, this.attributeCache.getMissCount());
+		
+		this.attributeCache.invalidate(file);
+		assertNull(this.attributeCache.getAttributes(file, "basic"));
+		assertEquals(0, this.attributeCache.getEntryCount());
+	}
+	
+	public void testValuesReadBeforeChangeAreNotCached() throws Exception
+	{
+		Path file = Files.createFile(this.directory.resolve("file.txt"));
+		
+		long generation = this.attributeCache.getGeneration(this.directory);
+		
+		// file changes while attributes are read
+		
+		this.attributeCache.invalidate(file);
+		this.attributeCache.putAttributes(file, "basic", "stale", generation);
+		this.attributeCache.putListing(this.directory, new ArrayList<String>(Arrays.asList("file.txt")), generation);
+		assertNull(this.attributeCache.getAttributes(file, "basic"));
+		assertNull(this.attributeCache.getListing(this.directory));
+		assertEquals(0, this.attributeCache.getEntryCount());
+	}
+	
+	public void testFilesOpenedForWriteAreNotCached() throws Exception
+	{
+		Path file = Files.createFile(this.directory.resolve("file.txt"));
+		
+		this.attributeCache.writerOpened(file);
+		this.attributeCache.putAttributes(file, "basic", "attributes", this.attributeCache.getGeneration(this.directory));
+		assertNull(this.attributeCache.getAttributes(file, "basic"));
+		
+		this.attributeCache.writerClosed(file);
+		this.attributeCache.putAttributes(file, "basic", "attributes", this.attributeCache.getGeneration(this.directory));
+		assertEquals("attributes", this.attributeCache.getAttributes(file, "basic"));
+	}
+	
+	public void testWatchEventInvalidatesChangedEntryAndListing() throws Exception
+	{
+		Path file = Files.createFile(this.directory.resolve("file.txt"));
+		Path other = Files.createFile(this.directory.resolve("other.txt"));
+		
+		long generation = this.attributeCache.getGeneration(this.directory);
+		this.attributeCache.putAttributes(file, "basic", "file", generation);
+		this.attributeCache.putAttributes(other, "basic", "other", generation);
+		this.attributeCache.putListing(this.directory, new ArrayList<String>(Arrays.asList("file.txt", "other.txt")), generation);
+		assertNotNull(this.attributeCache.getListing(this.directory));
+		
+		Files.write(file, new byte[] {1});
+		long deadline = System.currentTimeMillis() + 10000L;
+		while((this.attributeCache.getListing(this.directory) != null) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertNull(this.attributeCache.getListing(this.directory));
+		assertNull(this.attributeCache.getAttributes(file, "basic"));
+		assertEquals("other", this.attributeCache.getAttributes(other, "basic"));
+	}
+	
+	public void testInvalidatedDirectoryDropsCachedDirectoriesBelow() throws Exception
+	{
+		Path parent = Files.createDirectories(this.directory.resolve("a/b/c"));
+		Path sibling = Files.createDirectories(this.directory.resolve("d"));
+		
+		this.attributeCache.putListing(parent, new ArrayList<String>(), this.attributeCache.getGeneration(parent));
+		this.attributeCache.putListing(sibling, new ArrayList<String>(), this.attributeCache.getGeneration(sibling));
+		assertEquals(2, this.attributeCache.getDirectoryCount());
+		
+		// a is not cached itself, but contains cached directory a/b/c
+		
+		this.attributeCache.invalidate(this.directory.resolve("a"));
+		assertNull(this.attributeCache.getListing(parent));
+		assertNotNull(this.attributeCache.getListing(sibling));
+		assertEquals(1, this.attributeCache.getDirectoryCount());
+	}
+	
+	public void testLeastRecentlyUsedDirectoriesAreEvicted() throws Exception
+	{
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("karafbasecachedirectories", "8");
+		this.attributeCache.refresh(properties);
+		
+		List<Path> dirs = new ArrayList<Path>();
+		for(int i = 0; i < 9; i++)
+		{
+			dirs.add(Files.createDirectory(this.directory.resolve("dir" + i)));
+		}
+		for(int i = 0; i < 8; i++)
+		{
+			this.attributeCache.putListing(dirs.get(i), new ArrayList<String>(), this.attributeCache.getGeneration(dirs.get(i)));
+			Thread.sleep(2L);
+		}
+		assertNotNull(this.attributeCache.getListing(dirs.get(0)));
+		Thread.sleep(2L);
+		
+		// limit exceeded, directories are dropped below 7/8 of limit
+		
+		this.attributeCache.getGeneration(dirs.get(8));
+		assertEquals(7, this.attributeCache.getDirectoryCount());
+		assertNotNull(this.attributeCache.getListing(dirs.get(0)));
+		assertNull(this.attributeCache.getListing(dirs.get(1)));
+		assertNull(this.attributeCache.getListing(dirs.get(2)));
+		assertNotNull(this.attributeCache.getListing(dirs.get(3)));
+	}
+	
+	public void testConcurrentChangesKeepEntryCount() throws Exception
+	{
+		List<Path> files = new ArrayList<Path>();
+		for(int i = 0; i < 20; i++)
+		{
+			files.add(Files.createFile(this.directory.resolve("file" + i)));
+		}
+		
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for(int t = 0; t < threads.length; t++)
+		{
+			final int offset = t;
+			threads[t] = new Thread(() -> 
+			{
+				try
+				{
+					for(int i = 0; i < 5000; i++)
+					{
+						Path file = files.get((i + offset) % files.size());
+						long generation = this.attributeCache.getGeneration(this.directory);
+						this.attributeCache.putAttributes(file, "key" + (i % 3), "value", generation);
+						this.attributeCache.getAttributes(file, "key" + (i % 3));
+						if((i % 7) == offset)
+						{
+							this.attributeCache.invalidate(file);
+						}
+					}
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertNull(failure.get());
+		
+		for(Path file : files)
+		{
+			this.attributeCache.invalidate(file);
+		}
+		assertEquals(0, this.attributeCache.getEntryCount());
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.ClientPrincipal;
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.session.ServerSession;
+
+import junit.framework.TestCase;
+
+public class CachingPasswordAuthenticatorTest extends TestCase
+{
+	private Map<String,String> passwords;
+	private AtomicInteger logins;
+	private PasswordAuthenticator delegate;
+	private Map<String,Object> properties;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		this.passwords = new ConcurrentHashMap<String,String>();
+		this.passwords.put("alice", "secret1");
+		this.passwords.put("bob", "secret2");
+		this.passwords.put("carol", "secret3");
+		this.logins = new AtomicInteger();
+		
+		// login of jaas authenticator sets subject of session
+		
+		this.delegate = (username, password, session) -> 
+		{
+			this.logins.incrementAndGet();
+			if(! password.equals(this.passwords.get(username)))
+			{
+				return false;
+			}
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new UserPrincipal(username));
+			subject.getPrincipals().add(new RolePrincipal("sftp"));
+			subject.getPrincipals().add(new ClientPrincipal("ssh", String.valueOf(session.getClientAddress())));
+			session.setAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+			return true;
+		};
+		
+		this.properties = new HashMap<String,Object>();
+		this.properties.put("authcachettl", 60000L);
+		this.properties.put("authcachesize", 2L);
+	}
+	
+	public void testCachedLogin() throws Exception
+	{
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		assertEquals(1, this.logins.get());
+		
+		ServerSession session = session(2);
+		assertTrue(authenticator.authenticate("alice", "secret1", session));
+		assertEquals(1, this.logins.get());
+		
+		// subject is rebuilt with client principal of new session
+		
+		Subject subject = session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY);
+		assertNotNull(subject);
+		Set<Principal> principals = subject.getPrincipals();
+		assertEquals(3, principals.size());
+		assertTrue(principals.contains(new UserPrincipal("alice")));
+		assertTrue(principals.contains(new RolePrincipal("sftp")));
+		assertTrue(principals.contains(new ClientPrincipal("ssh", String.valueOf(session.getClientAddress()))));
+		assertFalse(principals.contains(new ClientPrincipal("ssh", String.valueOf(session(1).getClientAddress()))));
+	}
+	
+	public void testWrongPasswordIsNotCached() throws Exception
+	{
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		
+		ServerSession session = session(2);
+		assertFalse(authenticator.authenticate("alice", "wrong", session));
+		assertEquals(2, this.logins.get());
+		assertNull(session.getAttribute(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY));
+		
+		// failed login removes cached entry
+		
+		assertTrue(authenticator.authenticate("alice", "secret1", session(3)));
+		assertEquals(3, this.logins.get());
+		assertFalse(authenticator.authenticate("alice", "wrong", session(4)));
+		assertEquals(4, this.logins.get());
+	}
+	
+	public void testChangedPasswordReplacesEntry() throws Exception
+	{
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		
+		this.passwords.put("alice", "changed");
+		assertTrue(authenticator.authenticate("alice", "changed", session(2)));
+		assertEquals(2, this.logins.get());
+		
+		assertTrue(authenticator.authenticate("alice", "changed", session(3)));
+		assertEquals(2, this.logins.get());
+		assertFalse(authenticator.authenticate("alice", "secret1", session(4)));
+		assertEquals(3, this.logins.get());
+	}
+	
+	public void testLeastRecentlyUsedEntryIsEvicted() throws Exception
+	{
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		assertTrue(authenticator.authenticate("bob", "secret2", session(2)));
+		
+		// alice is used recently, bob is evicted by carol
+		
+		assertTrue(authenticator.authenticate("alice", "secret1", session(3)));
+		assertTrue(authenticator.authenticate("carol", "secret3", session(4)));
+		assertEquals(3, this.logins.get());
+		
+		assertTrue(authenticator.authenticate("alice", "secret1", session(5)));
+		assertEquals(3, this.logins.get());
+		assertTrue(authenticator.authenticate("bob", "secret2", session(6)));
+		assertEquals(4, this.logins.get());
+	}
+	
+	public void testExpiredEntry() throws Exception
+	{
+		this.properties.put("authcachettl", 50L);
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		Thread.sleep(100L);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(2)));
+		assertEquals(2, this.logins.get());
+	}
+	
+	public void testRefreshClearsCache() throws Exception
+	{
+		CachingPasswordAuthenticator authenticator = new CachingPasswordAuthenticator(this.delegate, this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(1)));
+		authenticator.refresh(this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(2)));
+		assertEquals(2, this.logins.get());
+		
+		// ttl 0 disables cache
+		
+		this.properties.put("authcachettl", 0L);
+		authenticator.refresh(this.properties);
+		assertTrue(authenticator.authenticate("alice", "secret1", session(3)));
+		assertTrue(authenticator.authenticate("alice", "secret1", session(4)));
+		assertEquals(4, this.logins.get());
+	}
+	
+	private static ServerSession session(int port)
+	{
+		InetSocketAddress clientAddress = new InetSocketAddress("127.0.0.1", 40000 + port);
+		Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		return (ServerSession)Proxy.newProxyInstance(CachingPasswordAuthenticatorTest.class.getClassLoader(), new Class<?>[] {ServerSession.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getClientAddress":
+					return clientAddress;
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					return attributes.put(args[0], args[1]);
+				case "removeAttribute":
+					return attributes.remove(args[0]);
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return "session of " + clientAddress;
+				default:
+					return null;
+			}
+		});
+	}
+}
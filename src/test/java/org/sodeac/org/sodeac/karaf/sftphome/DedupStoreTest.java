@@ -0,0 +1,451 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class DedupStoreTest extends TestCase
+{
+	private static final int MIN_SIZE = 16384;
+	
+	private Path directory;
+	private Path home1;
+	private Path home2;
+	private DedupStore dedupStore;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-dedup");
+		this.home1 = Files.createDirectories(this.directory.resolve("home1"));
+		this.home2 = Files.createDirectories(this.directory.resolve("home2"));
+		this.dedupStore = new DedupStore(this.directory.resolve("store"));
+		
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("dedupminsize", Integer.toString(MIN_SIZE));
+		properties.put("dedupsweepinterval", "0");
+		this.dedupStore.refresh(properties);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.dedupStore.dispose();
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testIdenticalFilesAreLinked() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(1, MIN_SIZE * 3);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		Path file2 = write(this.home2.resolve("copy.bin"), content);
+		
+		// file linked first has three links as soon as second file is linked by temporary file
+		
+		awaitLinks(file2, 3);
+		assertEquals(3, links(file1));
+		assertTrue(Arrays.equals(content, Files.readAllBytes(file2)));
+		
+		long deadline = System.currentTimeMillis() + 10000L;
+		while((this.dedupStore.getLinkedCount() == 0L) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertEquals(1L, this.dedupStore.getLinkedCount());
+		assertEquals((long)content.length, this.dedupStore.getSavedBytes());
+	}
+	
+	public void testSmallFilesAreNotLinked() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] small = content(2, MIN_SIZE - 1);
+		Path small1 = write(this.home1.resolve("small.bin"), small);
+		Path small2 = write(this.home2.resolve("small.bin"), small);
+		
+		// store links files in order of close
+		
+		Path large = write(this.home1.resolve("large.bin"), content(3, MIN_SIZE));
+		awaitLinks(large, 2);
+		assertEquals(1, links(small1));
+		assertEquals(1, links(small2));
+	}
+	
+	public void testNonSequentialWritesAreHashedByStore() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(4, MIN_SIZE * 2);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		
+		// second half first, digest of channel is dropped
+		
+		Path file2 = this.home2.resolve("file.bin");
+		try(FileChannel channel = open(file2, this.dedupStore.beforeWrite(file2, true)))
+		{
+			channel.write(ByteBuffer.wrap(content, MIN_SIZE, MIN_SIZE), MIN_SIZE);
+			channel.write(ByteBuffer.wrap(content, 0, MIN_SIZE), 0L);
+		}
+		
+		awaitLinks(file2, 3);
+		assertEquals(3, links(file1));
+	}
+	
+	public void testTruncatedContentIsHashedByStore() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(5, MIN_SIZE * 2);
+		Path file1 = write(this.home1.resolve("file.bin"), Arrays.copyOf(content, MIN_SIZE));
+		
+		Path file2 = this.home2.resolve("file.bin");
+		try(FileChannel channel = open(file2, this.dedupStore.beforeWrite(file2, true)))
+		{
+			channel.write(ByteBuffer.wrap(content));
+			channel.truncate(MIN_SIZE);
+		}
+		
+		awaitLinks(file2, 3);
+		assertEquals(3, links(file1));
+		assertTrue(Arrays.equals(Arrays.copyOf(content, MIN_SIZE), Files.readAllBytes(file2)));
+	}
+	
+	public void testCopyOnWrite() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(6, MIN_SIZE);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		Path file2 = write(this.home2.resolve("file.bin"), content);
+		awaitLinks(file2, 3);
+		
+		try(FileChannel channel = openExisting(file1, this.dedupStore.beforeWrite(file1, false)))
+		{
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 0L);
+		}
+		
+		// modified file may be linked to an entry of its own content already
+		
+		assertFalse(fileKey(file1).equals(fileKey(file2)));
+		assertEquals(2, links(file2));
+		assertTrue(Arrays.equals(content, Files.readAllBytes(file2)));
+		
+		byte[] modified = Files.readAllBytes(file1);
+		assertEquals(content.length, modified.length);
+		assertEquals(1, modified[0]);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 3, content.length), Arrays.copyOfRange(modified, 3, modified.length)));
+	}
+	
+	public void testTruncatingOpenDoesNotCopy() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(7, MIN_SIZE);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		Path file2 = write(this.home2.resolve("file.bin"), content);
+		awaitLinks(file2, 3);
+		Files.setPosixFilePermissions(file1, PosixFilePermissions.fromString("rw-r-----"));
+		
+		long generation = this.dedupStore.beforeWrite(file1, true);
+		assertEquals(1, links(file1));
+		assertEquals(0L, Files.size(file1));
+		assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file1)));
+		assertTrue(this.dedupStore.writerClosed(file1, generation));
+		
+		assertEquals(2, links(file2));
+		assertTrue(Arrays.equals(content, Files.readAllBytes(file2)));
+	}
+	
+	public void testAttributeChangeUnshares() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(8, MIN_SIZE);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		Path file2 = write(this.home2.resolve("file.bin"), content);
+		awaitLinks(file2, 3);
+		
+		this.dedupStore.beforeAttributeChange(file1);
+		Files.setPosixFilePermissions(file1, PosixFilePermissions.fromString("rw-------"));
+		
+		assertEquals(1, links(file1));
+		assertEquals(2, links(file2));
+		assertTrue(Arrays.equals(content, Files.readAllBytes(file1)));
+		assertFalse("rw-------".equals(PosixFilePermissions.toString(Files.getPosixFilePermissions(file2))));
+	}
+	
+	public void testSweepRemovesUnlinkedEntries() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(9, MIN_SIZE);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		Path file2 = write(this.home2.resolve("file.bin"), content);
+		awaitLinks(file2, 3);
+		
+		this.dedupStore.sweep();
+		assertEquals(1L, countEntries());
+		
+		Files.delete(file1);
+		Files.delete(file2);
+		this.dedupStore.sweep();
+		assertEquals(0L, countEntries());
+	}
+	
+	public void testDigestIsDroppedIfOtherWriterOpened() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(10, MIN_SIZE * 2);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		awaitLinks(file1, 2);
+		
+		// second writer changes content hashed by first writer
+		
+		Path file2 = this.home2.resolve("file.bin");
+		FileChannel channel1 = open(file2, this.dedupStore.beforeWrite(file2, true));
+		channel1.write(ByteBuffer.wrap(content));
+		try(FileChannel channel2 = openExisting(file2, this.dedupStore.beforeWrite(file2, false)))
+		{
+			channel2.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 0L);
+		}
+		channel1.close();
+		
+		// file is hashed by store and linked to entry of its own content
+		
+		awaitLinks(file2, 2);
+		assertEquals(2, links(file1));
+		byte[] written = Files.readAllBytes(file2);
+		assertEquals(1, written[0]);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 3, content.length), Arrays.copyOfRange(written, 3, written.length)));
+	}
+	
+	public void testDigestIsDroppedIfWriterOpenedSinceClose() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(11, MIN_SIZE * 2);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		awaitLinks(file1, 2);
+		
+		Path file2 = this.home2.resolve("file.bin");
+		long generation = this.dedupStore.beforeWrite(file2, true);
+		Files.write(file2, content);
+		assertTrue(this.dedupStore.writerClosed(file2, generation));
+		
+		// file is modified before deduplication of first writer runs
+		
+		long modification = this.dedupStore.beforeWrite(file2, false);
+		try(FileChannel channel = FileChannel.open(file2, StandardOpenOption.WRITE))
+		{
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 0L);
+		}
+		this.dedupStore.writerClosed(file2, modification);
+		assertFalse(this.dedupStore.writerClosed(file2, generation));
+		this.dedupStore.committed(file2, content.length, digest(content), generation);
+		
+		awaitLinks(file2, 2);
+		assertEquals(2, links(file1));
+		assertEquals(1, Files.readAllBytes(file2)[0]);
+	}
+	
+	public void testLinkingKeepsPermissionsAndModificationTime() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(12, MIN_SIZE);
+		Path file1 = create(this.home1.resolve("file.bin"), content, "rw-r-----");
+		this.dedupStore.committed(file1, content.length, null, -1L);
+		awaitLinks(file1, 2);
+		Path file2 = create(this.home2.resolve("private.bin"), content, "rw-------");
+		this.dedupStore.committed(file2, content.length, null, -1L);
+		awaitLinks(file2, 2);
+		
+		Path file3 = create(this.home2.resolve("file.bin"), content, "rw-r-----");
+		FileTime modified = FileTime.fromMillis(1500000000000L);
+		Files.setLastModifiedTime(file3, modified);
+		this.dedupStore.committed(file3, content.length, null, -1L);
+		
+		// files with different permissions are not linked
+		
+		awaitLinks(file3, 3);
+		
+		// modification time is restored after link replaced file
+		
+		long deadline = System.currentTimeMillis() + 10000L;
+		while((this.dedupStore.getLinkedCount() == 0L) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertEquals(1L, this.dedupStore.getLinkedCount());
+		assertEquals(3, links(file1));
+		assertEquals(2, links(file2));
+		assertEquals(fileKey(file1), fileKey(file3));
+		assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file3)));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file2)));
+		assertEquals(modified, Files.getLastModifiedTime(file3));
+	}
+	
+	public void testWritersWithoutDeduplicationAreNotLinked() throws Exception
+	{
+		if(! DedupStore.isSupported())
+		{
+			return;
+		}
+		byte[] content = content(13, MIN_SIZE);
+		Path file1 = write(this.home1.resolve("file.bin"), content);
+		awaitLinks(file1, 2);
+		
+		// e.g. karaf base session writing into home root
+		
+		Path file2 = this.home2.resolve("file.bin");
+		try(FileChannel channel = new DedupFileChannel(FileChannel.open(file2, StandardOpenOption.CREATE, StandardOpenOption.WRITE), this.dedupStore, file2, this.dedupStore.beforeWrite(file2, true), false))
+		{
+			channel.write(ByteBuffer.wrap(content));
+		}
+		
+		// store links files in order of close
+		
+		Path large = write(this.home1.resolve("large.bin"), content(14, MIN_SIZE));
+		awaitLinks(large, 2);
+		assertEquals(1, links(file2));
+		assertEquals(2, links(file1));
+		
+		// shared file is copied before write without deduplication
+		
+		try(FileChannel channel = new DedupFileChannel(FileChannel.open(file1, StandardOpenOption.WRITE), this.dedupStore, file1, this.dedupStore.beforeWrite(file1, false), false))
+		{
+			channel.write(ByteBuffer.wrap(new byte[] {1}), 0L);
+		}
+		assertEquals(1, links(file1));
+	}
+	
+	private Path write(Path file, byte[] content) throws Exception
+	{
+		try(FileChannel channel = open(file, this.dedupStore.beforeWrite(file, true)))
+		{
+			for(int offset = 0; offset < content.length; offset += 4096)
+			{
+				channel.write(ByteBuffer.wrap(content, offset, Math.min(4096, content.length - offset)));
+			}
+		}
+		return file;
+	}
+	
+	private static Path create(Path file, byte[] content, String permissions) throws Exception
+	{
+		Files.write(file, content);
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(permissions));
+		return file;
+	}
+	
+	private FileChannel open(Path file, long generation) throws Exception
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		return new DedupFileChannel(channel, this.dedupStore, file, generation, true);
+	}
+	
+	private FileChannel openExisting(Path file, long generation) throws Exception
+	{
+		return new DedupFileChannel(FileChannel.open(file, StandardOpenOption.WRITE), this.dedupStore, file, generation, true);
+	}
+	
+	private byte[] digest(byte[] content)
+	{
+		return this.dedupStore.newDigest().digest(content);
+	}
+	
+	private long countEntries() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.dedupStore.getDirectory()))
+		{
+			return stream.filter(path -> Files.isRegularFile(path) && (! path.getParent().getFileName().toString().equals("tmp"))).count();
+		}
+	}
+	
+	private static byte[] content(long seed, int size)
+	{
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+	
+	private static int links(Path file) throws Exception
+	{
+		return ((Number)Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+	}
+	
+	private static Object fileKey(Path file) throws Exception
+	{
+		return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+	}
+	
+	private static void awaitLinks(Path file, int links) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 10000L;
+		while((links(file) != links) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertEquals(links, links(file));
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class DigestCacheTest extends TestCase
+{
+	private static final String REQUEST = "sha256.0.0.0";
+	private static final byte[] RESPONSE = new byte[] {1, 2, 3, 4};
+	
+	private Path directory;
+	private Path file;
+	private FileTime modified;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-digest");
+		this.file = this.directory.resolve("file.bin");
+		Files.write(this.file, new byte[1000]);
+		
+		// files modified recently are not cached
+		
+		this.modified = FileTime.fromMillis(System.currentTimeMillis() - 60000L);
+		Files.setLastModifiedTime(this.file, this.modified);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testMemoryHit() throws Exception
+	{
+		DigestCache digestCache = new DigestCache(properties(DigestCache.MODE_MEMORY));
+		assertNull(digestCache.get(this.file, attributes(), REQUEST));
+		
+		digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+		assertTrue(Arrays.equals(RESPONSE, digestCache.get(this.file, attributes(), REQUEST)));
+		assertNull(digestCache.get(this.file, attributes(), "md5.0.0.0"));
+		assertTrue(attributeNames().isEmpty());
+	}
+	
+	public void testXattrHit() throws Exception
+	{
+		if(! Files.getFileStore(this.file).supportsFileAttributeView(UserDefinedFileAttributeView.class))
+		{
+			return;
+		}
+		
+		DigestCache digestCache = new DigestCache(properties(DigestCache.MODE_XATTR));
+		assertNull(digestCache.get(this.file, attributes(), REQUEST));
+		digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+		assertEquals(1, attributeNames().size());
+		
+		// response is stored with file, new cache reads it
+		
+		digestCache = new DigestCache(properties(DigestCache.MODE_XATTR));
+		assertTrue(Arrays.equals(RESPONSE, digestCache.get(this.file, attributes(), REQUEST)));
+	}
+	
+	public void testInvalidatedBySizeChange() throws Exception
+	{
+		for(String mode : new String[] {DigestCache.MODE_MEMORY, DigestCache.MODE_XATTR})
+		{
+			DigestCache digestCache = new DigestCache(properties(mode));
+			digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+			assertNotNull(digestCache.get(this.file, attributes(), REQUEST));
+			
+			Files.write(this.file, new byte[10], StandardOpenOption.APPEND);
+			Files.setLastModifiedTime(this.file, this.modified);
+			assertNull(mode, digestCache.get(this.file, attributes(), REQUEST));
+		}
+	}
+	
+	public void testInvalidatedByModifiedTimeChange() throws Exception
+	{
+		for(String mode : new String[] {DigestCache.MODE_MEMORY, DigestCache.MODE_XATTR})
+		{
+			DigestCache digestCache = new DigestCache(properties(mode));
+			digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+			assertNotNull(digestCache.get(this.file, attributes(), REQUEST));
+			
+			this.modified = FileTime.fromMillis(this.modified.toMillis() + 1000L);
+			Files.setLastModifiedTime(this.file, this.modified);
+			assertNull(mode, digestCache.get(this.file, attributes(), REQUEST));
+		}
+	}
+	
+	public void testRecentlyModifiedFileIsNotCached() throws Exception
+	{
+		Files.setLastModifiedTime(this.file, FileTime.fromMillis(System.currentTimeMillis()));
+		DigestCache digestCache = new DigestCache(properties(DigestCache.MODE_MEMORY));
+		digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+		assertNull(digestCache.get(this.file, attributes(), REQUEST));
+	}
+	
+	public void testNoXattrFallback() throws Exception
+	{
+		AtomicInteger checks = new AtomicInteger();
+		DigestCache digestCache = new DigestCache(properties(DigestCache.MODE_XATTR))
+		{
+			@Override
+			protected boolean supportsUserDefinedAttributes(Path file) throws IOException
+			{
+				checks.incrementAndGet();
+				return false;
+			}
+		};
+		
+		// responses are cached in memory, support is checked once per file system
+		
+		assertNull(digestCache.get(this.file, attributes(), REQUEST));
+		digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+		assertTrue(Arrays.equals(RESPONSE, digestCache.get(this.file, attributes(), REQUEST)));
+		assertTrue(attributeNames().isEmpty());
+		assertEquals(1, checks.get());
+	}
+	
+	public void testModeNone() throws Exception
+	{
+		DigestCache digestCache = new DigestCache(properties(DigestCache.MODE_NONE));
+		assertFalse(digestCache.isEnabled());
+		digestCache.put(this.file, attributes(), REQUEST, RESPONSE);
+		assertNull(digestCache.get(this.file, attributes(), REQUEST));
+	}
+	
+	private BasicFileAttributes attributes() throws IOException
+	{
+		return Files.readAttributes(this.file, BasicFileAttributes.class);
+	}
+	
+	private List<String> attributeNames() throws IOException
+	{
+		if(! Files.getFileStore(this.file).supportsFileAttributeView(UserDefinedFileAttributeView.class))
+		{
+			return Collections.emptyList();
+		}
+		return Files.getFileAttributeView(this.file, UserDefinedFileAttributeView.class).list();
+	}
+	
+	private static Map<String,Object> properties(String mode)
+	{
+		return Collections.singletonMap("sftpdigestcache", mode);
+	}
+}
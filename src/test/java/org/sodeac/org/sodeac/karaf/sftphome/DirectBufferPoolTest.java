@@ -0,0 +1,82 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class DirectBufferPoolTest extends TestCase
+{
+	public void testAcquireAllocatesDirectBuffers()
+	{
+		DirectBufferPool bufferPool = new DirectBufferPool(4096, 2);
+		ByteBuffer buffer = bufferPool.tryAcquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(4096, buffer.capacity());
+		assertNotSame(buffer, bufferPool.tryAcquire());
+	}
+	
+	public void testReleasedBufferIsReusedCleared()
+	{
+		DirectBufferPool bufferPool = new DirectBufferPool(4096, 2);
+		ByteBuffer buffer = bufferPool.tryAcquire();
+		buffer.putInt(42);
+		buffer.flip();
+		bufferPool.release(buffer);
+		
+		ByteBuffer reused = bufferPool.tryAcquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(4096, reused.limit());
+	}
+	
+	public void testDirectBuffersAreBounded()
+	{
+		DirectBufferPool bufferPool = new DirectBufferPool(1024, 2);
+		ByteBuffer buffer1 = bufferPool.tryAcquire();
+		ByteBuffer buffer2 = bufferPool.tryAcquire();
+		assertNotNull(buffer1);
+		assertNotNull(buffer2);
+		assertNull(bufferPool.tryAcquire());
+		
+		bufferPool.release(buffer2);
+		assertSame(buffer2, bufferPool.tryAcquire());
+		assertNull(bufferPool.tryAcquire());
+	}
+	
+	public void testNoDirectBuffers()
+	{
+		DirectBufferPool bufferPool = new DirectBufferPool(1024, -1);
+		assertEquals(0, bufferPool.getMaxBuffers());
+		assertNull(bufferPool.tryAcquire());
+	}
+	
+	public void testInvalidBufferSize()
+	{
+		try
+		{
+			new DirectBufferPool(-1, 2);
+			fail("invalid buffer size accepted");
+		}
+		catch (IllegalArgumentException e) {}
+		
+		assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, DirectBufferPool.bufferSize(-1L));
+		assertEquals(DirectBufferPool.MAX_BUFFER_SIZE, DirectBufferPool.bufferSize(Long.MAX_VALUE));
+		assertEquals(65536, DirectBufferPool.bufferSize(65536L));
+	}
+}
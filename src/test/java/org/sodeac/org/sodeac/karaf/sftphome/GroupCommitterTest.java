@@ -0,0 +1,385 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class GroupCommitterTest extends TestCase
+{
+	public void testCommitWaitsForFlush() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		try
+		{
+			RecordingChannel channel = new RecordingChannel(false);
+			Committer committer = new Committer(groupCommitter, channel);
+			committer.start();
+			committer.join(200L);
+			assertTrue("commit must wait for group commit", committer.isAlive());
+			assertEquals(0, channel.forced);
+			
+			groupCommitter.flush();
+			committer.join(5000L);
+			assertFalse(committer.isAlive());
+			assertNull(committer.failure);
+			assertEquals(1, channel.forced);
+			assertTrue("channel is closed by caller", channel.isOpen());
+			
+			groupCommitter.flush();
+			assertEquals(1, channel.forced);
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	public void testTimerCommitsBatch() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(20L);
+		try
+		{
+			List<Committer> committers = new ArrayList<Committer>();
+			for(int i = 0; i < 10; i++)
+			{
+				Committer committer = new Committer(groupCommitter, new RecordingChannel(false));
+				committers.add(committer);
+				committer.start();
+			}
+			for(Committer committer : committers)
+			{
+				committer.join(5000L);
+				assertFalse(committer.isAlive());
+				assertNull(committer.failure);
+				assertEquals(1, committer.channel.forced);
+				assertEquals("SFTP home group commit", committer.channel.forcedBy);
+			}
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	public void testShortenedIntervalIsApplied() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		try
+		{
+			Committer committer = new Committer(groupCommitter, new RecordingChannel(false));
+			committer.start();
+			groupCommitter.setInterval(20L);
+			committer.join(5000L);
+			assertFalse(committer.isAlive());
+			assertEquals(1, committer.channel.forced);
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	public void testInterruptDoesNotAbortWaiting() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		try
+		{
+			Committer committer = new Committer(groupCommitter, new RecordingChannel(false));
+			committer.start();
+			committer.join(100L);
+			committer.interrupt();
+			committer.join(200L);
+			assertTrue("interrupted commit must wait for group commit", committer.isAlive());
+			
+			groupCommitter.flush();
+			committer.join(5000L);
+			assertFalse(committer.isAlive());
+			assertNull(committer.failure);
+			assertTrue("interrupt status must be restored", committer.interrupted);
+			assertEquals(1, committer.channel.forced);
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	public void testFailedForceIsReportedToItsCaller() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		try
+		{
+			Committer failing = new Committer(groupCommitter, new RecordingChannel(true));
+			Committer committer = new Committer(groupCommitter, new RecordingChannel(false));
+			failing.start();
+			committer.start();
+			awaitWaiting(failing);
+			awaitWaiting(committer);
+			
+			groupCommitter.flush();
+			failing.join(5000L);
+			committer.join(5000L);
+			assertTrue(failing.failure instanceof IOException);
+			assertNull(committer.failure);
+			assertEquals(1, committer.channel.forced);
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	public void testDisposeCommitsPendingAndLaterChannels() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		Committer pending = new Committer(groupCommitter, new RecordingChannel(false));
+		pending.start();
+		awaitWaiting(pending);
+		
+		groupCommitter.dispose();
+		pending.join(5000L);
+		assertFalse(pending.isAlive());
+		assertEquals(1, pending.channel.forced);
+		
+		RecordingChannel late = new RecordingChannel(false);
+		groupCommitter.commit(late);
+		assertEquals(1, late.forced);
+		assertEquals(Thread.currentThread().getName(), late.forcedBy);
+		
+		try
+		{
+			groupCommitter.commit(new RecordingChannel(true));
+			fail("caller must see failed force after dispose");
+		}
+		catch (IOException e) 
+		{
+			// expected
+		}
+	}
+	
+	public void testDurableChannelClosesAfterForce() throws Exception
+	{
+		GroupCommitter groupCommitter = new GroupCommitter(60000L);
+		try
+		{
+			RecordingChannel channel = new RecordingChannel(false);
+			DurableFileChannel durableChannel = new DurableFileChannel(channel, DurabilityPolicy.Mode.GROUP, groupCommitter);
+			durableChannel.truncate(0L);
+			
+			Thread closer = new Thread(() -> 
+			{
+				try
+				{
+					durableChannel.close();
+				}
+				catch (IOException e) 
+				{
+					throw new RuntimeException(e);
+				}
+			});
+			closer.start();
+			closer.join(200L);
+			assertTrue("close must wait for group commit", closer.isAlive());
+			assertTrue(channel.isOpen());
+			
+			groupCommitter.flush();
+			closer.join(5000L);
+			assertFalse(closer.isAlive());
+			assertEquals(1, channel.forced);
+			assertFalse(channel.isOpen());
+		}
+		finally 
+		{
+			groupCommitter.dispose();
+		}
+	}
+	
+	private static void awaitWaiting(Thread thread) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000L;
+		while((thread.getState() != Thread.State.WAITING) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(5L);
+		}
+		assertEquals(Thread.State.WAITING, thread.getState());
+	}
+	
+	/**
+	 * Thread committing one channel, records result.
+	 */
+	private static class Committer extends Thread
+	{
+		private final GroupCommitter groupCommitter;
+		private final RecordingChannel channel;
+		private volatile Exception failure = null;
+		private volatile boolean interrupted = false;
+		
+		private Committer(GroupCommitter groupCommitter, RecordingChannel channel)
+		{
+			super();
+			this.groupCommitter = groupCommitter;
+			this.channel = channel;
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				this.groupCommitter.commit(this.channel);
+			}
+			catch (IOException | RuntimeException e) 
+			{
+				this.failure = e;
+			}
+			this.interrupted = Thread.currentThread().isInterrupted();
+		}
+	}
+	
+	/**
+	 * Channel without file, records force calls.
+	 */
+	private static class RecordingChannel extends FileChannel
+	{
+		private final boolean failing;
+		private volatile int forced = 0;
+		private volatile String forcedBy = null;
+		
+		private RecordingChannel(boolean failing)
+		{
+			super();
+			this.failing = failing;
+		}
+		
+		@Override
+		public void force(boolean metaData) throws IOException
+		{
+			if(this.failing)
+			{
+				throw new IOException("force failed");
+			}
+			this.forced++;
+			this.forcedBy = Thread.currentThread().getName();
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException
+		{
+			// nothing to release
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long position() throws IOException
+		{
+			return 0L;
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long size() throws IOException
+		{
+			return 0L;
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException
+		{
+			return this;
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
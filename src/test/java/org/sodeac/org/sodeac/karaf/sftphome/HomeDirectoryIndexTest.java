@@ -0,0 +1,301 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.InputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Layout;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Placement;
+
+import junit.framework.TestCase;
+
+public class HomeDirectoryIndexTest extends TestCase
+{
+	private Path directory;
+	private Path root1;
+	private Path root2;
+	private Path root3;
+	private Path placementFile;
+	private Path journalFile;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-index").toRealPath();
+		this.root1 = this.directory.resolve("root1");
+		this.root2 = this.directory.resolve("root2");
+		this.root3 = this.directory.resolve("root3");
+		this.placementFile = this.directory.resolve("placement").resolve("home-placement.properties");
+		this.journalFile = this.placementFile.resolveSibling("home-placement.properties.journal");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testScanFindsFlatAndHashedHomes() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1), Placement.HASH, null, Layout.HASHED);
+		Files.createDirectories(this.root1.resolve("alice"));
+		Files.createDirectories(index.resolve(this.root1, "bob"));
+		Files.createDirectories(this.root1.resolve("ab"));
+		Files.createFile(this.root1.resolve("file.txt"));
+		
+		index.scan();
+		
+		assertEquals(2, index.getUserNames().size());
+		assertEquals(this.root1.resolve("alice"), index.getHome("alice"));
+		assertEquals(this.root1.resolve("9f").resolve("9d").resolve("bob"), index.getHome("bob"));
+		assertFalse(index.isProvisioned("ab"));
+		assertEquals(this.root1, index.getHomeRoot(index.getHome("bob")));
+	}
+	
+	public void testFanOutNamesAreReserved() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1), Placement.HASH, null, Layout.HASHED);
+		index.scan();
+		
+		assertFalse(index.isSupportedUserName("ab"));
+		assertTrue(index.isSupportedUserName("AB"));
+		assertTrue(index.isSupportedUserName("abc"));
+		try
+		{
+			index.provision("ab");
+			fail("user name of fan-out directory must be rejected");
+		}
+		catch (AccessDeniedException e) {}
+		assertFalse(index.isProvisioned("ab"));
+		
+		// flat layout has no fan-out directories
+		
+		assertTrue(new HomeDirectoryIndex(this.root1).isSupportedUserName("ab"));
+	}
+	
+	public void testDirectoriesOutsideHashedLocationAreIgnored() throws Exception
+	{
+		// a directory created inside a fan-out directory (e.g. by a user named like it) must not become home of another user
+		
+		Files.createDirectories(this.root1.resolve("ab").resolve("cd").resolve("bob"));
+		
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1), Placement.HASH, null, Layout.HASHED);
+		index.scan();
+		
+		assertFalse(index.isProvisioned("bob"));
+		assertEquals(index.resolve(this.root1, "bob"), index.provision("bob"));
+		assertFalse(this.root1.resolve("ab").resolve("cd").resolve("bob").equals(index.getHome("bob")));
+	}
+	
+	public void testProvisionCreatesHomeOnce() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1), Placement.HASH, null, Layout.HASHED);
+		index.scan();
+		
+		Path home = index.provision("carol");
+		assertTrue(Files.isDirectory(home));
+		assertEquals(index.resolve(this.root1, "carol"), home);
+		assertEquals(3, this.root1.relativize(home).getNameCount());
+		assertSame(home, index.provision("carol"));
+		assertTrue(index.isProvisioned("carol"));
+		
+		HomeDirectoryIndex flat = new HomeDirectoryIndex(this.root1);
+		assertEquals(this.root1.resolve("dave"), flat.provision("dave"));
+	}
+	
+	public void testHashPlacementUsesConfiguredOrder() throws Exception
+	{
+		List<Path> homeRoots = Arrays.asList(this.root1, this.root2, this.root3);
+		HomeDirectoryIndex index = new HomeDirectoryIndex(homeRoots, Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		
+		for(int i = 0; i < 30; i++)
+		{
+			String userName = "user" + i;
+			Path expected = homeRoots.get(Math.floorMod(userName.hashCode(), homeRoots.size())).resolve(userName);
+			assertEquals(expected, index.provision(userName));
+		}
+	}
+	
+	public void testPlacementSurvivesChangedHomeRoots() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		Map<String,Path> homes = new HashMap<String,Path>();
+		for(int i = 0; i < 30; i++)
+		{
+			homes.put("user" + i, index.provision("user" + i));
+		}
+		
+		// reordered and appended home roots
+		
+		HomeDirectoryIndex changed = new HomeDirectoryIndex(Arrays.asList(this.root2, this.root1, this.root3), Placement.HASH, this.placementFile, Layout.FLAT);
+		changed.scan();
+		for(Map.Entry<String,Path> entry : homes.entrySet())
+		{
+			assertEquals(entry.getValue(), changed.getHome(entry.getKey()));
+			assertEquals(entry.getValue(), changed.provision(entry.getKey()));
+		}
+	}
+	
+	public void testRemovedHomeRootDeniesAccess() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		String userName = userOnRoot(1, 2);
+		assertEquals(this.root2.resolve(userName), index.provision(userName));
+		
+		// placement is only journaled so far
+		
+		assertFalse(Files.exists(this.placementFile));
+		assertTrue(Files.exists(this.journalFile));
+		
+		HomeDirectoryIndex reduced = new HomeDirectoryIndex(Arrays.asList(this.root1), Placement.HASH, this.placementFile, Layout.FLAT);
+		reduced.scan();
+		assertFalse(reduced.isProvisioned(userName));
+		try
+		{
+			reduced.provision(userName);
+			fail("user of removed home root must be denied");
+		}
+		catch (AccessDeniedException e) 
+		{
+			// expected
+		}
+		assertFalse(Files.exists(this.root1.resolve(userName)));
+		
+		// placement of unavailable user is kept
+		
+		HomeDirectoryIndex restored = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		restored.scan();
+		assertEquals(this.root2.resolve(userName), restored.getHome(userName));
+	}
+	
+	public void testHomeOnOtherRootThanPlacementIsIgnored() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		String userName = userOnRoot(0, 2);
+		index.provision(userName);
+		Files.createDirectories(this.root2.resolve(userName));
+		
+		HomeDirectoryIndex rescanned = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		rescanned.scan();
+		assertEquals(this.root1.resolve(userName), rescanned.getHome(userName));
+	}
+	
+	public void testScanMergesJournal() throws Exception
+	{
+		Files.createDirectories(this.root1.resolve("alice"));
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		assertTrue(Files.exists(this.placementFile));
+		assertFalse(Files.exists(this.journalFile));
+		
+		index.provision("bob");
+		index.provision("carol");
+		assertTrue(Files.exists(this.journalFile));
+		assertEquals(1, loadProperties(this.placementFile).size());
+		
+		HomeDirectoryIndex rescanned = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		rescanned.scan();
+		assertFalse(Files.exists(this.journalFile));
+		Properties placement = loadProperties(this.placementFile);
+		assertEquals(3, placement.size());
+		assertEquals(this.root1.toString(), placement.getProperty("alice"));
+		assertEquals(index.getHomeRoot(index.getHome("bob")).toString(), placement.getProperty("bob"));
+	}
+	
+	public void testJournalIsCompactedIfLargerThanIndex() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		for(int i = 0; i < 10; i++)
+		{
+			index.provision("user" + i);
+		}
+		
+		// journal of new users does not exceed index, repeated relocations do
+		
+		assertEquals(10, Files.readAllLines(this.journalFile).size());
+		for(int i = 0; i < 1100; i++)
+		{
+			String userName = "user" + (i % 10);
+			index.relocated(userName, index.getHome(userName));
+		}
+		
+		assertEquals(10, loadProperties(this.placementFile).size());
+		assertTrue(Files.readAllLines(this.journalFile).size() < 1024);
+		
+		HomeDirectoryIndex rescanned = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		rescanned.scan();
+		assertEquals(10, rescanned.getUserNames().size());
+		assertFalse(Files.exists(this.journalFile));
+	}
+	
+	public void testJournalEscapesUserNames() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		index.scan();
+		String userName = "user=name:x y";
+		Path home = index.provision(userName);
+		Files.delete(home);
+		
+		// placement is taken from journal, home directory is created again on same root
+		
+		HomeDirectoryIndex rescanned = new HomeDirectoryIndex(Arrays.asList(this.root1, this.root2), Placement.HASH, this.placementFile, Layout.FLAT);
+		rescanned.scan();
+		assertEquals(home, rescanned.getHome(userName));
+	}
+	
+	private static String userOnRoot(int root, int roots)
+	{
+		for(int i = 0; ; i++)
+		{
+			String userName = "user" + i;
+			if(Math.floorMod(userName.hashCode(), roots) == root)
+			{
+				return userName;
+			}
+		}
+	}
+	
+	private static Properties loadProperties(Path file) throws Exception
+	{
+		Properties properties = new Properties();
+		try(InputStream inputStream = Files.newInputStream(file))
+		{
+			properties.load(inputStream);
+		}
+		return properties;
+	}
+}
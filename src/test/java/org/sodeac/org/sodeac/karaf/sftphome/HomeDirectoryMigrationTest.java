@@ -0,0 +1,201 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.future.SshFutureListener;
+import org.apache.sshd.common.session.SessionContext;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Layout;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Placement;
+
+import junit.framework.TestCase;
+
+public class HomeDirectoryMigrationTest extends TestCase
+{
+	private Path directory;
+	private Path homeRoot;
+	private Path placementFile;
+	private SFTPHomeFileSystemPool fileSystemPool;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-migration").toRealPath();
+		this.homeRoot = Files.createDirectories(this.directory.resolve("home"));
+		this.placementFile = this.directory.resolve("home-placement.properties");
+		this.fileSystemPool = new SFTPHomeFileSystemPool();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.fileSystemPool.dispose();
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testFlatHomesAreMovedIntoHashedLayout() throws Exception
+	{
+		for(String userName : Arrays.asList("alice", "bob", "carol"))
+		{
+			Files.write(Files.createDirectories(this.homeRoot.resolve(userName)).resolve("file.txt"), userName.getBytes(StandardCharsets.UTF_8));
+		}
+		HomeDirectoryIndex index = newIndex();
+		HomeDirectoryMigration migration = new HomeDirectoryMigration(index, this.fileSystemPool);
+		assertEquals(3, migration.getPending().size());
+		
+		migration.migrate(2, 10L);
+		assertEquals(3, migration.getMoved());
+		assertEquals(0, migration.getSkipped());
+		assertEquals(0, migration.getFailed());
+		assertTrue(migration.getPending().isEmpty());
+		
+		for(String userName : Arrays.asList("alice", "bob", "carol"))
+		{
+			Path home = index.resolve(this.homeRoot, userName);
+			assertEquals(home, index.getHome(userName));
+			assertFalse(Files.exists(this.homeRoot.resolve(userName)));
+			assertEquals(userName, new String(Files.readAllBytes(home.resolve("file.txt")), StandardCharsets.UTF_8));
+		}
+		
+		// relocations are persisted
+		
+		HomeDirectoryIndex rescanned = newIndex();
+		assertEquals(index.getHome("alice"), rescanned.getHome("alice"));
+		assertTrue(new HomeDirectoryMigration(rescanned, this.fileSystemPool).getPending().isEmpty());
+	}
+	
+	public void testHomesInUseAreSkipped() throws Exception
+	{
+		Files.createDirectories(this.homeRoot.resolve("alice"));
+		HomeDirectoryIndex index = newIndex();
+		
+		TestSession session = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.fileSystemPool.acquire(session.session, index.getHome("alice"), "alice");
+		
+		HomeDirectoryMigration migration = new HomeDirectoryMigration(index, this.fileSystemPool);
+		migration.migrate(10, 0L);
+		assertEquals(0, migration.getMoved());
+		assertEquals(1, migration.getSkipped());
+		assertEquals(this.homeRoot.resolve("alice"), index.getHome("alice"));
+		assertTrue(fileSystem.isOpen());
+		
+		session.close();
+		migration = new HomeDirectoryMigration(index, this.fileSystemPool);
+		migration.migrate(10, 0L);
+		assertEquals(1, migration.getMoved());
+		assertEquals(index.resolve(this.homeRoot, "alice"), index.getHome("alice"));
+	}
+	
+	public void testExistingTargetFails() throws Exception
+	{
+		Files.createDirectories(this.homeRoot.resolve("alice"));
+		HomeDirectoryIndex index = newIndex();
+		Files.createDirectories(index.resolve(this.homeRoot, "alice"));
+		
+		HomeDirectoryMigration migration = new HomeDirectoryMigration(index, this.fileSystemPool);
+		migration.migrate(10, 0L);
+		assertEquals(1, migration.getFailed());
+		assertEquals(this.homeRoot.resolve("alice"), index.getHome("alice"));
+		assertTrue(Files.isDirectory(this.homeRoot.resolve("alice")));
+	}
+	
+	public void testInterruptStopsMigration() throws Exception
+	{
+		Files.createDirectories(this.homeRoot.resolve("alice"));
+		HomeDirectoryIndex index = newIndex();
+		
+		Thread.currentThread().interrupt();
+		try
+		{
+			new HomeDirectoryMigration(index, this.fileSystemPool).migrate(10, 0L);
+			fail("interrupted migration must stop");
+		}
+		catch (InterruptedException e) 
+		{
+			// expected
+		}
+		assertEquals(this.homeRoot.resolve("alice"), index.getHome("alice"));
+	}
+	
+	private HomeDirectoryIndex newIndex() throws Exception
+	{
+		HomeDirectoryIndex index = new HomeDirectoryIndex(Collections.singletonList(this.homeRoot), Placement.HASH, this.placementFile, Layout.HASHED);
+		index.scan();
+		return index;
+	}
+	
+	/**
+	 * Session context with attributes and close listeners only.
+	 */
+	private static class TestSession
+	{
+		private final Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		private final List<SshFutureListener<CloseFuture>> closeListeners = new CopyOnWriteArrayList<SshFutureListener<CloseFuture>>();
+		private final SessionContext session;
+		
+		@SuppressWarnings("unchecked")
+		private TestSession()
+		{
+			super();
+			this.session = (SessionContext)Proxy.newProxyInstance(TestSession.class.getClassLoader(), new Class<?>[] {SessionContext.class}, (proxy, method, args) -> 
+			{
+				switch (method.getName()) 
+				{
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						return attributes.put(args[0], args[1]);
+					case "addCloseFutureListener":
+						closeListeners.add((SshFutureListener<CloseFuture>)args[0]);
+						return null;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+				}
+			});
+		}
+		
+		private void close()
+		{
+			for(SshFutureListener<CloseFuture> listener : this.closeListeners)
+			{
+				listener.operationComplete(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.jaas.config.JaasRealm;
+import org.apache.karaf.jaas.modules.BackingEngine;
+import org.apache.karaf.jaas.modules.BackingEngineFactory;
+import org.apache.karaf.jaas.modules.BackingEngineService;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Layout;
+import org.sodeac.org.sodeac.karaf.sftphome.HomeDirectoryIndex.Placement;
+
+import junit.framework.TestCase;
+
+public class HomeDirectoryProvisionerTest extends TestCase
+{
+	private static final String LIST_MODULE = "test.ListLoginModule";
+	private static final String LDAP_MODULE = "test.LdapLoginModule";
+	
+	private Path directory;
+	private Map<String, List<RolePrincipal>> users;
+	private BackingEngineService backingEngineService;
+	private RolePolicy rolePolicy;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-provisioner");
+		this.users = new HashMap<String, List<RolePrincipal>>();
+		
+		this.backingEngineService = new BackingEngineService();
+		this.backingEngineService.setEngineFactories(Collections.singletonList(new BackingEngineFactory()
+		{
+			@Override
+			public String getModuleClass()
+			{
+				return LIST_MODULE;
+			}
+			
+			@Override
+			public BackingEngine build(Map<String, ?> options)
+			{
+				return backingEngine();
+			}
+		}));
+		
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("rolehomedir", "sftp");
+		properties.put("rolekarafbasedir", "admin");
+		this.rolePolicy = RolePolicy.fromProperties(properties, new Class<?>[] {RolePrincipal.class});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testProvisionsUsersWithHomeRole() throws Exception
+	{
+		this.users.put("alice", Arrays.asList(new RolePrincipal("sftp")));
+		this.users.put("bob", Arrays.asList(new RolePrincipal("sftp"), new RolePrincipal("other")));
+		this.users.put("carol", Arrays.asList(new RolePrincipal("other")));
+		this.users.put("admin", Arrays.asList(new RolePrincipal("sftp"), new RolePrincipal("admin")));
+		
+		HomeDirectoryIndex homeDirectoryIndex = new HomeDirectoryIndex(this.directory);
+		new HomeDirectoryProvisioner(Arrays.asList(realm(LIST_MODULE)), this.backingEngineService, this.rolePolicy, Arrays.asList(homeDirectoryIndex)).run();
+		
+		assertTrue(Files.isDirectory(this.directory.resolve("alice")));
+		assertTrue(Files.isDirectory(this.directory.resolve("bob")));
+		assertTrue(homeDirectoryIndex.isProvisioned("alice"));
+		
+		// no home directory role or karaf base access
+		
+		assertFalse(Files.exists(this.directory.resolve("carol")));
+		assertFalse(Files.exists(this.directory.resolve("admin")));
+	}
+	
+	public void testRealmsWithoutBackingEngineAreSkipped() throws Exception
+	{
+		this.users.put("alice", Arrays.asList(new RolePrincipal("sftp")));
+		
+		HomeDirectoryIndex homeDirectoryIndex = new HomeDirectoryIndex(this.directory);
+		new HomeDirectoryProvisioner(Arrays.asList(realm(LDAP_MODULE), realm(LIST_MODULE)), this.backingEngineService, this.rolePolicy, Arrays.asList(homeDirectoryIndex)).run();
+		
+		assertTrue(Files.isDirectory(this.directory.resolve("alice")));
+	}
+	
+	public void testProvisionsAllIndexes() throws Exception
+	{
+		this.users.put("alice", Arrays.asList(new RolePrincipal("sftp")));
+		
+		Path homeRoot1 = Files.createDirectory(this.directory.resolve("home1"));
+		Path homeRoot2 = Files.createDirectory(this.directory.resolve("home2"));
+		List<HomeDirectoryIndex> homeDirectoryIndexList = Arrays.asList(new HomeDirectoryIndex(homeRoot1), new HomeDirectoryIndex(homeRoot2));
+		new HomeDirectoryProvisioner(Arrays.asList(realm(LIST_MODULE)), this.backingEngineService, this.rolePolicy, homeDirectoryIndexList).run();
+		
+		assertTrue(Files.isDirectory(homeRoot1.resolve("alice")));
+		assertTrue(Files.isDirectory(homeRoot2.resolve("alice")));
+	}
+	
+	public void testFanOutUserNamesAreSkipped() throws Exception
+	{
+		this.users.put("alice", Arrays.asList(new RolePrincipal("sftp")));
+		this.users.put("ab", Arrays.asList(new RolePrincipal("sftp")));
+		
+		HomeDirectoryIndex homeDirectoryIndex = new HomeDirectoryIndex(Arrays.asList(this.directory), Placement.HASH, null, Layout.HASHED);
+		new HomeDirectoryProvisioner(Arrays.asList(realm(LIST_MODULE)), this.backingEngineService, this.rolePolicy, Arrays.asList(homeDirectoryIndex)).run();
+		
+		assertTrue(Files.isDirectory(homeDirectoryIndex.resolve(this.directory, "alice")));
+		assertFalse(homeDirectoryIndex.isProvisioned("ab"));
+		assertFalse(Files.exists(homeDirectoryIndex.resolve(this.directory, "ab")));
+	}
+	
+	public void testInterruptedRunStops() throws Exception
+	{
+		this.users.put("alice", Arrays.asList(new RolePrincipal("sftp")));
+		
+		HomeDirectoryIndex homeDirectoryIndex = new HomeDirectoryIndex(this.directory);
+		HomeDirectoryProvisioner provisioner = new HomeDirectoryProvisioner(Arrays.asList(realm(LIST_MODULE)), this.backingEngineService, this.rolePolicy, Arrays.asList(homeDirectoryIndex));
+		
+		Thread.currentThread().interrupt();
+		try
+		{
+			provisioner.run();
+		}
+		finally 
+		{
+			Thread.interrupted();
+		}
+		assertFalse(Files.exists(this.directory.resolve("alice")));
+	}
+	
+	private BackingEngine backingEngine()
+	{
+		return (BackingEngine)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {BackingEngine.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName())
+			{
+				case "listUsers": 
+					List<UserPrincipal> userPrincipals = new ArrayList<UserPrincipal>();
+					for(String userName : this.users.keySet())
+					{
+						userPrincipals.add(new UserPrincipal(userName));
+					}
+					return userPrincipals;
+				case "listRoles": return this.users.get(((UserPrincipal)args[0]).getName());
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+	
+	private static JaasRealm realm(String loginModule)
+	{
+		// backing engine factories are selected by module option of entry
+		
+		AppConfigurationEntry entry = new AppConfigurationEntry(loginModule, LoginModuleControlFlag.REQUIRED, Collections.singletonMap("org.apache.karaf.jaas.module", loginModule));
+		return new JaasRealm()
+		{
+			@Override
+			public String getName()
+			{
+				return "karaf";
+			}
+			
+			@Override
+			public int getRank()
+			{
+				return 0;
+			}
+			
+			@Override
+			public AppConfigurationEntry[] getEntries()
+			{
+				return new AppConfigurationEntry[] {entry};
+			}
+		};
+	}
+}
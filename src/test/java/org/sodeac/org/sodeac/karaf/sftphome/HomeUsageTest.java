@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class HomeUsageTest extends TestCase
+{
+	public void testReserveWithinHardLimit() throws Exception
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 100L);
+		homeUsage.setLimits(0L, 200L);
+		
+		homeUsage.reserve(100L);
+		assertEquals(200L, homeUsage.getUsed());
+		assertTrue(homeUsage.isHardLimitReached());
+		
+		try
+		{
+			homeUsage.reserve(1L);
+			fail("hard limit exceeded");
+		}
+		catch (QuotaExceededException e) 
+		{
+			// expected
+		}
+		assertEquals(200L, homeUsage.getUsed());
+		
+		homeUsage.release(50L);
+		assertEquals(150L, homeUsage.getUsed());
+		assertFalse(homeUsage.isHardLimitReached());
+		
+		homeUsage.reserve(0L);
+		homeUsage.release(-10L);
+		assertEquals(150L, homeUsage.getUsed());
+	}
+	
+	public void testUnlimitedWithoutHardLimit() throws Exception
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 0L);
+		homeUsage.reserve(Long.MAX_VALUE / 2);
+		assertFalse(homeUsage.isHardLimitReached());
+	}
+	
+	public void testSoftLimit() throws Exception
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 0L);
+		homeUsage.setLimits(100L, 0L);
+		
+		homeUsage.reserve(100L);
+		assertFalse(homeUsage.isSoftLimitExceeded());
+		homeUsage.reserve(1L);
+		assertTrue(homeUsage.isSoftLimitExceeded());
+		homeUsage.release(1L);
+		assertFalse(homeUsage.isSoftLimitExceeded());
+		
+		homeUsage.setLimits(50L, 0L);
+		assertTrue(homeUsage.isSoftLimitExceeded());
+	}
+	
+	public void testReconcileKeepsChangesDuringMeasurement() throws Exception
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 100L);
+		long journalBefore = homeUsage.getJournal();
+		
+		// written while home directory is measured
+		
+		homeUsage.reserve(50L);
+		homeUsage.release(10L);
+		
+		long drift = homeUsage.reconcile(300L, journalBefore);
+		assertEquals(340L, homeUsage.getUsed());
+		assertEquals(200L, drift);
+		
+		drift = homeUsage.reconcile(0L, homeUsage.getJournal());
+		assertEquals(0L, homeUsage.getUsed());
+		assertEquals(-340L, drift);
+	}
+	
+	public void testReconcileNeverNegative()
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 100L);
+		long journalBefore = homeUsage.getJournal();
+		homeUsage.release(80L);
+		homeUsage.reconcile(10L, journalBefore);
+		assertEquals(0L, homeUsage.getUsed());
+	}
+	
+	public void testConcurrentReserveNeverExceedsHardLimit() throws Exception
+	{
+		HomeUsage homeUsage = new HomeUsage("alice", 0L);
+		homeUsage.setLimits(0L, 100000L);
+		
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> 
+			{
+				try
+				{
+					while(true)
+					{
+						homeUsage.reserve(7L);
+					}
+				}
+				catch (QuotaExceededException e) 
+				{
+					// limit reached
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertNull(failure.get());
+		assertTrue(homeUsage.getUsed() <= 100000L);
+		assertTrue(homeUsage.getUsed() > 100000L - 7L);
+		assertEquals(homeUsage.getUsed(), homeUsage.getJournal());
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.io.BuiltinIoServiceFactoryFactories;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import junit.framework.TestCase;
+
+public class IoTuningTest extends TestCase
+{
+	public void testApplyAcceptor() throws Exception
+	{
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("iobackend", "nio2");
+		properties.put("ioworkers", "3");
+		properties.put("iobacklog", "64");
+		IoTuning ioTuning = IoTuning.fromProperties(properties);
+		
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		assertFalse(ioTuning.isAcceptorApplied(sshServer));
+		
+		ioTuning.applyAcceptor(sshServer);
+		assertTrue(ioTuning.isAcceptorApplied(sshServer));
+		assertEquals(3, sshServer.getProperties().get(FactoryManager.NIO_WORKERS));
+		assertEquals(64, sshServer.getProperties().get(FactoryManager.SOCKET_BACKLOG));
+		assertSame(BuiltinIoServiceFactoryFactories.NIO2, BuiltinIoServiceFactoryFactories.fromFactoryClass(sshServer.getIoServiceFactoryFactory().getClass()));
+		
+		// undefined settings keep settings of server
+		
+		assertTrue(IoTuning.fromProperties(new HashMap<String, Object>()).isAcceptorApplied(sshServer));
+		
+		Map<String, Object> changed = new HashMap<String, Object>(properties);
+		changed.put("ioworkers", "4");
+		assertFalse(IoTuning.fromProperties(changed).isAcceptorApplied(sshServer));
+	}
+	
+	public void testUnsupportedBackendKeepsDefault() throws Exception
+	{
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("iobackend", "unknown");
+		assertTrue(IoTuning.fromProperties(properties).toString().startsWith("backend=default"));
+		
+		// mina and netty are optional bundles
+		
+		for(BuiltinIoServiceFactoryFactories backend : BuiltinIoServiceFactoryFactories.VALUES)
+		{
+			properties.put("iobackend", backend.getName());
+			assertEquals(backend.isSupported(), IoTuning.fromProperties(properties).toString().startsWith("backend=" + backend.getName()));
+		}
+	}
+	
+	public void testAcceptorOfRunningServerIsDetected() throws Exception
+	{
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		sshServer.setPort(0);
+		sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+		sshServer.start();
+		try
+		{
+			Map<String, Object> properties = new HashMap<String, Object>();
+			properties.put("iobackend", "nio2");
+			assertTrue(IoTuning.fromProperties(properties).isAcceptorApplied(sshServer));
+			try
+			{
+				IoTuning.fromProperties(properties).applyAcceptor(sshServer);
+				fail("server is running");
+			}
+			catch (IllegalStateException e) 
+			{
+				// expected
+			}
+		}
+		finally 
+		{
+			sshServer.stop(true);
+		}
+	}
+	
+	public void testApplyAndRestoreProperties() throws Exception
+	{
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		sshServer.getProperties().put(FactoryManager.WINDOW_SIZE, 1024L);
+		Map<String, Object> originalProperties = IoTuning.captureProperties(sshServer);
+		
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("socketrcvbuf", "65536");
+		properties.put("socketsndbuf", "131072");
+		properties.put("tcpnodelay", "true");
+		properties.put("packetsize", "32768");
+		IoTuning.fromProperties(properties).applyProperties(sshServer, originalProperties);
+		
+		assertEquals(65536, sshServer.getProperties().get(FactoryManager.SOCKET_RCVBUF));
+		assertEquals(131072, sshServer.getProperties().get(FactoryManager.SOCKET_SNDBUF));
+		assertEquals(Boolean.TRUE, sshServer.getProperties().get(FactoryManager.TCP_NODELAY));
+		assertEquals(32768L, sshServer.getProperties().get(FactoryManager.MAX_PACKET_SIZE));
+		assertEquals(1024L, sshServer.getProperties().get(FactoryManager.WINDOW_SIZE));
+		
+		// settings removed from configuration are restored
+		
+		properties.remove("socketsndbuf");
+		properties.put("windowsize", "4194304");
+		IoTuning.fromProperties(properties).applyProperties(sshServer, originalProperties);
+		assertFalse(sshServer.getProperties().containsKey(FactoryManager.SOCKET_SNDBUF));
+		assertEquals(4194304L, sshServer.getProperties().get(FactoryManager.WINDOW_SIZE));
+		
+		IoTuning.restoreProperties(sshServer, originalProperties);
+		assertFalse(sshServer.getProperties().containsKey(FactoryManager.SOCKET_RCVBUF));
+		assertFalse(sshServer.getProperties().containsKey(FactoryManager.TCP_NODELAY));
+		assertFalse(sshServer.getProperties().containsKey(FactoryManager.MAX_PACKET_SIZE));
+		assertEquals(1024L, sshServer.getProperties().get(FactoryManager.WINDOW_SIZE));
+	}
+}
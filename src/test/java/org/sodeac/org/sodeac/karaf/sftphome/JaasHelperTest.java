@@ -0,0 +1,152 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.net.URL;
+import java.security.AllPermission;
+import java.security.CodeSource;
+import java.security.Permissions;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+
+import junit.framework.TestCase;
+
+public class JaasHelperTest extends TestCase
+{
+	public void testCombinationCarriesPrincipals() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		ProtectionDomain[] currentDomains = domains(3);
+		
+		ProtectionDomain[] combined = new JaasHelper.OsgiSubjectDomainCombiner(subject).combine(currentDomains, null);
+		assertEquals(3, combined.length);
+		for(int i = 0; i < combined.length; i++)
+		{
+			assertTrue(combined[i] instanceof JaasHelper.DelegatingProtectionDomain);
+			assertSame(currentDomains[i].getCodeSource(), combined[i].getCodeSource());
+			assertTrue(Arrays.asList(combined[i].getPrincipals()).contains(new RolePrincipal("sftp")));
+		}
+	}
+	
+	public void testCombinationIsCachedPerSubject() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		ProtectionDomain[] currentDomains = domains(4);
+		
+		ProtectionDomain[] combined = new JaasHelper.OsgiSubjectDomainCombiner(subject).combine(currentDomains, null);
+		assertSame(combined, new JaasHelper.OsgiSubjectDomainCombiner(subject).combine(currentDomains, null));
+		
+		// equal stack in other array
+		
+		assertSame(combined, new JaasHelper.OsgiSubjectDomainCombiner(subject).combine(currentDomains.clone(), null));
+		
+		// other subject with equal principals
+		
+		ProtectionDomain[] other = new JaasHelper.OsgiSubjectDomainCombiner(subject("alice", "sftp")).combine(currentDomains, null);
+		assertNotSame(combined, other);
+		assertNotSame(combined[0], other[0]);
+	}
+	
+	public void testCombinedDomainsAreNotWrappedAgain() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		JaasHelper.OsgiSubjectDomainCombiner combiner = new JaasHelper.OsgiSubjectDomainCombiner(subject);
+		ProtectionDomain[] combined = combiner.combine(domains(2), null);
+		
+		ProtectionDomain[] recombined = combiner.combine(combined, null);
+		assertSame(combined[0], recombined[0]);
+		assertSame(combined[1], recombined[1]);
+	}
+	
+	public void testChangedPrincipalsAreCombinedAgain() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		ProtectionDomain[] currentDomains = domains(2);
+		JaasHelper.OsgiSubjectDomainCombiner combiner = new JaasHelper.OsgiSubjectDomainCombiner(subject);
+		ProtectionDomain[] combined = combiner.combine(currentDomains, null);
+		
+		subject.getPrincipals().add(new RolePrincipal("admin"));
+		ProtectionDomain[] changed = combiner.combine(currentDomains, null);
+		assertNotSame(combined, changed);
+		assertTrue(Arrays.asList(changed[0].getPrincipals()).contains(new RolePrincipal("admin")));
+		assertFalse(Arrays.asList(combined[0].getPrincipals()).contains(new RolePrincipal("admin")));
+	}
+	
+	public void testAssignedAndDuplicateDomains() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		JaasHelper.OsgiSubjectDomainCombiner combiner = new JaasHelper.OsgiSubjectDomainCombiner(subject);
+		ProtectionDomain[] currentDomains = domains(2);
+		ProtectionDomain[] assignedDomains = domains(1);
+		
+		assertNull(combiner.combine(null, null));
+		assertNull(combiner.combine(new ProtectionDomain[0], null));
+		
+		ProtectionDomain[] combined = combiner.combine(new ProtectionDomain[] {currentDomains[0], currentDomains[1], currentDomains[0]}, assignedDomains);
+		assertEquals(3, combined.length);
+		assertSame(assignedDomains[0], combined[2]);
+		assertNotSame(combined, combiner.combine(currentDomains, assignedDomains));
+	}
+	
+	public void testDelegatingDomainImpliesLikeDelegate() throws Exception
+	{
+		Permissions permissions = new Permissions();
+		permissions.add(new AllPermission());
+		ProtectionDomain privileged = new ProtectionDomain(new CodeSource(new URL("file:/privileged.jar"), (Certificate[])null), permissions);
+		ProtectionDomain unprivileged = new ProtectionDomain(new CodeSource(new URL("file:/unprivileged.jar"), (Certificate[])null), new Permissions());
+		
+		ProtectionDomain[] combined = new JaasHelper.OsgiSubjectDomainCombiner(subject("alice", "sftp")).combine(new ProtectionDomain[] {privileged, unprivileged}, null);
+		assertTrue(combined[0].implies(new RuntimePermission("exitVM")));
+		assertFalse(combined[1].implies(new RuntimePermission("exitVM")));
+	}
+	
+	public void testCurrentUserHasRole() throws Exception
+	{
+		Subject subject = subject("alice", "sftp");
+		assertTrue(JaasHelper.currentUserHasRole(subject.getPrincipals(), "sftp"));
+		assertTrue(JaasHelper.currentUserHasRole(subject.getPrincipals(), RolePrincipal.class.getName() + ":sftp"));
+		assertFalse(JaasHelper.currentUserHasRole(subject.getPrincipals(), "admin"));
+	}
+	
+	private static Subject subject(String userName, String... roles)
+	{
+		Subject subject = new Subject();
+		subject.getPrincipals().add(new UserPrincipal(userName));
+		for(String role : roles)
+		{
+			subject.getPrincipals().add(new RolePrincipal(role));
+		}
+		return subject;
+	}
+	
+	private static ProtectionDomain[] domains(int count) throws Exception
+	{
+		ProtectionDomain[] domains = new ProtectionDomain[count];
+		for(int i = 0; i < count; i++)
+		{
+			domains[i] = new ProtectionDomain(new CodeSource(new URL("file:/bundle" + i + ".jar"), (Certificate[])null), new Permissions(), null, new Principal[0]);
+		}
+		return domains;
+	}
+}
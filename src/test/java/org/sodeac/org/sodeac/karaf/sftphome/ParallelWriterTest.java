@@ -0,0 +1,270 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.subsystem.sftp.RawSftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClientFactory;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import junit.framework.TestCase;
+
+public class ParallelWriterTest extends TestCase
+{
+	private static final int CHUNK_SIZE = 4096;
+	
+	private Path directory;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-parallel");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testAcceptsLargeWritesOnly() throws Exception
+	{
+		ParallelWriter parallelWriter = new ParallelWriter(properties(2, 8, 1024));
+		try
+		{
+			assertTrue(parallelWriter.accepts(1024));
+			assertFalse(parallelWriter.accepts(1023));
+			assertEquals(8, parallelWriter.getMaxPending());
+			
+			CountDownLatch executed = new CountDownLatch(1);
+			Future<?> future = parallelWriter.submit(() -> executed.countDown());
+			assertNotNull(future);
+			assertTrue(executed.await(10, TimeUnit.SECONDS));
+		}
+		finally 
+		{
+			parallelWriter.dispose();
+		}
+		
+		assertFalse(parallelWriter.accepts(1024));
+		assertNull(parallelWriter.submit(() -> {}));
+	}
+	
+	public void testRefreshDisablesAndEnables() throws Exception
+	{
+		ParallelWriter parallelWriter = new ParallelWriter(properties(0, 8, 1024));
+		try
+		{
+			assertFalse(parallelWriter.accepts(CHUNK_SIZE));
+			assertNull(parallelWriter.submit(() -> {}));
+			
+			parallelWriter.refresh(properties(2, 8, 1024));
+			assertTrue(parallelWriter.accepts(CHUNK_SIZE));
+			
+			parallelWriter.refresh(properties(2, 0, 1024));
+			assertFalse(parallelWriter.accepts(CHUNK_SIZE));
+			assertEquals(0, parallelWriter.getMaxPending());
+		}
+		finally 
+		{
+			parallelWriter.dispose();
+		}
+	}
+	
+	public void testOverlappingWritesKeepOrder() throws Exception
+	{
+		byte[] first = content(64 * CHUNK_SIZE, 1);
+		byte[] second = content(64 * CHUNK_SIZE, 2);
+		
+		runServer(properties(4, 8, 1024), sftpClient -> 
+		{
+			RawSftpClient rawClient = (RawSftpClient)sftpClient;
+			try(SftpClient.CloseableHandle handle = sftpClient.open("/upload.bin", SftpClient.OpenMode.Write, SftpClient.OpenMode.Create))
+			{
+				// each chunk is written twice, second write overlaps with pending first write 
+				
+				Deque<Integer> ids = new ArrayDeque<Integer>();
+				for(int offset = 0; offset < first.length; offset += CHUNK_SIZE)
+				{
+					ids.add(rawClient.send(SftpConstants.SSH_FXP_WRITE, write(handle, offset, first)));
+					ids.add(rawClient.send(SftpConstants.SSH_FXP_WRITE, write(handle, offset, second)));
+				}
+				while(! ids.isEmpty())
+				{
+					assertStatusOk(rawClient.receive(ids.poll()));
+				}
+			}
+		});
+		
+		assertTrue(Arrays.equals(second, Files.readAllBytes(this.directory.resolve("upload.bin"))));
+	}
+	
+	public void testReadAfterPendingWritesSeesWrittenData() throws Exception
+	{
+		byte[] content = content(32 * CHUNK_SIZE, 3);
+		
+		runServer(properties(4, 16, 1024), sftpClient -> 
+		{
+			RawSftpClient rawClient = (RawSftpClient)sftpClient;
+			try(SftpClient.CloseableHandle handle = sftpClient.open("/upload.bin", SftpClient.OpenMode.Read, SftpClient.OpenMode.Write, SftpClient.OpenMode.Create))
+			{
+				Deque<Integer> ids = new ArrayDeque<Integer>();
+				for(int offset = 0; offset < content.length; offset += CHUNK_SIZE)
+				{
+					ids.add(rawClient.send(SftpConstants.SSH_FXP_WRITE, write(handle, offset, content)));
+				}
+				
+				// read is sent before any write status is received
+				
+				Buffer read = new ByteArrayBuffer();
+				read.putBytes(handle.getIdentifier());
+				read.putLong(content.length - CHUNK_SIZE);
+				read.putInt(CHUNK_SIZE);
+				int readId = rawClient.send(SftpConstants.SSH_FXP_READ, read);
+				
+				while(! ids.isEmpty())
+				{
+					assertStatusOk(rawClient.receive(ids.poll()));
+				}
+				
+				Buffer reply = rawClient.receive(readId);
+				reply.getInt();
+				assertEquals(SftpConstants.SSH_FXP_DATA, reply.getUByte());
+				assertEquals(readId, reply.getInt());
+				assertTrue(Arrays.equals(Arrays.copyOfRange(content, content.length - CHUNK_SIZE, content.length), reply.getBytes()));
+			}
+		});
+		
+		assertTrue(Arrays.equals(content, Files.readAllBytes(this.directory.resolve("upload.bin"))));
+	}
+	
+	public void testSmallWritesAreNotDispatched() throws Exception
+	{
+		byte[] content = content(CHUNK_SIZE, 4);
+		
+		runServer(properties(4, 16, CHUNK_SIZE + 1), sftpClient -> 
+		{
+			try(SftpClient.CloseableHandle handle = sftpClient.open("/upload.bin", SftpClient.OpenMode.Write, SftpClient.OpenMode.Create))
+			{
+				sftpClient.write(handle, 0L, content);
+			}
+		});
+		
+		assertTrue(Arrays.equals(content, Files.readAllBytes(this.directory.resolve("upload.bin"))));
+	}
+	
+	private void runServer(Map<String, Object> properties, SftpTask task) throws Exception
+	{
+		ParallelWriter parallelWriter = new ParallelWriter(properties);
+		SFTPHomeSftpSubsystemFactory subsystemFactory = new SFTPHomeSftpSubsystemFactory(new SFTPHomeMetrics(), new DigestCache(properties), parallelWriter, null);
+		subsystemFactory.setFileSystemAccessor(new SFTPHomeFileSystemAccessor(properties));
+		
+		SshServer sshServer = SshServer.setUpDefaultServer();
+		sshServer.setPort(0);
+		sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+		sshServer.setPasswordAuthenticator((userName, password, session) -> true);
+		sshServer.setFileSystemFactory(new VirtualFileSystemFactory(this.directory));
+		sshServer.setSubsystemFactories(Collections.singletonList(subsystemFactory));
+		sshServer.start();
+		
+		SshClient sshClient = SshClient.setUpDefaultClient();
+		sshClient.start();
+		try
+		{
+			try(ClientSession session = sshClient.connect("alice", "localhost", sshServer.getPort()).verify(10, TimeUnit.SECONDS).getSession())
+			{
+				session.addPasswordIdentity("secret");
+				session.auth().verify(10, TimeUnit.SECONDS);
+				try(SftpClient sftpClient = SftpClientFactory.instance().createSftpClient(session))
+				{
+					task.run(sftpClient);
+				}
+			}
+		}
+		finally 
+		{
+			sshClient.stop();
+			sshServer.stop(true);
+			parallelWriter.dispose();
+		}
+	}
+	
+	private static Buffer write(SftpClient.Handle handle, int offset, byte[] content)
+	{
+		Buffer buffer = new ByteArrayBuffer(CHUNK_SIZE + 64);
+		buffer.putBytes(handle.getIdentifier());
+		buffer.putLong(offset);
+		buffer.putBytes(content, offset, CHUNK_SIZE);
+		return buffer;
+	}
+	
+	private static void assertStatusOk(Buffer buffer)
+	{
+		buffer.getInt();
+		assertEquals(SftpConstants.SSH_FXP_STATUS, buffer.getUByte());
+		buffer.getInt();
+		assertEquals(SftpConstants.SSH_FX_OK, buffer.getInt());
+	}
+	
+	private static byte[] content(int size, long seed)
+	{
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+	
+	private static Map<String, Object> properties(int threads, int writes, int minSize)
+	{
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("sftpparallelwritethreads", Integer.toString(threads));
+		properties.put("sftpparallelwrites", Integer.toString(writes));
+		properties.put("sftpparallelwriteminsize", Integer.toString(minSize));
+		return properties;
+	}
+	
+	private interface SftpTask
+	{
+		public void run(SftpClient sftpClient) throws Exception;
+	}
+}
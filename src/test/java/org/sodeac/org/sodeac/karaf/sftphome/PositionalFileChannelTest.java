@@ -0,0 +1,298 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class PositionalFileChannelTest extends TestCase
+{
+	private Path directory;
+	private Path file;
+	private DirectBufferPool bufferPool;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-positional");
+		this.file = this.directory.resolve("file.bin");
+		this.bufferPool = new DirectBufferPool(16, 4);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testWriteAndReadThroughSmallBuffers() throws Exception
+	{
+		byte[] content = content(1000);
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 0L, 0L);
+			assertEquals(1000, channel.write(ByteBuffer.wrap(content)));
+			assertEquals(1000L, channel.position());
+			
+			// delegate is accessed by positional I/O only
+			
+			assertEquals(0L, delegate.position());
+			
+			ByteBuffer read = ByteBuffer.allocate(1200);
+			channel.position(0L);
+			assertEquals(1000, channel.read(read));
+			assertEquals(1000L, channel.position());
+			assertTrue(Arrays.equals(content, Arrays.copyOf(read.array(), 1000)));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+			
+			ByteBuffer tail = ByteBuffer.allocate(100);
+			assertEquals(50, channel.read(tail, 950L));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(content, 950, 1000), Arrays.copyOf(tail.array(), 50)));
+		}
+		assertTrue(Arrays.equals(content, Files.readAllBytes(this.file)));
+	}
+	
+	public void testDirectBuffersArePassedThrough() throws Exception
+	{
+		byte[] content = content(100);
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 0L, 0L);
+			ByteBuffer direct = ByteBuffer.allocateDirect(100);
+			direct.put(content).flip();
+			assertEquals(100, channel.write(direct, 10L));
+			
+			ByteBuffer read = ByteBuffer.allocateDirect(100);
+			assertEquals(100, channel.read(read, 10L));
+			read.flip();
+			byte[] bytes = new byte[100];
+			read.get(bytes);
+			assertTrue(Arrays.equals(content, bytes));
+		}
+	}
+	
+	public void testScatteringAndGathering() throws Exception
+	{
+		byte[] content = content(100);
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 0L, 0L);
+			ByteBuffer[] sources = new ByteBuffer[] {ByteBuffer.wrap(content, 0, 30), ByteBuffer.wrap(content, 30, 70)};
+			assertEquals(100L, channel.write(sources, 0, 2));
+			
+			channel.position(0L);
+			ByteBuffer[] targets = new ByteBuffer[] {ByteBuffer.allocate(40), ByteBuffer.allocate(40), ByteBuffer.allocate(40)};
+			assertEquals(100L, channel.read(targets, 0, 3));
+			assertEquals(20, targets[2].position());
+			assertEquals(-1L, channel.read(targets, 2, 1));
+			
+			byte[] read = new byte[100];
+			System.arraycopy(targets[0].array(), 0, read, 0, 40);
+			System.arraycopy(targets[1].array(), 0, read, 40, 40);
+			System.arraycopy(targets[2].array(), 0, read, 80, 20);
+			assertTrue(Arrays.equals(content, read));
+		}
+	}
+	
+	public void testTruncateAndPosition() throws Exception
+	{
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 0L, 0L);
+			channel.write(ByteBuffer.wrap(content(100)));
+			channel.truncate(40L);
+			assertEquals(40L, channel.size());
+			assertEquals(40L, channel.position());
+			
+			channel.position(10L);
+			channel.truncate(20L);
+			assertEquals(10L, channel.position());
+			
+			try
+			{
+				channel.position(-1L);
+				fail("negative position");
+			}
+			catch (IllegalArgumentException e) 
+			{
+				// expected
+			}
+		}
+	}
+	
+	public void testMappedReadsAcrossWindows() throws Exception
+	{
+		byte[] content = content(10000);
+		Files.write(this.file, content);
+		
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 1000L, 4096L);
+			
+			ByteBuffer read = ByteBuffer.allocate(content.length);
+			while(read.hasRemaining() && (channel.read(read) > 0))
+			{
+				// read in chunks up to window size
+			}
+			assertTrue(Arrays.equals(content, read.array()));
+			
+			// backwards into previous window
+			
+			ByteBuffer chunk = ByteBuffer.allocate(300);
+			assertEquals(300, channel.read(chunk, 4000L));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(content, 4000, 4300), chunk.array()));
+			
+			// file grows after open, content beyond mapped size is read from file
+			
+			byte[] appended = content(500);
+			delegate.write(ByteBuffer.wrap(appended), 10000L);
+			ByteBuffer across = ByteBuffer.allocate(600);
+			assertEquals(600, channel.read(across, 9900L));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(content, 9900, 10000), Arrays.copyOf(across.array(), 100)));
+			assertTrue(Arrays.equals(appended, Arrays.copyOfRange(across.array(), 100, 600)));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(10), 10500L));
+		}
+	}
+	
+	public void testMappedReadOfTruncatedFile() throws Exception
+	{
+		byte[] content = content(20000);
+		Files.write(this.file, content);
+		
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.READ))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 1000L, 16384L);
+			ByteBuffer chunk = ByteBuffer.allocate(100);
+			assertEquals(100, channel.read(chunk, 0L));
+			
+			// other session truncates file while window is mapped
+			
+			try(FileChannel other = FileChannel.open(this.file, StandardOpenOption.WRITE))
+			{
+				other.truncate(1000L);
+			}
+			
+			ByteBuffer read = ByteBuffer.allocate(8000);
+			assertEquals(900, channel.read(read, 100L));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(content, 100, 1000), Arrays.copyOf(read.array(), 900)));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(100), 5000L));
+		}
+	}
+	
+	public void testConcurrentRelativeWrites() throws Exception
+	{
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 0L, 0L);
+			Thread[] threads = new Thread[4];
+			for(int i = 0; i < threads.length; i++)
+			{
+				threads[i] = new Thread(() -> 
+				{
+					try
+					{
+						for(int j = 0; j < 1000; j++)
+						{
+							channel.write(ByteBuffer.wrap(new byte[10]));
+						}
+					}
+					catch (Exception e) 
+					{
+						throw new RuntimeException(e);
+					}
+				});
+				threads[i].start();
+			}
+			for(Thread thread : threads)
+			{
+				thread.join();
+			}
+			
+			// no write is lost by concurrent position updates
+			
+			assertEquals(40000L, channel.position());
+			assertEquals(40000L, delegate.size());
+		}
+	}
+	
+	public void testSmallFilesAreNotMapped() throws Exception
+	{
+		byte[] content = content(500);
+		Files.write(this.file, content);
+		try(FileChannel delegate = FileChannel.open(this.file, StandardOpenOption.READ))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 1000L, 4096L);
+			ByteBuffer read = ByteBuffer.allocate(500);
+			assertEquals(500, channel.read(read));
+			assertTrue(Arrays.equals(content, read.array()));
+		}
+	}
+	
+	public void testThrottledFilesAreNotMapped() throws Exception
+	{
+		byte[] content = content(20000);
+		Files.write(this.file, content);
+		
+		SFTPHomeFileSystem fileSystem = new SFTPHomeFileSystem(new SFTPHomeFileSystemProvider(), this.directory, "alice");
+		fileSystem.setOwnerRoles(Collections.singleton("sftp"));
+		
+		// 20000 bytes at 10000 bytes per second with burst of one second
+		
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("throttlerole", "sftp:readbytes=10000;burst=1");
+		fileSystem.applyThrottlePolicy(ThrottlePolicy.fromProperties(properties));
+		try(FileChannel delegate = FileChannel.open(fileSystem.getPath("/file.bin"), StandardOpenOption.READ))
+		{
+			FileChannel channel = new PositionalFileChannel(delegate, this.bufferPool, 1000L, 4096L);
+			
+			long start = System.nanoTime();
+			ByteBuffer read = ByteBuffer.allocate(content.length);
+			while(read.hasRemaining() && (channel.read(read) > 0))
+			{
+				// read throttled
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(Arrays.equals(content, read.array()));
+			assertTrue("read must be throttled, took " + elapsed + " ms", elapsed >= 800L);
+		}
+	}
+	
+	private static byte[] content(int size)
+	{
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.sodeac.org.sodeac.karaf.sftphome.QuotaFileChannel.OpenFiles;
+
+import junit.framework.TestCase;
+
+public class QuotaFileChannelTest extends TestCase
+{
+	private Path directory;
+	private Path file;
+	private HomeUsage homeUsage;
+	private OpenFiles openFiles;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-quota");
+		this.file = this.directory.resolve("file.bin");
+		this.homeUsage = new HomeUsage("alice", 0L);
+		this.openFiles = new OpenFiles();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		try(Stream<Path> stream = Files.walk(this.directory))
+		{
+			stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		super.tearDown();
+	}
+	
+	public void testGrowthIsChargedOnce() throws Exception
+	{
+		try(FileChannel channel = open())
+		{
+			channel.write(ByteBuffer.allocate(1000));
+			assertEquals(1000L, this.homeUsage.getUsed());
+			
+			// overwrite does not grow file
+			
+			channel.write(ByteBuffer.allocate(500), 100L);
+			assertEquals(1000L, this.homeUsage.getUsed());
+			
+			channel.write(ByteBuffer.allocate(500), 800L);
+			assertEquals(1300L, this.homeUsage.getUsed());
+			
+			channel.write(new ByteBuffer[] {ByteBuffer.allocate(100), ByteBuffer.allocate(100)}, 0, 2);
+			assertEquals(1300L, this.homeUsage.getUsed());
+		}
+		assertEquals(1300L, Files.size(this.file));
+	}
+	
+	public void testHardLimitRejectsWriteWithoutTouchingFile() throws Exception
+	{
+		this.homeUsage.setLimits(0L, 1000L);
+		try(FileChannel channel = open())
+		{
+			channel.write(ByteBuffer.allocate(800));
+			try
+			{
+				channel.write(ByteBuffer.allocate(300));
+				fail("hard limit exceeded");
+			}
+			catch (QuotaExceededException e) 
+			{
+				// expected
+			}
+			assertEquals(800L, channel.size());
+			assertEquals(800L, this.homeUsage.getUsed());
+			
+			channel.write(ByteBuffer.allocate(200));
+			assertEquals(1000L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testTruncateReleases() throws Exception
+	{
+		try(FileChannel channel = open())
+		{
+			channel.write(ByteBuffer.allocate(1000));
+			channel.truncate(400L);
+			assertEquals(400L, this.homeUsage.getUsed());
+			
+			channel.truncate(600L);
+			assertEquals(400L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testShortTransferGivesBackReservation() throws Exception
+	{
+		try(FileChannel channel = open())
+		{
+			long transferred = channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[100])), 0L, 1000L);
+			assertEquals(100L, transferred);
+			assertEquals(100L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testFailedWriteGivesBackReservation() throws Exception
+	{
+		Files.write(this.file, new byte[100]);
+		this.homeUsage = new HomeUsage("alice", 100L);
+		try(FileChannel channel = new QuotaFileChannel(FileChannel.open(this.file, StandardOpenOption.READ), this.homeUsage, this.openFiles, this.file, false))
+		{
+			try
+			{
+				channel.write(ByteBuffer.allocate(1000), 100L);
+				fail("write to read-only channel must fail");
+			}
+			catch (NonWritableChannelException e) 
+			{
+				// expected
+			}
+			assertEquals(100L, this.homeUsage.getUsed());
+			assertEquals(100L, channel.size());
+		}
+		
+		// known size is restored, next write charges its growth only
+		
+		try(FileChannel channel = open())
+		{
+			channel.write(ByteBuffer.allocate(50), 100L);
+			assertEquals(150L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testShortWriteGivesBackReservation() throws Exception
+	{
+		FileChannel shortWrites = new DelegatingFileChannel(FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			@Override
+			public int write(ByteBuffer src, long position) throws IOException
+			{
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + Math.min(300, part.remaining()));
+				int written = delegate.write(part, position);
+				src.position(src.position() + written);
+				return written;
+			}
+		};
+		try(FileChannel channel = new QuotaFileChannel(shortWrites, this.homeUsage, this.openFiles, this.file, false))
+		{
+			assertEquals(300, channel.write(ByteBuffer.allocate(1000), 0L));
+			assertEquals(300L, this.homeUsage.getUsed());
+			
+			// rewrite of written range is not charged again
+			
+			channel.write(ByteBuffer.allocate(200), 0L);
+			assertEquals(300L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testChannelsOnSameFileShareSize() throws Exception
+	{
+		try(FileChannel first = open(); FileChannel second = open())
+		{
+			first.write(ByteBuffer.allocate(1000), 0L);
+			second.write(ByteBuffer.allocate(1000), 500L);
+			first.write(ByteBuffer.allocate(1000), 1000L);
+			assertEquals(2000L, this.homeUsage.getUsed());
+		}
+		
+		// size of closed file is taken from file system again
+		
+		try(FileChannel channel = open())
+		{
+			channel.write(ByteBuffer.allocate(10), 0L);
+			assertEquals(2000L, this.homeUsage.getUsed());
+		}
+	}
+	
+	public void testConcurrentSegmentsChargeFileSize() throws Exception
+	{
+		int segments = 8;
+		int segmentSize = 64 * 1024;
+		int chunkSize = 4096;
+		
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[segments];
+		for(int i = 0; i < segments; i++)
+		{
+			long offset = ((long)i) * segmentSize;
+			threads[i] = new Thread(() -> 
+			{
+				try(FileChannel channel = open())
+				{
+					for(long position = offset; position < offset + segmentSize; position += chunkSize)
+					{
+						channel.write(ByteBuffer.allocate(chunkSize), position);
+					}
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+		}
+		for(Thread thread : threads)
+		{
+			thread.start();
+		}
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+		
+		assertNull(failure.get());
+		assertEquals(((long)segments) * segmentSize, Files.size(this.file));
+		assertEquals(Files.size(this.file), this.homeUsage.getUsed());
+	}
+	
+	private FileChannel open() throws Exception
+	{
+		FileChannel channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		return new QuotaFileChannel(channel, this.homeUsage, this.openFiles, this.file, false);
+	}
+}
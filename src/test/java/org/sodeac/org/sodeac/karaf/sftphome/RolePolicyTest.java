@@ -0,0 +1,218 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.GroupPrincipal;
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.shell.ssh.KarafJaasAuthenticator;
+import org.apache.sshd.common.AttributeStore;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.FileSystemAccess;
+import org.sodeac.org.sodeac.karaf.sftphome.RolePolicy.SessionAccess;
+
+import junit.framework.TestCase;
+
+public class RolePolicyTest extends TestCase
+{
+	private static final Class<?>[] ROLE_CLASSES = new Class<?>[] {RolePrincipal.class};
+	
+	public void testDefaultRoles()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(new HashMap<String,Object>(), ROLE_CLASSES);
+		
+		assertEquals(FileSystemAccess.HOME, rolePolicy.resolve(subject("alice", "sftp")).getFileSystemAccess());
+		assertEquals(FileSystemAccess.KARAF_BASE, rolePolicy.resolve(subject("alice", "admin")).getFileSystemAccess());
+		assertTrue(rolePolicy.resolve(subject("alice", "sshconsole")).hasSecureShellAccess());
+		assertEquals(FileSystemAccess.DENIED, rolePolicy.resolve(subject("alice", "sshconsole")).getFileSystemAccess());
+	}
+	
+	public void testConfiguredRoles()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		
+		SessionAccess home = rolePolicy.resolve(subject("alice", "sftphome"));
+		assertEquals("alice", home.getUserName());
+		assertEquals(FileSystemAccess.HOME, home.getFileSystemAccess());
+		assertFalse(home.hasSecureShellAccess());
+		
+		SessionAccess base = rolePolicy.resolve(subject("bob", "sftphome", "sftpkaraf", "sshconsole"));
+		assertEquals(FileSystemAccess.KARAF_BASE, base.getFileSystemAccess());
+		assertTrue(base.hasSecureShellAccess());
+		
+		assertEquals(FileSystemAccess.HOME, rolePolicy.resolve(subject("carol", "other", "uploader")).getFileSystemAccess());
+		assertEquals(FileSystemAccess.DENIED, rolePolicy.resolve(subject("dave", "sftp", "admin")).getFileSystemAccess());
+	}
+	
+	public void testRoleInMultipleCategories()
+	{
+		Map<String,Object> properties = properties();
+		properties.put("rolesecureshell", "sftphome");
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties, ROLE_CLASSES);
+		
+		SessionAccess sessionAccess = rolePolicy.resolve(subject("alice", "sftphome"));
+		assertEquals(FileSystemAccess.HOME, sessionAccess.getFileSystemAccess());
+		assertTrue(sessionAccess.hasSecureShellAccess());
+	}
+	
+	public void testHomeRequiresUserName()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		
+		Subject subject = new Subject();
+		subject.getPrincipals().add(new RolePrincipal("sftphome"));
+		SessionAccess sessionAccess = rolePolicy.resolve(subject);
+		assertNull(sessionAccess.getUserName());
+		assertEquals(FileSystemAccess.DENIED, sessionAccess.getFileSystemAccess());
+	}
+	
+	public void testOnlyConfiguredPrincipalClassesAreRoles()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		
+		Subject subject = subject("alice");
+		subject.getPrincipals().add(new GroupPrincipal("sftphome"));
+		SessionAccess sessionAccess = rolePolicy.resolve(subject);
+		assertEquals(FileSystemAccess.DENIED, sessionAccess.getFileSystemAccess());
+		assertTrue(sessionAccess.getRoles().isEmpty());
+		
+		RolePolicy groupPolicy = RolePolicy.fromProperties(properties(), new Class<?>[] {RolePrincipal.class, GroupPrincipal.class});
+		assertEquals(FileSystemAccess.HOME, groupPolicy.resolve(subject).getFileSystemAccess());
+	}
+	
+	public void testRolesOfSubject()
+	{
+		Map<String,Object> properties = properties();
+		properties.put("throttlerole", "throttled:readbytes=1000");
+		properties.put("durabilityrole", "durable:sync");
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties, ROLE_CLASSES);
+		
+		// only roles named in configuration are collected
+		
+		SessionAccess sessionAccess = rolePolicy.resolve(subject("alice", "sftphome", "throttled", "durable", "unrelated"));
+		assertEquals(3, sessionAccess.getRoles().size());
+		assertTrue(sessionAccess.getRoles().contains("throttled"));
+		assertTrue(sessionAccess.getRoles().contains("durable"));
+		assertFalse(sessionAccess.getRoles().contains("unrelated"));
+		assertTrue(rolePolicy.resolve(subject("bob", "unrelated")).getRoles().isEmpty());
+		try
+		{
+			sessionAccess.getRoles().add("admin");
+			fail("roles must be unmodifiable");
+		}
+		catch (UnsupportedOperationException e) 
+		{
+			// expected
+		}
+	}
+	
+	public void testAllRolesOfLargeSubject()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		
+		String[] roles = new String[500];
+		for(int i = 0; i < roles.length; i++)
+		{
+			roles[i] = "group" + i;
+		}
+		Subject subject = subject("alice", roles);
+		subject.getPrincipals().add(new RolePrincipal("sftpkaraf"));
+		subject.getPrincipals().add(new RolePrincipal("sshconsole"));
+		
+		SessionAccess sessionAccess = rolePolicy.resolve(subject);
+		assertEquals("alice", sessionAccess.getUserName());
+		assertEquals(FileSystemAccess.KARAF_BASE, sessionAccess.getFileSystemAccess());
+		assertTrue(sessionAccess.hasSecureShellAccess());
+		assertEquals(2, sessionAccess.getRoles().size());
+	}
+	
+	public void testSessionAccessIsResolvedOncePerPolicy()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		Subject subject = subject("alice", "sftphome");
+		AttributeStore session = session(subject);
+		
+		SessionAccess sessionAccess = rolePolicy.resolve(session);
+		assertEquals(FileSystemAccess.HOME, sessionAccess.getFileSystemAccess());
+		assertSame(sessionAccess, session.getAttribute(RolePolicy.SESSION_ACCESS_ATTRIBUTE_KEY));
+		
+		// changes of subject apply with next configuration
+		
+		subject.getPrincipals().add(new RolePrincipal("sftpkaraf"));
+		assertSame(sessionAccess, rolePolicy.resolve(session));
+		
+		RolePolicy updated = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		SessionAccess updatedAccess = updated.resolve(session);
+		assertNotSame(sessionAccess, updatedAccess);
+		assertEquals(FileSystemAccess.KARAF_BASE, updatedAccess.getFileSystemAccess());
+	}
+	
+	public void testSessionWithoutSubject()
+	{
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties(), ROLE_CLASSES);
+		assertNull(rolePolicy.resolve(session(null)));
+	}
+	
+	private static Map<String,Object> properties()
+	{
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("rolehomedir", "sftphome, uploader");
+		properties.put("rolekarafbasedir", "sftpkaraf");
+		properties.put("rolesecureshell", "sshconsole");
+		return properties;
+	}
+	
+	private static Subject subject(String userName, String... roles)
+	{
+		Subject subject = new Subject();
+		subject.getPrincipals().add(new UserPrincipal(userName));
+		for(String role : roles)
+		{
+			subject.getPrincipals().add(new RolePrincipal(role));
+		}
+		return subject;
+	}
+	
+	private static AttributeStore session(Subject subject)
+	{
+		Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		if(subject != null)
+		{
+			attributes.put(KarafJaasAuthenticator.SUBJECT_ATTRIBUTE_KEY, subject);
+		}
+		return (AttributeStore)Proxy.newProxyInstance(RolePolicyTest.class.getClassLoader(), new Class<?>[] {AttributeStore.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					return attributes.put(args[0], args[1]);
+				case "removeAttribute":
+					return attributes.remove(args[0]);
+				default:
+					return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+
+import junit.framework.TestCase;
+
+public class SFTPHomeExecutorProviderTest extends TestCase
+{
+	public void testSessionModeCreatesExecutorPerSubsystem() throws Exception
+	{
+		SFTPHomeExecutorProvider executorProvider = provider(properties(null, 0, 0));
+		try
+		{
+			CloseableExecutorService executor1 = executorProvider.get();
+			CloseableExecutorService executor2 = executorProvider.get();
+			assertNotSame(executor1, executor2);
+			assertTrue(threadName(executor1).contains("SftpSubsystem"));
+			
+			executor1.shutdown();
+			assertTrue(executor1.isShutdown());
+			assertFalse(executor2.isShutdown());
+			executor2.shutdown();
+		}
+		finally 
+		{
+			executorProvider.dispose();
+		}
+	}
+	
+	public void testSharedModeSurvivesClosedSubsystems() throws Exception
+	{
+		SFTPHomeExecutorProvider executorProvider = provider(properties("shared", 2, 4));
+		try
+		{
+			CloseableExecutorService executor1 = executorProvider.get();
+			assertTrue(threadName(executor1).startsWith("SftpSubsystem-shared-"));
+			
+			// closing subsystem must not shut down shared pool
+			
+			executor1.shutdown();
+			CloseableExecutorService executor2 = executorProvider.get();
+			assertFalse(executor2.isShutdown());
+			assertTrue(threadName(executor2).startsWith("SftpSubsystem-shared-"));
+		}
+		finally 
+		{
+			executorProvider.dispose();
+		}
+	}
+	
+	public void testSharedModeRejectsBeyondQueue() throws Exception
+	{
+		SFTPHomeExecutorProvider executorProvider = provider(properties("shared", 1, 1));
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			CloseableExecutorService executor = executorProvider.get();
+			Future<?> running = executor.submit(() -> 
+			{
+				started.countDown();
+				release.await();
+				return null;
+			});
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<?> queued = executor.submit(() -> {});
+			try
+			{
+				executor.submit(() -> {});
+				fail("queue is full");
+			}
+			catch (RejectedExecutionException e) 
+			{
+				// expected
+			}
+			
+			release.countDown();
+			running.get(10, TimeUnit.SECONDS);
+			queued.get(10, TimeUnit.SECONDS);
+		}
+		finally 
+		{
+			release.countDown();
+			executorProvider.dispose();
+		}
+	}
+	
+	public void testRefreshReplacesMode() throws Exception
+	{
+		SFTPHomeExecutorProvider executorProvider = provider(properties("shared", 2, 4));
+		try
+		{
+			CloseableExecutorService shared = executorProvider.get();
+			
+			executorProvider.refresh(properties("session", 2, 4));
+			CloseableExecutorService session = executorProvider.get();
+			assertFalse(threadName(session).startsWith("SftpSubsystem-shared-"));
+			session.shutdown();
+			
+			// old pool completes running subsystems, but accepts no new ones
+			
+			try
+			{
+				shared.submit(() -> {});
+				fail("old pool is shut down");
+			}
+			catch (RejectedExecutionException e) 
+			{
+				// expected
+			}
+			
+			executorProvider.refresh(properties("unknown", 2, 4));
+			session = executorProvider.get();
+			assertFalse(threadName(session).startsWith("SftpSubsystem-shared-"));
+			session.shutdown();
+		}
+		finally 
+		{
+			executorProvider.dispose();
+		}
+	}
+	
+	public void testVirtualModeFallsBackIfUnsupported() throws Exception
+	{
+		SFTPHomeExecutorProvider executorProvider = provider(properties("virtual", 2, 4));
+		try
+		{
+			CloseableExecutorService executor = executorProvider.get();
+			String threadName = threadName(executor);
+			if(VirtualThreadSupport.createThreadFactory("test-") == null)
+			{
+				assertFalse(threadName.contains("virtual"));
+			}
+			else
+			{
+				assertTrue(threadName.startsWith("SftpSubsystem-virtual-"));
+			}
+			executor.shutdown();
+		}
+		finally 
+		{
+			executorProvider.dispose();
+		}
+	}
+	
+	private static String threadName(CloseableExecutorService executor) throws Exception
+	{
+		return executor.submit(() -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS);
+	}
+	
+	private static SFTPHomeExecutorProvider provider(Map<String, Object> properties)
+	{
+		return new SFTPHomeExecutorProvider(properties, "sftpexecutor", "SftpSubsystem");
+	}
+	
+	private static Map<String, Object> properties(String mode, int threads, int queue)
+	{
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if(mode != null)
+		{
+			properties.put("sftpexecutor", mode);
+			properties.put("sftpexecutorthreads", Integer.toString(threads));
+			properties.put("sftpexecutorqueue", Integer.toString(queue));
+		}
+		return properties;
+	}
+}
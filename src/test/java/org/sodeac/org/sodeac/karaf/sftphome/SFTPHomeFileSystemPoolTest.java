@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.future.SshFutureListener;
+import org.apache.sshd.common.session.SessionContext;
+
+import junit.framework.TestCase;
+
+public class SFTPHomeFileSystemPoolTest extends TestCase
+{
+	private Path home;
+	private SFTPHomeFileSystemPool pool;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.home = Files.createTempDirectory("sftphome-pool");
+		this.pool = new SFTPHomeFileSystemPool();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.pool.dispose();
+		Files.deleteIfExists(this.home);
+		super.tearDown();
+	}
+	
+	public void testSessionsOfUserShareFileSystem()
+	{
+		TestSession first = new TestSession();
+		TestSession second = new TestSession();
+		
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(first.session, this.home, "alice");
+		assertSame(fileSystem, this.pool.acquire(second.session, this.home, "alice"));
+		assertSame(fileSystem, this.pool.acquire(first.session, this.home, "alice"));
+		assertEquals(2, fileSystem.referenceCount);
+		
+		SFTPHomeFileSystem other = this.pool.acquire(first.session, this.home, "bob");
+		assertNotSame(fileSystem, other);
+		assertEquals(2, this.pool.getFileSystems().size());
+	}
+	
+	public void testLastSessionClosesFileSystemWithoutIdleTimeout()
+	{
+		TestSession first = new TestSession();
+		TestSession second = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(first.session, this.home, "alice");
+		this.pool.acquire(second.session, this.home, "alice");
+		
+		first.close();
+		assertTrue(fileSystem.isOpen());
+		assertEquals(1, fileSystem.referenceCount);
+		
+		second.close();
+		assertFalse(fileSystem.isOpen());
+		assertTrue(this.pool.getFileSystems().isEmpty());
+	}
+	
+	public void testIdleFileSystemIsReusedWithinTimeout()
+	{
+		this.pool.setIdleTimeout(60000L);
+		TestSession first = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(first.session, this.home, "alice");
+		first.close();
+		assertTrue(fileSystem.isOpen());
+		assertTrue(fileSystem.idleSince > 0L);
+		
+		TestSession second = new TestSession();
+		assertSame(fileSystem, this.pool.acquire(second.session, this.home, "alice"));
+		assertEquals(1, fileSystem.referenceCount);
+		assertEquals(-1L, fileSystem.idleSince);
+	}
+	
+	public void testIdleFileSystemIsEvictedAfterTimeout() throws Exception
+	{
+		this.pool.setIdleTimeout(100L);
+		TestSession session = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(session.session, this.home, "alice");
+		session.close();
+		
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(fileSystem.isOpen() && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(20L);
+		}
+		assertFalse(fileSystem.isOpen());
+		assertTrue(this.pool.getFileSystems().isEmpty());
+		
+		TestSession next = new TestSession();
+		assertNotSame(fileSystem, this.pool.acquire(next.session, this.home, "alice"));
+	}
+	
+	public void testShortenedIdleTimeoutEvictsIdleFileSystems() throws Exception
+	{
+		this.pool.setIdleTimeout(60000L);
+		TestSession session = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(session.session, this.home, "alice");
+		session.close();
+		Thread.sleep(50L);
+		
+		this.pool.setIdleTimeout(10L);
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(fileSystem.isOpen() && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(20L);
+		}
+		assertFalse(fileSystem.isOpen());
+	}
+	
+	public void testEvictHomeOnlyIfUnreferenced()
+	{
+		this.pool.setIdleTimeout(60000L);
+		TestSession session = new TestSession();
+		SFTPHomeFileSystem fileSystem = this.pool.acquire(session.session, this.home, "alice");
+		
+		assertFalse(this.pool.evict(this.home));
+		assertTrue(fileSystem.isOpen());
+		
+		session.close();
+		assertTrue(this.pool.evict(this.home));
+		assertFalse(fileSystem.isOpen());
+		assertTrue(this.pool.getFileSystems().isEmpty());
+	}
+	
+	public void testDisposeKeepsReferencedFileSystems()
+	{
+		this.pool.setIdleTimeout(60000L);
+		TestSession idle = new TestSession();
+		TestSession active = new TestSession();
+		SFTPHomeFileSystem idleFileSystem = this.pool.acquire(idle.session, this.home, "alice");
+		SFTPHomeFileSystem activeFileSystem = this.pool.acquire(active.session, this.home, "bob");
+		idle.close();
+		
+		this.pool.dispose();
+		assertFalse(idleFileSystem.isOpen());
+		assertTrue(activeFileSystem.isOpen());
+		
+		active.close();
+		assertFalse(activeFileSystem.isOpen());
+		
+		// file systems acquired after dispose are not pooled
+		
+		TestSession late = new TestSession();
+		SFTPHomeFileSystem lateFileSystem = this.pool.acquire(late.session, this.home, "carol");
+		assertTrue(this.pool.getFileSystems().isEmpty());
+		late.close();
+		assertFalse(lateFileSystem.isOpen());
+	}
+	
+	/**
+	 * Session context with attributes and close listeners only.
+	 */
+	private static class TestSession
+	{
+		private final Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		private final List<SshFutureListener<CloseFuture>> closeListeners = new CopyOnWriteArrayList<SshFutureListener<CloseFuture>>();
+		private final SessionContext session;
+		
+		@SuppressWarnings("unchecked")
+		private TestSession()
+		{
+			super();
+			this.session = (SessionContext)Proxy.newProxyInstance(TestSession.class.getClassLoader(), new Class<?>[] {SessionContext.class}, (proxy, method, args) -> 
+			{
+				switch (method.getName()) 
+				{
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						return attributes.put(args[0], args[1]);
+					case "removeAttribute":
+						return attributes.remove(args[0]);
+					case "addCloseFutureListener":
+						closeListeners.add((SshFutureListener<CloseFuture>)args[0]);
+						return null;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "test session";
+					default:
+						return null;
+				}
+			});
+		}
+		
+		private void close()
+		{
+			for(SshFutureListener<CloseFuture> listener : this.closeListeners)
+			{
+				listener.operationComplete(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.session.Session;
+import org.sodeac.org.sodeac.karaf.sftphome.SFTPHomeMetrics.Operation;
+
+import junit.framework.TestCase;
+
+public class SFTPHomeMetricsTest extends TestCase
+{
+	private static final Class<?>[] ROLE_CLASSES = new Class<?>[] {RolePrincipal.class};
+	
+	public void testOperationsAreRecordedPerConfiguredRole()
+	{
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("rolehomedir", "sftphome");
+		properties.put("throttlerole", "throttled:readbytes=1000");
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties, ROLE_CLASSES);
+		
+		SFTPHomeMetrics metrics = new SFTPHomeMetrics();
+		Session session = session(1L, rolePolicy, "alice", "sftphome", "throttled", "ldapgroup");
+		metrics.record(session, Operation.READ, 1000L, 100L, false);
+		metrics.record(session, Operation.READ, 1000L, 50L, true);
+		
+		assertEquals(2L, metrics.getTotal(Operation.READ).getCount());
+		assertEquals(1L, metrics.getTotal(Operation.READ).getFailed());
+		assertEquals(2, metrics.getRoleMetrics().size());
+		assertEquals(150L, metrics.getRoleMetrics().get("sftphome")[Operation.READ.ordinal()].getBytes());
+		assertEquals(150L, metrics.getRoleMetrics().get("throttled")[Operation.READ.ordinal()].getBytes());
+		assertFalse(metrics.getRoleMetrics().containsKey("ldapgroup"));
+		assertEquals(1, metrics.getActiveSessions());
+		assertEquals(2L, metrics.getSessionMetrics().values().iterator().next()[Operation.READ.ordinal()].getCount());
+	}
+	
+	public void testNumberOfRolesIsLimited()
+	{
+		StringBuilder roles = new StringBuilder();
+		for(int i = 0; i < SFTPHomeMetrics.MAX_ROLES + 10; i++)
+		{
+			roles.append(i == 0 ? "" : ",").append("role" + i);
+		}
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put("rolehomedir", roles.toString());
+		RolePolicy rolePolicy = RolePolicy.fromProperties(properties, ROLE_CLASSES);
+		
+		SFTPHomeMetrics metrics = new SFTPHomeMetrics();
+		for(int i = 0; i < SFTPHomeMetrics.MAX_ROLES + 10; i++)
+		{
+			metrics.record(session(i, rolePolicy, "user" + i, "role" + i), Operation.STAT, 1000L, 0L, false);
+		}
+		
+		assertEquals(SFTPHomeMetrics.MAX_ROLES, metrics.getRoleMetrics().size());
+		assertEquals(SFTPHomeMetrics.MAX_ROLES + 10L, metrics.getTotal(Operation.STAT).getCount());
+	}
+	
+	public void testSessionWithoutAccessIsRecordedWithoutRoles()
+	{
+		SFTPHomeMetrics metrics = new SFTPHomeMetrics();
+		metrics.record(session(1L, null, "alice"), Operation.OPEN, 1000L, 0L, false);
+		metrics.record(null, Operation.OPEN, 1000L, 0L, false);
+		
+		assertEquals(2L, metrics.getTotal(Operation.OPEN).getCount());
+		assertTrue(metrics.getRoleMetrics().isEmpty());
+		assertEquals(1, metrics.getActiveSessions());
+	}
+	
+	private static Session session(long id, RolePolicy rolePolicy, String userName, String... roles)
+	{
+		Map<Object,Object> attributes = new ConcurrentHashMap<Object,Object>();
+		if(rolePolicy != null)
+		{
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new UserPrincipal(userName));
+			for(String role : roles)
+			{
+				subject.getPrincipals().add(new RolePrincipal(role));
+			}
+			attributes.put(RolePolicy.SESSION_ACCESS_ATTRIBUTE_KEY, rolePolicy.resolve(subject));
+		}
+		
+		IoSession ioSession = (IoSession)Proxy.newProxyInstance(SFTPHomeMetricsTest.class.getClassLoader(), new Class<?>[] {IoSession.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getId":
+					return id;
+				case "getRemoteAddress":
+					return new InetSocketAddress("localhost", 22);
+				default:
+					return null;
+			}
+		});
+		return (Session)Proxy.newProxyInstance(SFTPHomeMetricsTest.class.getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					return attributes.put(args[0], args[1]);
+				case "getUsername":
+					return userName;
+				case "getIoSession":
+					return ioSession;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.Subject;
+
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+
+import junit.framework.TestCase;
+
+public class SFTPHomeShellExecutorTest extends TestCase
+{
+	public void testThreadModeStartsNamedThread() throws Exception
+	{
+		SFTPHomeShellExecutor shellExecutor = new SFTPHomeShellExecutor(new HashMap<String, Object>());
+		assertEquals(SFTPHomeShellExecutor.MODE_THREAD, shellExecutor.getMode());
+		
+		AtomicReference<String> threadName = new AtomicReference<String>();
+		CountDownLatch done = new CountDownLatch(1);
+		shellExecutor.execute(() -> 
+		{
+			threadName.set(Thread.currentThread().getName());
+			done.countDown();
+		}, "Karaf ssh console user alice");
+		
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("Karaf ssh console user alice", threadName.get());
+	}
+	
+	public void testPoolModeRejectsBeyondLimit() throws Exception
+	{
+		SFTPHomeShellExecutor shellExecutor = new SFTPHomeShellExecutor(properties("pool", 1, 1));
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(2);
+		try
+		{
+			Runnable shell = () -> 
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e) 
+				{
+					Thread.currentThread().interrupt();
+				}
+				finished.countDown();
+			};
+			
+			shellExecutor.execute(shell, "shell 1");
+			shellExecutor.execute(shell, "shell 2");
+			awaitActive(shellExecutor, 1);
+			assertEquals(1, shellExecutor.getQueueSize());
+			
+			try
+			{
+				shellExecutor.execute(shell, "shell 3");
+				fail("maximum number of shells reached");
+			}
+			catch (RejectedExecutionException e) 
+			{
+				// expected
+			}
+			assertEquals(1L, shellExecutor.getRejectedCount());
+			
+			release.countDown();
+			assertTrue(finished.await(10, TimeUnit.SECONDS));
+			awaitActive(shellExecutor, 0);
+			assertEquals(0, shellExecutor.getQueueSize());
+			
+			// slots are released after logout
+			
+			CountDownLatch done = new CountDownLatch(1);
+			shellExecutor.execute(() -> done.countDown(), "shell 4");
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		finally 
+		{
+			release.countDown();
+			shellExecutor.dispose();
+		}
+	}
+	
+	public void testPooledShellKeepsAccessControlContext() throws Exception
+	{
+		SFTPHomeShellExecutor shellExecutor = new SFTPHomeShellExecutor(properties("pool", 2, 0));
+		try
+		{
+			Subject subject = new Subject();
+			subject.getPrincipals().add(new UserPrincipal("alice"));
+			
+			AtomicReference<Subject> shellSubject = new AtomicReference<Subject>();
+			AtomicReference<String> threadName = new AtomicReference<String>();
+			CountDownLatch done = new CountDownLatch(1);
+			Subject.doAs(subject, (PrivilegedAction<Object>)() -> 
+			{
+				shellExecutor.execute(() -> 
+				{
+					shellSubject.set(Subject.getSubject(AccessController.getContext()));
+					threadName.set(Thread.currentThread().getName());
+					done.countDown();
+				}, "Karaf ssh console user alice");
+				return null;
+			});
+			
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertSame(subject, shellSubject.get());
+			assertEquals("Karaf ssh console user alice", threadName.get());
+		}
+		finally 
+		{
+			shellExecutor.dispose();
+		}
+	}
+	
+	public void testRefreshAndDispose() throws Exception
+	{
+		SFTPHomeShellExecutor shellExecutor = new SFTPHomeShellExecutor(properties("unknown", 1, 0));
+		assertEquals(SFTPHomeShellExecutor.MODE_THREAD, shellExecutor.getMode());
+		
+		shellExecutor.refresh(properties("pool", 1, 0));
+		assertEquals(SFTPHomeShellExecutor.MODE_POOL, shellExecutor.getMode());
+		
+		shellExecutor.refresh(properties("virtual", 1, 0));
+		assertEquals(VirtualThreadSupport.createThreadFactory("test-") == null ? SFTPHomeShellExecutor.MODE_POOL : SFTPHomeShellExecutor.MODE_VIRTUAL, shellExecutor.getMode());
+		
+		shellExecutor.dispose();
+		assertEquals(SFTPHomeShellExecutor.MODE_THREAD, shellExecutor.getMode());
+	}
+	
+	private static void awaitActive(SFTPHomeShellExecutor shellExecutor, int active) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000L;
+		while((shellExecutor.getActiveCount() != active) && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertEquals(active, shellExecutor.getActiveCount());
+	}
+	
+	private static Map<String, Object> properties(String mode, int threads, int queue)
+	{
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("shellexecutor", mode);
+		properties.put("shellexecutorthreads", Integer.toString(threads));
+		properties.put("shellexecutorqueue", Integer.toString(queue));
+		return properties;
+	}
+}
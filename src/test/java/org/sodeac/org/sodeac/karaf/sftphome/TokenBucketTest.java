@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase
+{
+	public void testRejectsInvalidRate()
+	{
+		try
+		{
+			new TokenBucket(0L, 1L);
+			fail("rate 0 must be rejected");
+		}
+		catch (IllegalArgumentException e) 
+		{
+			// expected
+		}
+	}
+	
+	public void testBurstIsAvailableImmediately() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1000L, 2L);
+		long start = System.nanoTime();
+		tokenBucket.acquire(2000L);
+		tokenBucket.acquire(0L);
+		tokenBucket.acquire(-5L);
+		assertTrue("burst must not wait", elapsedMillis(start) < 200L);
+	}
+	
+	public void testDebtIsWaitedFor() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1000L, 1L);
+		tokenBucket.acquire(1000L);
+		
+		long start = System.nanoTime();
+		tokenBucket.acquire(500L);
+		long elapsed = elapsedMillis(start);
+		assertTrue("debt of 500 permits at 1000/s must wait about 500 ms, waited " + elapsed, (elapsed >= 450L) && (elapsed < 2000L));
+	}
+	
+	public void testLargeRequestRunsIntoDebt() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1000L, 1L);
+		
+		// request larger than capacity is reserved at once, caller waits for debt of 500 permits
+		
+		long start = System.nanoTime();
+		tokenBucket.acquire(1500L);
+		long elapsed = elapsedMillis(start);
+		assertTrue("waited " + elapsed, (elapsed >= 450L) && (elapsed < 2000L));
+		
+		// next caller waits behind debt already paid
+		
+		start = System.nanoTime();
+		tokenBucket.acquire(200L);
+		elapsed = elapsedMillis(start);
+		assertTrue("waited " + elapsed, (elapsed >= 150L) && (elapsed < 2000L));
+	}
+	
+	public void testRefillIsCappedByCapacity() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1000L, 1L);
+		Thread.sleep(300L);
+		
+		// idle time does not raise tokens above capacity of 1000
+		
+		long start = System.nanoTime();
+		tokenBucket.acquire(1300L);
+		long elapsed = elapsedMillis(start);
+		assertTrue("waited " + elapsed, (elapsed >= 250L) && (elapsed < 2000L));
+	}
+	
+	public void testConcurrentCallersShareRate() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1000L, 1L);
+		tokenBucket.acquire(1000L);
+		
+		Thread[] threads = new Thread[4];
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		long start = System.nanoTime();
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> 
+			{
+				try
+				{
+					tokenBucket.acquire(200L);
+				}
+				catch (Throwable e) 
+				{
+					failure.set(e);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+		long elapsed = elapsedMillis(start);
+		assertNull(failure.get());
+		assertTrue("800 permits at 1000/s must take about 800 ms, took " + elapsed, (elapsed >= 700L) && (elapsed < 3000L));
+	}
+	
+	public void testInterruptWhileWaiting() throws Exception
+	{
+		TokenBucket tokenBucket = new TokenBucket(1L, 1L);
+		tokenBucket.acquire(1L);
+		
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+		Thread thread = new Thread(() -> 
+		{
+			try
+			{
+				tokenBucket.acquire(60L);
+			}
+			catch (Throwable e) 
+			{
+				failure.set(e);
+				interrupted.set(Thread.currentThread().isInterrupted());
+			}
+		});
+		thread.start();
+		Thread.sleep(100L);
+		thread.interrupt();
+		thread.join(5000L);
+		
+		assertFalse(thread.isAlive());
+		assertTrue(failure.get() instanceof InterruptedIOException);
+		assertEquals(Boolean.TRUE, interrupted.get());
+	}
+	
+	private static long elapsedMillis(long start)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.kex.KexProposalOption;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.session.Session;
+import org.sodeac.org.sodeac.karaf.sftphome.TransportPolicy.Profile;
+
+import junit.framework.TestCase;
+
+public class TransportPolicyTest extends TestCase
+{
+	private final Map<String,Object> properties = new HashMap<String,Object>();
+	private final Map<String,List<?>> applied = new HashMap<String,List<?>>();
+	private final Map<KexProposalOption,String> clientProposals = new EnumMap<KexProposalOption,String>(KexProposalOption.class);
+	private final Map<KexProposalOption,String> negotiated = new EnumMap<KexProposalOption,String>(KexProposalOption.class);
+	private int keyExchanges = 0;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.properties.put("transportrole", "bulkusers:bulk, wanusers:wan, nobody:missing");
+		
+		proposeAndNegotiate(KexProposalOption.C2SENC, "aes128-ctr,aes256-ctr,aes128-cbc", "aes128-cbc");
+		proposeAndNegotiate(KexProposalOption.S2CENC, "aes128-ctr,aes256-ctr,aes128-cbc", "aes128-cbc");
+		proposeAndNegotiate(KexProposalOption.C2SMAC, "hmac-sha1,hmac-sha2-256", "hmac-sha1");
+		proposeAndNegotiate(KexProposalOption.S2CMAC, "hmac-sha1,hmac-sha2-256", "hmac-sha1");
+		proposeAndNegotiate(KexProposalOption.C2SCOMP, "none,zlib@openssh.com", "none");
+		proposeAndNegotiate(KexProposalOption.S2CCOMP, "none,zlib@openssh.com", "none");
+	}
+	
+	public void testFirstConfiguredRoleSelectsProfile()
+	{
+		TransportPolicy transportPolicy = TransportPolicy.fromProperties(this.properties);
+		assertFalse(transportPolicy.isEmpty());
+		
+		assertEquals("bulk", transportPolicy.resolve(new HashSet<String>(Arrays.asList("wanusers", "bulkusers"))).getName());
+		assertEquals("wan", transportPolicy.resolve(Collections.singleton("wanusers")).getName());
+		
+		// roles without profile or with unknown profile
+		
+		assertNull(transportPolicy.resolve(Collections.singleton("other")));
+		assertNull(transportPolicy.resolve(Collections.singleton("nobody")));
+		assertNull(transportPolicy.resolve(null));
+		assertTrue(TransportPolicy.fromProperties(new HashMap<String,Object>()).isEmpty());
+	}
+	
+	public void testConfiguredProfileReplacesPredefined() throws Exception
+	{
+		this.properties.put("transportprofile", "bulk;ciphers=aes256-ctr;macs=hmac-sha2-256, broken;unknown=x");
+		this.properties.put("transportrole", "bulkusers:bulk, brokenusers:broken");
+		TransportPolicy transportPolicy = TransportPolicy.fromProperties(this.properties);
+		
+		assertNull(transportPolicy.resolve(Collections.singleton("brokenusers")));
+		
+		Profile profile = transportPolicy.resolve(Collections.singleton("bulkusers"));
+		assertTrue(TransportPolicy.apply(session(BuiltinCiphers.VALUES, BuiltinMacs.VALUES, BuiltinCompressions.VALUES), profile));
+		assertEquals(Arrays.asList("aes256-ctr"), names("ciphers"));
+		assertEquals(Arrays.asList("hmac-sha2-256"), names("macs"));
+		assertNull(this.applied.get("compressions"));
+	}
+	
+	public void testProfilesAreEqualAcrossRefresh()
+	{
+		Profile profile = TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("bulkusers"));
+		Profile refreshed = TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("bulkusers"));
+		assertNotSame(profile, refreshed);
+		assertEquals(profile, refreshed);
+		assertEquals(profile.hashCode(), refreshed.hashCode());
+		assertFalse(profile.equals(TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("wanusers"))));
+	}
+	
+	public void testProfileIsRestrictedToEnabledAlgorithms() throws Exception
+	{
+		Profile profile = TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("bulkusers"));
+		
+		// aes128-ctr and hmac-sha1 are disabled by server
+		
+		Session session = session
+		(
+			Arrays.asList(BuiltinCiphers.aes256ctr, BuiltinCiphers.aes128cbc), 
+			Arrays.asList(BuiltinMacs.hmacsha256), 
+			Arrays.asList(BuiltinCompressions.none)
+		);
+		assertTrue(TransportPolicy.apply(session, profile));
+		assertEquals(1, this.keyExchanges);
+		assertEquals(Arrays.asList("aes256-ctr"), names("ciphers"));
+		assertEquals(Arrays.asList("hmac-sha2-256"), names("macs"));
+		assertEquals(Arrays.asList("none"), names("compressions"));
+	}
+	
+	public void testProfileWithoutEnabledAlgorithmsDoesNotRestrict() throws Exception
+	{
+		Profile profile = TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("bulkusers"));
+		
+		Session session = session
+		(
+			Arrays.asList(BuiltinCiphers.aes128cbc), 
+			Arrays.asList(BuiltinMacs.hmacsha1), 
+			Arrays.asList(BuiltinCompressions.none)
+		);
+		assertFalse(TransportPolicy.apply(session, profile));
+		assertEquals(0, this.keyExchanges);
+		assertNull(this.applied.get("ciphers"));
+		assertNull(this.applied.get("macs"));
+	}
+	
+	public void testUnchangedAlgorithmsDoNotExchangeKeys() throws Exception
+	{
+		proposeAndNegotiate(KexProposalOption.C2SENC, "aes128-ctr,aes256-ctr", "aes128-ctr");
+		proposeAndNegotiate(KexProposalOption.S2CENC, "aes128-ctr,aes256-ctr", "aes128-ctr");
+		proposeAndNegotiate(KexProposalOption.C2SMAC, "hmac-sha2-256-etm@openssh.com,hmac-sha1", "hmac-sha2-256-etm@openssh.com");
+		proposeAndNegotiate(KexProposalOption.S2CMAC, "hmac-sha2-256-etm@openssh.com,hmac-sha1", "hmac-sha2-256-etm@openssh.com");
+		
+		Profile profile = TransportPolicy.fromProperties(this.properties).resolve(Collections.singleton("bulkusers"));
+		assertFalse(TransportPolicy.apply(session(BuiltinCiphers.VALUES, BuiltinMacs.VALUES, BuiltinCompressions.VALUES), profile));
+		assertEquals(0, this.keyExchanges);
+		assertTrue(this.applied.isEmpty());
+	}
+	
+	private void proposeAndNegotiate(KexProposalOption option, String proposal, String negotiated)
+	{
+		this.clientProposals.put(option, proposal);
+		this.negotiated.put(option, negotiated);
+	}
+	
+	private List<String> names(String key)
+	{
+		List<String> names = new ArrayList<String>();
+		for(Object factory : this.applied.get(key))
+		{
+			names.add(((NamedResource)factory).getName());
+		}
+		return names;
+	}
+	
+	private Session session(Iterable<? extends NamedFactory<?>> ciphers, Iterable<? extends NamedFactory<?>> macs, Iterable<? extends NamedFactory<?>> compressions)
+	{
+		List<Object> enabledCiphers = new ArrayList<Object>();
+		ciphers.forEach(enabledCiphers::add);
+		List<Object> enabledMacs = new ArrayList<Object>();
+		macs.forEach(enabledMacs::add);
+		List<Object> enabledCompressions = new ArrayList<Object>();
+		compressions.forEach(enabledCompressions::add);
+		
+		// algorithms of session are restricted by this test only, server keeps enabled algorithms
+		
+		FactoryManager factoryManager = (FactoryManager)Proxy.newProxyInstance(TransportPolicyTest.class.getClassLoader(), new Class<?>[] {FactoryManager.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getCipherFactories":
+					return enabledCiphers;
+				case "getMacFactories":
+					return enabledMacs;
+				case "getCompressionFactories":
+					return enabledCompressions;
+				default:
+					return null;
+			}
+		});
+		
+		return (Session)Proxy.newProxyInstance(TransportPolicyTest.class.getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> 
+		{
+			switch (method.getName()) 
+			{
+				case "getFactoryManager":
+					return factoryManager;
+				case "getClientKexProposals":
+					return this.clientProposals;
+				case "getNegotiatedKexParameter":
+					return this.negotiated.get(args[0]);
+				case "setCipherFactories":
+					return this.applied.put("ciphers", (List<?>)args[0]);
+				case "setMacFactories":
+					return this.applied.put("macs", (List<?>)args[0]);
+				case "setCompressionFactories":
+					return this.applied.put("compressions", (List<?>)args[0]);
+				case "reExchangeKeys":
+					this.keyExchanges++;
+					return null;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return null;
+			}
+		});
+	}
+}
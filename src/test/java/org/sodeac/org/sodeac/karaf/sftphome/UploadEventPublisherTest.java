@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) 2019, 2020 Sebastian Palarus
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.sodeac.org.sodeac.karaf.sftphome;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sodeac.org.sodeac.karaf.sftphome.UploadEvent.Kind;
+
+import junit.framework.TestCase;
+
+public class UploadEventPublisherTest extends TestCase
+{
+	private Path directory;
+	private SFTPHomeFileSystem fileSystem;
+	private UploadEventPublisher publisher;
+	private List<List<UploadEvent>> batches;
+	private Map<String,Object> properties;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		this.directory = Files.createTempDirectory("sftphome-uploadevent");
+		this.fileSystem = new SFTPHomeFileSystem(new SFTPHomeFileSystemProvider(), this.directory, "alice");
+		this.batches = new CopyOnWriteArrayList<List<UploadEvent>>();
+		this.publisher = new UploadEventPublisher();
+		
+		// publish by explicit flush only
+		
+		this.properties = new HashMap<String,Object>();
+		this.properties.put("uploadeventdelay", 60000L);
+		this.publisher.refresh(this.properties);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		this.publisher.dispose();
+		Files.deleteIfExists(this.directory);
+		super.tearDown();
+	}
+	
+	public void testWithoutListenersCommitsAreIgnored() throws Exception
+	{
+		assertFalse(this.publisher.isActive());
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		this.publisher.addListener(events -> this.batches.add(new ArrayList<UploadEvent>(events)));
+		this.publisher.flush();
+		assertTrue(this.batches.isEmpty());
+		assertEquals(0L, this.publisher.getPublishedCount());
+	}
+	
+	public void testCommitsOfPathAreCoalesced() throws Exception
+	{
+		this.publisher.addListener(events -> this.batches.add(new ArrayList<UploadEvent>(events)));
+		this.publisher.written(this.fileSystem, "/a.tmp", 10L);
+		this.publisher.written(this.fileSystem, "/b.txt", 20L);
+		this.publisher.written(this.fileSystem, "/a.tmp", 30L);
+		this.publisher.renamed(this.fileSystem, "/a.tmp", "/a.txt", 30L);
+		this.publisher.flush();
+		
+		assertEquals(1, this.batches.size());
+		List<UploadEvent> events = this.batches.get(0);
+		assertEquals(2, events.size());
+		assertEquals("/b.txt", events.get(0).getPath());
+		assertEquals(Kind.WRITTEN, events.get(0).getKind());
+		assertEquals("/a.txt", events.get(1).getPath());
+		assertEquals(Kind.RENAMED, events.get(1).getKind());
+		assertEquals(30L, events.get(1).getSize());
+		assertEquals("alice", events.get(1).getOwner());
+		assertEquals(this.directory.resolve("a.txt"), events.get(1).getFile());
+		assertEquals(2L, this.publisher.getPublishedCount());
+	}
+	
+	public void testFullBatchIsPublishedImmediately() throws Exception
+	{
+		this.properties.put("uploadeventbatchsize", 2L);
+		this.publisher.refresh(this.properties);
+		this.publisher.addListener(events -> this.batches.add(new ArrayList<UploadEvent>(events)));
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		this.publisher.written(this.fileSystem, "/b.txt", 10L);
+		
+		long deadline = System.currentTimeMillis() + 10000L;
+		while(this.batches.isEmpty() && (System.currentTimeMillis() < deadline))
+		{
+			Thread.sleep(10L);
+		}
+		assertEquals(1, this.batches.size());
+		assertEquals(2, this.batches.get(0).size());
+	}
+	
+	public void testFullQueueDropsCommitAfterTimeout() throws Exception
+	{
+		this.properties.put("uploadeventqueuesize", 2L);
+		this.properties.put("uploadeventblocktimeout", 100L);
+		this.publisher.refresh(this.properties);
+		this.publisher.addListener(events -> this.batches.add(new ArrayList<UploadEvent>(events)));
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		this.publisher.written(this.fileSystem, "/b.txt", 10L);
+		
+		// coalesced commit does not need space in queue
+		
+		long start = System.nanoTime();
+		this.publisher.written(this.fileSystem, "/a.txt", 20L);
+		assertEquals(0L, this.publisher.getDroppedCount());
+		
+		this.publisher.written(this.fileSystem, "/c.txt", 10L);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90L);
+		assertEquals(1L, this.publisher.getDroppedCount());
+		
+		this.publisher.flush();
+		assertEquals(1, this.batches.size());
+		assertEquals(2, this.batches.get(0).size());
+	}
+	
+	public void testFullQueueBlocksUntilPublication() throws Exception
+	{
+		this.properties.put("uploadeventqueuesize", 1L);
+		this.properties.put("uploadeventblocktimeout", 10000L);
+		this.publisher.refresh(this.properties);
+		this.publisher.addListener(events -> this.batches.add(new ArrayList<UploadEvent>(events)));
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		
+		Thread committer = new Thread(() -> this.publisher.written(this.fileSystem, "/b.txt", 10L));
+		committer.start();
+		committer.join(200L);
+		assertTrue(committer.isAlive());
+		
+		this.publisher.flush();
+		committer.join(10000L);
+		assertFalse(committer.isAlive());
+		
+		this.publisher.flush();
+		assertEquals(2, this.batches.size());
+		assertEquals("/b.txt", this.batches.get(1).get(0).getPath());
+		assertEquals(0L, this.publisher.getDroppedCount());
+	}
+	
+	public void testEventAdminPayload() throws Exception
+	{
+		List<Event> posted = new CopyOnWriteArrayList<Event>();
+		EventAdminUploadListener listener = new EventAdminUploadListener();
+		listener.bindEventAdmin(eventAdmin(posted));
+		this.publisher.addListener(listener);
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		this.publisher.renamed(this.fileSystem, "/b.tmp", "/b.txt", 20L);
+		this.publisher.flush();
+		
+		assertEquals(1, posted.size());
+		Event event = posted.get(0);
+		assertEquals(EventAdminUploadListener.TOPIC, event.getTopic());
+		assertEquals("alice", event.getProperty("owner"));
+		assertEquals(this.directory.toString(), event.getProperty("home"));
+		assertEquals(2, event.getProperty("count"));
+		assertTrue(Arrays.equals(new String[] {"/a.txt", "/b.txt"}, (String[])event.getProperty("paths")));
+		assertTrue(Arrays.equals(new String[] {this.directory.resolve("a.txt").toString(), this.directory.resolve("b.txt").toString()}, (String[])event.getProperty("files")));
+		assertTrue(Arrays.equals(new long[] {10L, 20L}, (long[])event.getProperty("sizes")));
+		assertTrue(Arrays.equals(new String[] {"WRITTEN", "RENAMED"}, (String[])event.getProperty("kinds")));
+		assertEquals(2, ((long[])event.getProperty("timestamps")).length);
+	}
+	
+	public void testWithoutEventAdmin() throws Exception
+	{
+		List<Event> posted = new CopyOnWriteArrayList<Event>();
+		EventAdmin eventAdmin = eventAdmin(posted);
+		EventAdminUploadListener listener = new EventAdminUploadListener();
+		this.publisher.addListener(listener);
+		
+		// batches are published without error and without event
+		
+		this.publisher.written(this.fileSystem, "/a.txt", 10L);
+		this.publisher.flush();
+		assertEquals(1L, this.publisher.getPublishedCount());
+		
+		listener.bindEventAdmin(eventAdmin);
+		listener.unbindEventAdmin(eventAdmin);
+		listener.uploadsCommitted(Collections.emptyList());
+		this.publisher.written(this.fileSystem, "/b.txt", 10L);
+		this.publisher.flush();
+		assertEquals(2L, this.publisher.getPublishedCount());
+		assertTrue(posted.isEmpty());
+	}
+	
+	private static EventAdmin eventAdmin(List<Event> posted)
+	{
+		return new EventAdmin()
+		{
+			@Override
+			public void postEvent(Event event)
+			{
+				posted.add(event);
+			}
+			
+			@Override
+			public void sendEvent(Event event)
+			{
+				posted.add(event);
+			}
+		};
+	}
+}